@@ -13,14 +13,30 @@ import org.junit.runner.RunWith;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 
+import info.guardianproject.iocipher.DirectoryStream;
 import info.guardianproject.iocipher.File;
+import info.guardianproject.iocipher.FileEntry;
 import info.guardianproject.iocipher.FileInputStream;
 import info.guardianproject.iocipher.FileOutputStream;
 import info.guardianproject.iocipher.FileReader;
@@ -28,6 +44,7 @@ import info.guardianproject.iocipher.FileWriter;
 import info.guardianproject.iocipher.IOCipherFileChannel;
 import info.guardianproject.iocipher.RandomAccessFile;
 import info.guardianproject.iocipher.VirtualFileSystem;
+import info.guardianproject.libcore.io.Libcore;
 
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
@@ -335,6 +352,87 @@ public class CipherFileTest {
         }
     }
 
+    @Test
+    public void testListEntries() throws IOException {
+        File dir = new File(ROOT, "list-entries");
+        assertTrue(dir.mkdir());
+        assertTrue(new File(dir, "sub").mkdir());
+        // below sub, so not an entry of dir
+        assertTrue(new File(dir, "sub/nested").mkdir());
+        assertTrue(new File(dir, "sub/nested/deeper").mkdir());
+        // '-' sorts before '/', so between "sub" and what is below it
+        assertTrue(new File(dir, "sub-sibling").mkdir());
+        FileOutputStream out = new FileOutputStream(new File(dir, "file"));
+        out.write(new byte[1234]);
+        out.close();
+
+        FileEntry[] entries = dir.listEntries();
+        assertEquals(3, entries.length);
+        for (FileEntry entry : entries) {
+            File f = new File(dir, entry.getName());
+            assertEquals(f.isDirectory(), entry.isDirectory());
+            assertEquals(f.isFile(), entry.isFile());
+            assertTrue(entry.lastModified() > 0);
+            if (entry.isFile())
+                assertEquals(1234, entry.length());
+        }
+        assertEquals(1, new File(dir, "sub").listEntries().length);
+        assertEquals(null, new File(dir, "file").listEntries());
+        assertEquals(null, new File(dir, "missing").listEntries());
+    }
+
+    @Test
+    public void testSetLastModified() throws IOException {
+        File a = new File(ROOT, "last-modified-a");
+        File b = new File(ROOT, "last-modified-b");
+        new FileOutputStream(a).close();
+        new FileOutputStream(b).close();
+        long before = b.lastModified();
+        long faketime = 1234567890000L;
+        assertTrue(a.setLastModified(faketime));
+        assertEquals(faketime, a.lastModified());
+        // each file has a time of its own
+        assertEquals(before, b.lastModified());
+        assertFalse(new File(ROOT, "last-modified-missing").setLastModified(faketime));
+    }
+
+    @Test
+    public void testDirectoryStream() throws IOException {
+        File dir = new File(ROOT, "directory-stream");
+        assertTrue(dir.mkdir());
+        for (int i = 0; i < 25; i++) {
+            assertTrue(new File(dir, "file" + i).createNewFile());
+        }
+
+        List<String> names = new ArrayList<String>();
+        // pages of 4, so the last page is a short one
+        DirectoryStream stream = dir.newDirectoryStream(4);
+        try {
+            for (FileEntry entry : stream) {
+                assertTrue(entry.isFile());
+                names.add(entry.getName());
+            }
+            try {
+                stream.iterator();
+                fail("iterated twice");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+        } finally {
+            stream.close();
+        }
+        String[] expected = dir.list();
+        Arrays.sort(expected);
+        assertEquals(Arrays.asList(expected), names);
+    }
+
+    @Test(expected = IOException.class)
+    public void testDirectoryStreamNotDirectory() throws IOException {
+        File f = new File(ROOT, "directory-stream-file");
+        assertTrue(f.createNewFile());
+        f.newDirectoryStream();
+    }
+
     /*
      * // TODO testMkdirLastModified fails public void testMkdirLastModified() {
      * File root = ROOT; File f = new File(Util.randomFileName(ROOT,
@@ -754,6 +852,414 @@ public class CipherFileTest {
         return null;
     }
 
+    @Test
+    public void testFileChannelDirectBuffers() {
+        File f = new File(Util.randomFileName(ROOT, "testFileChannelDirectBuffers"));
+        byte[] data = new byte[20000];
+        new Random().nextBytes(data);
+        try {
+            RandomAccessFile raf = new RandomAccessFile(f, "rw");
+            IOCipherFileChannel channel = raf.getChannel();
+            ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+            direct.put(data);
+            direct.flip();
+            assertEquals(data.length, channel.write(direct));
+            assertEquals(data.length, channel.position());
+            assertEquals(data.length, channel.size());
+
+            direct.clear();
+            assertEquals(data.length, channel.read(direct, 0));
+            direct.flip();
+            byte[] actual = new byte[data.length];
+            direct.get(actual);
+            assertTrue(Arrays.equals(data, actual));
+
+            ByteBuffer heap = ByteBuffer.allocate(100);
+            channel.position(1000);
+            assertEquals(100, channel.read(heap));
+            assertEquals(1100, channel.position());
+            assertTrue(Arrays.equals(Arrays.copyOfRange(data, 1000, 1100), heap.array()));
+
+            heap.clear();
+            assertEquals(-1, channel.read(heap, data.length));
+            raf.close();
+        } catch (IOException e) {
+            Log.e(TAG, e.getCause().toString());
+            assertFalse(true);
+        }
+    }
+
+    @Test
+    public void testFileChannelScatterGather() {
+        File f = new File(Util.randomFileName(ROOT, "testFileChannelScatterGather"));
+        byte[] header = "header:".getBytes();
+        byte[] payload = new byte[10000];
+        new Random().nextBytes(payload);
+        try {
+            RandomAccessFile raf = new RandomAccessFile(f, "rw");
+            IOCipherFileChannel channel = raf.getChannel();
+            ByteBuffer direct = ByteBuffer.allocateDirect(payload.length);
+            direct.put(payload);
+            direct.flip();
+            ByteBuffer[] buffers = new ByteBuffer[] {
+                    ByteBuffer.wrap(header), direct
+            };
+            assertEquals(header.length + payload.length, channel.write(buffers));
+            assertFalse(buffers[0].hasRemaining());
+            assertFalse(buffers[1].hasRemaining());
+            assertEquals(header.length + payload.length, f.length());
+
+            channel.position(0);
+            ByteBuffer actualHeader = ByteBuffer.allocate(header.length);
+            ByteBuffer actualPayload = ByteBuffer.allocateDirect(payload.length + 100);
+            buffers = new ByteBuffer[] {
+                    actualHeader, actualPayload
+            };
+            assertEquals(header.length + payload.length, channel.read(buffers));
+            assertTrue(Arrays.equals(header, actualHeader.array()));
+            assertEquals(payload.length, actualPayload.position());
+            actualPayload.flip();
+            byte[] actual = new byte[payload.length];
+            actualPayload.get(actual);
+            assertTrue(Arrays.equals(payload, actual));
+            assertEquals(-1, channel.read(buffers));
+            raf.close();
+        } catch (IOException e) {
+            Log.e(TAG, e.getCause().toString());
+            assertFalse(true);
+        }
+    }
+
+    @Test
+    public void testFileChannelScatterIntoArraySlice() throws IOException {
+        File f = new File(Util.randomFileName(ROOT, "testFileChannelScatterIntoArraySlice"));
+        byte[] contents = new byte[20];
+        new Random().nextBytes(contents);
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(contents);
+        out.close();
+
+        byte[] array = new byte[200];
+        Arrays.fill(array, (byte) 0x55);
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            ByteBuffer[] buffers = new ByteBuffer[] {
+                    ByteBuffer.wrap(array, 10, 100)
+            };
+            assertEquals(contents.length, raf.getChannel().read(buffers));
+            assertEquals(10 + contents.length, buffers[0].position());
+            for (int i = 0; i < array.length; i++) {
+                if (i >= 10 && i < 10 + contents.length) {
+                    assertEquals(contents[i - 10], array[i]);
+                } else {
+                    // outside of what was read, the array is left as it was
+                    assertEquals((byte) 0x55, array[i]);
+                }
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void testFileChannelLock() throws IOException {
+        File f = new File(Util.randomFileName(ROOT, "testFileChannelLock"));
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        RandomAccessFile other = new RandomAccessFile(f, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            FileLock lock = channel.lock(0, 100, false);
+            assertTrue(lock.isValid());
+            try {
+                channel.tryLock(50, 100, true);
+                fail("locked an overlapping region on the same channel");
+            } catch (OverlappingFileLockException e) {
+                // expected
+            }
+            // another channel has to wait for it
+            assertEquals(null, other.getChannel().tryLock(50, 100, true));
+            FileLock otherLock = other.getChannel().tryLock(100, 100, false);
+            assertTrue(otherLock.isValid());
+            lock.release();
+            assertFalse(lock.isValid());
+            otherLock.release();
+            // shared locks of different channels can overlap
+            FileLock shared = channel.lock(0, 100, true);
+            FileLock otherShared = other.getChannel().tryLock(50, 100, true);
+            assertTrue(otherShared.isValid());
+            shared.release();
+            otherShared.release();
+        } finally {
+            raf.close();
+            other.close();
+        }
+    }
+
+    @Test
+    public void testFileChannelLockWaits() throws Exception {
+        File f = new File(Util.randomFileName(ROOT, "testFileChannelLockWaits"));
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        final RandomAccessFile other = new RandomAccessFile(f, "rw");
+        try {
+            final FileLock lock = raf.getChannel().lock(0, 100, false);
+            Thread releaser = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(200);
+                        lock.release();
+                    } catch (Exception e) {
+                        Log.e(TAG, "could not release the lock", e);
+                    }
+                }
+            };
+            releaser.start();
+            long start = System.currentTimeMillis();
+            FileLock otherLock = other.getChannel().lock(0, 100, false);
+            assertTrue(System.currentTimeMillis() - start >= 100);
+            assertFalse(lock.isValid());
+            assertTrue(otherLock.isValid());
+            releaser.join();
+        } finally {
+            raf.close();
+            other.close();
+        }
+        try {
+            other.getChannel().size();
+            fail("size() of a closed channel");
+        } catch (ClosedChannelException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testFileChannelMap() throws IOException {
+        File f = new File(Util.randomFileName(ROOT, "testFileChannelMap"));
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            channel.write(ByteBuffer.wrap("0123456789".getBytes()));
+
+            MappedByteBuffer readOnly = channel.map(FileChannel.MapMode.READ_ONLY, 2, 3);
+            assertTrue(readOnly.isReadOnly());
+            assertEquals('2', readOnly.get(0));
+            assertEquals('4', readOnly.get(2));
+
+            MappedByteBuffer copy = channel.map(FileChannel.MapMode.PRIVATE, 0, 10);
+            copy.put(0, (byte) 'x');
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 5, 5);
+            mapped.put(0, (byte) 'y');
+            channel.force(false);
+
+            ByteBuffer actual = ByteBuffer.allocate(10);
+            channel.read(actual, 0);
+            assertEquals("01234y6789", new String(actual.array()));
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void testFileInputStreamReadAhead() throws IOException {
+        File f = new File(Util.randomFileName(ROOT, "testFileInputStreamReadAhead"));
+        byte[] data = new byte[1000000];
+        new Random().nextBytes(data);
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(data);
+        out.close();
+
+        // small sequential reads are served from the growing read-ahead
+        FileInputStream in = new FileInputStream(f);
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            read.write(buffer, 0, count);
+        }
+        in.close();
+        assertTrue(Arrays.equals(data, read.toByteArray()));
+
+        // skipping and reading through the channel must not return stale bytes
+        in = new FileInputStream(f);
+        assertEquals(data[0] & 0xff, in.read());
+        assertEquals(100, in.skip(100));
+        assertEquals(data[101] & 0xff, in.read());
+        in.getChannel().position(500000);
+        assertEquals(100, in.read(buffer, 0, 100));
+        assertTrue(Arrays.equals(Arrays.copyOfRange(data, 500000, 500100),
+                Arrays.copyOf(buffer, 100)));
+        assertEquals(500100, in.getChannel().position());
+        in.setMaxReadAhead(0);
+        assertEquals(data[500100] & 0xff, in.read());
+        in.close();
+    }
+
+    @Test
+    public void testFileOutputStreamWriteBehind() throws IOException {
+        File f = new File(Util.randomFileName(ROOT, "testFileOutputStreamWriteBehind"));
+        FileOutputStream out = new FileOutputStream(f);
+        for (int i = 0; i < 10; i++) {
+            out.write(i);
+        }
+        assertEquals(0, f.length()); // held back
+        out.flush();
+        assertEquals(10, f.length());
+
+        out.write(new byte[5]);
+        out.getFD().sync();
+        assertEquals(15, f.length());
+
+        // the channel sees what was written before it, and shares the position
+        out.write(new byte[] { 1, 2, 3 });
+        IOCipherFileChannel channel = out.getChannel();
+        assertEquals(18, channel.position());
+        assertEquals(18, channel.size());
+        channel.write(ByteBuffer.wrap(new byte[2]));
+        out.write(new byte[100000]);
+        out.write(7);
+        out.close();
+        assertEquals(100021, f.length());
+
+        FileInputStream in = new FileInputStream(f);
+        byte[] start = new byte[18];
+        assertEquals(18, in.read(start));
+        assertEquals(9, start[9]);
+        assertEquals(3, start[17]);
+        assertEquals(100002, in.skip(100002));
+        assertEquals(7, in.read());
+        assertEquals(-1, in.read());
+        in.close();
+    }
+
+    @Test
+    public void testFileOutputStreamClosed() throws IOException {
+        File f = new File(Util.randomFileName(ROOT, "testFileOutputStreamClosed"));
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(1);
+        out.close();
+        try {
+            out.write(2);
+            fail("wrote to a closed stream");
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            out.write(new byte[3]);
+            fail("wrote to a closed stream");
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            out.flush();
+            fail("flushed a closed stream");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(1, f.length());
+    }
+
+    @Test
+    public void testFileOutputStreamsOnOneFD() throws IOException {
+        File f = new File(Util.randomFileName(ROOT, "testFileOutputStreamsOnOneFD"));
+        FileOutputStream first = new FileOutputStream(f);
+        // only first holds writes back, second writes after them
+        FileOutputStream second = new FileOutputStream(first.getFD());
+        first.write(new byte[] { 1, 2 });
+        second.write(3);
+        assertEquals(3, f.length());
+        first.write(4);
+        second.write(new byte[] { 5, 6 });
+        second.close();
+        first.close();
+
+        FileInputStream in = new FileInputStream(f);
+        byte[] read = new byte[7];
+        assertEquals(6, in.read(read));
+        assertEquals(1, read[0]);
+        assertEquals(3, read[2]);
+        assertEquals(6, read[5]);
+        in.close();
+    }
+
+    @Test
+    public void testRandomAccessFilePageCache() throws IOException {
+        File f = new File(Util.randomFileName(ROOT, "testRandomAccessFilePageCache"));
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        raf.setPageCacheSize(4);
+        assertEquals(4, raf.getPageCacheSize());
+        for (int i = 0; i < 10000; i++) {
+            raf.writeInt(i);
+        }
+        assertEquals(40000, raf.length());
+        assertEquals(40000, raf.getFilePointer());
+        raf.writeBytes("one\ntwo\r\nthree");
+
+        raf.seek(4 * 1234);
+        assertEquals(1234, raf.readInt());
+        raf.seek(40000);
+        assertEquals("one", raf.readLine());
+        assertEquals("two", raf.readLine());
+        assertEquals("three", raf.readLine());
+        assertEquals(null, raf.readLine());
+
+        // the channel sees what is cached, and the cache what the channel wrote
+        FileChannel channel = raf.getChannel();
+        assertEquals(40014, channel.size());
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        channel.read(buffer, 4 * 9999);
+        assertEquals(9999, buffer.getInt(0));
+        buffer.putInt(0, -1);
+        buffer.rewind();
+        channel.write(buffer, 4 * 5);
+        raf.seek(4 * 5);
+        assertEquals(-1, raf.readInt());
+        assertEquals(6, raf.readInt());
+
+        raf.seek(4 * 7);
+        raf.writeInt(-7);
+        raf.setLength(4 * 8);
+        assertEquals(32, raf.length());
+        raf.seek(4 * 7);
+        assertEquals(-7, raf.readInt());
+        raf.close();
+        assertEquals(32, f.length());
+
+        raf = new RandomAccessFile(f, "r");
+        raf.seek(4 * 7);
+        assertEquals(-7, raf.readInt());
+        raf.close();
+    }
+
+    @Test
+    public void testCopyTo() throws Exception {
+        String input_name = "/testCopyTo-input";
+        assertTrue(Util.cipherWriteRandomBytes(100000, input_name));
+        File inputFile = new File(input_name);
+        File outputFile = new File("/testCopyTo-output");
+        assertTrue(inputFile.copyTo(outputFile));
+        assertEquals(inputFile.length(), outputFile.length());
+        assertTrue(Arrays.equals(digest(inputFile), digest(outputFile)));
+        assertFalse(Libcore.os.stat(input_name).st_ino
+                == Libcore.os.stat(outputFile.getPath()).st_ino);
+        assertFalse(inputFile.copyTo(outputFile)); // already exists
+        assertFalse(inputFile.copyTo(new File("/testCopyTo-missing/output")));
+
+        File dir = new File("/testCopyTo-dir");
+        assertTrue(dir.mkdir());
+        assertTrue(new File(dir, "sub").mkdir());
+        assertTrue(outputFile.renameTo(new File(dir, "sub/file")));
+        File dirCopy = new File("/testCopyTo-dir-copy");
+        assertFalse(dir.copyTo(dirCopy));
+        assertFalse(dir.copyTo(new File(dir, "sub/copy"), true));
+        assertTrue(dir.copyTo(dirCopy, true));
+        assertTrue(new File(dirCopy, "sub").isDirectory());
+        File fileCopy = new File(dirCopy, "sub/file");
+        assertTrue(fileCopy.isFile());
+        assertTrue(Arrays.equals(digest(inputFile), digest(fileCopy)));
+        assertFalse(Libcore.os.stat(new File(dir, "sub").getPath()).st_ino
+                == Libcore.os.stat(new File(dirCopy, "sub").getPath()).st_ino);
+    }
+
     @Test
     public void testFileChannelTransferTo() {
         String input_name = "/testCopyFileChannels-input";
@@ -842,6 +1348,61 @@ public class CipherFileTest {
         }
     }
 
+    @Test
+    public void testFileChannelTransferInChunks() {
+        String input_name = "/testFileChannelTransferInChunks-input";
+        assertTrue(Util.cipherWriteRandomBytes(100000, input_name));
+        File inputFile = new File(input_name);
+        try {
+            FileInputStream source = new FileInputStream(inputFile);
+            IOCipherFileChannel sourceFileChannel = source.getChannel();
+            sourceFileChannel.setTransferChunkSize(1000);
+
+            // not an IOCipherFileChannel, so this goes through the chunk buffer
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            WritableByteChannel target = Channels.newChannel(bytes);
+            assertEquals(99000, sourceFileChannel.transferTo(1000, 200000, target));
+            assertEquals(99000, bytes.size());
+
+            File outputFile = new File("/testFileChannelTransferInChunks-output");
+            FileOutputStream destination = new FileOutputStream(outputFile);
+            IOCipherFileChannel destinationFileChannel = destination.getChannel();
+            destinationFileChannel.setTransferChunkSize(1000);
+            ReadableByteChannel src = Channels.newChannel(
+                    new ByteArrayInputStream(bytes.toByteArray()));
+            assertEquals(99000, destinationFileChannel.transferFrom(src, 0, Long.MAX_VALUE));
+            destination.close();
+            assertEquals(99000, outputFile.length());
+            source.close();
+        } catch (IOException e) {
+            Log.e(TAG, e.getCause().toString());
+            assertFalse(true);
+        }
+    }
+
+    @Test
+    public void testFileChannelTransferFromWriteBehind() throws IOException {
+        File f = new File(Util.randomFileName(ROOT, "testFileChannelTransferFromWriteBehind"));
+        RandomAccessFile source = new RandomAccessFile(f, "rw");
+        IOCipherFileChannel sourceFileChannel = source.getChannel();
+        source.setPageCacheSize(4);
+        source.write(new byte[] { 1, 2, 3 }); // held in the page cache
+        source.seek(0);
+
+        File outputFile = new File(Util.randomFileName(ROOT,
+                "testFileChannelTransferFromWriteBehind-output"));
+        FileOutputStream destination = new FileOutputStream(outputFile);
+        assertEquals(3, destination.getChannel().transferFrom(sourceFileChannel, 0, 3));
+        destination.close();
+        source.close();
+
+        FileInputStream in = new FileInputStream(outputFile);
+        byte[] read = new byte[3];
+        assertEquals(3, in.read(read));
+        assertEquals(3, read[2]);
+        in.close();
+    }
+
     @Test
     public void testFileExistingTruncate() {
         String name = Util.randomFileName(ROOT, "testFileExistingTruncate");
@@ -863,6 +1424,35 @@ public class CipherFileTest {
         }
     }
 
+    @Test
+    public void testOpenDirectory() throws IOException {
+        File d = new File(Util.randomFileName(ROOT, "testOpenDirectory"));
+        assertTrue(d.mkdir());
+        try {
+            new FileOutputStream(d);
+            fail("opened a directory for writing");
+        } catch (FileNotFoundException e) {
+            // expected
+        }
+        try {
+            new FileInputStream(d);
+            fail("opened a directory for reading");
+        } catch (FileNotFoundException e) {
+            // expected
+        }
+        try {
+            new FileInputStream(new File(d, "missing"));
+            fail("opened a file that does not exist");
+        } catch (FileNotFoundException e) {
+            // expected
+        }
+        File f = new File(d, "file");
+        assertTrue(f.createNewFile());
+        assertFalse(f.createNewFile());
+        assertTrue(f.isFile());
+        assertEquals(0, f.length());
+    }
+
     @Test
     public void testFileExistingAppend() {
         String name = Util.randomFileName(ROOT, "testFileExistingAppend");
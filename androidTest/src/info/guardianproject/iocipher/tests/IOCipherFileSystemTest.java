@@ -0,0 +1,278 @@
+package info.guardianproject.iocipher.tests;
+
+import android.app.Instrumentation;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SdkSuppress;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import info.guardianproject.iocipher.File;
+import info.guardianproject.iocipher.IOCipherAsynchronousFileChannel;
+import info.guardianproject.iocipher.IOCipherFileSystemProvider;
+import info.guardianproject.iocipher.VirtualFileSystem;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+@RunWith(AndroidJUnit4.class)
+@SdkSuppress(minSdkVersion = 26)
+public class IOCipherFileSystemTest {
+    private final static String TAG = "IOCipherFileSystemTest";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private VirtualFileSystem vfs;
+    private FileSystem fs;
+    private final String goodPassword = "this is my secure password";
+
+    @Before
+    public void setUp() {
+        Instrumentation instrumentation = InstrumentationRegistry.getInstrumentation();
+        String path = Util.getWriteableDir(instrumentation).getAbsolutePath() + "/" + TAG + ".db";
+        java.io.File db = new java.io.File(path);
+        if (db.exists())
+            db.delete();
+        vfs = VirtualFileSystem.get();
+        vfs.setContainerPath(path);
+        vfs.createNewContainer(goodPassword);
+        vfs.mount(goodPassword);
+        fs = IOCipherFileSystemProvider.provider().getFileSystem(URI.create("iocipher:///"));
+    }
+
+    @After
+    public void tearDown() {
+        vfs.unmount();
+    }
+
+    @Test
+    public void testReadWrite() throws IOException {
+        Path p = fs.getPath("/testReadWrite.txt");
+        Files.write(p, "hello".getBytes(UTF_8));
+        assertTrue(Files.exists(p));
+        assertTrue(new File("/testReadWrite.txt").isFile());
+        assertEquals("hello", new String(Files.readAllBytes(p), UTF_8));
+
+        Files.write(p, " world".getBytes(UTF_8), StandardOpenOption.APPEND);
+        assertEquals("hello world", new String(Files.readAllBytes(p), UTF_8));
+
+        try {
+            Files.write(p, new byte[1], StandardOpenOption.CREATE_NEW);
+            fail("CREATE_NEW on an existing file");
+        } catch (FileAlreadyExistsException e) {
+            // expected
+        }
+        try {
+            Files.readAllBytes(fs.getPath("/missing"));
+            fail("read a file that does not exist");
+        } catch (NoSuchFileException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testByteChannel() throws IOException {
+        Path p = fs.getPath("/testByteChannel");
+        SeekableByteChannel channel = Files.newByteChannel(p, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            channel.write(ByteBuffer.wrap(new byte[] {
+                    1, 2, 3, 4, 5
+            }));
+            assertEquals(5, channel.size());
+            channel.position(2);
+            ByteBuffer buffer = ByteBuffer.allocate(2);
+            assertEquals(2, channel.read(buffer));
+            assertEquals(3, buffer.get(0));
+            assertEquals(4, buffer.get(1));
+            channel.truncate(3);
+            assertEquals(3, channel.size());
+        } finally {
+            channel.close();
+        }
+        assertFalse(channel.isOpen());
+    }
+
+    @Test
+    public void testAsynchronousFileChannel() throws Exception {
+        Path p = fs.getPath("/testAsynchronousFileChannel");
+        AsynchronousFileChannel channel = AsynchronousFileChannel.open(p,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            assertTrue(channel instanceof IOCipherAsynchronousFileChannel);
+            byte[] data = new byte[100000];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) i;
+            }
+            assertEquals(data.length, (int) channel.write(ByteBuffer.wrap(data), 0).get());
+            assertEquals(data.length, channel.size());
+
+            final ByteBuffer buffer = ByteBuffer.allocate(10);
+            final CountDownLatch done = new CountDownLatch(1);
+            final AtomicInteger read = new AtomicInteger();
+            channel.read(buffer, 1000, "attachment", new CompletionHandler<Integer, String>() {
+                @Override
+                public void completed(Integer result, String attachment) {
+                    assertEquals("attachment", attachment);
+                    read.set(result);
+                    done.countDown();
+                }
+
+                @Override
+                public void failed(Throwable exc, String attachment) {
+                    done.countDown();
+                }
+            });
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertEquals(10, read.get());
+            assertEquals((byte) 1000, buffer.get(0));
+        } finally {
+            channel.close();
+        }
+
+        // many reads in flight on a few threads
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        channel = IOCipherFileSystemProvider.provider().newAsynchronousFileChannel(p,
+                EnumSet.of(StandardOpenOption.READ), executor);
+        try {
+            List<Future<Integer>> reads = new ArrayList<Future<Integer>>();
+            List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+            for (int i = 0; i < 100; i++) {
+                ByteBuffer buffer = ByteBuffer.allocate(1000);
+                buffers.add(buffer);
+                reads.add(channel.read(buffer, i * 1000));
+            }
+            for (int i = 0; i < 100; i++) {
+                assertEquals(1000, (int) reads.get(i).get());
+                assertEquals((byte) (i * 1000 + 999), buffers.get(i).get(999));
+            }
+            try {
+                channel.write(ByteBuffer.allocate(1), 0).get();
+                fail("wrote to a channel opened for reading");
+            } catch (ExecutionException e) {
+                // expected
+            }
+        } finally {
+            channel.close();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testAttributes() throws IOException {
+        Path dir = Files.createDirectory(fs.getPath("/testAttributes"));
+        Path p = dir.resolve("file");
+        Files.write(p, new byte[1234]);
+
+        BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class);
+        assertTrue(attrs.isRegularFile());
+        assertFalse(attrs.isDirectory());
+        assertEquals(1234, attrs.size());
+        assertTrue(Files.readAttributes(dir, BasicFileAttributes.class).isDirectory());
+        assertEquals(1234L, Files.getAttribute(p, "basic:size"));
+        assertEquals(1234L, Files.size(p));
+        assertTrue(Files.isDirectory(dir));
+        assertTrue(Files.isSameFile(p, fs.getPath("/testAttributes/./file")));
+    }
+
+    @Test
+    public void testDirectoryStream() throws IOException {
+        Path dir = Files.createDirectory(fs.getPath("/testDirectoryStream"));
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 300; i++) {
+            String name = "file" + i;
+            Files.createFile(dir.resolve(name));
+            expected.add(name);
+        }
+        Collections.sort(expected);
+
+        List<String> names = new ArrayList<String>();
+        DirectoryStream<Path> stream = Files.newDirectoryStream(dir);
+        try {
+            for (Path entry : stream) {
+                assertEquals(dir, entry.getParent());
+                names.add(entry.getFileName().toString());
+            }
+        } finally {
+            stream.close();
+        }
+        assertEquals(expected, names);
+
+        names.clear();
+        stream = Files.newDirectoryStream(dir, "file1?");
+        try {
+            for (Path entry : stream) {
+                names.add(entry.getFileName().toString());
+            }
+        } finally {
+            stream.close();
+        }
+        assertEquals(10, names.size());
+    }
+
+    @Test
+    public void testCopyMoveDelete() throws IOException {
+        Path a = fs.getPath("/testCopyMoveDelete");
+        Files.write(a, "data".getBytes(UTF_8));
+        Path b = fs.getPath("/testCopyMoveDelete2");
+        Files.copy(a, b);
+        assertEquals("data", new String(Files.readAllBytes(b), UTF_8));
+        try {
+            Files.copy(a, b);
+            fail("copied over an existing file");
+        } catch (FileAlreadyExistsException e) {
+            // expected
+        }
+        Path c = fs.getPath("/testCopyMoveDelete3");
+        Files.move(b, c, StandardCopyOption.ATOMIC_MOVE);
+        assertFalse(Files.exists(b));
+        assertTrue(Files.exists(c));
+        Files.delete(c);
+        assertFalse(Files.exists(c));
+        assertTrue(Files.deleteIfExists(a));
+        assertFalse(Files.deleteIfExists(a));
+    }
+
+    @Test
+    public void testUri() {
+        Path p = fs.getPath("/dir/file");
+        assertEquals("iocipher:///dir/file", p.toUri().toString());
+        assertEquals(p, IOCipherFileSystemProvider.provider().getPath(p.toUri()));
+        assertEquals(Arrays.asList("dir", "file"),
+                Arrays.asList(p.getName(0).toString(), p.getName(1).toString()));
+    }
+}
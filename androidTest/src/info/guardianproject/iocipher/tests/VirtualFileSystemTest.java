@@ -11,10 +11,31 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import info.guardianproject.iocipher.ConnectionPoolStats;
 import info.guardianproject.iocipher.File;
+import info.guardianproject.iocipher.FileContents;
+import info.guardianproject.iocipher.FileOutputStream;
+import info.guardianproject.iocipher.MountOptions;
+import info.guardianproject.iocipher.StatCacheStats;
+import info.guardianproject.iocipher.VfsTransaction;
 import info.guardianproject.iocipher.VirtualFileSystem;
+import info.guardianproject.libcore.io.Libcore;
 
+import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertTrue;
 import static junit.framework.Assert.fail;
 
@@ -119,6 +140,401 @@ public class VirtualFileSystemTest {
         vfs.unmount();
     }
 
+    @Test
+    public void testMountTwoContainers() {
+        vfs.createNewContainer(path, goodPassword);
+        vfs.mount(goodPassword);
+        String otherPath = path + ".other";
+        new java.io.File(otherPath).delete();
+        VirtualFileSystem other = new VirtualFileSystem(otherPath);
+        other.createNewContainer(goodKey);
+        other.mount(goodKey);
+        assertTrue(vfs.isMounted());
+        assertTrue(other.isMounted());
+
+        File d = new File("/testMountTwoContainers");
+        File otherD = new File(other, "/testMountTwoContainers");
+        assertTrue(d.mkdir());
+        assertTrue(d.exists());
+        assertFalse(otherD.exists());
+        assertTrue(otherD.mkdir());
+        assertTrue(new File(otherD, "child").mkdir());
+        assertFalse(new File(d, "child").exists());
+
+        other.unmount();
+        assertFalse(other.isMounted());
+        assertTrue(vfs.isMounted());
+        assertTrue(d.exists());
+        other.deleteContainer();
+    }
+
+    @Test
+    public void testConnectionPoolWithoutDetachThread() throws Exception {
+        vfs.createNewContainer(path, goodKey);
+        vfs.mount(goodKey);
+        vfs.setMaxConnections(2);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        for (int i = 0; i < 32; i++) {
+            final File d = new File("/testConnectionPool" + i);
+            results.add(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return d.mkdir() && d.isDirectory();
+                }
+            }));
+        }
+        for (Future<Boolean> result : results) {
+            assertTrue(result.get());
+        }
+        ConnectionPoolStats stats = vfs.getConnectionPoolStats();
+        Log.i(TAG, stats.toString());
+        assertTrue(stats.open <= 2);
+        assertEquals(0, stats.inUse);
+        // idle connections time out even if nothing else happens
+        vfs.setConnectionIdleTimeout(100);
+        Thread.sleep(1000);
+        assertEquals(1, vfs.getConnectionPoolStats().open);
+        vfs.setMaxConnections(4);
+        // the pool threads are still alive and never called detachThread()
+        vfs.unmount();
+        assertFalse(vfs.isMounted());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        vfs.createNewContainer(path, goodKey);
+        vfs.mount(goodKey);
+        vfs.setGroupCommit(50, 64 * 1024, true);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        for (int i = 0; i < 32; i++) {
+            final File f = new File("/testGroupCommit" + i);
+            results.add(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    FileOutputStream out = new FileOutputStream(f);
+                    out.write(new byte[100]);
+                    out.close();
+                    return f.length() == 100;
+                }
+            }));
+        }
+        for (Future<Boolean> result : results) {
+            assertTrue(result.get());
+        }
+
+        // without waiting, the writes are still seen by everything after them
+        vfs.setGroupCommit(1000, 0, false);
+        File f = new File("/testGroupCommitNoWait");
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(new byte[100]);
+        out.flush();
+        Future<Void> committed = vfs.commitFuture();
+        assertFalse(committed.isDone());
+        committed.get();
+        assertTrue(committed.isDone());
+        out.close();
+        assertEquals(100, f.length());
+
+        vfs.disableGroupCommit();
+        assertTrue(vfs.commitFuture().isDone());
+        vfs.unmount();
+        executor.shutdown();
+    }
+
+    @Test
+    public void testTransactionCommitRollback() throws Exception {
+        vfs.createNewContainer(path, goodKey);
+        vfs.mount(goodKey);
+        File committed = new File("/testTransactionCommitted");
+        File rolledBack = new File("/testTransactionRolledBack");
+
+        VfsTransaction transaction = vfs.newTransaction();
+        assertTrue(committed.mkdir());
+        transaction.commit();
+        assertFalse(transaction.isActive());
+        transaction.close();
+        assertTrue(committed.exists());
+
+        transaction = vfs.newTransaction();
+        try {
+            assertTrue(rolledBack.mkdir());
+            assertTrue(rolledBack.exists());
+        } finally {
+            // without a commit, this rolls back
+            transaction.close();
+        }
+        assertFalse(rolledBack.exists());
+        assertEquals(null, vfs.currentTransaction());
+    }
+
+    @Test
+    public void testNestedTransactionRollback() throws Exception {
+        vfs.createNewContainer(path, goodKey);
+        vfs.mount(goodKey);
+        File outerDir = new File("/testNestedOuter");
+        File innerDir = new File("/testNestedInner");
+
+        VfsTransaction outer = vfs.newTransaction();
+        assertTrue(outerDir.mkdir());
+        VfsTransaction inner = vfs.newTransaction();
+        assertEquals(outer, inner.getParent());
+        assertTrue(innerDir.mkdir());
+        try {
+            outer.commit();
+            fail("the nested transaction is still active");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        inner.rollback();
+        // only back to the savepoint of the nested transaction
+        assertFalse(outer.isRollbackOnly());
+        assertFalse(innerDir.exists());
+        assertTrue(outerDir.exists());
+        outer.commit();
+        assertTrue(outerDir.exists());
+        assertFalse(innerDir.exists());
+    }
+
+    @Test
+    public void testCopyInTransaction() throws Exception {
+        vfs.createNewContainer(path, goodKey);
+        vfs.mount(goodKey);
+        File original = new File("/testCopyInTransaction");
+        File copy = new File("/testCopyInTransaction-copy");
+
+        VfsTransaction transaction = vfs.newTransaction();
+        try {
+            FileOutputStream out = new FileOutputStream(original);
+            out.write(new byte[10000]);
+            out.close();
+            // sees the file that is not committed yet, without waiting for
+            // the transaction's own lock
+            assertTrue(original.copyTo(copy));
+            assertEquals(10000, copy.length());
+            // a failed copy leaves the transaction as it was
+            assertFalse(original.copyTo(copy));
+            assertTrue(transaction.isActive());
+            assertFalse(transaction.isRollbackOnly());
+        } finally {
+            transaction.close();
+        }
+        // rolled back with everything else in the transaction
+        assertFalse(original.exists());
+        assertFalse(copy.exists());
+
+        transaction = vfs.newTransaction();
+        FileOutputStream out = new FileOutputStream(original);
+        out.write(new byte[10000]);
+        out.close();
+        assertTrue(original.copyTo(copy));
+        transaction.commit();
+        assertEquals(10000, copy.length());
+        assertFalse(Libcore.os.stat(original.getPath()).st_ino
+                == Libcore.os.stat(copy.getPath()).st_ino);
+    }
+
+    @Test
+    public void testTransactionBelongsToThread() throws Exception {
+        vfs.createNewContainer(path, goodKey);
+        vfs.mount(goodKey);
+        final VfsTransaction transaction = vfs.newTransaction();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<Boolean> result = executor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                try {
+                    transaction.commit();
+                    return false;
+                } catch (IllegalStateException e) {
+                    return vfs.currentTransaction() == null;
+                }
+            }
+        });
+        assertTrue(result.get());
+        transaction.commit();
+        executor.shutdown();
+    }
+
+    @Test
+    public void testMountOptions() {
+        MountOptions options = new MountOptions.Builder()
+                .cipherPageSize(8192)
+                .kdfIter(1000)
+                .cacheSize(-4096)
+                .journalMode(MountOptions.JournalMode.WAL)
+                .synchronous(MountOptions.Synchronous.NORMAL)
+                .tempStore(MountOptions.TempStore.MEMORY)
+                .build();
+        // its own VirtualFileSystem, so the options do not stay on the default one
+        VirtualFileSystem tuned = new VirtualFileSystem(path);
+        tuned.createNewContainer(goodPassword, options);
+        tuned.mount(goodPassword, options);
+        File d = new File(tuned, "/testMountOptions");
+        assertTrue(d.mkdir());
+        tuned.unmount();
+
+        try {
+            // the page size is part of the encryption
+            tuned.mount(goodPassword, MountOptions.DEFAULT);
+            fail("mounted with the wrong page size");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertFalse(tuned.isMounted());
+        tuned.mount(goodPassword, options);
+        assertTrue(d.exists());
+        tuned.unmount();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMountOptionsBadPageSize() {
+        new MountOptions.Builder().cipherPageSize(1000);
+    }
+
+    @Test
+    public void testBlockSize() throws Exception {
+        vfs.createNewContainer(path, goodPassword);
+        vfs.mount(goodPassword);
+        File f = new File("/testBlockSize");
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(new byte[10000]);
+        out.close();
+
+        // read back from what sqlfs recorded for the file
+        vfs.unmount();
+        vfs.mount(goodPassword);
+        int blockSize = vfs.getBlockSize();
+        assertTrue(blockSize > 0);
+        assertEquals(blockSize, Libcore.os.stat(f.getPath()).st_blksize);
+        vfs.unmount();
+    }
+
+    @Test
+    public void testStatCache() throws IOException {
+        vfs.createNewContainer(path, goodPassword);
+        vfs.mount(goodPassword);
+        vfs.setStatCacheSize(100);
+        try {
+            File f = new File("/testStatCache");
+            FileOutputStream out = new FileOutputStream(f);
+            out.write(new byte[10]);
+            out.close();
+            assertTrue(f.exists());
+            assertTrue(f.isFile());
+            assertEquals(10, f.length());
+            // the first one went to the container, the others did not
+            StatCacheStats stats = vfs.getStatCacheStats();
+            assertTrue(stats.hits >= 2);
+
+            // changes drop what was cached
+            out = new FileOutputStream(f, true);
+            out.write(new byte[5]);
+            out.close();
+            assertEquals(15, f.length());
+            assertTrue(f.renameTo(new File("/testStatCache2")));
+            assertFalse(f.exists());
+            assertTrue(new File("/testStatCache2").isFile());
+            assertTrue(vfs.getStatCacheStats().invalidations > 0);
+        } finally {
+            vfs.setStatCacheSize(0);
+        }
+        assertEquals(0, vfs.getStatCacheStats().size);
+    }
+
+    @Test
+    public void testStatCacheMissing() throws IOException {
+        vfs.createNewContainer(path, goodPassword);
+        vfs.mount(goodPassword);
+        vfs.setStatCacheSize(100);
+        try {
+            File f = new File("/testStatCacheMissing");
+            assertFalse(f.exists());
+            assertFalse(f.exists());
+            assertFalse(f.isDirectory());
+            assertTrue(vfs.getStatCacheStats().negativeHits >= 2);
+
+            // creating it drops the cached miss
+            assertTrue(f.createNewFile());
+            assertTrue(f.exists());
+            assertTrue(f.isFile());
+            assertTrue(f.delete());
+            assertFalse(f.exists());
+            assertTrue(f.mkdir());
+            assertTrue(f.isDirectory());
+            File g = new File("/testStatCacheMissing2");
+            assertFalse(g.exists());
+            assertTrue(f.renameTo(g));
+            assertTrue(g.isDirectory());
+            assertFalse(f.exists());
+        } finally {
+            vfs.setStatCacheSize(0);
+        }
+    }
+
+    @Test
+    public void testReadAll() throws IOException {
+        vfs.createNewContainer(path, goodPassword);
+        vfs.mount(goodPassword);
+        List<File> files = new ArrayList<File>();
+        for (int i = 0; i < 50; i++) {
+            File f = new File("/testReadAll" + i);
+            FileOutputStream out = new FileOutputStream(f);
+            out.write(new byte[i * 100]);
+            out.write(i);
+            out.close();
+            files.add(f);
+        }
+        File missing = new File("/testReadAllMissing");
+        files.add(missing);
+
+        // a small limit still reads them all, a few at a time
+        Map<String, FileContents> read = new HashMap<String, FileContents>();
+        Iterator<FileContents> contents = vfs.readAll(files, 1000);
+        while (contents.hasNext()) {
+            FileContents c = contents.next();
+            read.put(c.getFile().getPath(), c);
+        }
+        assertEquals(51, read.size());
+        for (int i = 0; i < 50; i++) {
+            byte[] data = read.get("/testReadAll" + i).getData();
+            assertEquals(i * 100 + 1, data.length);
+            assertEquals(i, data[data.length - 1]);
+        }
+        assertFalse(read.get(missing.getPath()).isRead());
+        try {
+            read.get(missing.getPath()).getData();
+            fail("read a file that does not exist");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testDerivedKey() {
+        vfs.createNewContainer(path, goodPassword);
+        vfs.mount(goodPassword);
+        byte[] key = vfs.getDerivedKey();
+        assertNotNull(key);
+        assertEquals(32, key.length);
+        File d = new File("/testDerivedKey");
+        assertTrue(d.mkdir());
+        vfs.unmount();
+
+        // the derived key opens the container without the password
+        vfs.mount(key);
+        assertTrue(d.exists());
+        assertTrue(Arrays.equals(key, vfs.getDerivedKey()));
+        vfs.unmount();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testDerivedKeyNotMounted() {
+        vfs.getDerivedKey();
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void testMountPasswordWithBadPassword() {
         vfs.createNewContainer(path, goodPassword);
@@ -0,0 +1,71 @@
+package info.guardianproject.iocipher.benchmark;
+
+import info.guardianproject.iocipher.File;
+import info.guardianproject.iocipher.FileOutputStream;
+import info.guardianproject.iocipher.VirtualFileSystem;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Base for the benchmarks that need a freshly created, mounted container. The
+ * container lives in {@code java.io.tmpdir} and is deleted after each trial.
+ * <p>
+ * Each thread that touches the container gets its own sqlfs connection, so
+ * the benchmarks here run single threaded and detach the thread before
+ * unmounting.
+ */
+@State(Scope.Benchmark)
+public abstract class ContainerBenchmark {
+
+    /** a fixed raw key, so the password KDF does not skew the results */
+    static final byte[] KEY = new byte[32];
+
+    static {
+        new Random(0x10c1f3e4L).nextBytes(KEY);
+    }
+
+    protected VirtualFileSystem vfs;
+    protected String containerPath;
+
+    @Setup(Level.Trial)
+    public void mountContainer() throws IOException {
+        java.io.File db = java.io.File.createTempFile("iocipher-benchmark", ".db");
+        db.delete();
+        containerPath = db.getAbsolutePath();
+        vfs = VirtualFileSystem.get();
+        vfs.createNewContainer(containerPath, KEY.clone());
+        vfs.mount(KEY.clone());
+    }
+
+    @TearDown(Level.Trial)
+    public void unmountContainer() {
+        vfs.detachThread();
+        vfs.unmount();
+        vfs.deleteContainer(containerPath);
+    }
+
+    /**
+     * Write {@code size} bytes of pseudo-random data to {@code file}.
+     */
+    static void writeFile(File file, long size) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        new Random(size).nextBytes(buffer);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            while (size > 0) {
+                int count = (int) Math.min(buffer.length, size);
+                out.write(buffer, 0, count);
+                size -= count;
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
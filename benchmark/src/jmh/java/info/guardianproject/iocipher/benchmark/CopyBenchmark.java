@@ -0,0 +1,74 @@
+package info.guardianproject.iocipher.benchmark;
+
+import info.guardianproject.iocipher.File;
+import info.guardianproject.iocipher.FileInputStream;
+import info.guardianproject.iocipher.FileOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Duplicating a file inside the container, through streams in Java versus
+ * {@link File#copyTo(File)} in SQL.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CopyBenchmark extends ContainerBenchmark {
+
+    @Param({"1048576", "16777216"})
+    public long size;
+
+    private File source;
+    private File copy;
+
+    @Setup(Level.Trial)
+    public void createSource() throws IOException {
+        source = new File("/copy-source");
+        writeFile(source, size);
+        copy = new File("/copy-destination");
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteCopy() {
+        copy.delete();
+    }
+
+    @Benchmark
+    public long streamCopy() throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        FileInputStream in = new FileInputStream(source);
+        FileOutputStream out = new FileOutputStream(copy);
+        long total = 0;
+        try {
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                out.write(buffer, 0, count);
+                total += count;
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+        return total;
+    }
+
+    @Benchmark
+    public boolean copyTo() {
+        return source.copyTo(copy);
+    }
+}
@@ -0,0 +1,66 @@
+package info.guardianproject.iocipher.benchmark;
+
+import info.guardianproject.iocipher.File;
+import info.guardianproject.iocipher.VfsTransaction;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lists a directory with {@link File#list()}, and the way a file browser
+ * does it, {@link File#listFiles()} followed by a few stat calls per entry.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DirectoryListingBenchmark extends ContainerBenchmark {
+
+    @Param({"100", "10000"})
+    public int entries;
+
+    private File dir;
+
+    @Setup(Level.Trial)
+    public void createEntries() throws IOException {
+        dir = new File("/listing");
+        dir.mkdir();
+        VfsTransaction transaction = vfs.newTransaction();
+        try {
+            for (int i = 0; i < entries; i++) {
+                new File(dir, "entry" + i).createNewFile();
+            }
+            transaction.commit();
+        } finally {
+            transaction.close();
+        }
+    }
+
+    @Benchmark
+    public int list() {
+        return dir.list().length;
+    }
+
+    @Benchmark
+    public long listFilesWithAttributes() {
+        long total = 0;
+        for (File file : dir.listFiles()) {
+            if (!file.isDirectory()) {
+                total += file.length() + file.lastModified();
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,75 @@
+package info.guardianproject.iocipher.benchmark;
+
+import info.guardianproject.iocipher.VirtualFileSystem;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mount plus unmount latency of an existing container, with a raw key and
+ * with a password that has to go through SQLCipher's key derivation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MountBenchmark {
+
+    private static final String PASSWORD = "benchmark password";
+
+    private VirtualFileSystem vfs;
+    private String keyContainer;
+    private String passwordContainer;
+
+    @Setup(Level.Trial)
+    public void createContainers() throws IOException {
+        vfs = VirtualFileSystem.get();
+        keyContainer = tempPath();
+        vfs.createNewContainer(keyContainer, ContainerBenchmark.KEY.clone());
+        passwordContainer = tempPath();
+        vfs.createNewContainer(passwordContainer, PASSWORD);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteContainers() {
+        vfs.deleteContainer(keyContainer);
+        vfs.deleteContainer(passwordContainer);
+    }
+
+    private static String tempPath() throws IOException {
+        java.io.File db = java.io.File.createTempFile("iocipher-benchmark", ".db");
+        db.delete();
+        return db.getAbsolutePath();
+    }
+
+    @Benchmark
+    public boolean mountKey() {
+        vfs.mount(keyContainer, ContainerBenchmark.KEY.clone());
+        boolean mounted = vfs.isMounted();
+        vfs.unmount();
+        return mounted;
+    }
+
+    @Benchmark
+    public boolean mountPassword() {
+        vfs.mount(passwordContainer, PASSWORD);
+        boolean mounted = vfs.isMounted();
+        vfs.unmount();
+        return mounted;
+    }
+}
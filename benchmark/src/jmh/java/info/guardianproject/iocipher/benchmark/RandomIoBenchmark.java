@@ -0,0 +1,82 @@
+package info.guardianproject.iocipher.benchmark;
+
+import info.guardianproject.iocipher.File;
+import info.guardianproject.iocipher.IOCipherFileChannel;
+import info.guardianproject.iocipher.RandomAccessFile;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Positional reads and writes of single blocks at random, block aligned
+ * offsets through {@link IOCipherFileChannel}, i.e. {@code Posix.preadBytes}
+ * and {@code Posix.pwriteBytes}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RandomIoBenchmark extends ContainerBenchmark {
+
+    @Param({"4096", "65536"})
+    public int blockSize;
+
+    @Param({"false", "true"})
+    public boolean direct;
+
+    @Param({"33554432"})
+    public long fileSize;
+
+    private RandomAccessFile file;
+    private IOCipherFileChannel channel;
+    private ByteBuffer buffer;
+    private Random random;
+    private long blocks;
+
+    @Setup(Level.Trial)
+    public void openFile() throws IOException {
+        File f = new File("/random-io");
+        writeFile(f, fileSize);
+        file = new RandomAccessFile(f, "rw");
+        channel = file.getChannel();
+        buffer = direct ? ByteBuffer.allocateDirect(blockSize) : ByteBuffer.allocate(blockSize);
+        random = new Random(42);
+        blocks = fileSize / blockSize;
+    }
+
+    @TearDown(Level.Trial)
+    public void closeFile() throws IOException {
+        file.close();
+    }
+
+    private long nextPosition() {
+        return (long) (random.nextDouble() * blocks) * blockSize;
+    }
+
+    @Benchmark
+    public int pread() throws IOException {
+        buffer.clear();
+        return channel.read(buffer, nextPosition());
+    }
+
+    @Benchmark
+    public int pwrite() throws IOException {
+        buffer.clear();
+        return channel.write(buffer, nextPosition());
+    }
+}
@@ -0,0 +1,80 @@
+package info.guardianproject.iocipher.benchmark;
+
+import info.guardianproject.iocipher.File;
+import info.guardianproject.iocipher.FileInputStream;
+import info.guardianproject.iocipher.FileOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams a whole file through {@link FileInputStream} and
+ * {@link FileOutputStream} using a range of caller buffer sizes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SequentialIoBenchmark extends ContainerBenchmark {
+
+    @Param({"512", "4096", "65536"})
+    public int bufferSize;
+
+    @Param({"8388608"})
+    public long fileSize;
+
+    private File readFile;
+    private File writeFile;
+    private byte[] buffer;
+
+    @Setup(Level.Trial)
+    public void createFiles() throws IOException {
+        readFile = new File("/sequential-read");
+        writeFile = new File("/sequential-write");
+        writeFile(readFile, fileSize);
+        buffer = new byte[bufferSize];
+    }
+
+    @Benchmark
+    public long read() throws IOException {
+        long total = 0;
+        FileInputStream in = new FileInputStream(readFile);
+        try {
+            int count;
+            while ((count = in.read(buffer, 0, buffer.length)) != -1) {
+                total += count;
+            }
+        } finally {
+            in.close();
+        }
+        return total;
+    }
+
+    @Benchmark
+    public long write() throws IOException {
+        long remaining = fileSize;
+        FileOutputStream out = new FileOutputStream(writeFile);
+        try {
+            while (remaining > 0) {
+                int count = (int) Math.min(buffer.length, remaining);
+                out.write(buffer, 0, count);
+                remaining -= count;
+            }
+        } finally {
+            out.close();
+        }
+        return fileSize;
+    }
+}
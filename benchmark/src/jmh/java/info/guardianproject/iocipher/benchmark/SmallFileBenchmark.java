@@ -0,0 +1,77 @@
+package info.guardianproject.iocipher.benchmark;
+
+import info.guardianproject.iocipher.File;
+import info.guardianproject.iocipher.FileInputStream;
+import info.guardianproject.iocipher.FileOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The create, write, read back, delete cycle of small files, which is
+ * dominated by the per-file metadata queries rather than by the data.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SmallFileBenchmark extends ContainerBenchmark {
+
+    @Param({"0", "1024", "16384"})
+    public int size;
+
+    private byte[] data;
+    private byte[] readBuffer;
+    private File dir;
+    private int counter;
+
+    @Setup(Level.Trial)
+    public void createDir() {
+        data = new byte[size];
+        readBuffer = new byte[Math.max(size, 1)];
+        dir = new File("/small-files");
+        dir.mkdir();
+    }
+
+    @Benchmark
+    public boolean createDelete() throws IOException {
+        File file = new File(dir, "f" + counter++);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file.delete();
+    }
+
+    @Benchmark
+    public boolean createReadDelete() throws IOException {
+        File file = new File(dir, "f" + counter++);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        FileInputStream in = new FileInputStream(file);
+        try {
+            in.read(readBuffer);
+        } finally {
+            in.close();
+        }
+        return file.delete();
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Stand-in for the NDK's <android/log.h> when building libiocipher for the
+ * build host (see host/Makefile).  Warnings and errors go to stderr, the
+ * chatty stuff is dropped so it does not end up in benchmark output.
+ */
+#ifndef IOCIPHER_HOST_ANDROID_LOG_H_
+#define IOCIPHER_HOST_ANDROID_LOG_H_
+
+#include <stdarg.h>
+#include <stdio.h>
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+typedef enum android_LogPriority {
+    ANDROID_LOG_UNKNOWN = 0,
+    ANDROID_LOG_DEFAULT,
+    ANDROID_LOG_VERBOSE,
+    ANDROID_LOG_DEBUG,
+    ANDROID_LOG_INFO,
+    ANDROID_LOG_WARN,
+    ANDROID_LOG_ERROR,
+    ANDROID_LOG_FATAL,
+    ANDROID_LOG_SILENT,
+} android_LogPriority;
+
+static inline int __android_log_write(int prio, const char *tag, const char *text) {
+    if (prio < ANDROID_LOG_WARN)
+        return 0;
+    return fprintf(stderr, "%s: %s\n", tag, text);
+}
+
+static inline int __android_log_print(int prio, const char *tag, const char *fmt, ...) {
+    if (prio < ANDROID_LOG_WARN)
+        return 0;
+    va_list ap;
+    va_start(ap, fmt);
+    fprintf(stderr, "%s: ", tag);
+    int rc = vfprintf(stderr, fmt, ap);
+    fputc('\n', stderr);
+    va_end(ap);
+    return rc;
+}
+
+#ifdef __cplusplus
+}
+#endif
+
+#endif  /* IOCIPHER_HOST_ANDROID_LOG_H_ */
@@ -20,13 +20,19 @@ LOCAL_MODULE    := libiocipher
 LOCAL_STATIC_LIBRARIES := libsqlfs
 LOCAL_SHARED_LIBRARIES := libsqlcipher
 LOCAL_CFLAGS += -DHAVE_LIBSQLCIPHER
-LOCAL_LDLIBS    += -llog
+LOCAL_LDLIBS    += -llog -ldl
 LOCAL_SRC_FILES := \
+	Container.cpp \
+	ContainerDatabase.cpp \
+	GroupCommit.cpp \
 	JniConstants.cpp \
 	JNI_OnLoad.cpp \
 	JNIHelp.cpp \
+	MountOptions.cpp \
+	OpenFileTable.cpp \
 	readlink.cpp \
 	realpath.cpp \
+	StatCache.cpp \
 	toStringArray.cpp \
 	info_guardianproject_iocipher_File.cpp \
 	info_guardianproject_iocipher_VirtualFileSystem.cpp \
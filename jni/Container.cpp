@@ -0,0 +1,678 @@
+#define LOG_TAG "Container"
+
+#include "Container.h"
+#include "JNIHelp.h"
+
+#include <errno.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/mman.h>
+#include <time.h>
+#include <unistd.h>
+
+/* SQLite allows many readers but only one writer, so more connections than
+ * this mostly just wait on each other */
+#define DEFAULT_MAX_CONNECTIONS 4
+#define DEFAULT_IDLE_TIMEOUT_MS 30000
+
+static pthread_once_t sOnce = PTHREAD_ONCE_INIT;
+static Container* sDefault;
+
+/* how many Containers have each file mounted, see isShared() */
+static pthread_mutex_t sMountedFilesLock = PTHREAD_MUTEX_INITIALIZER;
+static std::map<std::string, int> sMountedFiles;
+
+static void init() {
+    // the default container is used by everything that has no explicit
+    // VirtualFileSystem, and lives for as long as the process
+    sDefault = Container::create();
+}
+
+static int64_t nowMs() {
+    struct timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    return (int64_t) now.tv_sec * 1000 + now.tv_nsec / 1000000;
+}
+
+/* pthread_cond_timedwait() takes an absolute CLOCK_REALTIME time, but
+ * timeouts here are measured with the monotonic nowMs() */
+static void waitFor(pthread_cond_t* cond, pthread_mutex_t* lock, int64_t timeoutMs) {
+    struct timespec deadline;
+    clock_gettime(CLOCK_REALTIME, &deadline);
+    deadline.tv_sec += timeoutMs / 1000;
+    deadline.tv_nsec += (timeoutMs % 1000) * 1000000;
+    if (deadline.tv_nsec >= 1000000000) {
+        deadline.tv_sec++;
+        deadline.tv_nsec -= 1000000000;
+    }
+    pthread_cond_timedwait(cond, lock, &deadline);
+}
+
+/* sqlfs_close() can have to wait on the database, so it is never called
+ * with a Container's lock held */
+static void closeAll(const std::vector<sqlfs_t*>& connections) {
+    for (size_t i = 0; i < connections.size(); i++) {
+        sqlfs_close(connections[i]);
+    }
+}
+
+/* The key and password stay in memory for as long as the container is
+ * mounted, so they get pages of their own that are locked into RAM, and left
+ * out of core dumps where that is possible. */
+static size_t secretPages(size_t size) {
+    size_t pageSize = sysconf(_SC_PAGESIZE);
+    return (size + pageSize - 1) / pageSize * pageSize;
+}
+
+static void* allocSecret(size_t size) {
+    void* secret = mmap(NULL, secretPages(size), PROT_READ | PROT_WRITE,
+                        MAP_PRIVATE | MAP_ANONYMOUS, -1, 0);
+    if (secret == MAP_FAILED)
+        return NULL;
+    if (mlock(secret, secretPages(size)) != 0)
+        LOGE("Could not lock the key into memory: %s", strerror(errno));
+#ifdef MADV_DONTDUMP
+    madvise(secret, secretPages(size), MADV_DONTDUMP);
+#endif
+    return secret;
+}
+
+static void freeSecret(void* secret, size_t size) {
+    memset(secret, 0, size);
+    munlock(secret, secretPages(size));
+    munmap(secret, secretPages(size));
+}
+
+static char* copySecret(const char* password) {
+    size_t size = strlen(password) + 1;
+    char* copy = static_cast<char*>(allocSecret(size));
+    if (copy != NULL)
+        memcpy(copy, password, size);
+    return copy;
+}
+
+static uint8_t* copySecret(const uint8_t* key, size_t keyLen) {
+    uint8_t* copy = static_cast<uint8_t*>(allocSecret(keyLen));
+    if (copy != NULL)
+        memcpy(copy, key, keyLen);
+    return copy;
+}
+
+Container* Container::get(jlong container) {
+    if (container == 0) {
+        pthread_once(&sOnce, init);
+        return sDefault;
+    }
+    return reinterpret_cast<Container*>(static_cast<uintptr_t>(container));
+}
+
+Container* Container::create() {
+    return new Container;
+}
+
+Container::Container()
+: mEvictorRunning(false), mRefs(1), mMounted(false), mGeneration(0), mPassword(NULL), mKey(NULL), mKeyLen(0),
+  mBlockSize(0), mMaxConnections(DEFAULT_MAX_CONNECTIONS), mIdleTimeoutMs(DEFAULT_IDLE_TIMEOUT_MS),
+  mOpen(0), mOpened(0), mEvicted(0), mLeaseCount(0), mWaits(0),
+  mDatabase(static_cast<const char*>(dbFileName))
+{
+    memset(dbFileName, 0, sizeof(dbFileName));
+    pthread_mutex_init(&mLock, NULL);
+    pthread_cond_init(&mAvailable, NULL);
+    pthread_cond_init(&mEvictorWake, NULL);
+}
+
+Container::~Container() {
+    sqlfs_t* writer = mGroupCommit.stop();
+    if (writer != NULL)
+        sqlfs_close(writer);
+    std::vector<sqlfs_t*> closed;
+    pthread_mutex_lock(&mLock);
+    closeAllLocked(closed);
+    wipeSecretsLocked();
+    forgetMountedFileLocked();
+    pthread_mutex_unlock(&mLock);
+    closeAll(closed);
+    pthread_cond_destroy(&mEvictorWake);
+    pthread_cond_destroy(&mAvailable);
+    pthread_mutex_destroy(&mLock);
+}
+
+void Container::retain() {
+    pthread_mutex_lock(&mLock);
+    mRefs++;
+    pthread_mutex_unlock(&mLock);
+}
+
+void Container::release() {
+    pthread_mutex_lock(&mLock);
+    bool last = --mRefs == 0;
+    pthread_mutex_unlock(&mLock);
+    if (last)
+        delete this;
+}
+
+bool Container::isMounted() {
+    pthread_mutex_lock(&mLock);
+    bool mounted = mMounted;
+    pthread_mutex_unlock(&mLock);
+    return mounted;
+}
+
+bool Container::isShared() {
+    pthread_mutex_lock(&mLock);
+    std::string name = mMountedFile;
+    pthread_mutex_unlock(&mLock);
+    if (name.empty())
+        return false;
+    pthread_mutex_lock(&sMountedFilesLock);
+    bool shared = sMountedFiles[name] > 1;
+    pthread_mutex_unlock(&sMountedFilesLock);
+    return shared;
+}
+
+void Container::forgetMountedFileLocked() {
+    if (mMountedFile.empty())
+        return;
+    pthread_mutex_lock(&sMountedFilesLock);
+    if (--sMountedFiles[mMountedFile] <= 0)
+        sMountedFiles.erase(mMountedFile);
+    pthread_mutex_unlock(&sMountedFilesLock);
+    mMountedFile.clear();
+}
+
+/* the same file can be named in many ways, so count it by its real path */
+static std::string mountedFileName(const char* dbFileName) {
+    char resolved[PATH_MAX];
+    if (realpath(dbFileName, resolved) != NULL)
+        return resolved;
+    return dbFileName;
+}
+
+void Container::wipeSecretsLocked() {
+    if (mPassword != NULL) {
+        freeSecret(mPassword, strlen(mPassword) + 1);
+        mPassword = NULL;
+    }
+    if (mKey != NULL) {
+        freeSecret(mKey, mKeyLen);
+        mKey = NULL;
+        mKeyLen = 0;
+    }
+}
+
+/* Takes every connection out of the pool, leased or not. */
+void Container::closeAllLocked(std::vector<sqlfs_t*>& closed) {
+    for (size_t i = 0; i < mIdle.size(); i++) {
+        closed.push_back(mIdle[i].sqlfs);
+    }
+    mIdle.clear();
+    for (Leases::iterator it = mLeases.begin(); it != mLeases.end(); ++it) {
+        closed.push_back(it->second.sqlfs);
+    }
+    mLeases.clear();
+    mOpen -= closed.size();
+}
+
+/* Takes the connections that have been idle for too long out of the pool,
+ * always keeping one around so that the next lease does not have to pay for
+ * opening the database again. */
+void Container::evictIdleLocked(std::vector<sqlfs_t*>& evicted) {
+    int64_t oldest = nowMs() - mIdleTimeoutMs;
+    size_t count = 0;
+    while (count < mIdle.size() - 1 && mIdle[count].since < oldest) {
+        evicted.push_back(mIdle[count].sqlfs);
+        count++;
+    }
+    // or more than the pool may have now, after setMaxConnections()
+    while (mOpen - (int) count > mMaxConnections && count < mIdle.size()) {
+        evicted.push_back(mIdle[count].sqlfs);
+        count++;
+    }
+    if (count > 0) {
+        mIdle.erase(mIdle.begin(), mIdle.begin() + count);
+        mOpen -= count;
+        mEvicted += count;
+    }
+}
+
+/* Starts the evictor thread if there are idle connections it could close
+ * and it is not running yet. It holds a reference until it is done. */
+void Container::scheduleEvictionLocked() {
+    if (mEvictorRunning || mIdle.size() <= 1)
+        return;
+    pthread_attr_t attr;
+    pthread_attr_init(&attr);
+    pthread_attr_setdetachstate(&attr, PTHREAD_CREATE_DETACHED);
+    pthread_t thread;
+    mRefs++;
+    mEvictorRunning = true;
+    int rc = pthread_create(&thread, &attr, runEvictor, this);
+    pthread_attr_destroy(&attr);
+    if (rc != 0) {
+        // releaseConnection() still evicts what has timed out
+        LOGE("Could not start the idle connection evictor: %s", strerror(rc));
+        mRefs--;
+        mEvictorRunning = false;
+    }
+}
+
+/* The evictor thread: closes idle connections as they time out, even if
+ * nothing else happens on the container, and stops once only one is left. */
+void* Container::runEvictor(void* arg) {
+    Container* container = static_cast<Container*>(arg);
+    std::vector<sqlfs_t*> evicted;
+    pthread_mutex_lock(&container->mLock);
+    while (container->mMounted && container->mIdle.size() > 1) {
+        int64_t timeout = container->mIdle[0].since + container->mIdleTimeoutMs - nowMs();
+        if (timeout < 0) {
+            container->evictIdleLocked(evicted);
+            pthread_mutex_unlock(&container->mLock);
+            closeAll(evicted);
+            evicted.clear();
+            pthread_mutex_lock(&container->mLock);
+        } else {
+            waitFor(&container->mEvictorWake, &container->mLock, timeout + 1);
+        }
+    }
+    container->mEvictorRunning = false;
+    pthread_mutex_unlock(&container->mLock);
+    container->release();
+    return NULL;
+}
+
+void Container::mountLocked(sqlfs_t* sqlfs, sqlite3* db, int blockSize) {
+    // the connection that checked the password or key is the first in the pool
+    IdleConnection idle;
+    idle.sqlfs = sqlfs;
+    idle.db = db;
+    idle.since = nowMs();
+    mIdle.push_back(idle);
+    mOpen++;
+    mOpened++;
+    mMounted = true;
+    mBlockSize = blockSize;
+    if (mMountedFile.empty()) {
+        mMountedFile = mountedFileName(dbFileName);
+        pthread_mutex_lock(&sMountedFilesLock);
+        sMountedFiles[mMountedFile]++;
+        pthread_mutex_unlock(&sMountedFilesLock);
+    }
+}
+
+void Container::setOptions(const MountOptions& options) {
+    pthread_mutex_lock(&mLock);
+    mOptions = options;
+    pthread_mutex_unlock(&mLock);
+    mDatabase.setOptions(options);
+}
+
+bool Container::createNew(const char* password) {
+    pthread_mutex_lock(&mLock);
+    MountOptions options = mOptions;
+    pthread_mutex_unlock(&mLock);
+    sqlfs_t* sqlfs = NULL;
+    ContainerInfo info;
+    bool created = openSqlfs(dbFileName, password, NULL, 0, options, &sqlfs, &info);
+    memset(&info, 0, sizeof(info));
+    if (!created)
+        return false;
+    sqlfs_close(sqlfs);
+    return true;
+}
+
+bool Container::createNew(const uint8_t* key, size_t keyLen) {
+    pthread_mutex_lock(&mLock);
+    MountOptions options = mOptions;
+    pthread_mutex_unlock(&mLock);
+    sqlfs_t* sqlfs = NULL;
+    ContainerInfo info;
+    bool created = openSqlfs(dbFileName, NULL, key, keyLen, options, &sqlfs, &info);
+    memset(&info, 0, sizeof(info));
+    if (!created)
+        return false;
+    sqlfs_close(sqlfs);
+    return true;
+}
+
+bool Container::mount(const char* password) {
+    pthread_mutex_lock(&mLock);
+    MountOptions options = mOptions;
+    pthread_mutex_unlock(&mLock);
+    sqlfs_t* sqlfs = NULL;
+    sqlite3* db = NULL;
+    ContainerInfo info;
+    if (!openSqlfs(dbFileName, password, NULL, 0, options, &sqlfs, &info, &db))
+        return false;
+    if (info.derivedKeyLen > 0) {
+        // the password was only needed to derive the key
+        bool mounted = mountWithKey(sqlfs, db, info.blockSize, info.derivedKey, info.derivedKeyLen);
+        memset(&info, 0, sizeof(info));
+        return mounted;
+    }
+    char* copy = copySecret(password);
+    if (copy == NULL) {
+        sqlfs_close(sqlfs);
+        return false;
+    }
+    pthread_mutex_lock(&mLock);
+    wipeSecretsLocked();
+    mPassword = copy;
+    mountLocked(sqlfs, db, info.blockSize);
+    pthread_mutex_unlock(&mLock);
+    mDatabase.setPassword(password);
+    return true;
+}
+
+bool Container::mount(const uint8_t* key, size_t keyLen) {
+    pthread_mutex_lock(&mLock);
+    MountOptions options = mOptions;
+    pthread_mutex_unlock(&mLock);
+    sqlfs_t* sqlfs = NULL;
+    sqlite3* db = NULL;
+    ContainerInfo info;
+    if (!openSqlfs(dbFileName, NULL, key, keyLen, options, &sqlfs, &info, &db))
+        return false;
+    return mountWithKey(sqlfs, db, info.blockSize, key, keyLen);
+}
+
+bool Container::mountWithKey(sqlfs_t* sqlfs, sqlite3* db, int blockSize, const uint8_t* key,
+                             size_t keyLen) {
+    uint8_t* copy = copySecret(key, keyLen);
+    if (copy == NULL) {
+        sqlfs_close(sqlfs);
+        return false;
+    }
+    pthread_mutex_lock(&mLock);
+    wipeSecretsLocked();
+    mKey = copy;
+    mKeyLen = keyLen;
+    mountLocked(sqlfs, db, blockSize);
+    pthread_mutex_unlock(&mLock);
+    mDatabase.setKey(key, keyLen);
+    return true;
+}
+
+int Container::blockSize() {
+    pthread_mutex_lock(&mLock);
+    int blockSize = mBlockSize;
+    pthread_mutex_unlock(&mLock);
+    return blockSize;
+}
+
+size_t Container::copyKey(uint8_t* key, size_t maxLen) {
+    pthread_mutex_lock(&mLock);
+    size_t keyLen = 0;
+    if (mMounted && mKey != NULL && mKeyLen <= maxLen) {
+        memcpy(key, mKey, mKeyLen);
+        keyLen = mKeyLen;
+    }
+    pthread_mutex_unlock(&mLock);
+    return keyLen;
+}
+
+int Container::unmount() {
+    pthread_t self = pthread_self();
+    std::vector<sqlfs_t*> closed;
+    pthread_mutex_lock(&mLock);
+    int active = 0;
+    for (Leases::iterator it = mLeases.begin(); it != mLeases.end(); ++it) {
+        if (!pthread_equal(it->first, self))
+            active++;
+    }
+    if (active > 0) {
+        pthread_mutex_unlock(&mLock);
+        return active;
+    }
+    closeAllLocked(closed);
+    wipeSecretsLocked();
+    mMounted = false;
+    mGeneration++;
+    forgetMountedFileLocked();
+    // wake up everything waiting for a connection, there won't be any
+    pthread_cond_broadcast(&mAvailable);
+    pthread_cond_broadcast(&mEvictorWake);
+    pthread_mutex_unlock(&mLock);
+    // commits whatever is still in the last batch
+    sqlfs_t* writer = mGroupCommit.stop();
+    if (writer != NULL)
+        closed.push_back(writer);
+    closeAll(closed);
+    mDatabase.clear();
+    mStatCache.clear();
+    return 0;
+}
+
+/* Opens a new connection with the key the container was mounted with, or
+ * the password if SQLCipher did not give out the key derived from it. That
+ * can take a while, so it is done without the lock. Returns NULL if it could
+ * not be opened, or was unmounted in the meantime. */
+sqlfs_t* Container::openConnectionLocked(sqlite3** db) {
+    int generation = mGeneration;
+    char* password = mPassword != NULL ? copySecret(mPassword) : NULL;
+    size_t keyLen = mKeyLen;
+    uint8_t* key = mKey != NULL ? copySecret(mKey, keyLen) : NULL;
+    MountOptions options = mOptions;
+    pthread_mutex_unlock(&mLock);
+    sqlfs_t* sqlfs = NULL;
+    bool opened = (password != NULL || key != NULL)
+            && openSqlfs(dbFileName, password, key, keyLen, options, &sqlfs, NULL, db);
+    if (password != NULL)
+        freeSecret(password, strlen(password) + 1);
+    if (key != NULL)
+        freeSecret(key, keyLen);
+    pthread_mutex_lock(&mLock);
+    if (!opened) {
+        LOGE("Could not open another connection to %s", dbFileName);
+        return NULL;
+    }
+    if (generation != mGeneration) {
+        pthread_mutex_unlock(&mLock);
+        sqlfs_close(sqlfs);
+        pthread_mutex_lock(&mLock);
+        return NULL;
+    }
+    return sqlfs;
+}
+
+sqlfs_t* Container::acquireCurrentConnection(int* error) {
+    *error = 0;
+    if (leasedConnection() == NULL) {
+        *error = mGroupCommit.flush();
+        if (*error < 0)
+            return NULL;
+    }
+    sqlfs_t* sqlfs = acquireConnection();
+    if (sqlfs == NULL)
+        *error = -ENODEV;
+    return sqlfs;
+}
+
+sqlfs_t* Container::acquireConnection() {
+    pthread_t self = pthread_self();
+    pthread_mutex_lock(&mLock);
+    Leases::iterator it = mLeases.find(self);
+    if (it != mLeases.end()) {
+        it->second.depth++;
+        sqlfs_t* sqlfs = it->second.sqlfs;
+        pthread_mutex_unlock(&mLock);
+        return sqlfs;
+    }
+    sqlfs_t* sqlfs = NULL;
+    sqlite3* db = NULL;
+    while (mMounted && sqlfs == NULL) {
+        if (!mIdle.empty()) {
+            sqlfs = mIdle.back().sqlfs;
+            db = mIdle.back().db;
+            mIdle.pop_back();
+        } else if (mOpen < mMaxConnections) {
+            mOpen++;
+            sqlfs = openConnectionLocked(&db);
+            if (sqlfs == NULL) {
+                mOpen--;
+                pthread_cond_signal(&mAvailable);
+                pthread_mutex_unlock(&mLock);
+                return NULL;
+            }
+            mOpened++;
+        } else {
+            mWaits++;
+            pthread_cond_wait(&mAvailable, &mLock);
+        }
+    }
+    if (sqlfs != NULL) {
+        Lease lease;
+        lease.sqlfs = sqlfs;
+        lease.db = db;
+        lease.depth = 1;
+        mLeases[self] = lease;
+        mLeaseCount++;
+    }
+    pthread_mutex_unlock(&mLock);
+    return sqlfs;
+}
+
+void Container::releaseConnection() {
+    std::vector<sqlfs_t*> evicted;
+    pthread_mutex_lock(&mLock);
+    Leases::iterator it = mLeases.find(pthread_self());
+    if (it != mLeases.end() && --it->second.depth == 0) {
+        IdleConnection idle;
+        idle.sqlfs = it->second.sqlfs;
+        idle.db = it->second.db;
+        idle.since = nowMs();
+        mLeases.erase(it);
+        mIdle.push_back(idle);
+        evictIdleLocked(evicted);
+        scheduleEvictionLocked();
+        pthread_cond_signal(&mAvailable);
+    }
+    pthread_mutex_unlock(&mLock);
+    closeAll(evicted);
+}
+
+sqlfs_t* Container::leasedConnection() {
+    pthread_mutex_lock(&mLock);
+    Leases::iterator it = mLeases.find(pthread_self());
+    sqlfs_t* sqlfs = it != mLeases.end() ? it->second.sqlfs : NULL;
+    pthread_mutex_unlock(&mLock);
+    return sqlfs;
+}
+
+sqlite3* Container::leasedDatabase() {
+    pthread_mutex_lock(&mLock);
+    Leases::iterator it = mLeases.find(pthread_self());
+    sqlite3* db = it != mLeases.end() ? it->second.db : NULL;
+    pthread_mutex_unlock(&mLock);
+    return db;
+}
+
+sqlfs_t* Container::beginChange(bool* grouped) {
+    *grouped = false;
+    if (leasedConnection() == NULL) {
+        sqlfs_t* sqlfs = mGroupCommit.begin();
+        if (sqlfs != NULL) {
+            *grouped = true;
+            return sqlfs;
+        }
+    }
+    return acquireConnection();
+}
+
+int Container::endChange(bool grouped, size_t byteCount, int64_t* batch) {
+    if (!grouped) {
+        releaseConnection();
+        return 0;
+    }
+    int64_t ended = mGroupCommit.end(byteCount);
+    if (batch != NULL)
+        *batch = ended;
+    if (!mGroupCommit.waitsForCommit())
+        return 0;
+    return mGroupCommit.waitFor(ended, -1);
+}
+
+int Container::setGroupCommit(int64_t intervalMs, int64_t maxBytes, bool waitForCommit) {
+    if (intervalMs < 0) {
+        sqlfs_t* writer = mGroupCommit.stop();
+        if (writer != NULL)
+            sqlfs_close(writer);
+        return 0;
+    }
+    if (mGroupCommit.isStarted()) {
+        mGroupCommit.start(NULL, NULL, intervalMs, maxBytes, waitForCommit);
+        return 0;
+    }
+    // the writer is not part of the pool, it stays open until this is stopped
+    pthread_mutex_lock(&mLock);
+    if (!mMounted) {
+        pthread_mutex_unlock(&mLock);
+        return -ENODEV;
+    }
+    sqlite3* writerDb = NULL;
+    sqlfs_t* writer = openConnectionLocked(&writerDb);
+    pthread_mutex_unlock(&mLock);
+    if (writer == NULL)
+        return -EIO;
+    return mGroupCommit.start(writer, writerDb, intervalMs, maxBytes, waitForCommit) ? 0 : -EAGAIN;
+}
+
+void Container::detachThread() {
+    std::vector<sqlfs_t*> closed;
+    pthread_mutex_lock(&mLock);
+    Leases::iterator it = mLeases.find(pthread_self());
+    if (it != mLeases.end()) {
+        // it could be in the middle of a transaction, so rather than putting
+        // it back in the pool, close it to roll that back
+        closed.push_back(it->second.sqlfs);
+        mLeases.erase(it);
+        mOpen--;
+        pthread_cond_signal(&mAvailable);
+    }
+    pthread_mutex_unlock(&mLock);
+    closeAll(closed);
+    if (!closed.empty())
+        mStatCache.clear();
+}
+
+StatCache* Container::usableStatCache() {
+    if (!mStatCache.enabled() || leasedConnection() != NULL)
+        return NULL;
+    return &mStatCache;
+}
+
+void Container::setMaxConnections(int maxConnections) {
+    std::vector<sqlfs_t*> evicted;
+    pthread_mutex_lock(&mLock);
+    mMaxConnections = maxConnections;
+    if (!mIdle.empty())
+        evictIdleLocked(evicted);
+    pthread_cond_broadcast(&mAvailable);
+    pthread_mutex_unlock(&mLock);
+    closeAll(evicted);
+}
+
+void Container::setIdleTimeout(int64_t idleTimeoutMs) {
+    std::vector<sqlfs_t*> evicted;
+    pthread_mutex_lock(&mLock);
+    mIdleTimeoutMs = idleTimeoutMs;
+    if (!mIdle.empty())
+        evictIdleLocked(evicted);
+    pthread_cond_broadcast(&mEvictorWake);
+    scheduleEvictionLocked();
+    pthread_mutex_unlock(&mLock);
+    closeAll(evicted);
+}
+
+void Container::getStats(ConnectionPoolStats* stats) {
+    pthread_mutex_lock(&mLock);
+    stats->maxConnections = mMaxConnections;
+    stats->open = mOpen;
+    stats->idle = mIdle.size();
+    stats->inUse = mLeases.size();
+    stats->opened = mOpened;
+    stats->evicted = mEvicted;
+    stats->leases = mLeaseCount;
+    stats->waits = mWaits;
+    pthread_mutex_unlock(&mLock);
+}
@@ -0,0 +1,322 @@
+#ifndef CONTAINER_H_included
+#define CONTAINER_H_included
+
+#include <errno.h>
+#include <jni.h>
+#include <limits.h>
+#include <pthread.h>
+#include <stddef.h>
+#include <stdint.h>
+
+#include <map>
+#include <string>
+#include <vector>
+
+#include "ContainerDatabase.h"
+#include "GroupCommit.h"
+#include "MountOptions.h"
+#include "StatCache.h"
+#include "sqlfs.h"
+
+/* counters for VirtualFileSystem.getConnectionPoolStats() */
+struct ConnectionPoolStats {
+    int maxConnections;
+    int open;
+    int idle;
+    int inUse;
+    int64_t opened;
+    int64_t evicted;
+    int64_t leases;
+    int64_t waits;
+};
+
+/**
+ * The native side of one VirtualFileSystem: the container file, the key it
+ * was mounted with and the sqlfs connections to it.
+ *
+ * libsqlfs' implicit per-thread connections (passing 0 as the sqlfs_t*) all
+ * share one global database path and key, and stay open until the thread
+ * calls detachThread(). Instead, each Container keeps a bounded pool of
+ * explicit sqlfs_t connections. Every operation leases one for as long as it
+ * runs, see ScopedConnection, so any number of threads can use a container
+ * with at most maxConnections connections open. If they are all in use, the
+ * next lease waits for one to be returned. Connections that have been idle
+ * for longer than the idle timeout are closed, except for the last one, by
+ * a thread that only runs while there are idle connections it could close.
+ *
+ * A thread that already holds a lease gets the same connection again, so
+ * nested leases never wait on themselves, and a transaction that was started
+ * with beginTransaction() keeps its connection until completeTransaction().
+ *
+ * In group commit mode, changes do not lease a connection but go through
+ * the GroupCommit writer instead, see beginChange(). Lookups that have to
+ * see every change made before commit the open batch first, see
+ * acquireCurrentConnection().
+ *
+ * Containers are reference counted, since open files keep using theirs even
+ * if the VirtualFileSystem object goes away.
+ */
+class Container {
+public:
+    /* Returns the Container for the value of a VirtualFileSystem's or a
+     * Posix's "container" field, 0 meaning the default one. */
+    static Container* get(jlong container);
+
+    /* A new, unmounted Container with one reference. */
+    static Container* create();
+
+    void retain();
+    void release();
+
+    bool isMounted();
+
+    /* Whether another Container has the same file mounted. Its changes do
+     * not go through this one, so nothing cached here can be trusted. */
+    bool isShared();
+
+    /* Opens the container in dbFileName, returns false if it could not be
+     * opened with the given password or key. The key SQLCipher derives from
+     * a password is kept instead of the password, so that every further
+     * connection is opened with that raw key, without running the KDF. */
+    bool mount(const char* password);
+    bool mount(const uint8_t* key, size_t keyLen);
+
+    /* Copies the raw key the container is mounted with into key, and returns
+     * its length. Returns 0 if it is not mounted, key is too small, or it
+     * was mounted with a password that SQLCipher did not give the derived
+     * key out for. */
+    size_t copyKey(uint8_t* key, size_t maxLen);
+
+    /* The settings that every connection is opened with, used from the
+     * next mount() or createNew() on. */
+    void setOptions(const MountOptions& options);
+
+    /* Creates the container in dbFileName if it does not exist yet, returns
+     * false if it could not be created or opened. */
+    bool createNew(const char* password);
+    bool createNew(const uint8_t* key, size_t keyLen);
+
+    /* Returns the number of other threads that still hold a connection, in
+     * which case the container stays mounted, or 0 once it is unmounted. */
+    int unmount();
+
+    /* Leases a connection to the calling thread, or returns the one it
+     * already has. Returns NULL if the container is not mounted. Every
+     * successful lease must be matched by a call to releaseConnection(). */
+    sqlfs_t* acquireConnection();
+
+    /* Like acquireConnection(), but if the calling thread holds no lease
+     * yet, first commits the open group commit batch, so that the connection
+     * sees every change made before, e.g. for a lookup by path. A thread
+     * that already holds a lease is in a transaction of its own, which the
+     * commit would have to wait for. Returns NULL with *error set to a
+     * negative errno if the batch could not be committed, or to -ENODEV. */
+    sqlfs_t* acquireCurrentConnection(int* error);
+    void releaseConnection();
+
+    /* Returns the connection the calling thread holds, or NULL. */
+    sqlfs_t* leasedConnection();
+
+    /* Returns the sqlite3 handle of the connection the calling thread holds,
+     * or NULL, e.g. for savepoints, which sqlfs has no calls for. */
+    sqlite3* leasedDatabase();
+
+    /* Like acquireConnection(), but for something that changes the
+     * container. In group commit mode, this returns the writer connection
+     * with grouped set, unless the calling thread already holds a lease,
+     * e.g. for a transaction of its own. Every successful call must be
+     * matched by endChange(), which returns 0 or a negative errno if the
+     * change could not be committed, and for a grouped change, sets batch
+     * to the group commit batch it went into. */
+    sqlfs_t* beginChange(bool* grouped);
+    int endChange(bool grouped, size_t byteCount, int64_t* batch = NULL);
+
+    /* Starts or reconfigures group commit mode, or stops it if intervalMs
+     * is negative. Returns 0 or a negative errno. */
+    int setGroupCommit(int64_t intervalMs, int64_t maxBytes, bool waitForCommit);
+
+    /* The size of sqlfs' block rows, as the container's meta_data records
+     * it when it is mounted, or 0 if that is not known. */
+    int blockSize();
+
+    /* Reports blockSize() as the st_blksize of sb if it is known, else
+     * leaves what sqlfs_proc_getattr() put there. */
+    void applyBlockSize(struct stat* sb) {
+        int size = blockSize();
+        if (size > 0)
+            sb->st_blksize = size;
+    }
+
+    GroupCommit& groupCommit() {
+        return mGroupCommit;
+    }
+
+    StatCache& statCache() {
+        return mStatCache;
+    }
+
+    /* The stat cache for a lookup by the calling thread, or NULL if it is
+     * off or the thread is in a transaction. Call it before leasing the
+     * connection for the lookup. */
+    StatCache* usableStatCache();
+
+    /* Gives up the connection the calling thread still holds, e.g. after a
+     * beginTransaction() without completeTransaction(). */
+    void detachThread();
+
+    void setMaxConnections(int maxConnections);
+    void setIdleTimeout(int64_t idleTimeoutMs);
+    void getStats(ConnectionPoolStats* stats);
+
+    ContainerDatabase& database() {
+        return mDatabase;
+    }
+
+    char dbFileName[PATH_MAX];
+
+private:
+    Container();
+    ~Container();
+    void mountLocked(sqlfs_t* sqlfs, sqlite3* db, int blockSize);
+    bool mountWithKey(sqlfs_t* sqlfs, sqlite3* db, int blockSize, const uint8_t* key,
+                      size_t keyLen);
+    sqlfs_t* openConnectionLocked(sqlite3** db = NULL);
+    void wipeSecretsLocked();
+    void forgetMountedFileLocked();
+    void evictIdleLocked(std::vector<sqlfs_t*>& evicted);
+    void scheduleEvictionLocked();
+    static void* runEvictor(void* arg);
+    void closeAllLocked(std::vector<sqlfs_t*>& closed);
+
+    // db is the sqlite3 handle of sqlfs, or NULL if it is not known
+    struct Lease {
+        sqlfs_t* sqlfs;
+        sqlite3* db;
+        int depth;
+    };
+    struct IdleConnection {
+        sqlfs_t* sqlfs;
+        sqlite3* db;
+        int64_t since;
+    };
+    typedef std::map<pthread_t, Lease> Leases;
+
+    pthread_mutex_t mLock;
+    pthread_cond_t mAvailable;
+    // wakes the evictor thread up when the pool or its timeout changes
+    pthread_cond_t mEvictorWake;
+    bool mEvictorRunning;
+    int mRefs;
+    bool mMounted;
+    // bumped on every unmount, so connections opened before it are not reused
+    int mGeneration;
+    // in pages of their own, locked into memory
+    char* mPassword;
+    uint8_t* mKey;
+    size_t mKeyLen;
+    MountOptions mOptions;
+    int mBlockSize;
+    // the name this is counted under in the mounted files, while mounted
+    std::string mMountedFile;
+
+    int mMaxConnections;
+    int64_t mIdleTimeoutMs;
+    // connections that are open: leased, idle or still being opened
+    int mOpen;
+    Leases mLeases;
+    // most recently returned last, so the oldest ones are evicted first
+    std::vector<IdleConnection> mIdle;
+    int64_t mOpened;
+    int64_t mEvicted;
+    int64_t mLeaseCount;
+    int64_t mWaits;
+
+    ContainerDatabase mDatabase;
+    GroupCommit mGroupCommit;
+    StatCache mStatCache;
+
+    // Disallow copy and assignment.
+    Container(const Container&);
+    void operator=(const Container&);
+};
+
+/**
+ * Leases a connection to a container for the duration of a single call, e.g.
+ *
+ *   ScopedConnection sqlfs(container);
+ *   if (sqlfs.get() == NULL) {
+ *       return sqlfs.error(); // not mounted, or the batch did not commit
+ *   }
+ *   sqlfs_proc_getattr(sqlfs.get(), path, &sb);
+ *
+ * The connection sees every change made before, see
+ * Container::acquireCurrentConnection(). Pass change = true for anything
+ * that changes the container, and call finish() to find out whether that
+ * was committed.
+ */
+class ScopedConnection {
+public:
+    explicit ScopedConnection(Container* container, bool change = false)
+    : mContainer(container), mChange(change), mGrouped(false), mByteCount(0), mError(0),
+      mBatch(-1)
+    {
+        if (change) {
+            mSqlfs = container->beginChange(&mGrouped);
+            mError = mSqlfs == NULL ? -ENODEV : 0;
+        } else {
+            mSqlfs = container->acquireCurrentConnection(&mError);
+        }
+    }
+
+    /* Why get() is NULL, a negative errno. */
+    int error() const {
+        return mError;
+    }
+
+    /* The group commit batch a finished change went into, or -1. */
+    int64_t batch() const {
+        return mBatch;
+    }
+
+    ~ScopedConnection() {
+        finish();
+    }
+
+    sqlfs_t* get() const {
+        return mSqlfs;
+    }
+
+    /* Counts bytes towards the group commit limit. */
+    void wrote(size_t byteCount) {
+        mByteCount += byteCount;
+    }
+
+    /* Gives the connection back, and for a change, returns 0 or a negative
+     * errno if it could not be committed. */
+    int finish() {
+        if (mSqlfs == NULL) {
+            return 0;
+        }
+        mSqlfs = NULL;
+        if (mChange) {
+            return mContainer->endChange(mGrouped, mByteCount, &mBatch);
+        }
+        mContainer->releaseConnection();
+        return 0;
+    }
+
+private:
+    Container* mContainer;
+    sqlfs_t* mSqlfs;
+    bool mChange;
+    bool mGrouped;
+    size_t mByteCount;
+    int mError;
+    int64_t mBatch;
+
+    // Disallow copy and assignment.
+    ScopedConnection(const ScopedConnection&);
+    void operator=(const ScopedConnection&);
+};
+
+#endif  // CONTAINER_H_included
@@ -0,0 +1,120 @@
+#define LOG_TAG "ContainerDatabase"
+
+#include "ContainerDatabase.h"
+#include "JNIHelp.h"
+#include "LocalArray.h"
+
+#include <errno.h>
+#include <stdio.h>
+#include <string.h>
+
+/* how long to wait on a sqlfs connection that holds the write lock */
+#define BUSY_TIMEOUT_MS 10000
+
+ContainerDatabase::ContainerDatabase(const char* dbFileName)
+: mDbFileName(dbFileName), mKeySpec(NULL), mDb(NULL)
+{
+    pthread_mutex_init(&mLock, NULL);
+}
+
+ContainerDatabase::~ContainerDatabase() {
+    clear();
+    pthread_mutex_destroy(&mLock);
+}
+
+void ContainerDatabase::wipeKeySpecLocked() {
+    if (mKeySpec != NULL) {
+        memset(mKeySpec, 0, strlen(mKeySpec));
+        sqlite3_free(mKeySpec);
+        mKeySpec = NULL;
+    }
+}
+
+void ContainerDatabase::closeLocked() {
+    if (mDb != NULL) {
+        sqlite3_close(mDb);
+        mDb = NULL;
+    }
+}
+
+sqlite3* ContainerDatabase::openLocked() {
+    if (mKeySpec == NULL) {
+        return NULL;
+    }
+    sqlite3* db = openDatabase(mDbFileName, mKeySpec, mOptions);
+    if (db != NULL) {
+        sqlite3_busy_timeout(db, BUSY_TIMEOUT_MS);
+    }
+    return db;
+}
+
+void ContainerDatabase::setPassword(const char* password) {
+    pthread_mutex_lock(&mLock);
+    closeLocked();
+    wipeKeySpecLocked();
+    mKeySpec = sqlite3_mprintf("%Q", password);
+    pthread_mutex_unlock(&mLock);
+}
+
+void ContainerDatabase::setKey(const uint8_t* key, size_t keyLen) {
+    // the same raw key format that sqlfs_open_key() uses: "x'0123...'"
+    LocalArray<128> hex(2 * keyLen + 1);
+    for (size_t i = 0; i < keyLen; i++) {
+        snprintf(&hex[2 * i], 3, "%02X", key[i]);
+    }
+    pthread_mutex_lock(&mLock);
+    closeLocked();
+    wipeKeySpecLocked();
+    mKeySpec = sqlite3_mprintf("\"x'%s'\"", &hex[0]);
+    pthread_mutex_unlock(&mLock);
+    memset(&hex[0], 0, hex.size());
+}
+
+void ContainerDatabase::setOptions(const MountOptions& options) {
+    pthread_mutex_lock(&mLock);
+    closeLocked();
+    mOptions = options;
+    pthread_mutex_unlock(&mLock);
+}
+
+void ContainerDatabase::clear() {
+    pthread_mutex_lock(&mLock);
+    closeLocked();
+    wipeKeySpecLocked();
+    pthread_mutex_unlock(&mLock);
+}
+
+int ContainerDatabase::toErrno(int rc) {
+    switch (rc & 0xff) {
+    case SQLITE_OK:
+    case SQLITE_ROW:
+    case SQLITE_DONE:
+        return 0;
+    case SQLITE_BUSY:
+    case SQLITE_LOCKED:
+        return -EBUSY;
+    case SQLITE_NOMEM:
+        return -ENOMEM;
+    case SQLITE_READONLY:
+    case SQLITE_PERM:
+        return -EACCES;
+    case SQLITE_FULL:
+        return -ENOSPC;
+    case SQLITE_CONSTRAINT:
+        return -EEXIST;
+    default:
+        return -EIO;
+    }
+}
+
+sqlite3* ContainerDatabase::acquire() {
+    pthread_mutex_lock(&mLock);
+    if (mDb == NULL) {
+        mDb = openLocked();
+    }
+    return mDb;
+}
+
+void ContainerDatabase::release() {
+    pthread_mutex_unlock(&mLock);
+}
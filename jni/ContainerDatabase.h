@@ -0,0 +1,94 @@
+#ifndef CONTAINER_DATABASE_H_included
+#define CONTAINER_DATABASE_H_included
+
+#include <pthread.h>
+#include <stddef.h>
+#include <stdint.h>
+
+#include "MountOptions.h"
+#include "sqlcipher/sqlite3.h"
+
+/**
+ * libsqlfs only works one file and one block at a time, and keeps its own
+ * sqlite3 connections to itself. For the operations that are much faster as
+ * plain SQL over many rows, each Container keeps one extra connection to its
+ * database. It is opened on first use with the same key that the container
+ * was mounted with, and closed on unmount.
+ *
+ * The connection is not thread-safe, so it is only handed out through
+ * ScopedContainerDatabase, which holds it exclusively for its lifetime.
+ */
+class ContainerDatabase {
+public:
+    explicit ContainerDatabase(const char* dbFileName);
+    ~ContainerDatabase();
+
+    /* Remember how to unlock the container, called when it is mounted. */
+    void setPassword(const char* password);
+    void setKey(const uint8_t* key, size_t keyLen);
+
+    /* The settings the container is mounted with. */
+    void setOptions(const MountOptions& options);
+
+    /* Close the connection and wipe the key, called on unmount. */
+    void clear();
+
+    /* Convert an SQLite result code to a negative errno, like sqlfs returns. */
+    static int toErrno(int rc);
+
+private:
+    friend class ScopedContainerDatabase;
+    sqlite3* acquire();
+    void release();
+
+    sqlite3* openLocked();
+    void closeLocked();
+    void wipeKeySpecLocked();
+
+    const char* mDbFileName;
+    pthread_mutex_t mLock;
+    // the value for "PRAGMA key = ...", already quoted
+    char* mKeySpec;
+    MountOptions mOptions;
+    sqlite3* mDb;
+
+    // Disallow copy and assignment.
+    ContainerDatabase(const ContainerDatabase&);
+    void operator=(const ContainerDatabase&);
+};
+
+/**
+ * Exclusive use of a container's extra connection for the duration of a
+ * single call, e.g.
+ *
+ *   ScopedContainerDatabase db(container->database());
+ *   if (db.get() == NULL) {
+ *       return -EIO;
+ *   }
+ *   sqlite3_prepare_v2(db.get(), ...);
+ */
+class ScopedContainerDatabase {
+public:
+    explicit ScopedContainerDatabase(ContainerDatabase& database)
+    : mDatabase(database), mDb(database.acquire())
+    {
+    }
+
+    ~ScopedContainerDatabase() {
+        mDatabase.release();
+    }
+
+    sqlite3* get() const {
+        return mDb;
+    }
+
+private:
+    ContainerDatabase& mDatabase;
+    sqlite3* mDb;
+
+    // Disallow copy and assignment.
+    ScopedContainerDatabase(const ScopedContainerDatabase&);
+    void operator=(const ScopedContainerDatabase&);
+};
+
+#endif  // CONTAINER_DATABASE_H_included
@@ -0,0 +1,208 @@
+#define LOG_TAG "GroupCommit"
+
+#include "GroupCommit.h"
+#include "JNIHelp.h"
+
+#include <errno.h>
+#include <string.h>
+#include <time.h>
+
+static int64_t nowMs() {
+    struct timespec now;
+    clock_gettime(CLOCK_REALTIME, &now);
+    return (int64_t) now.tv_sec * 1000 + now.tv_nsec / 1000000;
+}
+
+/* pthread_cond_timedwait() takes an absolute CLOCK_REALTIME time */
+static void waitUntil(pthread_cond_t* cond, pthread_mutex_t* lock, int64_t deadlineMs) {
+    struct timespec deadline;
+    deadline.tv_sec = deadlineMs / 1000;
+    deadline.tv_nsec = (deadlineMs % 1000) * 1000000;
+    pthread_cond_timedwait(cond, lock, &deadline);
+}
+
+GroupCommit::GroupCommit()
+: mStarted(false), mWaitForCommit(true), mIntervalMs(0), mMaxBytes(0), mWriter(NULL),
+  mWriterDb(NULL), mInTransaction(false), mBatchStart(0), mPendingBytes(0), mBatch(1),
+  mCommitted(0)
+{
+    pthread_mutex_init(&mLock, NULL);
+    pthread_cond_init(&mChanged, NULL);
+}
+
+GroupCommit::~GroupCommit() {
+    pthread_cond_destroy(&mChanged);
+    pthread_mutex_destroy(&mLock);
+}
+
+bool GroupCommit::start(sqlfs_t* writer, sqlite3* writerDb, int64_t intervalMs, int64_t maxBytes,
+        bool waitForCommit) {
+    pthread_mutex_lock(&mLock);
+    if (mStarted) {
+        // only the limits change, the committer thread picks them up
+        mIntervalMs = intervalMs;
+        mMaxBytes = maxBytes;
+        mWaitForCommit = waitForCommit;
+        pthread_cond_broadcast(&mChanged);
+        pthread_mutex_unlock(&mLock);
+        if (writer != NULL)
+            sqlfs_close(writer);
+        return true;
+    }
+    if (writer == NULL) {
+        pthread_mutex_unlock(&mLock);
+        return false;
+    }
+    mWriter = writer;
+    mWriterDb = writerDb;
+    mIntervalMs = intervalMs;
+    mMaxBytes = maxBytes;
+    mWaitForCommit = waitForCommit;
+    mStarted = true;
+    int rc = pthread_create(&mThread, NULL, run, this);
+    if (rc != 0) {
+        LOGE("Could not start the group commit thread: %s", strerror(rc));
+        mStarted = false;
+        mWriter = NULL;
+        mWriterDb = NULL;
+    }
+    pthread_mutex_unlock(&mLock);
+    if (rc != 0)
+        sqlfs_close(writer);
+    return rc == 0;
+}
+
+sqlfs_t* GroupCommit::stop() {
+    pthread_mutex_lock(&mLock);
+    if (!mStarted) {
+        pthread_mutex_unlock(&mLock);
+        return NULL;
+    }
+    commitLocked();
+    mStarted = false;
+    pthread_cond_broadcast(&mChanged);
+    pthread_mutex_unlock(&mLock);
+    pthread_join(mThread, NULL);
+
+    pthread_mutex_lock(&mLock);
+    sqlfs_t* writer = mWriter;
+    mWriter = NULL;
+    mWriterDb = NULL;
+    pthread_mutex_unlock(&mLock);
+    return writer;
+}
+
+sqlfs_t* GroupCommit::begin() {
+    pthread_mutex_lock(&mLock);
+    if (!mStarted) {
+        pthread_mutex_unlock(&mLock);
+        return NULL;
+    }
+    if (!mInTransaction) {
+        sqlfs_begin_transaction(mWriter);
+        mInTransaction = true;
+        mBatchStart = nowMs();
+        // the committer thread now has a deadline to wait for
+        pthread_cond_broadcast(&mChanged);
+    }
+    return mWriter;
+}
+
+int64_t GroupCommit::end(size_t byteCount) {
+    int64_t batch = mBatch;
+    mPendingBytes += byteCount;
+    if (mMaxBytes > 0 && mPendingBytes >= (size_t) mMaxBytes) {
+        commitLocked();
+    }
+    pthread_mutex_unlock(&mLock);
+    return batch;
+}
+
+int GroupCommit::commitLocked() {
+    if (!mInTransaction)
+        return 0;
+    int rc = 0;
+    if (!sqlfs_complete_transaction(mWriter, 1)) {
+        LOGE("Could not commit batch %lld", (long long) mBatch);
+        // a failed COMMIT can leave the transaction open, the next batch
+        // has to start from what is committed
+        if (mWriterDb != NULL && !sqlite3_get_autocommit(mWriterDb))
+            sqlite3_exec(mWriterDb, "ROLLBACK;", NULL, NULL, NULL);
+        mFailedBatches.insert(mBatch);
+        rc = -EIO;
+    }
+    mInTransaction = false;
+    mPendingBytes = 0;
+    mCommitted = mBatch;
+    mBatch++;
+    pthread_cond_broadcast(&mChanged);
+    return rc;
+}
+
+int GroupCommit::waitFor(int64_t batch, int64_t timeoutMs) {
+    int64_t deadline = timeoutMs >= 0 ? nowMs() + timeoutMs : 0;
+    pthread_mutex_lock(&mLock);
+    while (mCommitted < batch && mStarted) {
+        if (timeoutMs < 0) {
+            pthread_cond_wait(&mChanged, &mLock);
+        } else if (nowMs() < deadline) {
+            waitUntil(&mChanged, &mLock, deadline);
+        } else {
+            pthread_mutex_unlock(&mLock);
+            return -ETIMEDOUT;
+        }
+    }
+    // stop() commits everything, so a stopped group has nothing to wait for
+    int rc = mFailedBatches.count(batch) > 0 ? -EIO : 0;
+    pthread_mutex_unlock(&mLock);
+    return rc;
+}
+
+int GroupCommit::flush() {
+    pthread_mutex_lock(&mLock);
+    int rc = commitLocked();
+    pthread_mutex_unlock(&mLock);
+    return rc;
+}
+
+int64_t GroupCommit::currentBatch() {
+    pthread_mutex_lock(&mLock);
+    // with nothing written since the last commit, there is nothing to wait for
+    int64_t batch = mInTransaction ? mBatch : mCommitted;
+    pthread_mutex_unlock(&mLock);
+    return batch;
+}
+
+bool GroupCommit::isStarted() {
+    pthread_mutex_lock(&mLock);
+    bool started = mStarted;
+    pthread_mutex_unlock(&mLock);
+    return started;
+}
+
+bool GroupCommit::waitsForCommit() {
+    pthread_mutex_lock(&mLock);
+    bool wait = mWaitForCommit;
+    pthread_mutex_unlock(&mLock);
+    return wait;
+}
+
+/* The committer thread: commits each batch once it is intervalMs old. */
+void* GroupCommit::run(void* arg) {
+    GroupCommit* group = static_cast<GroupCommit*>(arg);
+    pthread_mutex_lock(&group->mLock);
+    while (group->mStarted) {
+        if (!group->mInTransaction) {
+            pthread_cond_wait(&group->mChanged, &group->mLock);
+            continue;
+        }
+        int64_t deadline = group->mBatchStart + group->mIntervalMs;
+        if (nowMs() >= deadline) {
+            group->commitLocked();
+        } else {
+            waitUntil(&group->mChanged, &group->mLock, deadline);
+        }
+    }
+    pthread_mutex_unlock(&group->mLock);
+    return NULL;
+}
@@ -0,0 +1,107 @@
+#ifndef GROUP_COMMIT_H_included
+#define GROUP_COMMIT_H_included
+
+#include <pthread.h>
+#include <stddef.h>
+#include <stdint.h>
+
+#include <set>
+
+#include "sqlfs.h"
+#include "sqlcipher/sqlite3.h"
+
+/**
+ * Without an explicit transaction, every write to sqlfs is its own SQLite
+ * transaction, each with its own fsync. In group commit mode, every change
+ * to a container goes through one writer connection instead, which keeps a
+ * transaction open. It is committed every intervalMs milliseconds by a
+ * background thread, or as soon as maxBytes have been written, so that many
+ * small writes from many threads share one fsync.
+ *
+ * A change is done with begin(), which locks the writer and returns its
+ * connection, then end(), which returns the number of the batch it is in.
+ * waitFor() blocks until that batch is committed.
+ *
+ * Other connections can not see changes that are not committed yet, so
+ * lookups that have to see them call flush() first, see
+ * Container::acquireCurrentConnection(). That commits the open batch, if
+ * there is one.
+ */
+class GroupCommit {
+public:
+    GroupCommit();
+    ~GroupCommit();
+
+    /* Starts batching on writer, which this then owns. writerDb is its
+     * sqlite3 handle, or NULL if that is not known. If this is already
+     * started, only the limits change and writer may be NULL. Returns false
+     * if the committer thread could not be started. */
+    bool start(sqlfs_t* writer, sqlite3* writerDb, int64_t intervalMs, int64_t maxBytes,
+               bool waitForCommit);
+
+    /* Commits what is left and stops batching, returns the writer
+     * connection so the caller can close it, or NULL if it was not
+     * started. */
+    sqlfs_t* stop();
+
+    /* Returns the writer connection with the lock held, starting a new
+     * batch if needed, or NULL without the lock if this is not started. */
+    sqlfs_t* begin();
+
+    /* Unlocks the writer after byteCount bytes were written, returns the
+     * batch they are in. */
+    int64_t end(size_t byteCount);
+
+    /* The sqlite3 handle of the writer, or NULL if it is not known. Only
+     * between begin() and end(), e.g. for a savepoint within the batch. */
+    sqlite3* writerDatabase() {
+        return mWriterDb;
+    }
+
+    /* Waits until batch is committed, at most timeoutMs or forever if that
+     * is negative. Returns 0, -ETIMEDOUT or -EIO if it could not be
+     * committed, to every caller that waits for that batch. */
+    int waitFor(int64_t batch, int64_t timeoutMs);
+
+    /* Commits the open batch now, returns 0 or a negative errno. */
+    int flush();
+
+    /* The batch that changes go into right now. Everything that was changed
+     * before is committed once waitFor() returns 0 for it. */
+    int64_t currentBatch();
+
+    bool isStarted();
+
+    /* Whether changes wait for their batch to be committed. */
+    bool waitsForCommit();
+
+private:
+    static void* run(void* arg);
+    int commitLocked();
+
+    pthread_mutex_t mLock;
+    pthread_cond_t mChanged;
+    pthread_t mThread;
+    bool mStarted;
+    bool mWaitForCommit;
+    int64_t mIntervalMs;
+    int64_t mMaxBytes;
+    sqlfs_t* mWriter;
+    sqlite3* mWriterDb;
+
+    bool mInTransaction;
+    int64_t mBatchStart;
+    size_t mPendingBytes;
+    // the batch that is open or will be opened next
+    int64_t mBatch;
+    // every batch up to this one is committed
+    int64_t mCommitted;
+    // the batches that failed to commit, which are rolled back
+    std::set<int64_t> mFailedBatches;
+
+    // Disallow copy and assignment.
+    GroupCommit(const GroupCommit&);
+    void operator=(const GroupCommit&);
+};
+
+#endif  // GROUP_COMMIT_H_included
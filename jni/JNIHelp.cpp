@@ -283,6 +283,7 @@ static struct CachedFields {
     jclass fileDescriptorClass;
     jmethodID fileDescriptorCtor;
     jfieldID pathField;
+    jfieldID handleField;
     jfieldID invalidField;
 } gCachedFields;
 
@@ -306,6 +307,12 @@ int registerJniHelp(JNIEnv* env) {
         return -1;
     }
 
+    gCachedFields.handleField =
+        env->GetFieldID(gCachedFields.fileDescriptorClass, "handle", "I");
+    if (gCachedFields.handleField == NULL) {
+        return -1;
+    }
+
     gCachedFields.invalidField =
         env->GetFieldID(gCachedFields.fileDescriptorClass,
                         "invalid", "Ljava/lang/String;");
@@ -316,15 +323,25 @@ int registerJniHelp(JNIEnv* env) {
     return 0;
 }
 
-/* in sqlfs, the full path is used as the file descriptor */
-jobject jniCreateFileDescriptor(C_JNIEnv* env, jstring javaPath) {
+/* sqlfs uses the full path as the file descriptor, the handle points to
+ * that path in the OpenFileTable */
+jobject jniCreateFileDescriptor(C_JNIEnv* env, jstring javaPath, int handle) {
     JNIEnv* e = reinterpret_cast<JNIEnv*>(env);
     jobject fileDescriptor = (*env)->NewObject(e,
             gCachedFields.fileDescriptorClass, gCachedFields.fileDescriptorCtor);
+    if (fileDescriptor == NULL) {
+        return NULL;
+    }
     jniSetFileDescriptorWithPath(env, fileDescriptor, javaPath);
+    (*env)->SetIntField(e, fileDescriptor, gCachedFields.handleField, handle);
     return fileDescriptor;
 }
 
+int jniGetHandleFromFileDescriptor(C_JNIEnv* env, jobject fileDescriptor) {
+    JNIEnv* e = reinterpret_cast<JNIEnv*>(env);
+    return (*env)->GetIntField(e, fileDescriptor, gCachedFields.handleField);
+}
+
 jstring jniGetPathFromFileDescriptor(C_JNIEnv* env, jobject fileDescriptor) {
     JNIEnv* e = reinterpret_cast<JNIEnv*>(env);
     return static_cast<jstring>((*env)->GetObjectField(e, fileDescriptor, gCachedFields.pathField));
@@ -340,4 +357,5 @@ void jniSetFileDescriptorInvalid(C_JNIEnv* env, jobject fileDescriptor) {
     jstring javaInvalid = static_cast<jstring>((*env)->GetObjectField(e, fileDescriptor,
                                                                       gCachedFields.invalidField));
     (*env)->SetObjectField(e, fileDescriptor, gCachedFields.pathField, javaInvalid);
+    (*env)->SetIntField(e, fileDescriptor, gCachedFields.handleField, -1);
 }
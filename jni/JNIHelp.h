@@ -27,6 +27,12 @@
 #include <unistd.h>
 #include <android/log.h>
 
+#ifndef __ANDROID__
+/* the JDK's jni.h does not have Android's C_JNIEnv, so builds for the host
+ * (see host/Makefile) need it spelled out here */
+typedef const struct JNINativeInterface_* C_JNIEnv;
+#endif
+
 #ifndef NELEM
 # define NELEM(x) ((int) (sizeof(x) / sizeof((x)[0])))
 #endif
@@ -70,9 +76,16 @@ int jniThrowIOException(C_JNIEnv* env, int errnum);
 const char* jniStrError(int errnum, char* buf, size_t buflen);
 
 /*
- * Returns a new info.guardianproject.iocipher.FileDescriptor for the given path.
+ * Returns a new info.guardianproject.iocipher.FileDescriptor for the given path
+ * and OpenFileTable handle.
  */
-jobject jniCreateFileDescriptor(C_JNIEnv* env, jstring path);
+jobject jniCreateFileDescriptor(C_JNIEnv* env, jstring path, int handle);
+
+/*
+ * Returns the OpenFileTable handle from a info.guardianproject.iocipher.FileDescriptor,
+ * or -1 if it is not valid.
+ */
+int jniGetHandleFromFileDescriptor(C_JNIEnv* env, jobject fileDescriptor);
 
 /*
  * Returns the full path from a info.guardianproject.iocipher.FileDescriptor. sqlfs uses the
@@ -132,8 +145,12 @@ inline int jniThrowIOException(JNIEnv* env, int errnum) {
     return jniThrowIOException(&env->functions, errnum);
 }
 
-inline jobject jniCreateFileDescriptor(JNIEnv* env, jstring path) {
-    return jniCreateFileDescriptor(&env->functions, path);
+inline jobject jniCreateFileDescriptor(JNIEnv* env, jstring path, int handle) {
+    return jniCreateFileDescriptor(&env->functions, path, handle);
+}
+
+inline int jniGetHandleFromFileDescriptor(JNIEnv* env, jobject fileDescriptor) {
+    return jniGetHandleFromFileDescriptor(&env->functions, fileDescriptor);
 }
 
 inline jstring jniGetPathFromFileDescriptor(JNIEnv* env, jobject fileDescriptor) {
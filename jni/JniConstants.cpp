@@ -31,6 +31,7 @@ jclass JniConstants::doubleClass;
 jclass JniConstants::errnoExceptionClass;
 jclass JniConstants::fieldClass;
 jclass JniConstants::fileDescriptorClass;
+jclass JniConstants::fileEntryClass;
 jclass JniConstants::inflaterClass;
 jclass JniConstants::integerClass;
 jclass JniConstants::longClass;
@@ -71,6 +72,7 @@ void JniConstants::init(JNIEnv* env) {
     errnoExceptionClass = findClass(env, "info/guardianproject/libcore/io/ErrnoException");
     fieldClass = findClass(env, "java/lang/reflect/Field");
     fileDescriptorClass = findClass(env, "info/guardianproject/iocipher/FileDescriptor");
+    fileEntryClass = findClass(env, "info/guardianproject/iocipher/FileEntry");
     inflaterClass = findClass(env, "java/util/zip/Inflater");
     integerClass = findClass(env, "java/lang/Integer");
     longClass = findClass(env, "java/lang/Long");
@@ -50,6 +50,7 @@ struct JniConstants {
     static jclass errnoExceptionClass;
     static jclass fieldClass;
     static jclass fileDescriptorClass;
+    static jclass fileEntryClass;
     static jclass inflaterClass;
     static jclass integerClass;
     static jclass longClass;
@@ -0,0 +1,273 @@
+#define LOG_TAG "MountOptions"
+
+#include "MountOptions.h"
+#include "JNIHelp.h"
+
+#include <dlfcn.h>
+#include <pthread.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/stat.h>
+
+static pthread_once_t sOnce = PTHREAD_ONCE_INIT;
+// where the auto extension puts the next connection the thread opens
+static pthread_key_t sCaptureKey;
+// The cipher defaults are process-wide. Keying a connection with them takes
+// this for reading, changing them takes it for writing, so only opens that
+// need other defaults wait for each other. See openSqlfs().
+static pthread_rwlock_t sDefaultsLock = PTHREAD_RWLOCK_INITIALIZER;
+// a connection of our own to change them on
+static sqlite3* sDefaults;
+static int sDefaultPageSize;
+static int sDefaultKdfIter;
+// SQLCipher's own way to get at the key of a connection, see readDerivedKey()
+typedef void (*GetKeyFunction)(sqlite3* db, int nDb, void** key, int* keyLen);
+static GetKeyFunction sGetKey;
+
+static int captureConnection(sqlite3* db, const char**, const sqlite3_api_routines*) {
+    sqlite3** capture = static_cast<sqlite3**>(pthread_getspecific(sCaptureKey));
+    if (capture != NULL && *capture == NULL)
+        *capture = db;
+    return SQLITE_OK;
+}
+
+static int readInt(void* arg, int columns, char** values, char**) {
+    if (columns > 0 && values[0] != NULL)
+        *static_cast<int*>(arg) = atoi(values[0]);
+    return 0;
+}
+
+/* sqlite3CodecGetKey() is what ATTACH uses to open another database with the
+ * same key without deriving it again. It is not part of SQLite's API, so it
+ * is looked up, under its newer name first. */
+static void findGetKey() {
+    Dl_info info;
+    if (dladdr(reinterpret_cast<void*>(sqlite3_open_v2), &info) == 0 || info.dli_fname == NULL)
+        return;
+    // already loaded, so this only finds it
+    void* library = dlopen(info.dli_fname, RTLD_NOW);
+    if (library == NULL)
+        return;
+    sGetKey = reinterpret_cast<GetKeyFunction>(dlsym(library, "sqlcipherCodecGetKey"));
+    if (sGetKey == NULL)
+        sGetKey = reinterpret_cast<GetKeyFunction>(dlsym(library, "sqlite3CodecGetKey"));
+    if (sGetKey == NULL)
+        LOGE("SQLCipher does not give out derived keys, every connection runs the KDF");
+}
+
+static int hexValue(char c) {
+    if (c >= '0' && c <= '9')
+        return c - '0';
+    if (c >= 'a' && c <= 'f')
+        return c - 'a' + 10;
+    if (c >= 'A' && c <= 'F')
+        return c - 'A' + 10;
+    return -1;
+}
+
+/* Unless the password is kept with cipher_store_pass, SQLCipher gives out
+ * the key spec of a connection that was opened with one, "x'" followed by
+ * the derived key, the salt and "'" in hex. The salt is read from the
+ * container again, so the derived key alone is enough to open it. Returns
+ * the length of the key, or 0. */
+static size_t readDerivedKey(sqlite3* db, uint8_t* key) {
+    if (sGetKey == NULL)
+        return 0;
+    void* value = NULL;
+    int length = 0;
+    sGetKey(db, 0, &value, &length);
+    const char* keySpec = static_cast<const char*>(value);
+    if (keySpec == NULL || length < 2 * DERIVED_KEY_LENGTH + 3
+            || keySpec[0] != 'x' || keySpec[1] != '\'')
+        return 0;
+    for (size_t i = 0; i < DERIVED_KEY_LENGTH; i++) {
+        int high = hexValue(keySpec[2 + 2 * i]);
+        int low = hexValue(keySpec[3 + 2 * i]);
+        if (high < 0 || low < 0) {
+            memset(key, 0, DERIVED_KEY_LENGTH);
+            return 0;
+        }
+        key[i] = static_cast<uint8_t>(high << 4 | low);
+    }
+    return DERIVED_KEY_LENGTH;
+}
+
+static void init() {
+    findGetKey();
+    pthread_key_create(&sCaptureKey, NULL);
+    sqlite3_auto_extension(reinterpret_cast<void (*)(void)>(captureConnection));
+    if (sqlite3_open_v2(":memory:", &sDefaults, SQLITE_OPEN_READWRITE, NULL) != SQLITE_OK) {
+        LOGE("Could not open a connection for the cipher defaults");
+        sqlite3_close(sDefaults);
+        sDefaults = NULL;
+        return;
+    }
+    sqlite3_exec(sDefaults, "PRAGMA cipher_default_page_size;", readInt, &sDefaultPageSize, NULL);
+    sqlite3_exec(sDefaults, "PRAGMA cipher_default_kdf_iter;", readInt, &sDefaultKdfIter, NULL);
+}
+
+/* Called with sDefaultsLock held for writing, and always set back to
+ * SQLCipher's own defaults, which 0 stands for, before it is released. */
+static void setCipherDefaults(int pageSize, int kdfIter) {
+    if (sDefaults == NULL)
+        return;
+    if (pageSize == 0)
+        pageSize = sDefaultPageSize;
+    if (kdfIter == 0)
+        kdfIter = sDefaultKdfIter;
+    char sql[128];
+    if (pageSize > 0) {
+        snprintf(sql, sizeof(sql), "PRAGMA cipher_default_page_size = %d;", pageSize);
+        sqlite3_exec(sDefaults, sql, NULL, NULL, NULL);
+    }
+    if (kdfIter > 0) {
+        snprintf(sql, sizeof(sql), "PRAGMA cipher_default_kdf_iter = %d;", kdfIter);
+        sqlite3_exec(sDefaults, sql, NULL, NULL, NULL);
+    }
+}
+
+static void runPragmas(sqlite3* db, const char* dbFileName, const MountOptions& options) {
+    if (options.pragmas.empty())
+        return;
+    char* error = NULL;
+    if (sqlite3_exec(db, options.pragmas.c_str(), NULL, NULL, &error) != SQLITE_OK) {
+        // the container still works, just not as tuned
+        LOGE("Could not set the mount options on %s: %s", dbFileName, error);
+        sqlite3_free(error);
+    }
+}
+
+/* Runs the KDF for password on a plain connection of our own, which takes
+ * the cipher settings as pragmas of its own rather than as the process-wide
+ * defaults, so that nothing has to wait for it. Only for a container that
+ * exists, since the key is derived with the salt from its file. Returns the
+ * length of the key, or 0. */
+static size_t deriveKey(const char* dbFileName, const char* password, const MountOptions& options,
+                        uint8_t* key) {
+    struct stat sb;
+    if (sGetKey == NULL || stat(dbFileName, &sb) != 0 || sb.st_size == 0)
+        return 0;
+    char* keySpec = sqlite3_mprintf("%Q", password);
+    if (keySpec == NULL)
+        return 0;
+    MountOptions cipherOnly;
+    cipherOnly.cipherPageSize = options.cipherPageSize;
+    cipherOnly.kdfIter = options.kdfIter;
+    sqlite3* db = openDatabase(dbFileName, keySpec, cipherOnly);
+    memset(keySpec, 0, strlen(keySpec));
+    sqlite3_free(keySpec);
+    if (db == NULL)
+        return 0;
+    size_t keyLen = readDerivedKey(db, key);
+    sqlite3_close(db);
+    return keyLen;
+}
+
+/* sqlfs records the size of the block rows it writes, BLOCK_SIZE in sqlfs.c,
+ * in the block_size of each file's meta_data row, so that is where it is
+ * read from rather than IOCipher keeping a copy of it. */
+static int readBlockSize(sqlite3* db) {
+    int blockSize = 0;
+    sqlite3_exec(db, "SELECT block_size FROM meta_data WHERE block_size > 0 LIMIT 1;",
+                 readInt, &blockSize, NULL);
+    return blockSize;
+}
+
+bool openSqlfs(const char* dbFileName, const char* password, const uint8_t* key, size_t keyLen,
+               const MountOptions& options, sqlfs_t** sqlfs, ContainerInfo* info, sqlite3** handle) {
+    pthread_once(&sOnce, init);
+    // With other KDF settings, the key is derived first, so sqlfs gets a raw
+    // key and runs no KDF while the defaults are changed for it.
+    uint8_t derivedKey[DERIVED_KEY_LENGTH];
+    size_t derivedKeyLen = 0;
+    if (password != NULL && (options.cipherPageSize != 0 || options.kdfIter != 0)) {
+        derivedKeyLen = deriveKey(dbFileName, password, options, derivedKey);
+        if (derivedKeyLen > 0) {
+            password = NULL;
+            key = derivedKey;
+            keyLen = derivedKeyLen;
+        }
+    }
+    // a raw key is used as it is, so only the page size still matters
+    int kdfIter = password != NULL ? options.kdfIter : 0;
+    bool cipher = options.cipherPageSize != 0 || kdfIter != 0;
+    sqlite3* db = NULL;
+    if (cipher) {
+        pthread_rwlock_wrlock(&sDefaultsLock);
+        setCipherDefaults(options.cipherPageSize, kdfIter);
+    } else {
+        pthread_rwlock_rdlock(&sDefaultsLock);
+    }
+    // the auto extension catches the handle for this thread only
+    pthread_setspecific(sCaptureKey, &db);
+    int opened;
+    if (password != NULL) {
+        opened = sqlfs_open_password(dbFileName, password, sqlfs);
+    } else {
+        opened = sqlfs_open_key(dbFileName, key, keyLen, sqlfs);
+    }
+    pthread_setspecific(sCaptureKey, NULL);
+    if (cipher)
+        setCipherDefaults(0, 0);
+    pthread_rwlock_unlock(&sDefaultsLock);
+    if (info != NULL) {
+        info->derivedKeyLen = 0;
+        info->blockSize = 0;
+    }
+    if (opened && db != NULL) {
+        runPragmas(db, dbFileName, options);
+        if (info != NULL && password != NULL)
+            info->derivedKeyLen = readDerivedKey(db, info->derivedKey);
+        if (info != NULL)
+            info->blockSize = readBlockSize(db);
+    }
+    if (opened && info != NULL && derivedKeyLen > 0) {
+        memcpy(info->derivedKey, derivedKey, derivedKeyLen);
+        info->derivedKeyLen = derivedKeyLen;
+    }
+    memset(derivedKey, 0, sizeof(derivedKey));
+    if (handle != NULL)
+        *handle = opened ? db : NULL;
+    return opened;
+}
+
+sqlite3* openDatabase(const char* dbFileName, const char* keySpec, const MountOptions& options) {
+    pthread_once(&sOnce, init);
+    sqlite3* db = NULL;
+    // the key takes the cipher defaults, which must not be changed meanwhile
+    pthread_rwlock_rdlock(&sDefaultsLock);
+    if (sqlite3_open_v2(dbFileName, &db, SQLITE_OPEN_READWRITE, NULL) != SQLITE_OK) {
+        pthread_rwlock_unlock(&sDefaultsLock);
+        LOGE("Could not open %s: %s", dbFileName, sqlite3_errmsg(db));
+        sqlite3_close(db);
+        return NULL;
+    }
+    char* sql = sqlite3_mprintf("PRAGMA key = %s;", keySpec);
+    int rc = sqlite3_exec(db, sql, NULL, NULL, NULL);
+    memset(sql, 0, strlen(sql));
+    sqlite3_free(sql);
+    pthread_rwlock_unlock(&sDefaultsLock);
+    // here the cipher settings can be given right after the key
+    if (rc == SQLITE_OK && options.cipherPageSize != 0) {
+        sql = sqlite3_mprintf("PRAGMA cipher_page_size = %d;", options.cipherPageSize);
+        rc = sqlite3_exec(db, sql, NULL, NULL, NULL);
+        sqlite3_free(sql);
+    }
+    if (rc == SQLITE_OK && options.kdfIter != 0) {
+        sql = sqlite3_mprintf("PRAGMA kdf_iter = %d;", options.kdfIter);
+        rc = sqlite3_exec(db, sql, NULL, NULL, NULL);
+        sqlite3_free(sql);
+    }
+    // the key is only derived and checked once the database is actually read
+    if (rc == SQLITE_OK) {
+        rc = sqlite3_exec(db, "SELECT count(*) FROM sqlite_master;", NULL, NULL, NULL);
+    }
+    if (rc != SQLITE_OK) {
+        LOGE("Could not unlock %s: %s", dbFileName, sqlite3_errmsg(db));
+        sqlite3_close(db);
+        return NULL;
+    }
+    runPragmas(db, dbFileName, options);
+    return db;
+}
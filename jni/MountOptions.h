@@ -0,0 +1,67 @@
+#ifndef MOUNT_OPTIONS_H_included
+#define MOUNT_OPTIONS_H_included
+
+#include <stddef.h>
+#include <stdint.h>
+
+#include <string>
+
+#include "sqlcipher/sqlite3.h"
+#include "sqlfs.h"
+
+/**
+ * The SQLCipher and SQLite settings a container is opened with, from
+ * VirtualFileSystem's MountOptions.
+ *
+ * sqlfs_open_key() and sqlfs_open_password() take no settings, and sqlfs
+ * keeps the sqlite3 handle of its connections to itself. So openSqlfs()
+ * sets the page size and KDF iterations as SQLCipher's process-wide
+ * defaults while sqlfs opens the connection, and catches its sqlite3 handle
+ * with an SQLite auto extension, to run the other pragmas on it once it is
+ * keyed. Other opens wait while the defaults are changed, so for a password
+ * of an existing container, the key is derived first on a connection that
+ * takes the settings as pragmas of its own, and sqlfs gets the raw key,
+ * which runs no KDF.
+ */
+struct MountOptions {
+    MountOptions() : cipherPageSize(0), kdfIter(0) {
+    }
+
+    // 0 for SQLCipher's default, must be the same that the container was
+    // created with
+    int cipherPageSize;
+    int kdfIter;
+    // "PRAGMA ...;" statements for each connection, e.g. cache_size
+    std::string pragmas;
+};
+
+/* the AES-256 key that SQLCipher derives from a password */
+#define DERIVED_KEY_LENGTH 32
+
+/* What openSqlfs() finds out about the container it opens. */
+struct ContainerInfo {
+    // the raw key SQLCipher derived from the password, which opens the
+    // container without running the KDF again. 0 bytes long if it was
+    // opened with a key, or SQLCipher does not give it out.
+    uint8_t derivedKey[DERIVED_KEY_LENGTH];
+    size_t derivedKeyLen;
+    // the size of the block rows sqlfs stores file data in, as its meta_data
+    // records it, or 0 if no row records one
+    int blockSize;
+};
+
+/* Opens a sqlfs connection to dbFileName with either password or key.
+ * Returns false if it could not be opened or unlocked, like sqlfs. If info
+ * is not NULL, it is filled in from the new connection, and should be wiped
+ * once the key is no longer needed. If db is not NULL, it is set to the
+ * sqlite3 handle of the connection, or NULL if that could not be caught.
+ * It belongs to sqlfs, and is closed with it. */
+bool openSqlfs(const char* dbFileName, const char* password, const uint8_t* key, size_t keyLen,
+               const MountOptions& options, sqlfs_t** sqlfs, ContainerInfo* info = NULL,
+               sqlite3** db = NULL);
+
+/* Opens a plain sqlite3 connection to dbFileName and unlocks it with keySpec,
+ * the quoted value for "PRAGMA key = ...". Returns NULL on failure. */
+sqlite3* openDatabase(const char* dbFileName, const char* keySpec, const MountOptions& options);
+
+#endif  // MOUNT_OPTIONS_H_included
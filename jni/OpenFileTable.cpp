@@ -0,0 +1,260 @@
+#define LOG_TAG "OpenFileTable"
+
+#include "OpenFileTable.h"
+#include "Container.h"
+
+#include <map>
+#include <string>
+#include <utility>
+#include <vector>
+
+#include <errno.h>
+#include <pthread.h>
+#include <string.h>
+#include <time.h>
+
+/* one entry per open path, shared by all of the handles on that path */
+struct OpenFile {
+    // see OpenFileTable::id()
+    int64_t id;
+    Container* container;
+    std::string path;
+    struct stat sb;
+    // sb has to be read again before it is used
+    bool stale;
+    // the last group commit batch it was changed in, or -1
+    int64_t batch;
+    int refs;
+};
+
+/* the same path in two containers is two different files */
+typedef std::pair<Container*, std::string> ContainerPath;
+typedef std::map<ContainerPath, OpenFile*> OpenFilesByPath;
+
+static pthread_mutex_t sLock = PTHREAD_MUTEX_INITIALIZER;
+static std::vector<OpenFile*> sHandles;
+static std::vector<int> sFreeHandles;
+static OpenFilesByPath sByPath;
+static int64_t sNextId = 0;
+
+/* keep this well below INT_MAX, a bad handle should not eat all memory */
+#define MAX_OPEN_FILES 65536
+
+class ScopedTableLock {
+public:
+    ScopedTableLock() {
+        pthread_mutex_lock(&sLock);
+    }
+    ~ScopedTableLock() {
+        pthread_mutex_unlock(&sLock);
+    }
+};
+
+static OpenFile* lookup(int handle) {
+    if (handle < 0 || (size_t) handle >= sHandles.size())
+        return NULL;
+    return sHandles[handle];
+}
+
+int OpenFileTable::open(Container* container, const char* path, const struct stat& sb) {
+    ScopedTableLock lock;
+    int handle;
+    if (!sFreeHandles.empty()) {
+        handle = sFreeHandles.back();
+        sFreeHandles.pop_back();
+    } else if (sHandles.size() < MAX_OPEN_FILES) {
+        handle = sHandles.size();
+        sHandles.push_back(NULL);
+    } else {
+        return -1;
+    }
+
+    ContainerPath key(container, path);
+    OpenFilesByPath::iterator it = sByPath.find(key);
+    OpenFile* file;
+    if (it != sByPath.end()) {
+        file = it->second;
+    } else {
+        file = new OpenFile;
+        file->id = sNextId++;
+        container->retain();
+        file->container = container;
+        file->path = path;
+        file->batch = -1;
+        file->refs = 0;
+        sByPath[key] = file;
+    }
+    // the freshly read attributes are at least as current as the cached ones
+    file->sb = sb;
+    file->stale = false;
+    file->refs++;
+    sHandles[handle] = file;
+    return handle;
+}
+
+void OpenFileTable::close(int handle) {
+    ScopedTableLock lock;
+    OpenFile* file = lookup(handle);
+    if (file == NULL)
+        return;
+    sHandles[handle] = NULL;
+    sFreeHandles.push_back(handle);
+    if (--file->refs == 0) {
+        OpenFilesByPath::iterator it = sByPath.find(ContainerPath(file->container, file->path));
+        if (it != sByPath.end() && it->second == file)
+            sByPath.erase(it);
+        file->container->release();
+        delete file;
+    }
+}
+
+int64_t OpenFileTable::id(int handle) {
+    ScopedTableLock lock;
+    OpenFile* file = lookup(handle);
+    return file != NULL ? file->id : -1;
+}
+
+bool OpenFileTable::get(int handle, Container** container, char* path, struct stat* sb, bool* stale,
+                        int64_t* batch) {
+    ScopedTableLock lock;
+    OpenFile* file = lookup(handle);
+    if (file == NULL)
+        return false;
+    // the file could be closed by another thread while it is being used
+    file->container->retain();
+    *container = file->container;
+    strncpy(path, file->path.c_str(), PATH_MAX - 1);
+    path[PATH_MAX - 1] = '\0';
+    *sb = file->sb;
+    *stale = file->stale;
+    *batch = file->batch;
+    return true;
+}
+
+void OpenFileTable::update(int handle, const struct stat& sb) {
+    ScopedTableLock lock;
+    OpenFile* file = lookup(handle);
+    if (file == NULL)
+        return;
+    file->sb = sb;
+    file->stale = false;
+}
+
+void OpenFileTable::wrote(int handle, off_t offset, size_t byteCount, bool append) {
+    ScopedTableLock lock;
+    OpenFile* file = lookup(handle);
+    if (file == NULL)
+        return;
+    // sqlfs ignores the offset and writes at the end of the file for O_APPEND
+    off_t end = append ? file->sb.st_size + byteCount : offset + byteCount;
+    if (end > file->sb.st_size)
+        file->sb.st_size = end;
+    file->sb.st_mtime = time(NULL);
+}
+
+void OpenFileTable::truncated(int handle, off_t length) {
+    ScopedTableLock lock;
+    OpenFile* file = lookup(handle);
+    if (file == NULL)
+        return;
+    file->sb.st_size = length;
+    file->sb.st_mtime = time(NULL);
+}
+
+void OpenFileTable::changedInBatch(int handle, int64_t batch) {
+    ScopedTableLock lock;
+    OpenFile* file = lookup(handle);
+    if (file != NULL && batch > file->batch)
+        file->batch = batch;
+}
+
+void OpenFileTable::chmod(Container* container, const char* path, mode_t mode) {
+    ScopedTableLock lock;
+    OpenFilesByPath::iterator it = sByPath.find(ContainerPath(container, path));
+    if (it != sByPath.end())
+        it->second->sb.st_mode = (it->second->sb.st_mode & S_IFMT) | (mode & ~S_IFMT);
+}
+
+void OpenFileTable::rename(Container* container, const char* oldPath, const char* newPath) {
+    ScopedTableLock lock;
+    if (sByPath.empty())
+        return;
+    // a renamed directory moves every open file below it too
+    std::string from(oldPath);
+    std::string prefix = from + "/";
+    std::vector<OpenFile*> moved;
+    OpenFilesByPath::iterator it = sByPath.find(ContainerPath(container, from));
+    if (it != sByPath.end()) {
+        moved.push_back(it->second);
+        sByPath.erase(it);
+    }
+    it = sByPath.lower_bound(ContainerPath(container, prefix));
+    while (it != sByPath.end() && it->first.first == container
+           && it->first.second.compare(0, prefix.size(), prefix) == 0) {
+        moved.push_back(it->second);
+        sByPath.erase(it++);
+    }
+    for (size_t i = 0; i < moved.size(); ++i) {
+        OpenFile* file = moved[i];
+        file->path = std::string(newPath) + file->path.substr(from.size());
+        ContainerPath key(container, file->path);
+        OpenFilesByPath::iterator existing = sByPath.find(key);
+        if (existing != sByPath.end()) {
+            // the rename replaced a file that is still open, the handles on
+            // it keep their own entry, it just is no longer found by path,
+            // and sqlfs now reads the renamed file for them
+            existing->second->stale = true;
+            sByPath.erase(existing);
+        }
+        sByPath[key] = file;
+    }
+}
+
+void OpenFileTable::invalidate(Container* container, const char* path) {
+    ScopedTableLock lock;
+    std::string prefix = std::string(path) + "/";
+    OpenFilesByPath::iterator it = sByPath.find(ContainerPath(container, path));
+    if (it != sByPath.end())
+        it->second->stale = true;
+    it = sByPath.lower_bound(ContainerPath(container, prefix));
+    while (it != sByPath.end() && it->first.first == container
+           && it->first.second.compare(0, prefix.size(), prefix) == 0) {
+        it->second->stale = true;
+        ++it;
+    }
+}
+
+void OpenFileTable::refresh(Container* container, sqlfs_t* sqlfs) {
+    std::vector<std::string> paths;
+    {
+        ScopedTableLock lock;
+        OpenFilesByPath::iterator it = sByPath.lower_bound(ContainerPath(container, ""));
+        while (it != sByPath.end() && it->first.first == container) {
+            paths.push_back(it->first.second);
+            ++it;
+        }
+    }
+    // sqlfs is not called with the table locked
+    for (size_t i = 0; i < paths.size(); ++i) {
+        struct stat sb;
+        int rc = sqlfs_proc_getattr(sqlfs, paths[i].c_str(), &sb);
+        ScopedTableLock lock;
+        OpenFilesByPath::iterator it = sByPath.find(ContainerPath(container, paths[i]));
+        if (it == sByPath.end())
+            continue;
+        if (rc == 0) {
+            container->applyBlockSize(&sb);
+            it->second->sb = sb;
+            it->second->stale = false;
+        } else if (rc == -ENOENT) {
+            // creating it was rolled back, so there is nothing to read
+            it->second->sb.st_size = 0;
+            it->second->stale = false;
+        }
+    }
+}
+
+ScopedOpenFile::~ScopedOpenFile() {
+    if (mContainer != NULL)
+        mContainer->release();
+}
@@ -0,0 +1,132 @@
+#ifndef OPEN_FILE_TABLE_H_included
+#define OPEN_FILE_TABLE_H_included
+
+#include <limits.h>
+#include <stddef.h>
+#include <stdint.h>
+#include <sys/stat.h>
+
+#include "sqlfs.h"
+
+class Container;
+
+/**
+ * sqlfs has no notion of an open file, every call takes the full path. So
+ * rather than keeping the path as a Java String in each FileDescriptor and
+ * converting it to UTF-8 on every read and write, an open file is an int
+ * handle into this table.
+ *
+ * Each entry keeps a reference to the Container the file was opened in, so
+ * operations on a FileDescriptor always go to the right container.
+ *
+ * All handles open on the same path share one entry, which also caches the
+ * file's attributes. Writes and truncates through any handle keep the cached
+ * size current, so fstat() and reads at end-of-file never need to go to the
+ * database. Changes by path that the entry cannot follow, like removing the
+ * file or replacing it by a rename or copy, mark it stale instead, and the
+ * next call on it reads the attributes again and update()s them.
+ */
+struct OpenFileTable {
+    /* Registers an open file, returns its handle or -1 if the table is full. */
+    static int open(Container* container, const char* path, const struct stat& sb);
+    static void close(int handle);
+
+    /* Identifies the entry that handle is on, which is the same for all of
+     * the handles open on one path in one container, and never reused.
+     * Returns -1 for a handle that is not open. */
+    static int64_t id(int handle);
+
+    /* Copies out the path and attributes and retains the container, returns
+     * false for a handle that is not open. stale tells whether the
+     * attributes have to be read again. */
+    static bool get(int handle, Container** container, char* path, struct stat* sb, bool* stale,
+                    int64_t* batch);
+
+    /* Replaces the attributes with ones that were just read. */
+    static void update(int handle, const struct stat& sb);
+
+    /* Record the result of a write of byteCount bytes at offset. */
+    static void wrote(int handle, off_t offset, size_t byteCount, bool append);
+    static void truncated(int handle, off_t length);
+
+    /* Record that the file was changed in a group commit batch, which
+     * reads of it then have to commit first. */
+    static void changedInBatch(int handle, int64_t batch);
+
+    /* Keep open files in sync with changes that were made by path. */
+    static void chmod(Container* container, const char* path, mode_t mode);
+    static void rename(Container* container, const char* oldPath, const char* newPath);
+
+    /* Marks the files open on path, or below it, as stale, e.g. after it was
+     * removed or copied over. */
+    static void invalidate(Container* container, const char* path);
+
+    /* Read the attributes of all files open in container again, e.g. after
+     * a rollback. */
+    static void refresh(Container* container, sqlfs_t* sqlfs);
+};
+
+/**
+ * A snapshot of an open file for the duration of a single call, e.g.
+ *
+ *   ScopedOpenFile file(jniGetHandleFromFileDescriptor(env, javaFd));
+ *   if (!file.valid()) {
+ *       return -1;
+ *   }
+ *   sqlfs_proc_read(file.container()->sqlfs(), file.path(), ...);
+ */
+class ScopedOpenFile {
+public:
+    explicit ScopedOpenFile(int handle)
+    : mHandle(handle), mContainer(NULL), mStale(false), mBatch(-1)
+    {
+        mValid = OpenFileTable::get(handle, &mContainer, mPath, &mStat, &mStale, &mBatch);
+    }
+
+    ~ScopedOpenFile();
+
+    bool valid() const {
+        return mValid;
+    }
+
+    int handle() const {
+        return mHandle;
+    }
+
+    Container* container() const {
+        return mContainer;
+    }
+
+    const char* path() const {
+        return mPath;
+    }
+
+    const struct stat& stat() const {
+        return mStat;
+    }
+
+    /* whether stat() may no longer be what is in the database */
+    bool stale() const {
+        return mStale;
+    }
+
+    /* the last group commit batch the file was changed in, or -1 */
+    int64_t batch() const {
+        return mBatch;
+    }
+
+private:
+    int mHandle;
+    Container* mContainer;
+    bool mValid;
+    char mPath[PATH_MAX];
+    struct stat mStat;
+    bool mStale;
+    int64_t mBatch;
+
+    // Disallow copy and assignment.
+    ScopedOpenFile(const ScopedOpenFile&);
+    void operator=(const ScopedOpenFile&);
+};
+
+#endif  // OPEN_FILE_TABLE_H_included
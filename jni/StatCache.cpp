@@ -0,0 +1,164 @@
+#define LOG_TAG "StatCache"
+
+#include "StatCache.h"
+
+StatCache::StatCache()
+: mMaxEntries(0), mGeneration(0), mHits(0), mNegativeHits(0), mMisses(0), mEvictions(0),
+  mInvalidations(0)
+{
+    pthread_mutex_init(&mLock, NULL);
+}
+
+StatCache::~StatCache() {
+    pthread_mutex_destroy(&mLock);
+}
+
+void StatCache::setMaxEntries(size_t maxEntries) {
+    pthread_mutex_lock(&mLock);
+    mMaxEntries = maxEntries;
+    while (mIndex.size() > mMaxEntries) {
+        mIndex.erase(mEntries.back().path);
+        mEntries.pop_back();
+        mEvictions++;
+    }
+    pthread_mutex_unlock(&mLock);
+}
+
+bool StatCache::enabled() {
+    pthread_mutex_lock(&mLock);
+    bool enabled = mMaxEntries > 0;
+    pthread_mutex_unlock(&mLock);
+    return enabled;
+}
+
+uint64_t StatCache::generation() {
+    pthread_mutex_lock(&mLock);
+    uint64_t generation = mGeneration;
+    pthread_mutex_unlock(&mLock);
+    return generation;
+}
+
+bool StatCache::get(const char* path, struct stat* sb, bool* exists) {
+    pthread_mutex_lock(&mLock);
+    bool found = false;
+    if (mMaxEntries > 0) {
+        Index::iterator it = mIndex.find(path);
+        if (it != mIndex.end()) {
+            // move it to the front
+            mEntries.splice(mEntries.begin(), mEntries, it->second);
+            *exists = it->second->exists;
+            if (*exists) {
+                *sb = it->second->sb;
+                mHits++;
+            } else {
+                mNegativeHits++;
+            }
+            found = true;
+        } else {
+            mMisses++;
+        }
+    }
+    pthread_mutex_unlock(&mLock);
+    return found;
+}
+
+void StatCache::put(const char* path, const struct stat& sb, uint64_t generation) {
+    pthread_mutex_lock(&mLock);
+    putLocked(path, &sb, generation);
+    pthread_mutex_unlock(&mLock);
+}
+
+void StatCache::putMissing(const char* path, uint64_t generation) {
+    pthread_mutex_lock(&mLock);
+    putLocked(path, NULL, generation);
+    pthread_mutex_unlock(&mLock);
+}
+
+void StatCache::putLocked(const char* path, const struct stat* sb, uint64_t generation) {
+    if (mMaxEntries > 0 && generation == mGeneration) {
+        Index::iterator it = mIndex.find(path);
+        if (it != mIndex.end()) {
+            *it->second = Entry(path, sb);
+            mEntries.splice(mEntries.begin(), mEntries, it->second);
+        } else {
+            mEntries.push_front(Entry(path, sb));
+            mIndex[path] = mEntries.begin();
+            if (mIndex.size() > mMaxEntries) {
+                mIndex.erase(mEntries.back().path);
+                mEntries.pop_back();
+                mEvictions++;
+            }
+        }
+    }
+}
+
+void StatCache::eraseLocked(Index::iterator it) {
+    mEntries.erase(it->second);
+    mIndex.erase(it);
+}
+
+void StatCache::invalidate(const char* path) {
+    pthread_mutex_lock(&mLock);
+    mGeneration++;
+    Index::iterator it = mIndex.find(path);
+    if (it != mIndex.end()) {
+        eraseLocked(it);
+        mInvalidations++;
+    }
+    pthread_mutex_unlock(&mLock);
+}
+
+void StatCache::invalidateTree(const char* path) {
+    std::string parent(path);
+    size_t slash = parent.rfind('/');
+    parent.erase(slash == 0 ? 1 : (slash == std::string::npos ? 0 : slash));
+    // everything from "path/" up to "path0", '0' being the character after '/'
+    std::string first(path);
+    if (first.empty() || first[first.size() - 1] != '/')
+        first += '/';
+    std::string end(first);
+    end[end.size() - 1] = '0';
+
+    pthread_mutex_lock(&mLock);
+    mGeneration++;
+    Index::iterator it = mIndex.find(path);
+    if (it != mIndex.end()) {
+        eraseLocked(it);
+        mInvalidations++;
+    }
+    it = mIndex.find(parent);
+    if (it != mIndex.end()) {
+        eraseLocked(it);
+        mInvalidations++;
+    }
+    it = mIndex.lower_bound(first);
+    while (it != mIndex.end() && it->first < end) {
+        Index::iterator next = it;
+        ++next;
+        eraseLocked(it);
+        mInvalidations++;
+        it = next;
+    }
+    pthread_mutex_unlock(&mLock);
+}
+
+void StatCache::clear() {
+    pthread_mutex_lock(&mLock);
+    mGeneration++;
+    mInvalidations += mIndex.size();
+    mIndex.clear();
+    mEntries.clear();
+    pthread_mutex_unlock(&mLock);
+}
+
+void StatCache::getStats(StatCacheStats* stats) {
+    pthread_mutex_lock(&mLock);
+    stats->maxEntries = mMaxEntries;
+    stats->size = mIndex.size();
+    stats->hits = mHits;
+    stats->negativeHits = mNegativeHits;
+    stats->misses = mMisses;
+    stats->evictions = mEvictions;
+    stats->invalidations = mInvalidations;
+    pthread_mutex_unlock(&mLock);
+}
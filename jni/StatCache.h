@@ -0,0 +1,106 @@
+#ifndef STAT_CACHE_H_included
+#define STAT_CACHE_H_included
+
+#include <pthread.h>
+#include <stddef.h>
+#include <stdint.h>
+#include <sys/stat.h>
+
+#include <list>
+#include <map>
+#include <string>
+
+/* counters for VirtualFileSystem.getStatCacheStats() */
+struct StatCacheStats {
+    int maxEntries;
+    int size;
+    int64_t hits;
+    int64_t negativeHits;
+    int64_t misses;
+    int64_t evictions;
+    int64_t invalidations;
+};
+
+/**
+ * An optional LRU cache of the attributes of paths in one container, so
+ * that stat(), access() and isDirectory() on the same path back to back
+ * only go to sqlfs once. It is off until setMaxEntries() is called.
+ *
+ * Paths that do not exist are cached too, since probing for files that are
+ * not there, e.g. open() with O_CREAT, is as common as looking at ones that
+ * are. Anything that can create a path invalidates it with invalidateTree().
+ *
+ * Every change by path or through an open file invalidates the cached path
+ * once it is done. A lookup that raced with such a change must not put its
+ * now stale result back, so lookups take generation() before they ask
+ * sqlfs, and put() drops the result if anything was invalidated since.
+ *
+ * A thread in a transaction sees changes other threads can not see yet, so
+ * it does not use the cache at all, and the cache is cleared when a
+ * transaction ends.
+ */
+class StatCache {
+public:
+    StatCache();
+    ~StatCache();
+
+    /* 0 turns the cache off and empties it. */
+    void setMaxEntries(size_t maxEntries);
+    bool enabled();
+
+    uint64_t generation();
+
+    /* Returns true if path is cached, counting a hit or a miss while the
+     * cache is on. Then exists tells whether it is there, and if it is, sb
+     * is filled in. */
+    bool get(const char* path, struct stat* sb, bool* exists);
+    void put(const char* path, const struct stat& sb, uint64_t generation);
+    /* Remembers that path does not exist. */
+    void putMissing(const char* path, uint64_t generation);
+
+    /* Forgets path, after its contents or attributes changed. */
+    void invalidate(const char* path);
+    /* Forgets path, everything below it and its parent directory, after
+     * path was created, removed or renamed. */
+    void invalidateTree(const char* path);
+    void clear();
+
+    void getStats(StatCacheStats* stats);
+
+private:
+    struct Entry {
+        Entry(const std::string& path, const struct stat* sb)
+        : path(path), exists(sb != NULL)
+        {
+            if (sb != NULL)
+                this->sb = *sb;
+        }
+
+        std::string path;
+        bool exists;
+        struct stat sb;
+    };
+    // most recently used first
+    typedef std::list<Entry> Entries;
+    typedef std::map<std::string, Entries::iterator> Index;
+
+    void putLocked(const char* path, const struct stat* sb, uint64_t generation);
+    void eraseLocked(Index::iterator it);
+
+    pthread_mutex_t mLock;
+    size_t mMaxEntries;
+    Entries mEntries;
+    Index mIndex;
+    uint64_t mGeneration;
+    int64_t mHits;
+    int64_t mNegativeHits;
+    int64_t mMisses;
+    int64_t mEvictions;
+    int64_t mInvalidations;
+
+    // Disallow copy and assignment.
+    StatCache(const StatCache&);
+    void operator=(const StatCache&);
+};
+
+#endif  // STAT_CACHE_H_included
@@ -17,9 +17,12 @@
 
 #define LOG_TAG "File"
 
+#include "Container.h"
 #include "JNIHelp.h"
 #include "JniConstants.h"
+#include "OpenFileTable.h"
 //#include "JniException.h"
+#include "ScopedLocalRef.h"
 #include "ScopedPrimitiveArray.h"
 #include "ScopedUtfChars.h"
 #include "readlink.h"
@@ -42,10 +45,6 @@
 #include <unistd.h>
 #include <utime.h>
 
-/* right now, we use a single global virtual file system so we don't
- * have to map the structs sqlfs_t and sqlite3 to Java code */
-extern sqlfs_t *sqlfs;
-
 // from fuse.h
 typedef int(* 	fuse_fill_dir_t )(void *buf, const char *name, const struct stat *stbuf, off_t off);
 
@@ -78,38 +77,50 @@ static jstring File_realpath(JNIEnv* env, jclass, jstring javaPath) {
     return env->NewStringUTF(result.c_str());
 }
 
-static jlong File_lastModifiedImpl(JNIEnv* env, jclass, jstring javaPath) {
-    jboolean ret = 0;
+static jlong File_lastModifiedImpl(JNIEnv* env, jclass, jlong container, jstring javaPath) {
     ScopedUtfChars path(env, javaPath);
     if (path.c_str() == NULL) {
-        return JNI_FALSE;
+        return 0;
+    }
+    ScopedConnection sqlfs(Container::get(container));
+    if (sqlfs.get() == NULL) {
+        return 0;
     }
 
-    key_attr attr;
-    sqlfs_get_attr(0, "mtime", &attr);
-    return static_cast<jlong>(attr.mtime) * 1000L;
+    struct stat sb;
+    if (sqlfs_proc_getattr(sqlfs.get(), path.c_str(), &sb) != 0) {
+        return 0;
+    }
+    return static_cast<jlong>(sb.st_mtime) * 1000L;
 }
 
-static jboolean File_setLastModifiedImpl(JNIEnv* env, jclass, jstring javaPath, jlong ms) {
-    jboolean ret = 0;
+static jboolean File_setLastModifiedImpl(JNIEnv* env, jclass, jlong container, jstring javaPath, jlong ms) {
     ScopedUtfChars path(env, javaPath);
     if (path.c_str() == NULL) {
         return JNI_FALSE;
     }
+    Container* c = Container::get(container);
+    ScopedConnection sqlfs(c, true);
+    if (sqlfs.get() == NULL) {
+        return JNI_FALSE;
+    }
 
     // We want to preserve the access time.
-    key_attr atime;
-    sqlfs_get_attr(0, "atime", &atime);
-
-    // TODO: we could get microsecond resolution with utimes(3), "legacy" though it is.
-    utimbuf times;
-    key_attr mtime;
-    mtime.mtime = static_cast<time_t>(ms / 1000);
-    if(!sqlfs_set_attr(0, "mtime", &mtime))
-        return 0;
-    if(!sqlfs_set_attr(0, "atime", &atime))
-        return 0;
-    return 1;
+    struct stat sb;
+    int rc = sqlfs_proc_getattr(sqlfs.get(), path.c_str(), &sb);
+    if (rc == 0) {
+        // TODO: we could get microsecond resolution with utimes(3), "legacy" though it is.
+        utimbuf times;
+        times.actime = sb.st_atime;
+        times.modtime = static_cast<time_t>(ms / 1000);
+        rc = sqlfs_proc_utime(sqlfs.get(), path.c_str(), &times);
+    }
+    if (sqlfs.finish() != 0) {
+        rc = -EIO;
+    }
+    c->statCache().invalidate(path.c_str());
+    OpenFileTable::invalidate(c, path.c_str());
+    return rc == 0;
 }
 
 typedef std::vector<std::string> DirEntries;
@@ -123,38 +134,282 @@ static int fill_dir(void *buf, const char *name, const struct stat *statp, off_t
         LOGE("File.listImpl() fill_dir always expects statp to be NULL");
     if(off != 0)
         LOGE("File.listImpl() fill_dir always expects off to be 0");
+    // "." and ".." are not part of the list
+    if (strcmp(name, ".") == 0 || strcmp(name, "..") == 0)
+        return 0;
     entries->push_back(name);
     // TODO implement returning an error (1) if something bad happened
     return 0;
 }
 
-static jboolean File_isDirectoryImpl(JNIEnv* env, jclass, jstring javaPath) {
+static jboolean File_isDirectoryImpl(JNIEnv* env, jclass, jlong container, jstring javaPath) {
     ScopedUtfChars path(env, javaPath);
     if (path.c_str() == NULL) {
         return JNI_FALSE;
     }
-    return sqlfs_is_dir(0, path.c_str());
+    Container* c = Container::get(container);
+    StatCache* cache = c->usableStatCache();
+    struct stat sb;
+    bool exists;
+    if (cache != NULL && cache->get(path.c_str(), &sb, &exists)) {
+        return exists && S_ISDIR(sb.st_mode);
+    }
+    uint64_t generation = cache != NULL ? cache->generation() : 0;
+    ScopedConnection sqlfs(c);
+    if (sqlfs.get() == NULL) {
+        return JNI_FALSE;
+    }
+    if (cache == NULL) {
+        return sqlfs_is_dir(sqlfs.get(), path.c_str());
+    }
+    // the whole stat, so that it can be cached
+    int rc = sqlfs_proc_getattr(sqlfs.get(), path.c_str(), &sb);
+    if (rc == -ENOENT) {
+        cache->putMissing(path.c_str(), generation);
+    }
+    if (rc != 0) {
+        return JNI_FALSE;
+    }
+    c->applyBlockSize(&sb);
+    cache->put(path.c_str(), sb, generation);
+    return S_ISDIR(sb.st_mode);
 }
 
-static jobjectArray File_listImpl(JNIEnv* env, jclass, jstring javaPath) {
+static jobjectArray File_listImpl(JNIEnv* env, jclass, jlong container, jstring javaPath) {
     ScopedUtfChars path(env, javaPath);
+    if (path.c_str() == NULL) {
+        return NULL;
+    }
+    ScopedConnection sqlfs(Container::get(container));
+    if (sqlfs.get() == NULL) {
+        return NULL;
+    }
     DirEntries entries;
     // using FUSE readdir in old getdir() style which gives us the whole thing at once
-    sqlfs_proc_readdir(0, path.c_str(), (void *)&entries, (fuse_fill_dir_t)fill_dir, 0, NULL);
-    // filter "." and ".." from list of entries
+    sqlfs_proc_readdir(sqlfs.get(), path.c_str(), (void *)&entries, (fuse_fill_dir_t)fill_dir, 0, NULL);
     // Translate the intermediate form into a Java String[].
-    entries.erase(std::remove(entries.begin(), entries.end(), std::string(".")), entries.end());
-    entries.erase(std::remove(entries.begin(), entries.end(), std::string("..")), entries.end());
     return toStringArray(env, entries);
 }
 
+/* the sqlfs types in meta_data that are not regular files */
+#define SQLFS_TYPE_DIR "dir"
+#define SQLFS_TYPE_SYM_LINK "sym link"
+
+/* one child of a directory, for File.listEntries() */
+struct DirEntry {
+    std::string name;
+    jint mode;
+    jlong size;
+    jlong mtime;
+};
+
+static jint typeToMode(const char* type, int mode) {
+    mode &= ~S_IFMT;
+    if (type != NULL && strcmp(type, SQLFS_TYPE_DIR) == 0)
+        return mode | S_IFDIR;
+    if (type != NULL && strcmp(type, SQLFS_TYPE_SYM_LINK) == 0)
+        return mode | S_IFLNK;
+    return mode | S_IFREG;
+}
+
+/* Reads the children of path with their attributes straight from
+ * meta_data, instead of a getattr per child: with after, only those whose
+ * names come after it, and at most limit of them unless it is negative.
+ * That is a page of a keyset cursor, which holds no locks between pages.
+ * It seeks from one child to the next on the primary key index of
+ * meta_data, and when it lands below a child directory, past all of that
+ * directory's keys at once, so a page costs about two seeks per child
+ * however many files are further down. Returns 0, -ENOENT, -ENOTDIR or
+ * another negative errno. */
+static int queryEntries(sqlite3* db, const char* path, const char* after, int limit,
+                        std::vector<DirEntry>& entries) {
+    sqlite3_stmt* stmt = NULL;
+    int rc = sqlite3_prepare_v2(db, "SELECT type FROM meta_data WHERE key = ?1;", -1, &stmt, NULL);
+    if (rc == SQLITE_OK) {
+        sqlite3_bind_text(stmt, 1, path, -1, SQLITE_STATIC);
+        rc = sqlite3_step(stmt);
+    }
+    int result = 0;
+    if (rc == SQLITE_ROW) {
+        const char* type = reinterpret_cast<const char*>(sqlite3_column_text(stmt, 0));
+        if (type == NULL || strcmp(type, SQLFS_TYPE_DIR) != 0)
+            result = -ENOTDIR;
+    } else {
+        result = rc == SQLITE_DONE ? -ENOENT : ContainerDatabase::toErrno(rc);
+    }
+    sqlite3_finalize(stmt);
+    if (result != 0)
+        return result;
+
+    // everything between "path/" and "path0", '0' being the character after
+    // '/', and of that only the keys with no further '/'
+    std::string prefix(path);
+    if (prefix.empty() || prefix[prefix.size() - 1] != '/')
+        prefix += '/';
+    std::string end(prefix);
+    end[end.size() - 1] = '0';
+    std::string key(prefix);
+    if (after != NULL)
+        key += after;
+    // the next key after ?1, and the first key from ?1 on, below path
+    sqlite3_stmt* next = NULL;
+    sqlite3_stmt* skip = NULL;
+    rc = sqlite3_prepare_v2(db,
+            "SELECT key, type, mode, size, mtime FROM meta_data "
+            "WHERE key > ?1 AND key < ?2 ORDER BY key LIMIT 1;",
+            -1, &next, NULL);
+    if (rc == SQLITE_OK) {
+        rc = sqlite3_prepare_v2(db,
+                "SELECT key, type, mode, size, mtime FROM meta_data "
+                "WHERE key >= ?1 AND key < ?2 ORDER BY key LIMIT 1;",
+                -1, &skip, NULL);
+    }
+    if (rc == SQLITE_OK) {
+        sqlite3_bind_text(next, 2, end.c_str(), -1, SQLITE_STATIC);
+        sqlite3_bind_text(skip, 2, end.c_str(), -1, SQLITE_STATIC);
+    }
+    bool skipped = false;
+    while (rc == SQLITE_OK && (limit < 0 || entries.size() < (size_t) limit)) {
+        sqlite3_stmt* stmt = skipped ? skip : next;
+        sqlite3_reset(stmt);
+        sqlite3_bind_text(stmt, 1, key.c_str(), key.size(), SQLITE_TRANSIENT);
+        int stepped = sqlite3_step(stmt);
+        if (stepped != SQLITE_ROW) {
+            if (stepped != SQLITE_DONE)
+                rc = stepped;
+            break;
+        }
+        key.assign(reinterpret_cast<const char*>(sqlite3_column_text(stmt, 0)),
+                   sqlite3_column_bytes(stmt, 0));
+        size_t slash = key.find('/', prefix.size());
+        if (slash != std::string::npos) {
+            // below a child directory: its keys run from "child/" to
+            // "child0", and the siblings go on after that
+            key.erase(slash);
+            key += '0';
+            skipped = true;
+            continue;
+        }
+        skipped = false;
+        DirEntry entry;
+        entry.name = key.substr(prefix.size());
+        entry.mode = typeToMode(reinterpret_cast<const char*>(sqlite3_column_text(stmt, 1)),
+                                sqlite3_column_int(stmt, 2));
+        entry.size = sqlite3_column_int64(stmt, 3);
+        entry.mtime = sqlite3_column_int64(stmt, 4);
+        entries.push_back(entry);
+    }
+    sqlite3_finalize(next);
+    sqlite3_finalize(skip);
+    return rc == SQLITE_OK ? 0 : ContainerDatabase::toErrno(rc);
+}
+
+/* The same through sqlfs, for a thread that holds a connection of its own,
+ * e.g. in a transaction, whose changes the container's database connection
+ * can not see yet. */
+static int readEntries(sqlfs_t* sqlfs, const char* path, const char* after, int limit,
+                       std::vector<DirEntry>& entries) {
+    if (!sqlfs_is_dir(sqlfs, path))
+        return -ENOTDIR;
+    DirEntries names;
+    sqlfs_proc_readdir(sqlfs, path, (void *)&names, (fuse_fill_dir_t)fill_dir, 0, NULL);
+    // in the same order as the query, byte by byte like SQLite's BINARY
+    std::sort(names.begin(), names.end());
+    std::string prefix(path);
+    if (prefix.empty() || prefix[prefix.size() - 1] != '/')
+        prefix += '/';
+    size_t i = 0;
+    if (after != NULL)
+        i = std::upper_bound(names.begin(), names.end(), std::string(after)) - names.begin();
+    for (; i < names.size() && (limit < 0 || entries.size() < (size_t) limit); i++) {
+        struct stat sb;
+        if (sqlfs_proc_getattr(sqlfs, (prefix + names[i]).c_str(), &sb) != 0)
+            continue; // removed in the meantime
+        DirEntry entry;
+        entry.name = names[i];
+        entry.mode = sb.st_mode;
+        entry.size = sb.st_size;
+        entry.mtime = sb.st_mtime;
+        entries.push_back(entry);
+    }
+    return 0;
+}
+
+static jobjectArray toEntryArray(JNIEnv* env, const std::vector<DirEntry>& entries) {
+    static jmethodID ctor = env->GetMethodID(JniConstants::fileEntryClass, "<init>",
+                            "(Ljava/lang/String;IJJ)V");
+    jobjectArray result = env->NewObjectArray(entries.size(), JniConstants::fileEntryClass, NULL);
+    if (result == NULL) {
+        return NULL;
+    }
+    for (size_t i = 0; i < entries.size(); ++i) {
+        ScopedLocalRef<jstring> name(env, env->NewStringUTF(entries[i].name.c_str()));
+        if (env->ExceptionCheck()) {
+            return NULL;
+        }
+        ScopedLocalRef<jobject> entry(env, env->NewObject(JniConstants::fileEntryClass, ctor,
+                name.get(), entries[i].mode, entries[i].size,
+                entries[i].mtime * static_cast<jlong>(1000)));
+        if (env->ExceptionCheck()) {
+            return NULL;
+        }
+        env->SetObjectArrayElement(result, i, entry.get());
+    }
+    return result;
+}
+
+static jobjectArray File_listEntriesImpl(JNIEnv* env, jclass, jlong javaContainer, jstring javaPath,
+                                        jstring javaAfter, jint limit) {
+    ScopedUtfChars path(env, javaPath);
+    if (path.c_str() == NULL) {
+        return NULL;
+    }
+    const char* after = NULL;
+    std::string afterName;
+    if (javaAfter != NULL) {
+        ScopedUtfChars name(env, javaAfter);
+        if (name.c_str() == NULL) {
+            return NULL;
+        }
+        afterName = name.c_str();
+        after = afterName.c_str();
+    }
+    Container* container = Container::get(javaContainer);
+    if (!container->isMounted()) {
+        return NULL;
+    }
+    std::vector<DirEntry> entries;
+    int rc;
+    if (container->leasedConnection() != NULL) {
+        ScopedConnection sqlfs(container);
+        rc = readEntries(sqlfs.get(), path.c_str(), after, limit, entries);
+    } else {
+        // the query has to see the changes still in the group commit writer
+        rc = container->groupCommit().flush();
+        if (rc == 0) {
+            ScopedContainerDatabase db(container->database());
+            rc = -EIO;
+            if (db.get() != NULL)
+                rc = queryEntries(db.get(), path.c_str(), after, limit, entries);
+        }
+    }
+    if (rc == -ENOENT || rc == -ENOTDIR) {
+        return NULL;
+    } else if (rc < 0) {
+        jniThrowIOException(env, -rc);
+        return NULL;
+    }
+    return toEntryArray(env, entries);
+}
+
 static JNINativeMethod sMethods[] = {
-    {"isDirectoryImpl", "(Ljava/lang/String;)Z", (void *)File_isDirectoryImpl},
-    {"listImpl", "(Ljava/lang/String;)[Ljava/lang/String;", (void *)File_listImpl},
+    {"isDirectoryImpl", "(JLjava/lang/String;)Z", (void *)File_isDirectoryImpl},
+    {"listImpl", "(JLjava/lang/String;)[Ljava/lang/String;", (void *)File_listImpl},
+    {"listEntriesImpl", "(JLjava/lang/String;Ljava/lang/String;I)[Linfo/guardianproject/iocipher/FileEntry;", (void *)File_listEntriesImpl},
     {"readlink", "(Ljava/lang/String;)Ljava/lang/String;", (void *)File_readlink},
     {"realpath", "(Ljava/lang/String;)Ljava/lang/String;", (void *)File_realpath},
-    {"lastModifiedImpl", "(Ljava/lang/String;)J", (void *)File_lastModifiedImpl},
-    {"setLastModifiedImpl", "(Ljava/lang/String;J)Z", (void *)File_setLastModifiedImpl},
+    {"lastModifiedImpl", "(JLjava/lang/String;)J", (void *)File_lastModifiedImpl},
+    {"setLastModifiedImpl", "(JLjava/lang/String;J)Z", (void *)File_setLastModifiedImpl},
 };
 int register_info_guardianproject_iocipher_File(JNIEnv* env) {
     jclass cls;
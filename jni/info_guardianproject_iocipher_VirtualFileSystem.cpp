@@ -1,29 +1,32 @@
 
 #define LOG_TAG "VirtualFileSystem.cpp"
 
+#include "Container.h"
 #include "JNIHelp.h"
 #include "JniConstants.h"
+#include "OpenFileTable.h"
 #include "ScopedUtfChars.h"
 
 #include "sqlfs.h"
 
+#include <limits.h>
 #include <string.h>
 #include <stdio.h>
 #include <unistd.h>
 #include <errno.h>
 #include <libgen.h>
 
-// yes, dbFileName is a duplicate of default_db_file in sqlfs.c
-char dbFileName[PATH_MAX] = { 0 };
-// store first sqlfs instance as marker for mounted state
-static sqlfs_t *sqlfs = NULL;
+/* VirtualFileSystem.container, the native Container it works on */
+static jfieldID sContainerField;
 // memory blob for error messages
 static char msg[256];
 #define MAX_MSG_LEN 255
 
-static jboolean VirtualFileSystem_isMounted(JNIEnv *env, jobject obj);
+static Container* getContainer(JNIEnv *env, jobject obj) {
+    return Container::get(env->GetLongField(obj, sContainerField));
+}
 
-bool throwContainerReadWriteError(JNIEnv *env) {
+bool throwContainerReadWriteError(JNIEnv *env, const char *dbFileName) {
     bool error = false;
     if (access(dbFileName, R_OK) != 0) {
         error = true;
@@ -41,15 +44,15 @@ bool throwContainerReadWriteError(JNIEnv *env) {
     return error;
 }
 
-void handleCreateError(JNIEnv *env) {
-    if (!throwContainerReadWriteError(env)) {
+void handleCreateError(JNIEnv *env, const char *dbFileName) {
+    if (!throwContainerReadWriteError(env, dbFileName)) {
         snprintf(msg, MAX_MSG_LEN, "Unknown error creating %s", dbFileName);
         jniThrowException(env, "java/lang/IllegalStateException", msg);
     }
 }
 
-void handleMountError(JNIEnv *env) {
-    if (!throwContainerReadWriteError(env)) {
+void handleMountError(JNIEnv *env, const char *dbFileName) {
+    if (!throwContainerReadWriteError(env, dbFileName)) {
         snprintf(msg, MAX_MSG_LEN,
                  "Could not mount filesystem in %s, bad password given?", dbFileName);
         jniThrowException(env, "java/lang/IllegalArgumentException", msg);
@@ -67,9 +70,9 @@ bool throwKeyLengthException(JNIEnv *env, jsize keyLen) {
     }
 }
 
-bool throwMountedException(JNIEnv *env, jobject obj) {
-    if (VirtualFileSystem_isMounted(env, obj)) {
-        snprintf(msg, MAX_MSG_LEN, "Filesystem in '%s' already mounted!", dbFileName);
+bool throwMountedException(JNIEnv *env, Container *container) {
+    if (container->isMounted()) {
+        snprintf(msg, MAX_MSG_LEN, "Filesystem in '%s' already mounted!", container->dbFileName);
         jniThrowException(env, "java/lang/IllegalStateException", msg);
         return true;
     } else {
@@ -77,11 +80,16 @@ bool throwMountedException(JNIEnv *env, jobject obj) {
     }
 }
 
+static jlong VirtualFileSystem_newContainer(JNIEnv *env, jclass) {
+    return static_cast<jlong>(reinterpret_cast<uintptr_t>(Container::create()));
+}
+
 static jstring VirtualFileSystem_getContainerPath(JNIEnv *env, jobject obj) {
-    return env->NewStringUTF(dbFileName);
+    return env->NewStringUTF(getContainer(env, obj)->dbFileName);
 }
 
 static void VirtualFileSystem_setContainerPath(JNIEnv *env, jobject obj, jstring javaFileName) {
+    char *dbFileName = getContainer(env, obj)->dbFileName;
     char const *name = env->GetStringUTFChars(javaFileName, 0);
     jsize nameLen = env->GetStringUTFLength(javaFileName);
     memset(dbFileName, 0, PATH_MAX);
@@ -94,7 +102,11 @@ static void VirtualFileSystem_setContainerPath(JNIEnv *env, jobject obj, jstring
 
     int validFileName = 1;
     struct stat sb;
-    const char *dir = dirname(name);
+    // POSIX dirname() may modify its argument, so give it a copy
+    char dirBuf[PATH_MAX];
+    strncpy(dirBuf, name, PATH_MAX-1);
+    dirBuf[PATH_MAX-1] = '\0';
+    const char *dir = dirname(dirBuf);
 
     if (access(dir, R_OK) != 0) {
         validFileName = 0;
@@ -123,11 +135,12 @@ static void VirtualFileSystem_setContainerPath(JNIEnv *env, jobject obj, jstring
 }
 
 static jboolean VirtualFileSystem_isMounted(JNIEnv *env, jobject obj) {
-    return sqlfs != NULL || sqlfs_instance_count() > 0;
+    return getContainer(env, obj)->isMounted();
 }
 
 static void VirtualFileSystem_createNewContainer(JNIEnv *env, jobject obj, jstring javaPassword) {
-    if (throwMountedException(env, obj))
+    Container *container = getContainer(env, obj);
+    if (throwMountedException(env, container))
         return;
 
     char const *password = env->GetStringUTFChars(javaPassword, 0);
@@ -135,17 +148,15 @@ static void VirtualFileSystem_createNewContainer(JNIEnv *env, jobject obj, jstri
 
     /* Attempt to open the database with the password, then immediately close
      * it. If it fails, then the password is likely wrong. */
-    if (sqlfs_open_password(dbFileName, password, &sqlfs)) {
-        sqlfs_close(sqlfs);
-        sqlfs = NULL;
-    } else {
-        handleCreateError(env);
+    if (!container->createNew(password)) {
+        handleCreateError(env, container->dbFileName);
     }
     env->ReleaseStringUTFChars(javaPassword, password);
 }
 
 static void VirtualFileSystem_createNewContainer_byte(JNIEnv *env, jobject obj, jbyteArray javaKey) {
-    if (throwMountedException(env, obj))
+    Container *container = getContainer(env, obj);
+    if (throwMountedException(env, container))
         return;
 
     jsize keyLen = env->GetArrayLength(javaKey);
@@ -156,21 +167,34 @@ static void VirtualFileSystem_createNewContainer_byte(JNIEnv *env, jobject obj,
 
     /* attempt to open the database with the key if it fails, most likely the
      * db file does not exist or the key is wrong */
-    if (sqlfs_open_key(dbFileName, (uint8_t*)key, keyLen, &sqlfs)) {
-        sqlfs_close(sqlfs);
-        sqlfs = NULL;
-    } else {
-        handleMountError(env);
+    if (!container->createNew((uint8_t*)key, keyLen)) {
+        handleMountError(env, container->dbFileName);
     }
 
     env->ReleaseByteArrayElements(javaKey, key, 0);
 }
 
+static void VirtualFileSystem_setMountOptions(JNIEnv *env, jobject obj, jint cipherPageSize,
+                                             jint kdfIter, jstring javaPragmas) {
+    Container *container = getContainer(env, obj);
+    if (throwMountedException(env, container))
+        return;
+    ScopedUtfChars pragmas(env, javaPragmas);
+    if (pragmas.c_str() == NULL)
+        return;
+    MountOptions options;
+    options.cipherPageSize = cipherPageSize;
+    options.kdfIter = kdfIter;
+    options.pragmas = pragmas.c_str();
+    container->setOptions(options);
+}
+
 static void VirtualFileSystem_mount(JNIEnv *env, jobject obj, jstring javaPassword) {
-    if (throwMountedException(env, obj))
+    Container *container = getContainer(env, obj);
+    if (throwMountedException(env, container))
         return;
 
-    if (throwContainerReadWriteError(env))
+    if (throwContainerReadWriteError(env, container->dbFileName))
         return;
 
     char const *password = env->GetStringUTFChars(javaPassword, 0);
@@ -178,17 +202,18 @@ static void VirtualFileSystem_mount(JNIEnv *env, jobject obj, jstring javaPasswo
 
     /* Attempt to open the database with the password, then immediately close
      * it. If it fails, then the password is likely wrong. */
-    if (!sqlfs_open_password(dbFileName, password, &sqlfs)) {
-        handleMountError(env);
+    if (!container->mount(password)) {
+        handleMountError(env, container->dbFileName);
     }
     env->ReleaseStringUTFChars(javaPassword, password);
 }
 
 static void VirtualFileSystem_mount_byte(JNIEnv *env, jobject obj, jbyteArray javaKey) {
-    if (throwMountedException(env, obj))
+    Container *container = getContainer(env, obj);
+    if (throwMountedException(env, container))
         return;
 
-    if (throwContainerReadWriteError(env))
+    if (throwContainerReadWriteError(env, container->dbFileName))
         return;
 
     jsize keyLen = env->GetArrayLength(javaKey);
@@ -199,61 +224,261 @@ static void VirtualFileSystem_mount_byte(JNIEnv *env, jobject obj, jbyteArray ja
 
     /* attempt to open the database with the key if it fails, most likely the
      * db file does not exist or the key is wrong */
-    if (!sqlfs_open_key(dbFileName, (uint8_t*)key, keyLen, &sqlfs)) {
-        handleMountError(env);
+    if (!container->mount((uint8_t*)key, keyLen)) {
+        handleMountError(env, container->dbFileName);
     }
 
     env->ReleaseByteArrayElements(javaKey, key, 0);
 }
 
+static jbyteArray VirtualFileSystem_getDerivedKey(JNIEnv *env, jobject obj) {
+    Container *container = getContainer(env, obj);
+    if (!container->isMounted()) {
+        snprintf(msg, MAX_MSG_LEN, "Filesystem in '%s' not mounted!", container->dbFileName);
+        jniThrowException(env, "java/lang/IllegalStateException", msg);
+        return NULL;
+    }
+    uint8_t key[REQUIRED_KEY_LENGTH];
+    size_t keyLen = container->copyKey(key, sizeof(key));
+    jbyteArray result = NULL;
+    if (keyLen > 0) {
+        result = env->NewByteArray(keyLen);
+        if (result != NULL)
+            env->SetByteArrayRegion(result, 0, keyLen, reinterpret_cast<jbyte*>(key));
+    }
+    memset(key, 0, sizeof(key));
+    return result;
+}
+
 static void VirtualFileSystem_unmount(JNIEnv *env, jobject obj) {
-    if (!VirtualFileSystem_isMounted(env, obj)) {
-        snprintf(msg, MAX_MSG_LEN, "Filesystem in '%s' not mounted!", dbFileName);
+    Container *container = getContainer(env, obj);
+    if (!container->isMounted()) {
+        snprintf(msg, MAX_MSG_LEN, "Filesystem in '%s' not mounted!", container->dbFileName);
         jniThrowException(env, "java/lang/IllegalStateException", msg);
         return;
     }
-    /* VFS holds a sqlfs instance open purely as a marker of the filesystem
-     * being mounted. If there is more than one sqlfs instance, that means
-     * that threads are still active. Closing the final sqlfs instances causes
-     * libsqlfs to close the database and zero out the key/password. */
-    if (sqlfs_instance_count() > 1) {
+    /* Connections are only leased for as long as an operation or a
+     * transaction runs. If any thread other than this one still holds one,
+     * it is still active. Closing the final connections closes the database
+     * and zeroes out the key/password. */
+    int active = container->unmount();
+    if (active > 0) {
         snprintf(msg, 255,
                  "Cannot unmount when threads are still active! (%i threads)",
-                 sqlfs_instance_count() - 1);
+                 active);
         jniThrowException(env, "java/lang/IllegalStateException", msg);
         return;
     }
-    sqlfs_close(sqlfs);
-    sqlfs = NULL;
 }
 
-static void VirtualFileSystem_detachThread(JNIEnv *env, jobject) {
-    sqlfs_detach_thread();
+static void VirtualFileSystem_detachThreadImpl(JNIEnv *env, jobject obj) {
+    getContainer(env, obj)->detachThread();
     return;
 }
 
-static void VirtualFileSystem_beginTransaction(JNIEnv *env, jobject) {
-    sqlfs_begin_transaction(0);
+static void VirtualFileSystem_beginTransactionImpl(JNIEnv *env, jobject obj) {
+    Container *container = getContainer(env, obj);
+    /* the lease is kept until completeTransactionImpl(), so that every
+     * operation in between runs on the same connection, which sees what
+     * is still in the group commit batch */
+    int error;
+    sqlfs_t *sqlfs = container->acquireCurrentConnection(&error);
+    if (sqlfs == NULL && error == -ENODEV) {
+        snprintf(msg, MAX_MSG_LEN, "Filesystem in '%s' not mounted!", container->dbFileName);
+        jniThrowException(env, "java/lang/IllegalStateException", msg);
+        return;
+    }
+    if (sqlfs == NULL) {
+        snprintf(msg, MAX_MSG_LEN, "Could not commit the group commit batch of '%s'", container->dbFileName);
+        jniThrowException(env, "java/lang/IllegalStateException", msg);
+        return;
+    }
+    sqlfs_begin_transaction(sqlfs);
     return;
 }
 
-static void VirtualFileSystem_completeTransaction(JNIEnv *env, jobject) {
-    sqlfs_complete_transaction(0,1);
-    return;
+static jboolean VirtualFileSystem_completeTransactionImpl(JNIEnv *env, jobject obj, jboolean commit) {
+    Container *container = getContainer(env, obj);
+    sqlfs_t *sqlfs = container->leasedConnection();
+    if (sqlfs == NULL)
+        return JNI_FALSE; // detachThread() or unmount() got there first
+    int result = sqlfs_complete_transaction(sqlfs, commit ? 1 : 0);
+    /* other threads could have cached what was there before the commit */
+    container->statCache().clear();
+    if (!commit) {
+        /* the sizes of open files could include writes that are gone now */
+        OpenFileTable::refresh(container, sqlfs);
+    }
+    container->releaseConnection();
+    return result ? JNI_TRUE : JNI_FALSE;
+}
+
+/* sqlfs has no savepoints, but its connection is a plain SQLite one, so
+ * nested transactions are savepoints on its sqlite3 handle, inside the
+ * transaction sqlfs began. Returns false if the handle is not known. */
+static jboolean VirtualFileSystem_savepointImpl(JNIEnv *env, jobject obj, jint level) {
+    sqlite3 *db = getContainer(env, obj)->leasedDatabase();
+    if (db == NULL)
+        return JNI_FALSE;
+    char sql[64];
+    snprintf(sql, sizeof(sql), "SAVEPOINT iocipher_%d;", level);
+    return sqlite3_exec(db, sql, NULL, NULL, NULL) == SQLITE_OK ? JNI_TRUE : JNI_FALSE;
+}
+
+/* returns false if the savepoint could not be released or rolled back to,
+ * e.g. because sqlfs rolled back the whole transaction after an error */
+static jboolean VirtualFileSystem_releaseSavepointImpl(JNIEnv *env, jobject obj, jint level,
+                                                       jboolean commit) {
+    Container *container = getContainer(env, obj);
+    sqlite3 *db = container->leasedDatabase();
+    if (db == NULL)
+        return JNI_FALSE;
+    char sql[64];
+    int rc = SQLITE_OK;
+    if (!commit) {
+        snprintf(sql, sizeof(sql), "ROLLBACK TO iocipher_%d;", level);
+        rc = sqlite3_exec(db, sql, NULL, NULL, NULL);
+    }
+    if (rc == SQLITE_OK) {
+        snprintf(sql, sizeof(sql), "RELEASE iocipher_%d;", level);
+        rc = sqlite3_exec(db, sql, NULL, NULL, NULL);
+    }
+    if (!commit) {
+        container->statCache().clear();
+        OpenFileTable::refresh(container, container->leasedConnection());
+    }
+    return rc == SQLITE_OK ? JNI_TRUE : JNI_FALSE;
+}
+
+static void VirtualFileSystem_setStatCacheSize(JNIEnv *env, jobject obj, jint maxEntries) {
+    if (maxEntries < 0) {
+        jniThrowException(env, "java/lang/IllegalArgumentException", "maxEntries < 0");
+        return;
+    }
+    getContainer(env, obj)->statCache().setMaxEntries(maxEntries);
+}
+
+static jlongArray VirtualFileSystem_getStatCacheStatsImpl(JNIEnv *env, jobject obj) {
+    StatCacheStats stats;
+    getContainer(env, obj)->statCache().getStats(&stats);
+    jlong values[] = {
+        stats.maxEntries, stats.size, stats.hits, stats.negativeHits, stats.misses,
+        stats.evictions, stats.invalidations,
+    };
+    jlongArray result = env->NewLongArray(NELEM(values));
+    if (result != NULL)
+        env->SetLongArrayRegion(result, 0, NELEM(values), values);
+    return result;
+}
+
+/* the block size the container's meta_data records, or else the st_blksize
+ * that sqlfs reports for its root, e.g. for a new container without files */
+static jint VirtualFileSystem_getBlockSize(JNIEnv *env, jobject obj) {
+    Container *container = getContainer(env, obj);
+    sqlfs_t *sqlfs = container->isMounted() ? container->acquireConnection() : NULL;
+    if (sqlfs == NULL) {
+        snprintf(msg, MAX_MSG_LEN, "Filesystem in '%s' not mounted!", container->dbFileName);
+        jniThrowException(env, "java/lang/IllegalStateException", msg);
+        return 0;
+    }
+    int blockSize = container->blockSize();
+    struct stat sb;
+    if (blockSize <= 0 && sqlfs_proc_getattr(sqlfs, "/", &sb) == 0)
+        blockSize = sb.st_blksize;
+    container->releaseConnection();
+    return blockSize;
+}
+
+static void VirtualFileSystem_setMaxConnections(JNIEnv *env, jobject obj, jint maxConnections) {
+    if (maxConnections < 1) {
+        jniThrowException(env, "java/lang/IllegalArgumentException", "maxConnections < 1");
+        return;
+    }
+    getContainer(env, obj)->setMaxConnections(maxConnections);
+}
+
+static void VirtualFileSystem_setConnectionIdleTimeout(JNIEnv *env, jobject obj, jlong millis) {
+    if (millis < 0) {
+        jniThrowException(env, "java/lang/IllegalArgumentException", "millis < 0");
+        return;
+    }
+    getContainer(env, obj)->setIdleTimeout(millis);
+}
+
+static jlongArray VirtualFileSystem_getConnectionPoolStatsImpl(JNIEnv *env, jobject obj) {
+    ConnectionPoolStats stats;
+    getContainer(env, obj)->getStats(&stats);
+    jlong values[] = {
+        stats.maxConnections, stats.open, stats.idle, stats.inUse,
+        stats.opened, stats.evicted, stats.leases, stats.waits,
+    };
+    jlongArray result = env->NewLongArray(NELEM(values));
+    if (result != NULL)
+        env->SetLongArrayRegion(result, 0, NELEM(values), values);
+    return result;
+}
+
+static void VirtualFileSystem_setGroupCommit(JNIEnv *env, jobject obj, jlong intervalMillis,
+                                             jlong maxBytes, jboolean waitForCommit) {
+    if (intervalMillis < 0) {
+        jniThrowException(env, "java/lang/IllegalArgumentException", "intervalMillis < 0");
+        return;
+    }
+    if (maxBytes < 0) {
+        jniThrowException(env, "java/lang/IllegalArgumentException", "maxBytes < 0");
+        return;
+    }
+    Container *container = getContainer(env, obj);
+    int rc = container->setGroupCommit(intervalMillis, maxBytes, waitForCommit);
+    if (rc == -ENODEV) {
+        snprintf(msg, MAX_MSG_LEN, "Filesystem in '%s' not mounted!", container->dbFileName);
+        jniThrowException(env, "java/lang/IllegalStateException", msg);
+    } else if (rc < 0) {
+        snprintf(msg, MAX_MSG_LEN, "Could not start group commit on '%s' (%d)!",
+                 container->dbFileName, -rc);
+        jniThrowException(env, "java/lang/IllegalStateException", msg);
+    }
+}
+
+static void VirtualFileSystem_disableGroupCommit(JNIEnv *env, jobject obj) {
+    getContainer(env, obj)->setGroupCommit(-1, 0, false);
+}
+
+static jlong VirtualFileSystem_currentCommitBatch(JNIEnv *env, jobject obj) {
+    return getContainer(env, obj)->groupCommit().currentBatch();
+}
+
+static jint VirtualFileSystem_awaitCommit(JNIEnv *env, jobject obj, jlong batch, jlong timeoutMillis) {
+    return getContainer(env, obj)->groupCommit().waitFor(batch, timeoutMillis);
 }
 
 static JNINativeMethod sMethods[] = {
+    {"newContainer", "()J", (void *)VirtualFileSystem_newContainer},
     {"getContainerPath", "()Ljava/lang/String;", (void *)VirtualFileSystem_getContainerPath},
     {"setContainerPath", "(Ljava/lang/String;)V", (void *)VirtualFileSystem_setContainerPath},
     {"createNewContainer", "(Ljava/lang/String;)V", (void *)VirtualFileSystem_createNewContainer},
     {"createNewContainer", "([B)V", (void *)VirtualFileSystem_createNewContainer_byte},
+    {"setMountOptions", "(IILjava/lang/String;)V", (void *)VirtualFileSystem_setMountOptions},
     {"mount", "(Ljava/lang/String;)V", (void *)VirtualFileSystem_mount},
     {"mount", "([B)V", (void *)VirtualFileSystem_mount_byte},
+    {"getDerivedKey", "()[B", (void *)VirtualFileSystem_getDerivedKey},
     {"unmount", "()V", (void *)VirtualFileSystem_unmount},
     {"isMounted", "()Z", (void *)VirtualFileSystem_isMounted},
-    {"detachThread", "()V", (void *)VirtualFileSystem_detachThread},
-    {"beginTransaction", "()V", (void *)VirtualFileSystem_beginTransaction},
-    {"completeTransaction", "()V", (void *)VirtualFileSystem_completeTransaction},
+    {"getBlockSize", "()I", (void *)VirtualFileSystem_getBlockSize},
+    {"detachThreadImpl", "()V", (void *)VirtualFileSystem_detachThreadImpl},
+    {"beginTransactionImpl", "()V", (void *)VirtualFileSystem_beginTransactionImpl},
+    {"completeTransactionImpl", "(Z)Z", (void *)VirtualFileSystem_completeTransactionImpl},
+    {"savepointImpl", "(I)Z", (void *)VirtualFileSystem_savepointImpl},
+    {"releaseSavepointImpl", "(IZ)Z", (void *)VirtualFileSystem_releaseSavepointImpl},
+    {"setMaxConnections", "(I)V", (void *)VirtualFileSystem_setMaxConnections},
+    {"setConnectionIdleTimeout", "(J)V", (void *)VirtualFileSystem_setConnectionIdleTimeout},
+    {"getConnectionPoolStatsImpl", "()[J", (void *)VirtualFileSystem_getConnectionPoolStatsImpl},
+    {"setStatCacheSize", "(I)V", (void *)VirtualFileSystem_setStatCacheSize},
+    {"getStatCacheStatsImpl", "()[J", (void *)VirtualFileSystem_getStatCacheStatsImpl},
+    {"setGroupCommit", "(JJZ)V", (void *)VirtualFileSystem_setGroupCommit},
+    {"disableGroupCommit", "()V", (void *)VirtualFileSystem_disableGroupCommit},
+    {"currentCommitBatch", "()J", (void *)VirtualFileSystem_currentCommitBatch},
+    {"awaitCommit", "(JJ)I", (void *)VirtualFileSystem_awaitCommit},
 };
 int register_info_guardianproject_iocipher_VirtualFileSystem(JNIEnv* env) {
     jclass cls = env->FindClass("info/guardianproject/iocipher/VirtualFileSystem");
@@ -261,5 +486,10 @@ int register_info_guardianproject_iocipher_VirtualFileSystem(JNIEnv* env) {
         LOGE("Can't find info/guardianproject/iocipher/VirtualFileSystem\n");
         return -1;
     }
+    sContainerField = env->GetFieldID(cls, "container", "J");
+    if (sContainerField == NULL) {
+        LOGE("Can't find info/guardianproject/iocipher/VirtualFileSystem.container\n");
+        return -1;
+    }
     return env->RegisterNatives(cls, sMethods, NELEM(sMethods));
 }
@@ -23,6 +23,7 @@
 
 #include <byteswap.h>
 #include <errno.h>
+#include <stdint.h>
 #include <stdlib.h>
 #include <string.h>
 #include <sys/mman.h>
@@ -16,10 +16,13 @@
 
 #define LOG_TAG "Posix"
 
+#include "ContainerDatabase.h"
+#include "Container.h"
 #include "JNIHelp.h"
 #include "JniConstants.h"
 #include "JniException.h"
-#include "ScopedBytes.h"
+#include "LocalArray.h"
+#include "OpenFileTable.h"
 #include "ScopedLocalRef.h"
 #include "ScopedPrimitiveArray.h"
 #include "ScopedUtfChars.h"
@@ -31,10 +34,12 @@
 
 #include <errno.h>
 #include <fcntl.h>
+#include <limits.h>
 #include <poll.h>
 #include <pwd.h>
 #include <signal.h>
 #include <stdlib.h>
+#include <string.h>
 #include <sys/ioctl.h>
 #include <sys/mman.h>
 #include <sys/stat.h>
@@ -44,11 +49,11 @@
 #include <sys/utsname.h>
 #include <sys/vfs.h> // Bionic doesn't have <sys/statvfs.h>
 #include <sys/wait.h>
+#include <time.h>
 #include <unistd.h>
 
-/* right now, we use a single global virtual file system so we don't
- * have to map the structs sqlfs_t and sqlite3 to Java code */
-extern char dbFileName[PATH_MAX];
+/* Posix.container, which VirtualFileSystem this Posix works on */
+static jfieldID sContainerField;
 
 #define TO_JAVA_STRING(NAME, EXP) \
         jstring NAME = env->NewStringUTF(EXP); \
@@ -96,13 +101,166 @@ static rc_t throwIfNegative(JNIEnv* env, const char* name, rc_t rc) {
     return rc;
 }
 
-template <typename ScopedT>
+// Looks up the Container of a Posix instance and leases a connection to it
+// for the duration of the call, throwing ENODEV if it is not mounted. The
+// connection sees every change made before, see ScopedConnection. Pass
+// change = true if the call changes the container, so that it can go into a
+// group commit, which throws if it could not be committed.
+class ScopedSqlfs {
+public:
+    ScopedSqlfs(JNIEnv* env, jobject javaPosix, const char* name, bool change = false)
+    : mEnv(env), mName(name),
+      mContainer(Container::get(env->GetLongField(javaPosix, sContainerField))),
+      mConnection(mContainer, change)
+    {
+        if (mConnection.get() == NULL) {
+            throwErrnoException(env, name, mConnection.error());
+        }
+    }
+
+    ~ScopedSqlfs() {
+        finish();
+    }
+
+    /* Gives the connection back early, returns false if it threw because
+     * the change could not be committed. */
+    bool finish() {
+        int rc = mConnection.finish();
+        if (rc < 0 && !mEnv->ExceptionCheck()) {
+            throwErrnoException(mEnv, mName, rc);
+        }
+        return rc >= 0;
+    }
+
+    /* The group commit batch the finished change went into, or -1. */
+    int64_t batch() const {
+        return mConnection.batch();
+    }
+
+    Container* container() const {
+        return mContainer;
+    }
+
+    sqlfs_t* get() const {
+        return mConnection.get();
+    }
+
+private:
+    JNIEnv* mEnv;
+    const char* mName;
+    Container* mContainer;
+    ScopedConnection mConnection;
+};
+
+// Looks up the FileDescriptor's entry in the OpenFileTable, throwing EBADF if
+// it has already been closed. Files stay in the Container they were opened
+// in, so this also leases a connection to that Container, or with change =
+// true, begins a change to it like ScopedSqlfs does. Reading an open file
+// only commits the open group commit batch if the file was changed in it,
+// or if its entry is stale and has to be looked up by path again.
+class ScopedFd : public ScopedOpenFile {
+public:
+    ScopedFd(JNIEnv* env, jobject javaFd, bool change = false)
+    : ScopedOpenFile(jniGetHandleFromFileDescriptor(env, javaFd)), mEnv(env), mSqlfs(NULL),
+      mChange(change), mGrouped(false), mByteCount(0)
+    {
+        if (!ScopedOpenFile::valid()) {
+            throwErrnoException(env, "fd", -EBADF);
+            return;
+        }
+        int error = -ENODEV;
+        if (change) {
+            mSqlfs = container()->beginChange(&mGrouped);
+        } else if (stale() || (batch() >= 0 && batch() >= container()->groupCommit().currentBatch())) {
+            mSqlfs = container()->acquireCurrentConnection(&error);
+        } else {
+            mSqlfs = container()->acquireConnection();
+        }
+        if (mSqlfs == NULL) {
+            throwErrnoException(env, "fd", error);
+        }
+    }
+
+    ~ScopedFd() {
+        if (mSqlfs == NULL) {
+            return;
+        }
+        if (!mChange) {
+            container()->releaseConnection();
+            return;
+        }
+        container()->statCache().invalidate(path());
+        int64_t batch = -1;
+        int rc = container()->endChange(mGrouped, mByteCount, &batch);
+        if (mGrouped) {
+            OpenFileTable::changedInBatch(handle(), batch);
+        }
+        if (rc < 0 && !mEnv->ExceptionCheck()) {
+            throwErrnoException(mEnv, "commit", rc);
+        }
+    }
+
+    bool valid() const {
+        return mSqlfs != NULL;
+    }
+
+    sqlfs_t* sqlfs() const {
+        return mSqlfs;
+    }
+
+    /* The sqlite3 handle of sqlfs(), or NULL if it is not known. */
+    sqlite3* database() const {
+        if (mGrouped) {
+            return container()->groupCommit().writerDatabase();
+        }
+        return container()->leasedDatabase();
+    }
+
+    /* Counts bytes towards the group commit limit. */
+    void wrote(size_t byteCount) {
+        mByteCount += byteCount;
+    }
+
+private:
+    JNIEnv* mEnv;
+    sqlfs_t* mSqlfs;
+    bool mChange;
+    bool mGrouped;
+    size_t mByteCount;
+};
+
+/* The attributes of an open file. The OpenFileTable keeps them current for
+ * changes made through this Container, so they are only read again if the
+ * entry went stale, or if another Container can change the file too. */
+static int currentStat(const ScopedFd& fd, struct stat* sb) {
+    if (!fd.stale() && !fd.container()->isShared()) {
+        *sb = fd.stat();
+        return 0;
+    }
+    int rc = TEMP_FAILURE_RETRY(sqlfs_proc_getattr(fd.sqlfs(), fd.path(), sb));
+    if (rc == -ENOENT) {
+        // it was removed, so there is nothing left to read
+        *sb = fd.stat();
+        sb->st_size = 0;
+    } else if (rc < 0) {
+        return rc;
+    }
+    fd.container()->applyBlockSize(sb);
+    OpenFileTable::update(fd.handle(), *sb);
+    return 0;
+}
+
+/* The buffers of preadv() and pwritev(). Direct buffers are used in place.
+ * Of a byte[] only the slice named by offsets and byteCounts is copied into
+ * native memory, with Get/SetByteArrayRegion like Posix_preadBytes does,
+ * rather than pinning the whole array, which can copy all of it both ways. */
 class IoVec {
 public:
     IoVec(JNIEnv* env, size_t bufferCount) : mEnv(env), mBufferCount(bufferCount) {
     }
 
-    bool init(jobjectArray javaBuffers, jintArray javaOffsets, jintArray javaByteCounts) {
+    /* fill is whether to copy the byte[] slices in, which a write needs */
+    bool init(jobjectArray javaBuffers, jintArray javaOffsets, jintArray javaByteCounts, bool fill) {
         // We can't delete our local references until after the I/O, so make sure we have room.
         if (mEnv->PushLocalFrame(mBufferCount + 16) < 0) {
             return false;
@@ -115,26 +273,61 @@ public:
         if (byteCounts.get() == NULL) {
             return false;
         }
-        // TODO: Linux actually has a 1024 buffer limit. glibc works around this, and we should too.
-        // TODO: you can query the limit at runtime with sysconf(_SC_IOV_MAX).
         for (size_t i = 0; i < mBufferCount; ++i) {
             jobject buffer = mEnv->GetObjectArrayElement(javaBuffers, i); // We keep this local ref.
-            mScopedBuffers.push_back(new ScopedT(mEnv, buffer));
-            jbyte* ptr = const_cast<jbyte*>(mScopedBuffers.back()->get());
-            if (ptr == NULL) {
+            if (buffer == NULL) {
+                jniThrowRuntimeException(mEnv, "null pointer");
                 return false;
             }
+            Slice slice;
+            slice.array = NULL;
+            slice.offset = offsets[i];
             struct iovec iov;
-            iov.iov_base = reinterpret_cast<void*>(ptr + offsets[i]);
             iov.iov_len = byteCounts[i];
+            if (mEnv->IsInstanceOf(buffer, JniConstants::byteArrayClass)) {
+                slice.array = reinterpret_cast<jbyteArray>(buffer);
+                jbyte* copy = new jbyte[iov.iov_len > 0 ? iov.iov_len : 1];
+                mCopies.push_back(copy);
+                if (fill) {
+                    mEnv->GetByteArrayRegion(slice.array, slice.offset, iov.iov_len, copy);
+                    if (mEnv->ExceptionCheck()) {
+                        return false;
+                    }
+                }
+                iov.iov_base = copy;
+            } else {
+                jbyte* address = reinterpret_cast<jbyte*>(mEnv->GetDirectBufferAddress(buffer));
+                if (address == NULL) {
+                    jniThrowException(mEnv, "java/lang/IllegalArgumentException", "not a direct buffer");
+                    return false;
+                }
+                iov.iov_base = address + slice.offset;
+            }
+            mSlices.push_back(slice);
             mIoVec.push_back(iov);
         }
         return true;
     }
 
+    /* copies the first byteCount bytes read back into the byte[]s they are for */
+    bool copyBack(size_t byteCount) {
+        for (size_t i = 0; i < mIoVec.size() && byteCount > 0; ++i) {
+            size_t n = mIoVec[i].iov_len < byteCount ? mIoVec[i].iov_len : byteCount;
+            if (mSlices[i].array != NULL) {
+                mEnv->SetByteArrayRegion(mSlices[i].array, mSlices[i].offset, n,
+                                         reinterpret_cast<jbyte*>(mIoVec[i].iov_base));
+                if (mEnv->ExceptionCheck()) {
+                    return false;
+                }
+            }
+            byteCount -= n;
+        }
+        return true;
+    }
+
     ~IoVec() {
-        for (size_t i = 0; i < mScopedBuffers.size(); ++i) {
-            delete mScopedBuffers[i];
+        for (size_t i = 0; i < mCopies.size(); ++i) {
+            delete[] mCopies[i];
         }
         mEnv->PopLocalFrame(NULL);
     }
@@ -148,10 +341,17 @@ public:
     }
 
 private:
+    // the byte[] an iovec is a copy of, or NULL for a direct buffer
+    struct Slice {
+        jbyteArray array;
+        jint offset;
+    };
+
     JNIEnv* mEnv;
     size_t mBufferCount;
     std::vector<iovec> mIoVec;
-    std::vector<ScopedT*> mScopedBuffers;
+    std::vector<Slice> mSlices;
+    std::vector<jbyte*> mCopies;
 };
 
 static jobject makeStructPasswd(JNIEnv* env, const struct passwd& pw) {
@@ -164,11 +364,14 @@ static jobject makeStructPasswd(JNIEnv* env, const struct passwd& pw) {
                           pw_name, static_cast<jint>(pw.pw_uid), static_cast<jint>(pw.pw_gid), pw_dir, pw_shell);
 }
 
-static jobject makeStructStat(JNIEnv* env, const struct stat& sb) {
+/* sqlfs leaves st_dev at 0, so each container is reported as a device of
+ * its own, and st_dev and st_ino together identify a file in this process */
+static jobject makeStructStat(JNIEnv* env, const struct stat& sb, Container* container) {
     static jmethodID ctor = env->GetMethodID(JniConstants::structStatClass, "<init>",
                             "(JJIJIIJJJJJJJ)V");
+    jlong device = static_cast<jlong>(reinterpret_cast<uintptr_t>(container));
     return env->NewObject(JniConstants::structStatClass, ctor,
-                          static_cast<jlong>(sb.st_dev), static_cast<jlong>(sb.st_ino),
+                          device, static_cast<jlong>(sb.st_ino),
                           static_cast<jint>(sb.st_mode), static_cast<jlong>(sb.st_nlink),
                           static_cast<jint>(sb.st_uid), static_cast<jint>(sb.st_gid),
                           static_cast<jlong>(sb.st_rdev), static_cast<jlong>(sb.st_size),
@@ -209,135 +412,484 @@ static jobject makeStructUtsname(JNIEnv* env, const struct utsname& buf) {
                           sysname, nodename, release, version, machine);
 };
 
-static jobject doStat(JNIEnv* env, jstring javaPath, bool isLstat) {
+static jobject doStat(JNIEnv* env, jobject javaPosix, jstring javaPath, bool isLstat) {
     ScopedUtfChars path(env, javaPath);
     if (path.c_str() == NULL) {
         return NULL;
     }
+    Container* container = Container::get(env->GetLongField(javaPosix, sContainerField));
+    StatCache* cache = isLstat ? NULL : container->usableStatCache();
     struct stat sb;
+    bool exists;
+    if (cache != NULL && cache->get(path.c_str(), &sb, &exists)) {
+        if (!exists) {
+            throwErrnoException(env, "stat", -ENOENT);
+            return NULL;
+        }
+        return makeStructStat(env, sb, container);
+    }
+    uint64_t generation = cache != NULL ? cache->generation() : 0;
+    ScopedSqlfs sqlfs(env, javaPosix, isLstat ? "lstat" : "stat");
+    if (sqlfs.get() == NULL) {
+        return NULL;
+    }
     // TODO implement lstat() once symlink support is added
     if (isLstat)
         jniThrowRuntimeException(env, "lstat() is not implemented");
-    int rc = TEMP_FAILURE_RETRY(sqlfs_proc_getattr(0, path.c_str(), &sb));
+    int rc = TEMP_FAILURE_RETRY(sqlfs_proc_getattr(sqlfs.get(), path.c_str(), &sb));
     if (rc < 0) {
+        if (rc == -ENOENT && cache != NULL) {
+            cache->putMissing(path.c_str(), generation);
+        }
         throwErrnoException(env, isLstat ? "lstat" : "stat", rc);
         return NULL;
     }
-    return makeStructStat(env, sb);
+    sqlfs.container()->applyBlockSize(&sb);
+    if (cache != NULL) {
+        cache->put(path.c_str(), sb, generation);
+    }
+    return makeStructStat(env, sb, container);
 }
 
-static jboolean Posix_access(JNIEnv* env, jobject, jstring javaPath, jint mode) {
+static jboolean Posix_access(JNIEnv* env, jobject javaPosix, jstring javaPath, jint mode) {
     ScopedUtfChars path(env, javaPath);
     if (path.c_str() == NULL) {
         return JNI_FALSE;
     }
-    int rc = TEMP_FAILURE_RETRY(sqlfs_proc_access(0, path.c_str(), mode));
+    // only whether it exists can be answered from the stat cache
+    Container* container = Container::get(env->GetLongField(javaPosix, sContainerField));
+    StatCache* cache = mode == F_OK ? container->usableStatCache() : NULL;
+    struct stat sb;
+    bool exists;
+    if (cache != NULL && cache->get(path.c_str(), &sb, &exists)) {
+        return exists;
+    }
+    uint64_t generation = cache != NULL ? cache->generation() : 0;
+    ScopedSqlfs sqlfs(env, javaPosix, "access");
+    if (sqlfs.get() == NULL) {
+        return JNI_FALSE;
+    }
+    int rc;
+    if (cache != NULL) {
+        // as cheap as sqlfs_proc_access(), and gives something to cache
+        rc = TEMP_FAILURE_RETRY(sqlfs_proc_getattr(sqlfs.get(), path.c_str(), &sb));
+        if (rc == 0) {
+            container->applyBlockSize(&sb);
+            cache->put(path.c_str(), sb, generation);
+        } else if (rc == -ENOENT) {
+            cache->putMissing(path.c_str(), generation);
+        }
+    } else {
+        rc = TEMP_FAILURE_RETRY(sqlfs_proc_access(sqlfs.get(), path.c_str(), mode));
+    }
     if (rc == -1) {
         throwErrnoException(env, "access", rc);
     }
     return (rc == 0);
 }
 
-static void Posix_chmod(JNIEnv* env, jobject, jstring javaPath, jint mode) {
+static void Posix_chmod(JNIEnv* env, jobject javaPosix, jstring javaPath, jint mode) {
     ScopedUtfChars path(env, javaPath);
     if (path.c_str() == NULL) {
         return;
     }
-    throwIfNegative(env, "chmod", TEMP_FAILURE_RETRY(sqlfs_proc_chmod(0, path.c_str(), mode)));
+    ScopedSqlfs sqlfs(env, javaPosix, "chmod", true);
+    if (sqlfs.get() == NULL) {
+        return;
+    }
+    if (throwIfNegative(env, "chmod", TEMP_FAILURE_RETRY(sqlfs_proc_chmod(sqlfs.get(), path.c_str(), mode))) == 0) {
+        OpenFileTable::chmod(sqlfs.container(), path.c_str(), mode);
+    }
+    sqlfs.container()->statCache().invalidate(path.c_str());
 }
 
 static void Posix_close(JNIEnv* env, jobject, jobject javaFd) {
-    // Get the FileDescriptor's 'fd' field and clear it.
+    // Get the FileDescriptor's handle and clear it.
     // sqlfs doesn't have a close() since files don't really need to be open()ed
-    jstring path = jniGetPathFromFileDescriptor(env, javaFd);
+    int handle = jniGetHandleFromFileDescriptor(env, javaFd);
     jniSetFileDescriptorInvalid(env, javaFd);
+    OpenFileTable::close(handle);
 }
 
+/* the attributes are cached in the OpenFileTable, with the size kept current
+ * by writes through IOCipher, so there is usually no need to ask sqlfs */
 static jobject Posix_fstat(JNIEnv* env, jobject, jobject javaFd) {
-    jstring javaPath = jniGetPathFromFileDescriptor(env, javaFd);
-    return doStat(env, javaPath, false);
+    ScopedFd fd(env, javaFd);
+    if (!fd.valid()) {
+        return NULL;
+    }
+    struct stat sb;
+    if (throwIfNegative(env, "fstat", currentStat(fd, &sb)) < 0) {
+        return NULL;
+    }
+    return makeStructStat(env, sb, fd.container());
 }
 
 // TODO if sqlfs_proc_fsync changes to need isfdatasync and *fi, then fix here
 static void Posix_fsync(JNIEnv* env, jobject, jobject javaFd) {
-    jstring javaPath = jniGetPathFromFileDescriptor(env, javaFd);
-    ScopedUtfChars path(env, javaPath);
-    throwIfNegative(env, "fsync", TEMP_FAILURE_RETRY(sqlfs_proc_fsync(0, path.c_str(), 0, NULL)));
+    ScopedFd fd(env, javaFd);
+    if (!fd.valid()) {
+        return;
+    }
+    throwIfNegative(env, "fsync", TEMP_FAILURE_RETRY(sqlfs_proc_fsync(fd.sqlfs(), fd.path(), 0, NULL)));
 }
 
 /* in sqlfs, truncate() and ftruncate() do the same thing since there
  * isn't a difference between and open and a closed file */
 static void Posix_ftruncate(JNIEnv* env, jobject, jobject javaFd, jlong length) {
-    jstring javaPath = jniGetPathFromFileDescriptor(env, javaFd);
-    ScopedUtfChars path(env, javaPath);
-    throwIfNegative(env, "ftruncate", TEMP_FAILURE_RETRY(sqlfs_proc_truncate(0, path.c_str(), length)));
+    ScopedFd fd(env, javaFd, true);
+    if (!fd.valid()) {
+        return;
+    }
+    if (throwIfNegative(env, "ftruncate", TEMP_FAILURE_RETRY(sqlfs_proc_truncate(fd.sqlfs(), fd.path(), length))) == 0) {
+        OpenFileTable::truncated(fd.handle(), length);
+    }
+}
+
+/* the sqlfs type of a directory in meta_data */
+#define SQLFS_TYPE_DIR "dir"
+
+static int copyStep(sqlite3* db, const char* sql, const char* from, const char* to, bool recursive) {
+    sqlite3_stmt* stmt = NULL;
+    int rc = sqlite3_prepare_v2(db, sql, -1, &stmt, NULL);
+    if (rc == SQLITE_OK) {
+        sqlite3_bind_text(stmt, 1, from, -1, SQLITE_STATIC);
+        sqlite3_bind_text(stmt, 2, to, -1, SQLITE_STATIC);
+        sqlite3_bind_int(stmt, 3, recursive);
+        sqlite3_bind_int64(stmt, 4, time(NULL));
+        rc = sqlite3_step(stmt);
+    }
+    sqlite3_finalize(stmt);
+    return rc == SQLITE_DONE ? 0 : ContainerDatabase::toErrno(rc);
+}
+
+/* looks up the type of a path, returns 0 if it exists, -ENOENT if it does not */
+static int copyLookup(sqlite3* db, const char* path, bool* isDir) {
+    sqlite3_stmt* stmt = NULL;
+    int rc = sqlite3_prepare_v2(db, "SELECT type FROM meta_data WHERE key = ?1;", -1, &stmt, NULL);
+    if (rc == SQLITE_OK) {
+        sqlite3_bind_text(stmt, 1, path, -1, SQLITE_STATIC);
+        rc = sqlite3_step(stmt);
+    }
+    int result;
+    if (rc == SQLITE_ROW) {
+        const char* type = reinterpret_cast<const char*>(sqlite3_column_text(stmt, 0));
+        *isDir = type != NULL && strcmp(type, SQLFS_TYPE_DIR) == 0;
+        result = 0;
+    } else if (rc == SQLITE_DONE) {
+        result = -ENOENT;
+    } else {
+        result = ContainerDatabase::toErrno(rc);
+    }
+    sqlite3_finalize(stmt);
+    return result;
+}
+
+/* Looks up the largest rowid and inode in meta_data, before copying into it. */
+static int copyLastIds(sqlite3* db, sqlite3_int64* lastRowid, sqlite3_int64* lastInode) {
+    sqlite3_stmt* stmt = NULL;
+    int rc = sqlite3_prepare_v2(db, "SELECT ifnull(max(rowid), 0), ifnull(max(inode), 0) FROM meta_data;",
+                                -1, &stmt, NULL);
+    if (rc == SQLITE_OK) {
+        rc = sqlite3_step(stmt);
+    }
+    if (rc == SQLITE_ROW) {
+        *lastRowid = sqlite3_column_int64(stmt, 0);
+        *lastInode = sqlite3_column_int64(stmt, 1);
+        rc = SQLITE_DONE;
+    }
+    sqlite3_finalize(stmt);
+    return rc == SQLITE_DONE ? 0 : ContainerDatabase::toErrno(rc);
+}
+
+/* Gives the rows that were copied into meta_data after lastRowid inodes of
+ * their own, counting up from the largest one in use like sqlfs does for a
+ * new file, so a copy is never the same st_ino as what it was copied from. */
+static int copyInodes(sqlite3* db, sqlite3_int64 lastRowid, sqlite3_int64 lastInode) {
+    sqlite3_stmt* stmt = NULL;
+    int rc = sqlite3_prepare_v2(db, "UPDATE meta_data SET inode = ?2 + rowid - ?1 WHERE rowid > ?1;",
+                                -1, &stmt, NULL);
+    if (rc == SQLITE_OK) {
+        sqlite3_bind_int64(stmt, 1, lastRowid);
+        sqlite3_bind_int64(stmt, 2, lastInode);
+        rc = sqlite3_step(stmt);
+    }
+    sqlite3_finalize(stmt);
+    return rc == SQLITE_DONE ? 0 : ContainerDatabase::toErrno(rc);
 }
 
-static void Posix_link(JNIEnv* env, jobject, jstring javaFrom, jstring javaTo) {
+/* Copies the meta_data and value_data rows of a file, or with recursive of a
+ * whole tree, to a new path entirely in SQL, all in one transaction. The data
+ * never leaves SQLite, so it is never decrypted into sqlfs or Java. With
+ * nested, db is already in a transaction, of which the copy is a savepoint. */
+static int doCopy(sqlite3* db, const char* from, const char* to, bool recursive, bool nested) {
+    size_t fromLen = strlen(from);
+    if (strcmp(from, "/") == 0
+            || (strncmp(from, to, fromLen) == 0 && (to[fromLen] == '\0' || to[fromLen] == '/'))) {
+        return -EINVAL; // cannot copy something into itself
+    }
+    char parent[PATH_MAX];
+    strncpy(parent, to, PATH_MAX - 1);
+    parent[PATH_MAX - 1] = '\0';
+    char* lastSlash = strrchr(parent, '/');
+    if (lastSlash == NULL || lastSlash[1] == '\0') {
+        return -EINVAL;
+    }
+    lastSlash[lastSlash == parent ? 1 : 0] = '\0';
+
+    int rc = sqlite3_exec(db, nested ? "SAVEPOINT iocipher_copy;" : "BEGIN IMMEDIATE;",
+                          NULL, NULL, NULL);
+    if (rc != SQLITE_OK) {
+        return ContainerDatabase::toErrno(rc);
+    }
+    bool isDir = false;
+    int result = copyLookup(db, from, &isDir);
+    if (result == 0 && isDir && !recursive) {
+        result = -EISDIR;
+    }
+    if (result == 0) {
+        bool toIsDir;
+        int exists = copyLookup(db, to, &toIsDir);
+        if (exists == 0) {
+            result = -EEXIST;
+        } else if (exists != -ENOENT) {
+            result = exists;
+        }
+    }
+    if (result == 0) {
+        bool parentIsDir = false;
+        result = copyLookup(db, parent, &parentIsDir);
+        if (result == 0 && !parentIsDir) {
+            result = -ENOTDIR;
+        }
+    }
+    sqlite3_int64 lastRowid = 0;
+    sqlite3_int64 lastInode = 0;
+    if (result == 0) {
+        result = copyLastIds(db, &lastRowid, &lastInode);
+    }
+    // ?1 from, ?2 to, ?3 recursive, ?4 now; with recursive, the range on key
+    // picks out everything below from, '0' being the character after '/'
+    if (result == 0) {
+        result = copyStep(db,
+                "INSERT INTO meta_data (key, type, inode, uid, gid, mode, acl, attribute, atime, mtime, ctime, size, block_size) "
+                "SELECT ?2 || substr(key, length(?1) + 1), type, inode, uid, gid, mode, acl, attribute, ?4, mtime, ?4, size, block_size "
+                "FROM meta_data WHERE key = ?1 OR (?3 AND key > ?1 || '/' AND key < ?1 || '0');",
+                from, to, recursive);
+    }
+    if (result == 0) {
+        result = copyInodes(db, lastRowid, lastInode);
+    }
+    if (result == 0) {
+        result = copyStep(db,
+                "INSERT INTO value_data (key, block_no, data_block) "
+                "SELECT ?2 || substr(key, length(?1) + 1), block_no, data_block "
+                "FROM value_data WHERE key = ?1 OR (?3 AND key > ?1 || '/' AND key < ?1 || '0');",
+                from, to, recursive);
+    }
+    if (result == 0) {
+        rc = sqlite3_exec(db, nested ? "RELEASE iocipher_copy;" : "COMMIT;", NULL, NULL, NULL);
+        result = ContainerDatabase::toErrno(rc);
+    }
+    if (result != 0) {
+        // undoes only the copy, the transaction it is nested in goes on
+        sqlite3_exec(db, nested ? "ROLLBACK TO iocipher_copy; RELEASE iocipher_copy;" : "ROLLBACK;",
+                     NULL, NULL, NULL);
+    }
+    return result;
+}
+
+static void Posix_copy(JNIEnv* env, jobject javaPosix, jstring javaFrom, jstring javaTo, jboolean recursive) {
     ScopedUtfChars from(env, javaFrom);
+    if (from.c_str() == NULL) {
+        return;
+    }
     ScopedUtfChars to(env, javaTo);
-    if (from.c_str() == NULL || from.c_str() == NULL) {
+    if (to.c_str() == NULL) {
+        return;
+    }
+    Container* container = Container::get(env->GetLongField(javaPosix, sContainerField));
+    if (!container->isMounted()) {
+        throwErrnoException(env, "copy", -ENODEV);
         return;
     }
-    throwIfNegative(env, "link", TEMP_FAILURE_RETRY(sqlfs_proc_link(0, from.c_str(), from.c_str())));
+    int rc;
+    if (container->leasedConnection() != NULL) {
+        // e.g. in a transaction, which the container's database connection
+        // would wait for and could not see the changes of, so the copy goes into it
+        sqlite3* db = container->leasedDatabase();
+        rc = db != NULL ? doCopy(db, from.c_str(), to.c_str(), recursive, true) : -EIO;
+    } else {
+        // the copy has to see the changes still in the group commit writer
+        rc = container->groupCommit().flush();
+        if (rc == 0) {
+            ScopedContainerDatabase db(container->database());
+            rc = -EIO;
+            if (db.get() != NULL)
+                rc = doCopy(db.get(), from.c_str(), to.c_str(), recursive, false);
+        }
+    }
+    if (throwIfNegative(env, "copy", rc) < 0) {
+        return;
+    }
+    // files still open on a removed path now read the copy
+    OpenFileTable::invalidate(container, to.c_str());
+    container->statCache().invalidateTree(to.c_str());
 }
 
-static void Posix_mkdir(JNIEnv* env, jobject, jstring javaPath, jint mode) {
-    ScopedUtfChars path(env, javaPath);
-    if (path.c_str() == NULL) {
+static void Posix_link(JNIEnv* env, jobject javaPosix, jstring javaFrom, jstring javaTo) {
+    ScopedUtfChars from(env, javaFrom);
+    ScopedUtfChars to(env, javaTo);
+    if (from.c_str() == NULL || from.c_str() == NULL) {
+        return;
+    }
+    ScopedSqlfs sqlfs(env, javaPosix, "link", true);
+    if (sqlfs.get() == NULL) {
         return;
     }
-    // TODO throw exception warning that VirtualFileSystem is not open
-    throwIfNegative(env, "mkdir", TEMP_FAILURE_RETRY(sqlfs_proc_mkdir(0, path.c_str(), mode)));
+    throwIfNegative(env, "link", TEMP_FAILURE_RETRY(sqlfs_proc_link(sqlfs.get(), from.c_str(), from.c_str())));
+    sqlfs.container()->statCache().invalidateTree(to.c_str());
 }
 
-static jobject Posix_open(JNIEnv* env, jobject, jstring javaPath, jint flags, jint mode) {
+static void Posix_mkdir(JNIEnv* env, jobject javaPosix, jstring javaPath, jint mode) {
     ScopedUtfChars path(env, javaPath);
     if (path.c_str() == NULL) {
-        return NULL;
+        return;
+    }
+    ScopedSqlfs sqlfs(env, javaPosix, "mkdir", true);
+    if (sqlfs.get() == NULL) {
+        return;
     }
+    throwIfNegative(env, "mkdir", TEMP_FAILURE_RETRY(sqlfs_proc_mkdir(sqlfs.get(), path.c_str(), mode)));
+    sqlfs.container()->statCache().invalidateTree(path.c_str());
+}
+
+/* Opens or creates path in one transaction, leaving its attributes in sb.
+ * A single lookup tells whether it has to be created and whether it is a
+ * directory, and the mode is only set on files that were just created, as
+ * open(2) does. The caller's stat cache, if any, can answer that lookup. */
+static int doOpen(sqlfs_t* sqlfs, Container* container, StatCache* cache, const char* path,
+                  int flags, int mode, struct stat* sb) {
     struct fuse_file_info ffi;
     ffi.flags = flags;
     ffi.direct_io = 0; // don't use direct_io so this open() call will create a file
 
+    bool exists;
+    int result = 0;
+    if (cache == NULL || !cache->get(path, sb, &exists)) {
+        uint64_t generation = cache != NULL ? cache->generation() : 0;
+        result = TEMP_FAILURE_RETRY(sqlfs_proc_getattr(sqlfs, path, sb));
+        if (result < 0 && result != -ENOENT) {
+            return result;
+        }
+        exists = result == 0;
+        container->applyBlockSize(sb);
+        if (cache != NULL && exists) {
+            cache->put(path, *sb, generation);
+        } else if (cache != NULL) {
+            cache->putMissing(path, generation);
+        }
+    }
 
-    int do_create = 0;
-    // libsqfs' open() doesn't create.
-    if( (flags & O_CREAT) && (flags & O_EXCL) ) {
-        // we must attempt a create
-        do_create = 1;
-    } else if ( (flags & O_CREAT) ) {
-        int rc = TEMP_FAILURE_RETRY(sqlfs_proc_access(0, path.c_str(), F_OK));
-        if (rc != 0) {
-            // file does not exist
-            do_create = 1;
+    if (!exists) {
+        // libsqfs' open() doesn't create.
+        if (!(flags & O_CREAT)) {
+            return -ENOENT;
+        }
+        result = sqlfs_proc_create(sqlfs, path, mode, &ffi);
+        if (result < 0) {
+            return result;
+        }
+        result = TEMP_FAILURE_RETRY(sqlfs_proc_getattr(sqlfs, path, sb));
+        if (result < 0) {
+            return result;
+        }
+        if ((sb->st_mode & 07777) != (mode & 07777)) {
+            result = sqlfs_proc_chmod(sqlfs, path, mode);
+            if (result < 0) {
+                return result;
+            }
+            sb->st_mode = (sb->st_mode & ~07777) | (mode & 07777);
         }
+        return 0;
     }
 
-    int result = 0;
-    if( do_create ) {
-        char buf = 0;
-        result = sqlfs_proc_create(0, path.c_str(), mode, &ffi);
-    } else {
-        result = sqlfs_proc_open(0, path.c_str(), &ffi);
+    if ((flags & O_CREAT) && (flags & O_EXCL)) {
+        return -EEXIST;
+    }
+    // like open(2), directories can not be opened for writing
+    if (S_ISDIR(sb->st_mode) && (flags & O_ACCMODE) != O_RDONLY) {
+        return -EISDIR;
+    }
+    result = sqlfs_proc_open(sqlfs, path, &ffi);
+    if (result < 0) {
+        return result;
+    }
+    if ((flags & O_TRUNC) && sb->st_size > 0) {
+        result = TEMP_FAILURE_RETRY(sqlfs_proc_getattr(sqlfs, path, sb));
+    }
+    return result;
+}
+
+static jobject Posix_open(JNIEnv* env, jobject javaPosix, jstring javaPath, jint flags, jint mode) {
+    ScopedUtfChars path(env, javaPath);
+    if (path.c_str() == NULL) {
+        return NULL;
+    }
+    // opening a file for writing can create or truncate it
+    bool change = (flags & (O_CREAT | O_TRUNC | O_WRONLY | O_RDWR)) != 0;
+    Container* container = Container::get(env->GetLongField(javaPosix, sContainerField));
+    StatCache* cache = container->usableStatCache();
+    ScopedSqlfs sqlfs(env, javaPosix, "open", change);
+    if (sqlfs.get() == NULL) {
+        return NULL;
+    }
+
+    // from now on the OpenFileTable keeps the attributes, so fstat() right
+    // after open() does not go to sqlfs again
+    struct stat sb;
+    sqlfs_begin_transaction(sqlfs.get());
+    int result = doOpen(sqlfs.get(), container, cache, path.c_str(), flags, mode, &sb);
+    if (!sqlfs_complete_transaction(sqlfs.get(), result >= 0) && result >= 0) {
+        result = -EIO; // creating or truncating it was not committed
+    }
+    if (change) {
+        sqlfs.container()->statCache().invalidateTree(path.c_str());
     }
     if (result < 0) {
         throwErrnoException(env, "open", result);
         return NULL;
-    } else {
-        sqlfs_proc_chmod(0, path.c_str(), mode);
-        return jniCreateFileDescriptor(env, javaPath);
     }
+    if (!sqlfs.finish()) {
+        return NULL;
+    }
+    sqlfs.container()->applyBlockSize(&sb);
+    int handle = OpenFileTable::open(sqlfs.container(), path.c_str(), sb);
+    if (handle < 0) {
+        throwErrnoException(env, "open", -EMFILE);
+        return NULL;
+    }
+    if (sqlfs.batch() >= 0) {
+        // creating or truncating it is still in the batch
+        OpenFileTable::changedInBatch(handle, sqlfs.batch());
+    }
+    jobject fileDescriptor = jniCreateFileDescriptor(env, javaPath, handle);
+    if (fileDescriptor == NULL) {
+        OpenFileTable::close(handle);
+    }
+    return fileDescriptor;
 }
 
-static jint Posix_preadBytes(JNIEnv* env, jobject, jobject javaFd, jobject javaBytes, jint byteOffset, jint byteCount, jlong offset) {
-    ScopedBytesRW bytes(env, javaBytes);
-    if (bytes.get() == NULL) {
-        return -1;
+static jlong Posix_openFileId(JNIEnv* env, jobject, jobject javaFd) {
+    int64_t id = OpenFileTable::id(jniGetHandleFromFileDescriptor(env, javaFd));
+    if (id < 0) {
+        throwErrnoException(env, "openFileId", -EBADF);
     }
-    jstring javaPath = jniGetPathFromFileDescriptor(env, javaFd);
-    ScopedUtfChars path(env, javaPath);
-    int result = sqlfs_proc_read(0, path.c_str(), reinterpret_cast<char*>(bytes.get() + byteOffset), byteCount, (off_t)offset, NULL);
+    return id;
+}
+
+static jint doPread(JNIEnv* env, const ScopedFd& fd, char* bytes, jint byteCount, jlong offset) {
+    int result = sqlfs_proc_read(fd.sqlfs(), fd.path(), bytes, byteCount, (off_t)offset, NULL);
     if (result < 0) {
         if (result != -EIO) { // sqlfs_proc_open returns EIO on end-of-file
             throwErrnoException(env, "pread", result);
@@ -348,18 +900,57 @@ static jint Posix_preadBytes(JNIEnv* env, jobject, jobject javaFd, jobject javaB
     }
 }
 
-static jint Posix_pwriteBytes(JNIEnv* env, jobject, jobject javaFd, jbyteArray javaBytes, jint byteOffset, jint byteCount, jlong offset, jint flags) {
-    ScopedBytesRO bytes(env, javaBytes);
-    if (bytes.get() == NULL) {
+/* byte[]s are copied with Get/SetByteArrayRegion rather than pinned with
+ * Get/ReleaseByteArrayElements, which can copy the array both ways.  The
+ * critical variants are no good here since a sqlfs call can block on the
+ * database lock for a long time, stalling the garbage collector. */
+static jint Posix_preadBytes(JNIEnv* env, jobject, jobject javaFd, jbyteArray javaBytes, jint byteOffset, jint byteCount, jlong offset) {
+    ScopedFd fd(env, javaFd);
+    if (!fd.valid()) {
         return -1;
     }
-    jstring javaPath = jniGetPathFromFileDescriptor(env, javaFd);
-    ScopedUtfChars path(env, javaPath);
+    struct stat sb;
+    if (throwIfNegative(env, "pread", currentStat(fd, &sb)) < 0) {
+        return -1;
+    }
+    if (offset >= sb.st_size) {
+        return 0; // end-of-file, no need to query sqlfs
+    }
+    LocalArray<8192> bytes(byteCount);
+    int result = doPread(env, fd, &bytes[0], byteCount, offset);
+    if (result > 0) {
+        env->SetByteArrayRegion(javaBytes, byteOffset, result, reinterpret_cast<jbyte*>(&bytes[0]));
+    }
+    return result;
+}
+
+/* sqlfs decrypts straight into the memory of a direct ByteBuffer */
+static jint Posix_preadDirect(JNIEnv* env, jobject, jobject javaFd, jobject javaBuffer, jint bufferOffset, jint byteCount, jlong offset) {
+    ScopedFd fd(env, javaFd);
+    if (!fd.valid()) {
+        return -1;
+    }
+    struct stat sb;
+    if (throwIfNegative(env, "pread", currentStat(fd, &sb)) < 0) {
+        return -1;
+    }
+    if (offset >= sb.st_size) {
+        return 0; // end-of-file, no need to query sqlfs
+    }
+    char* address = reinterpret_cast<char*>(env->GetDirectBufferAddress(javaBuffer));
+    if (address == NULL) {
+        jniThrowException(env, "java/lang/IllegalArgumentException", "not a direct buffer");
+        return -1;
+    }
+    return doPread(env, fd, address + bufferOffset, byteCount, offset);
+}
+
+static jint doPwrite(JNIEnv* env, ScopedFd& fd, const char* bytes, jint byteCount, jlong offset, jint flags) {
     struct fuse_file_info ffi;
     ffi.flags = flags;
-    int result = sqlfs_proc_write(0,
-                                  path.c_str(),
-                                  reinterpret_cast<const char*>(bytes.get() + byteOffset),
+    int result = sqlfs_proc_write(fd.sqlfs(),
+                                  fd.path(),
+                                  bytes,
                                   byteCount,
                                   offset,
                                   &ffi);
@@ -367,23 +958,224 @@ static jint Posix_pwriteBytes(JNIEnv* env, jobject, jobject javaFd, jbyteArray j
         throwErrnoException(env, "pwrite", result);
         return -1;
     } else {
-        // TODO make this stick the values into javaBytes
+        OpenFileTable::wrote(fd.handle(), offset, result, (flags & O_APPEND) != 0);
+        fd.wrote(result);
         return result;
     }
 }
 
-static void Posix_remove(JNIEnv* env, jobject, jstring javaPath) {
+static jint Posix_pwriteBytes(JNIEnv* env, jobject, jobject javaFd, jbyteArray javaBytes, jint byteOffset, jint byteCount, jlong offset, jint flags) {
+    ScopedFd fd(env, javaFd, true);
+    if (!fd.valid()) {
+        return -1;
+    }
+    LocalArray<8192> bytes(byteCount);
+    env->GetByteArrayRegion(javaBytes, byteOffset, byteCount, reinterpret_cast<jbyte*>(&bytes[0]));
+    if (env->ExceptionCheck()) {
+        return -1;
+    }
+    return doPwrite(env, fd, &bytes[0], byteCount, offset, flags);
+}
+
+/* sqlfs encrypts straight from the memory of a direct ByteBuffer */
+static jint Posix_pwriteDirect(JNIEnv* env, jobject, jobject javaFd, jobject javaBuffer, jint bufferOffset, jint byteCount, jlong offset, jint flags) {
+    ScopedFd fd(env, javaFd, true);
+    if (!fd.valid()) {
+        return -1;
+    }
+    const char* address = reinterpret_cast<const char*>(env->GetDirectBufferAddress(javaBuffer));
+    if (address == NULL) {
+        jniThrowException(env, "java/lang/IllegalArgumentException", "not a direct buffer");
+        return -1;
+    }
+    return doPwrite(env, fd, address + bufferOffset, byteCount, offset, flags);
+}
+
+/* sqlfs has no readv(), so each buffer is read in turn, all in one
+ * transaction so that they see the same version of the file */
+static jint Posix_preadv(JNIEnv* env, jobject, jobject javaFd, jobjectArray buffers, jintArray offsets, jintArray byteCounts, jlong offset) {
+    ScopedFd fd(env, javaFd);
+    if (!fd.valid()) {
+        return -1;
+    }
+    struct stat sb;
+    if (throwIfNegative(env, "preadv", currentStat(fd, &sb)) < 0) {
+        return -1;
+    }
+    if (offset >= sb.st_size) {
+        return 0; // end-of-file, no need to query sqlfs
+    }
+    IoVec ioVec(env, env->GetArrayLength(buffers));
+    if (!ioVec.init(buffers, offsets, byteCounts, false)) {
+        return -1;
+    }
+    jint total = 0;
+    int result = 0;
+    sqlfs_begin_transaction(fd.sqlfs());
+    for (size_t i = 0; i < ioVec.size(); ++i) {
+        iovec* iov = ioVec.get() + i;
+        result = sqlfs_proc_read(fd.sqlfs(), fd.path(), reinterpret_cast<char*>(iov->iov_base),
+                                 iov->iov_len, (off_t)(offset + total), NULL);
+        if (result < 0) {
+            break;
+        }
+        total += result;
+        if ((size_t) result < iov->iov_len) {
+            break; // end-of-file
+        }
+    }
+    sqlfs_complete_transaction(fd.sqlfs(), 1);
+    if (result < 0 && result != -EIO) { // sqlfs_proc_read returns EIO on end-of-file
+        throwErrnoException(env, "preadv", result);
+        return -1;
+    }
+    if (!ioVec.copyBack(total)) {
+        return -1;
+    }
+    return total;
+}
+
+/* sqlfs has no writev(), so each buffer is written in turn, all in one
+ * transaction so that the whole write is committed or none of it. In group
+ * commit mode or in a transaction of the caller's, sqlfs' transaction is only
+ * nested in one that other changes are part of too, so the buffers are also
+ * written in a savepoint, which undoes a write that failed halfway. */
+static jint Posix_pwritev(JNIEnv* env, jobject, jobject javaFd, jobjectArray buffers, jintArray offsets, jintArray byteCounts, jlong offset, jint flags) {
+    ScopedFd fd(env, javaFd, true);
+    if (!fd.valid()) {
+        return -1;
+    }
+    IoVec ioVec(env, env->GetArrayLength(buffers));
+    if (!ioVec.init(buffers, offsets, byteCounts, true)) {
+        return -1;
+    }
+    struct fuse_file_info ffi;
+    ffi.flags = flags;
+    jint total = 0;
+    int result = 0;
+    sqlfs_begin_transaction(fd.sqlfs());
+    sqlite3* db = fd.database();
+    bool savepoint = db != NULL
+            && sqlite3_exec(db, "SAVEPOINT iocipher_writev;", NULL, NULL, NULL) == SQLITE_OK;
+    if (!savepoint) {
+        result = -EIO; // nothing was written
+    }
+    for (size_t i = 0; result >= 0 && i < ioVec.size(); ++i) {
+        iovec* iov = ioVec.get() + i;
+        result = sqlfs_proc_write(fd.sqlfs(), fd.path(), reinterpret_cast<const char*>(iov->iov_base),
+                                  iov->iov_len, (off_t)(offset + total), &ffi);
+        if (result < 0) {
+            break;
+        }
+        total += result;
+    }
+    if (savepoint) {
+        if (result < 0) {
+            // the buffers that were written go too, the rest of the batch stays
+            sqlite3_exec(db, "ROLLBACK TO iocipher_writev;", NULL, NULL, NULL);
+        }
+        sqlite3_exec(db, "RELEASE iocipher_writev;", NULL, NULL, NULL);
+    }
+    if (!sqlfs_complete_transaction(fd.sqlfs(), result >= 0) && result >= 0) {
+        // only for a transaction of its own, a grouped write fails in endChange()
+        result = -EIO;
+    }
+    if (result < 0) {
+        throwErrnoException(env, "pwritev", result);
+        return -1;
+    }
+    OpenFileTable::wrote(fd.handle(), offset, total, (flags & O_APPEND) != 0);
+    fd.wrote(total);
+    return total;
+}
+
+/* Copies between two open files in chunks of chunkSize bytes without ever
+ * coming back up to Java. If both are in the same container, each chunk is
+ * read and written on outFd's connection, in one transaction, which in group
+ * commit mode is the writer, so it also sees the writes still in the batch.
+ * Between two containers, only the write of each chunk is a transaction. */
+static jlong Posix_sendfile(JNIEnv* env, jobject, jobject javaOutFd, jlong outOffset, jobject javaInFd, jlong inOffset, jlong byteCount, jint chunkSize, jint flags) {
+    ScopedFd inFd(env, javaInFd);
+    if (!inFd.valid()) {
+        return -1;
+    }
+    ScopedFd outFd(env, javaOutFd, true);
+    if (!outFd.valid()) {
+        return -1;
+    }
+    struct stat inSb;
+    if (throwIfNegative(env, "sendfile", currentStat(inFd, &inSb)) < 0) {
+        return -1;
+    }
+    if (inOffset >= inSb.st_size) {
+        return 0;
+    }
+    if (byteCount > inSb.st_size - inOffset) {
+        byteCount = inSb.st_size - inOffset;
+    }
+    if (chunkSize <= 0) {
+        jniThrowException(env, "java/lang/IllegalArgumentException", "chunkSize <= 0");
+        return -1;
+    }
+    sqlfs_t* reader = inFd.container() == outFd.container() ? outFd.sqlfs() : inFd.sqlfs();
+    LocalArray<8192> chunk(chunkSize);
+    struct fuse_file_info ffi;
+    ffi.flags = flags;
+    jlong total = 0;
+    while (total < byteCount) {
+        size_t count = chunkSize;
+        if (byteCount - total < chunkSize) {
+            count = byteCount - total;
+        }
+        sqlfs_begin_transaction(outFd.sqlfs());
+        int readResult = sqlfs_proc_read(reader, inFd.path(), &chunk[0], count, (off_t)(inOffset + total), NULL);
+        int writeResult = 0;
+        if (readResult > 0) {
+            writeResult = sqlfs_proc_write(outFd.sqlfs(), outFd.path(), &chunk[0], readResult,
+                                           (off_t)(outOffset + total), &ffi);
+        }
+        if (!sqlfs_complete_transaction(outFd.sqlfs(), writeResult >= 0) && writeResult >= 0) {
+            writeResult = -EIO; // the chunk was not committed
+        }
+        if (writeResult < 0) {
+            throwErrnoException(env, "sendfile", writeResult);
+            return -1;
+        }
+        if (readResult < 0 && readResult != -EIO) { // sqlfs_proc_read returns EIO on end-of-file
+            throwErrnoException(env, "sendfile", readResult);
+            return -1;
+        }
+        if (readResult <= 0) {
+            break;
+        }
+        OpenFileTable::wrote(outFd.handle(), outOffset + total, readResult, (flags & O_APPEND) != 0);
+        outFd.wrote(readResult);
+        total += readResult;
+        if ((size_t) readResult < count) {
+            break;
+        }
+    }
+    return total;
+}
+
+static void Posix_remove(JNIEnv* env, jobject javaPosix, jstring javaPath) {
     ScopedUtfChars path(env, javaPath);
     if (path.c_str() == NULL) {
         return;
     }
-    if(sqlfs_is_dir(0, path.c_str()))
-        throwIfNegative(env, "remove", TEMP_FAILURE_RETRY(sqlfs_proc_rmdir(0, path.c_str())));
+    ScopedSqlfs sqlfs(env, javaPosix, "remove", true);
+    if (sqlfs.get() == NULL) {
+        return;
+    }
+    if(sqlfs_is_dir(sqlfs.get(), path.c_str()))
+        throwIfNegative(env, "remove", TEMP_FAILURE_RETRY(sqlfs_proc_rmdir(sqlfs.get(), path.c_str())));
     else
-        throwIfNegative(env, "remove", TEMP_FAILURE_RETRY(sqlfs_proc_unlink(0, path.c_str())));
+        throwIfNegative(env, "remove", TEMP_FAILURE_RETRY(sqlfs_proc_unlink(sqlfs.get(), path.c_str())));
+    OpenFileTable::invalidate(sqlfs.container(), path.c_str());
+    sqlfs.container()->statCache().invalidateTree(path.c_str());
 }
 
-static void Posix_rename(JNIEnv* env, jobject, jstring javaOldPath, jstring javaNewPath) {
+static void Posix_rename(JNIEnv* env, jobject javaPosix, jstring javaOldPath, jstring javaNewPath) {
     ScopedUtfChars oldPath(env, javaOldPath);
     if (oldPath.c_str() == NULL) {
         return;
@@ -392,27 +1184,42 @@ static void Posix_rename(JNIEnv* env, jobject, jstring javaOldPath, jstring java
     if (newPath.c_str() == NULL) {
         return;
     }
-    throwIfNegative(env, "rename", TEMP_FAILURE_RETRY(sqlfs_proc_rename(0, oldPath.c_str(), newPath.c_str())));
+    ScopedSqlfs sqlfs(env, javaPosix, "rename", true);
+    if (sqlfs.get() == NULL) {
+        return;
+    }
+    if (throwIfNegative(env, "rename", TEMP_FAILURE_RETRY(sqlfs_proc_rename(sqlfs.get(), oldPath.c_str(), newPath.c_str()))) == 0) {
+        OpenFileTable::rename(sqlfs.container(), oldPath.c_str(), newPath.c_str());
+    }
+    sqlfs.container()->statCache().invalidateTree(oldPath.c_str());
+    sqlfs.container()->statCache().invalidateTree(newPath.c_str());
 }
 
-static void Posix_rmdir(JNIEnv* env, jobject, jstring javaPath) {
+static void Posix_rmdir(JNIEnv* env, jobject javaPosix, jstring javaPath) {
     ScopedUtfChars path(env, javaPath);
     if (path.c_str() == NULL) {
         return;
     }
-    throwIfNegative(env, "rmdir", TEMP_FAILURE_RETRY(sqlfs_proc_rmdir(0, path.c_str())));
+    ScopedSqlfs sqlfs(env, javaPosix, "rmdir", true);
+    if (sqlfs.get() == NULL) {
+        return;
+    }
+    throwIfNegative(env, "rmdir", TEMP_FAILURE_RETRY(sqlfs_proc_rmdir(sqlfs.get(), path.c_str())));
+    OpenFileTable::invalidate(sqlfs.container(), path.c_str());
+    sqlfs.container()->statCache().invalidateTree(path.c_str());
 }
 
-static jobject Posix_stat(JNIEnv* env, jobject, jstring javaPath) {
-    return doStat(env, javaPath, false);
+static jobject Posix_stat(JNIEnv* env, jobject javaPosix, jstring javaPath) {
+    return doStat(env, javaPosix, javaPath, false);
 }
 
 /* we are faking this somewhat by using the data from the underlying
  partition that the database file is stored on.  That means we ignore
- the javaPath passed in and just use the dbFilename. */
-static jobject Posix_statfs(JNIEnv* env, jobject, jstring javaPath) {
+ the javaPath passed in and just use the container's dbFileName. */
+static jobject Posix_statfs(JNIEnv* env, jobject javaPosix, jstring javaPath) {
+    Container* container = Container::get(env->GetLongField(javaPosix, sContainerField));
     struct statfs sb;
-    int rc = TEMP_FAILURE_RETRY(statfs(dbFileName, &sb));
+    int rc = TEMP_FAILURE_RETRY(statfs(container->dbFileName, &sb));
     if (rc == -1) {
         throwErrnoException(env, "statfs", rc);
         return NULL;
@@ -421,7 +1228,7 @@ static jobject Posix_statfs(JNIEnv* env, jobject, jstring javaPath) {
     sb.f_bsize = 4096; // libsqlfs uses 4k page sizes in sqlite (I think)
 
     struct stat st;
-    stat(dbFileName, &st);
+    stat(container->dbFileName, &st);
     sb.f_blocks = st.st_blocks;
     return makeStructStatFs(env, sb);
 }
@@ -432,7 +1239,7 @@ static jstring Posix_strerror(JNIEnv* env, jobject, jint errnum) {
     return env->NewStringUTF(message);
 }
 
-static void Posix_symlink(JNIEnv* env, jobject, jstring javaOldPath, jstring javaNewPath) {
+static void Posix_symlink(JNIEnv* env, jobject javaPosix, jstring javaOldPath, jstring javaNewPath) {
     ScopedUtfChars oldPath(env, javaOldPath);
     if (oldPath.c_str() == NULL) {
         return;
@@ -441,32 +1248,58 @@ static void Posix_symlink(JNIEnv* env, jobject, jstring javaOldPath, jstring jav
     if (newPath.c_str() == NULL) {
         return;
     }
-    throwIfNegative(env, "symlink", TEMP_FAILURE_RETRY(sqlfs_proc_symlink(0, oldPath.c_str(), newPath.c_str())));
+    ScopedSqlfs sqlfs(env, javaPosix, "symlink", true);
+    if (sqlfs.get() == NULL) {
+        return;
+    }
+    throwIfNegative(env, "symlink", TEMP_FAILURE_RETRY(sqlfs_proc_symlink(sqlfs.get(), oldPath.c_str(), newPath.c_str())));
+    sqlfs.container()->statCache().invalidateTree(newPath.c_str());
 }
 
-static void Posix_unlink(JNIEnv* env, jobject, jstring javaPath) {
+static void Posix_unlink(JNIEnv* env, jobject javaPosix, jstring javaPath) {
     ScopedUtfChars path(env, javaPath);
     if (path.c_str() == NULL) {
         return;
     }
-    throwIfNegative(env, "unlink", TEMP_FAILURE_RETRY(sqlfs_proc_unlink(0, path.c_str())));
+    ScopedSqlfs sqlfs(env, javaPosix, "unlink", true);
+    if (sqlfs.get() == NULL) {
+        return;
+    }
+    throwIfNegative(env, "unlink", TEMP_FAILURE_RETRY(sqlfs_proc_unlink(sqlfs.get(), path.c_str())));
+    OpenFileTable::invalidate(sqlfs.container(), path.c_str());
+    sqlfs.container()->statCache().invalidateTree(path.c_str());
+}
+
+/* a Posix owns the Container it was created with, see its finalize() */
+static void Posix_releaseContainer(JNIEnv*, jclass, jlong container) {
+    if (container != 0) {
+        Container::get(container)->release();
+    }
 }
 
 static JNINativeMethod sMethods[] = {
     {"access", "(Ljava/lang/String;I)Z", (void *)Posix_access},
     {"chmod", "(Ljava/lang/String;I)V", (void *)Posix_chmod},
     {"close", "(Linfo/guardianproject/iocipher/FileDescriptor;)V", (void *)Posix_close},
+    {"copy", "(Ljava/lang/String;Ljava/lang/String;Z)V", (void *)Posix_copy},
     {"fstat", "(Linfo/guardianproject/iocipher/FileDescriptor;)Linfo/guardianproject/libcore/io/StructStat;", (void *)Posix_fstat},
     {"fsync", "(Linfo/guardianproject/iocipher/FileDescriptor;)V", (void *)Posix_fsync},
     {"ftruncate", "(Linfo/guardianproject/iocipher/FileDescriptor;J)V", (void *)Posix_ftruncate},
     {"link", "(Ljava/lang/String;Ljava/lang/String;)V", (void *)Posix_link},
     {"mkdir", "(Ljava/lang/String;I)V", (void *)Posix_mkdir},
     {"open", "(Ljava/lang/String;II)Linfo/guardianproject/iocipher/FileDescriptor;", (void *)Posix_open},
-    {"preadBytes", "(Linfo/guardianproject/iocipher/FileDescriptor;Ljava/lang/Object;IIJ)I", (void *)Posix_preadBytes},
-    {"pwriteBytes", "(Linfo/guardianproject/iocipher/FileDescriptor;Ljava/lang/Object;IIJI)I", (void *)Posix_pwriteBytes},
+    {"openFileId", "(Linfo/guardianproject/iocipher/FileDescriptor;)J", (void *)Posix_openFileId},
+    {"preadBytes", "(Linfo/guardianproject/iocipher/FileDescriptor;[BIIJ)I", (void *)Posix_preadBytes},
+    {"preadDirect", "(Linfo/guardianproject/iocipher/FileDescriptor;Ljava/nio/ByteBuffer;IIJ)I", (void *)Posix_preadDirect},
+    {"preadv", "(Linfo/guardianproject/iocipher/FileDescriptor;[Ljava/lang/Object;[I[IJ)I", (void *)Posix_preadv},
+    {"pwriteBytes", "(Linfo/guardianproject/iocipher/FileDescriptor;[BIIJI)I", (void *)Posix_pwriteBytes},
+    {"pwriteDirect", "(Linfo/guardianproject/iocipher/FileDescriptor;Ljava/nio/ByteBuffer;IIJI)I", (void *)Posix_pwriteDirect},
+    {"pwritev", "(Linfo/guardianproject/iocipher/FileDescriptor;[Ljava/lang/Object;[I[IJI)I", (void *)Posix_pwritev},
+    {"releaseContainer", "(J)V", (void *)Posix_releaseContainer},
     {"remove", "(Ljava/lang/String;)V", (void *)Posix_remove},
     {"rename", "(Ljava/lang/String;Ljava/lang/String;)V", (void *)Posix_rename},
     {"rmdir", "(Ljava/lang/String;)V", (void *)Posix_rmdir},
+    {"sendfile", "(Linfo/guardianproject/iocipher/FileDescriptor;JLinfo/guardianproject/iocipher/FileDescriptor;JJII)J", (void *)Posix_sendfile},
     {"stat", "(Ljava/lang/String;)Linfo/guardianproject/libcore/io/StructStat;", (void *)Posix_stat},
     {"statfs", "(Ljava/lang/String;)Linfo/guardianproject/libcore/io/StructStatFs;", (void *)Posix_statfs},
     {"strerror", "(I)Ljava/lang/String;", (void *)Posix_strerror},
@@ -481,5 +1314,10 @@ int register_info_guardianproject_libcore_io_Posix(JNIEnv* env) {
         LOGE("Can't find info/guardianproject/libcore/io/Posix\n");
         return -1;
     }
+    sContainerField = env->GetFieldID(cls, "container", "J");
+    if (sContainerField == NULL) {
+        LOGE("Can't find info/guardianproject/libcore/io/Posix.container\n");
+        return -1;
+    }
     return env->RegisterNatives(cls, sMethods, NELEM(sMethods));
 }
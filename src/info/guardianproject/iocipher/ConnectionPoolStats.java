@@ -0,0 +1,50 @@
+package info.guardianproject.iocipher;
+
+/**
+ * A snapshot of the connection pool of a {@link VirtualFileSystem}, see
+ * {@link VirtualFileSystem#getConnectionPoolStats()}.
+ */
+public final class ConnectionPoolStats {
+
+    /** The most connections that can be open at the same time. */
+    public final int maxConnections;
+
+    /** The number of connections that are open right now. */
+    public final int open;
+
+    /** The number of open connections that are not in use. */
+    public final int idle;
+
+    /** The number of connections that are in use by an operation or a transaction. */
+    public final int inUse;
+
+    /** How many connections were opened since the container was created. */
+    public final long opened;
+
+    /** How many connections were closed because they were idle for too long. */
+    public final long evicted;
+
+    /** How many times a connection was taken from the pool. */
+    public final long leases;
+
+    /** How many times an operation had to wait because all connections were in use. */
+    public final long waits;
+
+    ConnectionPoolStats(long[] values) {
+        maxConnections = (int) values[0];
+        open = (int) values[1];
+        idle = (int) values[2];
+        inUse = (int) values[3];
+        opened = values[4];
+        evicted = values[5];
+        leases = values[6];
+        waits = values[7];
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionPoolStats[maxConnections=" + maxConnections + ",open=" + open
+                + ",idle=" + idle + ",inUse=" + inUse + ",opened=" + opened
+                + ",evicted=" + evicted + ",leases=" + leases + ",waits=" + waits + "]";
+    }
+}
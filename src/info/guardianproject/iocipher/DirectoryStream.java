@@ -0,0 +1,122 @@
+package info.guardianproject.iocipher;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The entries of a directory, read from the container a page at a time as
+ * they are iterated, from {@link File#newDirectoryStream()}. Unlike
+ * {@link File#list()}, this only ever holds one page of entries, so it
+ * streams directories of any size in constant memory, and the first
+ * entries are there as soon as the first page is read.
+ * <p>
+ * Like {@code java.nio.file.DirectoryStream}, it can only be iterated once:
+ *
+ * <pre>
+ * DirectoryStream stream = dir.newDirectoryStream();
+ * try {
+ *     for (FileEntry entry : stream) {
+ *         // ...
+ *     }
+ * } finally {
+ *     stream.close();
+ * }
+ * </pre>
+ *
+ * The entries come in the order of their names. Each page starts after the
+ * last name of the page before, so no locks are held between pages. Files
+ * that are created or removed while the directory is iterated may or may
+ * not show up, but no other entry is returned twice or skipped. If the
+ * directory itself is removed, the iteration ends. If a page can not be
+ * read, the iterator throws an {@link IllegalStateException} caused by the
+ * {@link IOException}.
+ */
+public final class DirectoryStream implements Iterable<FileEntry>, Closeable {
+
+    /** How many entries are read at a time by default. */
+    public static final int DEFAULT_PAGE_SIZE = 256;
+
+    private final File dir;
+    private final int pageSize;
+    private FileEntry[] page;
+    private int index;
+    private boolean iterated;
+    private boolean closed;
+
+    DirectoryStream(File dir, FileEntry[] firstPage, int pageSize) {
+        this.dir = dir;
+        this.page = firstPage;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * @return the directory this stream lists
+     */
+    public File getDirectory() {
+        return dir;
+    }
+
+    /**
+     * @throws IllegalStateException if it was already called, or the stream
+     *         is closed
+     */
+    @Override
+    public Iterator<FileEntry> iterator() {
+        if (closed)
+            throw new IllegalStateException("DirectoryStream is closed");
+        if (iterated)
+            throw new IllegalStateException("DirectoryStream can only be iterated once");
+        iterated = true;
+        return new Iterator<FileEntry>() {
+            @Override
+            public boolean hasNext() {
+                return fetch();
+            }
+
+            @Override
+            public FileEntry next() {
+                if (!fetch())
+                    throw new NoSuchElementException();
+                return page[index++];
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /* whether there is another entry at page[index], reading the next page if needed */
+    private boolean fetch() {
+        if (closed || page == null)
+            return false;
+        if (index < page.length)
+            return true;
+        if (page.length < pageSize) {
+            // a short page is the last one
+            page = null;
+            return false;
+        }
+        String last = page[page.length - 1].getName();
+        try {
+            page = dir.listEntries(last, pageSize);
+        } catch (IOException e) {
+            page = null;
+            throw new IllegalStateException("Could not read " + dir, e);
+        }
+        index = 0;
+        return page != null && page.length > 0;
+    }
+
+    /**
+     * Stops the iteration, the iterator returns no more entries.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        page = null;
+    }
+}
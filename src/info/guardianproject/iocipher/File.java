@@ -40,7 +40,6 @@ import android.annotation.SuppressLint;
 
 import info.guardianproject.libcore.io.ErrnoException;
 import info.guardianproject.libcore.io.IoUtils;
-import info.guardianproject.libcore.io.Libcore;
 import info.guardianproject.libcore.io.StructStat;
 import info.guardianproject.libcore.io.StructStatFs;
 
@@ -95,7 +94,16 @@ public class File extends java.io.File {
     private String path;
 
     /**
-     * Constructs a new file using the specified directory and name.
+     * The virtual file system this file is in, {@code null} for the default
+     * one. It is not serialized, a deserialized file is always in the default
+     * virtual file system.
+     */
+    private transient VirtualFileSystem vfs;
+
+    /**
+     * Constructs a new file using the specified directory and name. If
+     * {@code dir} is a {@link File}, the new file is in the same virtual file
+     * system.
      *
      * @param dir the directory where the file is stored.
      * @param name the file's name.
@@ -103,6 +111,34 @@ public class File extends java.io.File {
      */
     public File(java.io.File dir, String name) {
         this(dir == null ? null : dir.getPath(), name);
+        if (dir instanceof File) {
+            this.vfs = ((File) dir).vfs;
+        }
+    }
+
+    /**
+     * Constructs a new file in {@code vfs} using the specified path.
+     *
+     * @param vfs the virtual file system the file is in.
+     * @param path the path to be used for the file.
+     */
+    public File(VirtualFileSystem vfs, String path) {
+        this(path);
+        this.vfs = vfs;
+    }
+
+    /**
+     * Constructs a new file in {@code vfs} using the specified directory path
+     * and file name, placing a path separator between the two.
+     *
+     * @param vfs the virtual file system the file is in.
+     * @param dirPath the path to the directory where the file is stored.
+     * @param name the file's name.
+     * @throws NullPointerException if {@code name == null}.
+     */
+    public File(VirtualFileSystem vfs, String dirPath, String name) {
+        this(dirPath, name);
+        this.vfs = vfs;
     }
 
     /**
@@ -146,6 +182,16 @@ public class File extends java.io.File {
         this.path = super.getPath();
     }
 
+    /**
+     * Returns the virtual file system this file is in.
+     *
+     * @return the {@link VirtualFileSystem} given when this file was created,
+     *         or the default one from {@link VirtualFileSystem#get()}.
+     */
+    public VirtualFileSystem getVirtualFileSystem() {
+        return vfs != null ? vfs : VirtualFileSystem.get();
+    }
+
     // Removes duplicate adjacent slashes and any trailing slash.
     private static String fixSlashes(String origPath) {
         // Remove duplicate adjacent slashes.
@@ -243,7 +289,7 @@ public class File extends java.io.File {
 
     private boolean doAccess(int mode) {
         try {
-            return Libcore.os.access(path, mode);
+            return getVirtualFileSystem().os.access(path, mode);
         } catch (ErrnoException errnoException) {
             return false;
         }
@@ -273,7 +319,7 @@ public class File extends java.io.File {
     @Override
     public boolean delete() {
         try {
-            Libcore.os.remove(path);
+            getVirtualFileSystem().os.remove(path);
             return true;
         } catch (ErrnoException errnoException) {
             return false;
@@ -356,7 +402,7 @@ public class File extends java.io.File {
      */
     @Override
     public File getAbsoluteFile() {
-        return new File(getAbsolutePath());
+        return new File(vfs, getAbsolutePath());
     }
 
     /**
@@ -399,7 +445,7 @@ public class File extends java.io.File {
      */
     @Override
     public File getCanonicalFile() throws IOException {
-        return new File(getCanonicalPath());
+        return new File(vfs, getCanonicalPath());
     }
 
     /**
@@ -454,7 +500,7 @@ public class File extends java.io.File {
         if (tempParent == null) {
             return null;
         }
-        return new File(tempParent);
+        return new File(vfs, tempParent);
     }
 
     /**
@@ -502,10 +548,10 @@ public class File extends java.io.File {
      */
     @Override
     public boolean isDirectory() {
-        return isDirectoryImpl(path);
+        return isDirectoryImpl(getVirtualFileSystem().container, path);
     }
 
-    private native boolean isDirectoryImpl(String path);
+    private static native boolean isDirectoryImpl(long container, String path);
 
     /**
      * Indicates if this file represents a <em>file</em> on the underlying file
@@ -517,7 +563,7 @@ public class File extends java.io.File {
     public boolean isFile() {
         // currently we only have files and dirs, so file == !dir, that will
         // change if we add symlinks
-        return !isDirectoryImpl(path);
+        return !isDirectoryImpl(getVirtualFileSystem().container, path);
     }
 
     /**
@@ -546,10 +592,10 @@ public class File extends java.io.File {
      */
     @Override
     public long lastModified() {
-        return lastModifiedImpl(path);
+        return lastModifiedImpl(getVirtualFileSystem().container, path);
     }
 
-    private static native long lastModifiedImpl(String path);
+    private static native long lastModifiedImpl(long container, String path);
 
     /**
      * Sets the time this file was last modified, measured in milliseconds since
@@ -568,10 +614,10 @@ public class File extends java.io.File {
         if (time < 0) {
             throw new IllegalArgumentException("time < 0");
         }
-        return setLastModifiedImpl(path, time);
+        return setLastModifiedImpl(getVirtualFileSystem().container, path, time);
     }
 
-    private static native boolean setLastModifiedImpl(String path, long time);
+    private static native boolean setLastModifiedImpl(long container, String path, long time);
 
     /**
      * Equivalent to setWritable(false, false).
@@ -676,9 +722,9 @@ public class File extends java.io.File {
 
     private boolean doChmod(int mask, boolean set) {
         try {
-            StructStat sb = Libcore.os.stat(path);
+            StructStat sb = getVirtualFileSystem().os.stat(path);
             int newMode = set ? (sb.st_mode | mask) : (sb.st_mode & ~mask);
-            Libcore.os.chmod(path, newMode);
+            getVirtualFileSystem().os.chmod(path, newMode);
             return true;
         } catch (ErrnoException errnoException) {
             return false;
@@ -694,7 +740,7 @@ public class File extends java.io.File {
     @Override
     public long length() {
         try {
-            return Libcore.os.stat(path).st_size;
+            return getVirtualFileSystem().os.stat(path).st_size;
         } catch (ErrnoException errnoException) {
             // The RI returns 0 on error. (Even for errors like EACCES or
             // ELOOP.)
@@ -714,10 +760,69 @@ public class File extends java.io.File {
      */
     @Override
     public String[] list() {
-        return listImpl(path);
+        return listImpl(getVirtualFileSystem().container, path);
+    }
+
+    private static native String[] listImpl(long container, String path);
+
+    /**
+     * Returns the files in the directory represented by this file together
+     * with their attributes, all read from the container at once. That is
+     * much faster than calling {@link #length()}, {@link #isDirectory()} and
+     * {@link #lastModified()} for each file of {@link #listFiles()}. The
+     * result is {@code null} if this file is not a directory.
+     * <p>
+     * The entries {@code .} and {@code ..} representing the current and parent
+     * directory are not returned as part of the list.
+     *
+     * @return an array of entries or {@code null}.
+     * @throws IOException if the container could not be read
+     */
+    public FileEntry[] listEntries() throws IOException {
+        return listEntries(null, -1);
     }
 
-    private static native String[] listImpl(String path);
+    /* the entries after the name after, at most limit of them unless it is negative */
+    FileEntry[] listEntries(String after, int limit) throws IOException {
+        return listEntriesImpl(getVirtualFileSystem().container, path, after, limit);
+    }
+
+    private static native FileEntry[] listEntriesImpl(long container, String path, String after,
+            int limit) throws IOException;
+
+    /**
+     * Opens a {@link DirectoryStream} over the files in the directory
+     * represented by this file, which reads them from the container
+     * {@link DirectoryStream#DEFAULT_PAGE_SIZE} at a time as it is iterated.
+     *
+     * @return a stream of entries, which should be closed
+     * @throws IOException if this file is not a directory, or the container
+     *         could not be read
+     */
+    public DirectoryStream newDirectoryStream() throws IOException {
+        return newDirectoryStream(DirectoryStream.DEFAULT_PAGE_SIZE);
+    }
+
+    /**
+     * Opens a {@link DirectoryStream} over the files in the directory
+     * represented by this file, which reads them from the container
+     * {@code pageSize} at a time as it is iterated. The first page is read
+     * right away.
+     *
+     * @param pageSize how many entries to read at a time, at least 1
+     * @return a stream of entries, which should be closed
+     * @throws IOException if this file is not a directory, or the container
+     *         could not be read
+     * @throws IllegalArgumentException if {@code pageSize < 1}
+     */
+    public DirectoryStream newDirectoryStream(int pageSize) throws IOException {
+        if (pageSize < 1)
+            throw new IllegalArgumentException("pageSize < 1");
+        FileEntry[] firstPage = listEntries(null, pageSize);
+        if (firstPage == null)
+            throw new IOException("Not a directory: " + path);
+        return new DirectoryStream(this, firstPage, pageSize);
+    }
 
     /**
      * Gets a list of the files in the directory represented by this file. This
@@ -835,7 +940,7 @@ public class File extends java.io.File {
         try {
             // On Android, we don't want default permissions to allow global
             // access.
-            Libcore.os.mkdir(path, S_IRWXU);
+            getVirtualFileSystem().os.mkdir(path, S_IRWXU);
             return true;
         } catch (ErrnoException errnoException) {
             return false;
@@ -873,7 +978,7 @@ public class File extends java.io.File {
         }
 
         /* Otherwise, try to create a parent directory and then this directory */
-        return (new File(parentDir).mkdirs() && mkdir());
+        return (new File(vfs, parentDir).mkdirs() && mkdir());
     }
 
     /**
@@ -901,7 +1006,7 @@ public class File extends java.io.File {
         try {
             // On Android, we don't want default permissions to allow global
             // access.
-            fd = Libcore.os.open(path, O_RDWR | O_CREAT | O_EXCL, 0600);
+            fd = getVirtualFileSystem().os.open(path, O_RDWR | O_CREAT | O_EXCL, 0600);
             return true;
         } catch (ErrnoException errnoException) {
             if (errnoException.errno == EEXIST) {
@@ -971,6 +1076,45 @@ public class File extends java.io.File {
         return result;
     }
 
+    /**
+     * Copies this file to {@code newPath}, which must not exist yet. The copy
+     * is done by the database inside the container in a single transaction,
+     * so the contents never pass through Java. The copy keeps the mode and
+     * modification time of the original.
+     * <p>
+     * Note that this method does <i>not</i> throw {@code IOException} on
+     * failure. Callers must check the return value.
+     *
+     * @param newPath the path of the copy.
+     * @return true on success, false if this is a directory, if
+     *         {@code newPath} already exists or if its parent directory does
+     *         not exist.
+     */
+    public boolean copyTo(File newPath) {
+        return copyTo(newPath, false);
+    }
+
+    /**
+     * Copies this file to {@code newPath}, like {@link #copyTo(File)}. If
+     * {@code recursive} is true and this is a directory, then everything
+     * below it is copied too, all in one transaction.
+     *
+     * @param newPath the path of the copy.
+     * @param recursive whether to copy directories and their contents.
+     * @return true on success.
+     */
+    public boolean copyTo(File newPath, boolean recursive) {
+        if (newPath.getVirtualFileSystem() != getVirtualFileSystem()) {
+            return false; // the copy never leaves the container
+        }
+        try {
+            getVirtualFileSystem().os.copy(path, newPath.path, recursive);
+            return true;
+        } catch (ErrnoException errnoException) {
+            return false;
+        }
+    }
+
     /**
      * Renames this file to {@code newPath}. This operation is supported for
      * both files and directories.
@@ -992,8 +1136,11 @@ public class File extends java.io.File {
      * @return true on success.
      */
     public boolean renameTo(File newPath) {
+        if (newPath.getVirtualFileSystem() != getVirtualFileSystem()) {
+            return false; // not on the same mount point
+        }
         try {
-            Libcore.os.rename(path, newPath.path);
+            getVirtualFileSystem().os.rename(path, newPath.path);
             return true;
         } catch (ErrnoException errnoException) {
             return false;
@@ -1091,7 +1238,7 @@ public class File extends java.io.File {
      */
     public long getTotalSpace() {
         try {
-            StructStatFs sb = Libcore.os.statfs(path);
+            StructStatFs sb = getVirtualFileSystem().os.statfs(path);
             return sb.f_blocks * sb.f_bsize; // total block count * block size
                                              // in bytes.
         } catch (ErrnoException errnoException) {
@@ -1115,7 +1262,7 @@ public class File extends java.io.File {
      */
     public long getUsableSpace() {
         try {
-            StructStatFs sb = Libcore.os.statfs(path);
+            StructStatFs sb = getVirtualFileSystem().os.statfs(path);
             return sb.f_bavail * sb.f_bsize; // non-root free block count *
                                              // block size in bytes.
         } catch (ErrnoException errnoException) {
@@ -1135,7 +1282,7 @@ public class File extends java.io.File {
      */
     public long getFreeSpace() {
         try {
-            StructStatFs sb = Libcore.os.statfs(path);
+            StructStatFs sb = getVirtualFileSystem().os.statfs(path);
             return sb.f_bfree * sb.f_bsize; // free block count * block size in
                                             // bytes.
         } catch (ErrnoException errnoException) {
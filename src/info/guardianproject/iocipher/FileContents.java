@@ -0,0 +1,48 @@
+package info.guardianproject.iocipher;
+
+import java.io.IOException;
+
+/**
+ * The whole contents of one file, from
+ * {@link VirtualFileSystem#readAll(java.util.Collection)}, or why it could
+ * not be read.
+ */
+public final class FileContents {
+
+    private final File file;
+    private final byte[] data;
+    private final IOException exception;
+
+    FileContents(File file, byte[] data, IOException exception) {
+        this.file = file;
+        this.data = data;
+        this.exception = exception;
+    }
+
+    /** @return the file, as it was passed in */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the bytes of the file, which belong to the caller
+     * @throws IOException why the file could not be read
+     */
+    public byte[] getData() throws IOException {
+        if (exception != null) {
+            throw exception;
+        }
+        return data;
+    }
+
+    /** @return whether the file was read, so {@link #getData()} will not throw */
+    public boolean isRead() {
+        return exception == null;
+    }
+
+    @Override
+    public String toString() {
+        return "FileContents[" + file + (exception != null ? "," + exception
+                : ",length=" + data.length) + "]";
+    }
+}
@@ -20,6 +20,8 @@ package info.guardianproject.iocipher;
 import info.guardianproject.libcore.io.ErrnoException;
 import info.guardianproject.libcore.io.Libcore;
 
+import java.io.Flushable;
+import java.io.IOException;
 import java.io.SyncFailedException;
 
 /**
@@ -36,8 +38,22 @@ public final class FileDescriptor {
     private final String invalid = "INVALID";
     private String path = invalid;
 
+    /**
+     * The handle of this open file in the native OpenFileTable, which is what
+     * all of the I/O calls use. The path above is kept for
+     * {@link #toString()}.
+     */
+    private int handle = -1;
+
     public long position = 0;
 
+    /**
+     * The stream that holds writes to this file back or caches its contents,
+     * if any. It writes them out and forgets its cache before anything else
+     * uses the file through this descriptor. Guarded by this.
+     */
+    private Flushable writeBehind;
+
     /**
      * Constructs a new invalid FileDescriptor.
      */
@@ -50,12 +66,56 @@ public final class FileDescriptor {
      */
     public void sync() throws SyncFailedException {
         try {
+            flushWriteBehind();
             Libcore.os.fsync(this);
         } catch (ErrnoException errnoException) {
             SyncFailedException sfe = new SyncFailedException(
                     errnoException.getMessage());
             sfe.initCause(errnoException);
             throw sfe;
+        } catch (IOException e) {
+            SyncFailedException sfe = new SyncFailedException(e.getMessage());
+            sfe.initCause(e);
+            throw sfe;
+        }
+    }
+
+    /**
+     * Writes out what the stream that owns this descriptor holds back, so
+     * that it can be used directly.
+     */
+    void flushWriteBehind() throws IOException {
+        Flushable flushable;
+        synchronized (this) {
+            flushable = writeBehind;
+        }
+        if (flushable != null) {
+            flushable.flush();
+        }
+    }
+
+    /**
+     * Makes {@code flushable} the one stream that may hold writes to this
+     * file back, unless another stream already does. Two could not tell
+     * which of their writes comes first.
+     *
+     * @return whether {@code flushable} holds them back now
+     */
+    synchronized boolean claimWriteBehind(Flushable flushable) {
+        if (writeBehind != null && writeBehind != flushable) {
+            return false;
+        }
+        writeBehind = flushable;
+        return true;
+    }
+
+    /**
+     * Gives up {@link #claimWriteBehind(Flushable)}, once {@code flushable}
+     * holds nothing back any more.
+     */
+    synchronized void releaseWriteBehind(Flushable flushable) {
+        if (writeBehind == flushable) {
+            writeBehind = null;
         }
     }
 
@@ -63,7 +123,7 @@ public final class FileDescriptor {
      * Tests whether this {@code FileDescriptor} is valid.
      */
     public boolean valid() {
-        return !path.equals(invalid);
+        return handle != -1 && !path.equals(invalid);
     }
 
     @Override
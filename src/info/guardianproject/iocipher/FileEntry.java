@@ -0,0 +1,69 @@
+package info.guardianproject.iocipher;
+
+import static info.guardianproject.libcore.io.OsConstants.S_ISDIR;
+import static info.guardianproject.libcore.io.OsConstants.S_ISLNK;
+import static info.guardianproject.libcore.io.OsConstants.S_ISREG;
+
+/**
+ * One file in a directory together with its attributes, from
+ * {@link File#listEntries()}. It is a snapshot from when the directory was
+ * listed, so the file may have changed since.
+ */
+public final class FileEntry {
+
+    private final String name;
+    private final int mode;
+    private final long length;
+    private final long lastModified;
+
+    FileEntry(String name, int mode, long length, long lastModified) {
+        this.name = name;
+        this.mode = mode;
+        this.length = length;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * @return the name of the file within its directory, use
+     *         {@code new File(directory, entry.getName())} to get at the file
+     */
+    public String getName() {
+        return name;
+    }
+
+    /** @return the file type and permission bits, like {@code st_mode} */
+    public int getMode() {
+        return mode;
+    }
+
+    /** @return the length of the file in bytes, like {@link File#length()} */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * @return the time the file was last modified in milliseconds since
+     *         January 1st 1970, like {@link File#lastModified()}
+     */
+    public long lastModified() {
+        return lastModified;
+    }
+
+    public boolean isDirectory() {
+        return S_ISDIR(mode);
+    }
+
+    public boolean isFile() {
+        return S_ISREG(mode);
+    }
+
+    public boolean isSymbolicLink() {
+        return S_ISLNK(mode);
+    }
+
+    @Override
+    public String toString() {
+        return "FileEntry[name=" + name + ",mode=" + Integer.toOctalString(mode) + ",length="
+                + length + ",lastModified=" + lastModified + "]";
+    }
+}
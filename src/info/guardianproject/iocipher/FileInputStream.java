@@ -19,14 +19,26 @@ package info.guardianproject.iocipher;
 
 import static info.guardianproject.libcore.io.OsConstants.O_RDONLY;
 import static info.guardianproject.libcore.io.OsConstants.SEEK_CUR;
+import info.guardianproject.libcore.io.ErrnoException;
 import info.guardianproject.libcore.io.IoBridge;
 import info.guardianproject.libcore.io.IoUtils;
+import info.guardianproject.libcore.io.Libcore;
 
 import java.io.BufferedInputStream;
 import java.io.Closeable;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * An input stream that reads bytes from a file.
@@ -46,8 +58,15 @@ import java.io.InputStream;
  * }
  * </pre>
  * <p>
- * This stream is <strong>not buffered</strong>. Most callers should wrap this
- * stream with a {@link BufferedInputStream}.
+ * Every read that goes to the container is a query, so once reads are
+ * sequential this stream reads ahead: a window of one block of the container
+ * at first, doubling with each further sequential window up to
+ * {@link #setMaxReadAhead(int)}. While the caller uses up one window, the
+ * next one is read in the background on a connection of its own. Reads that
+ * jump around, and reads larger than the window, go straight to the file.
+ * Like with a {@link BufferedInputStream}, bytes that were already read ahead
+ * do not change when the file is written to through another stream. Many
+ * single byte reads are still faster through a {@link BufferedInputStream}.
  * <p>
  * Use {@link FileReader} to read characters, as opposed to bytes, from a file.
  * 
@@ -56,11 +75,42 @@ import java.io.InputStream;
  */
 public class FileInputStream extends InputStream implements Closeable {
 
+    /**
+     * The default largest number of bytes that are read ahead at a time, see
+     * {@link #setMaxReadAhead(int)}.
+     */
+    public static final int DEFAULT_MAX_READ_AHEAD = 256 * 1024;
+
+    private static final int PREFETCH_THREADS = 2;
+
+    /* reads the next windows in the background, shared by all streams */
+    private static ExecutorService prefetchExecutor;
+
     private FileDescriptor fd;
     private final boolean shouldClose;
+    // null when opened from a FileDescriptor, which then is not prefetched
+    private final VirtualFileSystem vfs;
 
     private IOCipherFileChannel channel;
 
+    // the read-ahead, all guarded by this
+    private int maxReadAhead = DEFAULT_MAX_READ_AHEAD;
+    // 0 until first needed
+    private int blockSize;
+    // the size of the next window, 0 while reads are not sequential
+    private int readAhead;
+    // where the next read starts if reads are sequential
+    private long nextSequential;
+    private byte[] window;
+    private long windowStart;
+    private int windowLength;
+    private int windowRequested;
+    // the next window, being read into prefetchBuffer in the background
+    private Future<Integer> prefetch;
+    private byte[] prefetchBuffer;
+    private long prefetchStart;
+    private int prefetchRequested;
+
     /**
      * Constructs a new {@code FileInputStream} that reads from {@code file}.
      * 
@@ -71,9 +121,10 @@ public class FileInputStream extends InputStream implements Closeable {
         if (file == null) {
             throw new NullPointerException("file == null");
         }
-        this.fd = IoBridge.open(file.getAbsolutePath(), O_RDONLY);
+        this.fd = IoBridge.open(file.getVirtualFileSystem().os, file.getAbsolutePath(), O_RDONLY);
         getChannel(); // init channel
         this.shouldClose = true;
+        this.vfs = file.getVirtualFileSystem();
     }
 
     /**
@@ -89,6 +140,7 @@ public class FileInputStream extends InputStream implements Closeable {
         this.fd = fd;
         getChannel(); // init channel
         this.shouldClose = false;
+        this.vfs = null;
     }
 
     /**
@@ -113,6 +165,10 @@ public class FileInputStream extends InputStream implements Closeable {
     @Override
     public void close() throws IOException {
         synchronized (this) {
+            // the prefetch must not read from the handle once it is closed
+            cancelPrefetch();
+            window = null;
+            prefetchBuffer = null;
             if (channel != null) {
                 channel.close();
             }
@@ -183,12 +239,230 @@ public class FileInputStream extends InputStream implements Closeable {
 
     @Override
     public int read(byte[] b) throws IOException {
-        return IoBridge.read(fd, b, 0, b.length);
+        return read(b, 0, b.length);
     }
 
     @Override
     public int read(byte[] buffer, int byteOffset, int byteCount) throws IOException {
-        return IoBridge.read(fd, buffer, byteOffset, byteCount);
+        IoBridge.checkOffsetAndCount(buffer.length, byteOffset, byteCount);
+        if (byteCount == 0) {
+            return 0;
+        }
+        synchronized (this) {
+            fd.flushWriteBehind(); // when it came from a FileOutputStream
+            long position = fd.position;
+            if (!inWindow(position)) {
+                if (!fillWindow(position, byteCount)) {
+                    int result = IoBridge.read(fd, buffer, byteOffset, byteCount);
+                    nextSequential = fd.position;
+                    return result;
+                }
+                if (!inWindow(position)) {
+                    return -1; // the window is empty at end-of-file
+                }
+            }
+            int offset = (int) (position - windowStart);
+            int count = Math.min(byteCount, windowLength - offset);
+            System.arraycopy(window, offset, buffer, byteOffset, count);
+            fd.position = position + count;
+            nextSequential = fd.position;
+            startPrefetch();
+            return count;
+        }
+    }
+
+    /**
+     * Sets the largest number of bytes this stream reads ahead at a time,
+     * which is rounded up to whole blocks of the container. Up to twice that
+     * is held in memory while the next window is read in the background.
+     *
+     * @param maxBytes the window size in bytes, 0 turns reading ahead off.
+     */
+    public void setMaxReadAhead(int maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes: " + maxBytes);
+        }
+        synchronized (this) {
+            maxReadAhead = maxBytes;
+            readAhead = 0;
+            cancelPrefetch();
+            windowLength = 0;
+        }
+    }
+
+    public int getMaxReadAhead() {
+        synchronized (this) {
+            return maxReadAhead;
+        }
+    }
+
+    private boolean inWindow(long position) {
+        return window != null && position >= windowStart && position < windowStart + windowLength;
+    }
+
+    /* at least one whole block of the container */
+    private int blockSize() throws IOException {
+        if (blockSize == 0) {
+            try {
+                blockSize = (int) Math.max(1, Libcore.os.fstat(fd).st_blksize);
+            } catch (ErrnoException errnoException) {
+                throw errnoException.rethrowAsIOException();
+            }
+        }
+        return blockSize;
+    }
+
+    private int nextReadAhead() throws IOException {
+        int block = blockSize();
+        int max = Math.max(block, (maxReadAhead + block - 1) / block * block);
+        return readAhead == 0 ? block : (int) Math.min((long) readAhead * 2, max);
+    }
+
+    /**
+     * Makes the window start at {@code position} if reads are sequential,
+     * from the prefetch if it got there or else by reading it now. Returns
+     * false if the read should go straight to the file instead.
+     */
+    private boolean fillWindow(long position, int byteCount) throws IOException {
+        if (position != nextSequential || maxReadAhead == 0) {
+            readAhead = 0;
+            cancelPrefetch();
+            return false;
+        }
+        if (prefetch != null && prefetchStart == position && takePrefetch()) {
+            readAhead = nextReadAhead();
+            return true;
+        }
+        cancelPrefetch();
+        readAhead = nextReadAhead();
+        if (byteCount >= readAhead) {
+            return false; // a copy through the window would gain nothing
+        }
+        if (window == null || window.length < readAhead) {
+            window = new byte[readAhead];
+        }
+        windowStart = position;
+        windowRequested = readAhead;
+        windowLength = 0; // in case the read fails
+        windowLength = preadFully(fd, window, readAhead, position);
+        return true;
+    }
+
+    /* once half of the window is used, the next one is read in the background */
+    private void startPrefetch() {
+        if (prefetch != null || readAhead == 0 || vfs == null) {
+            return;
+        }
+        if (windowLength < windowRequested) {
+            return; // the window ends at end-of-file
+        }
+        if (fd.position - windowStart < windowLength / 2) {
+            return;
+        }
+        // another connection would not see what this thread's transaction changed
+        if (vfs.currentTransaction() != null) {
+            return;
+        }
+        final int size;
+        try {
+            size = nextReadAhead();
+        } catch (IOException e) {
+            return;
+        }
+        if (prefetchBuffer == null || prefetchBuffer.length < size) {
+            prefetchBuffer = new byte[size];
+        }
+        final FileDescriptor fd = this.fd;
+        final byte[] buffer = prefetchBuffer;
+        final long start = windowStart + windowLength;
+        try {
+            prefetch = prefetchExecutor().submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws IOException {
+                    return preadFully(fd, buffer, size, start);
+                }
+            });
+            prefetchStart = start;
+            prefetchRequested = size;
+        } catch (RejectedExecutionException e) {
+            // the window is then read when it is needed
+        }
+    }
+
+    /* makes the prefetched window the current one, false if it failed */
+    private boolean takePrefetch() {
+        try {
+            int length = prefetch.get();
+            byte[] spare = window;
+            window = prefetchBuffer;
+            prefetchBuffer = spare;
+            windowStart = prefetchStart;
+            windowLength = length;
+            windowRequested = prefetchRequested;
+            return true;
+        } catch (ExecutionException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            prefetchBuffer = null; // it could still be written to
+            return false;
+        } finally {
+            prefetch = null;
+        }
+    }
+
+    /* waits until no prefetch is writing to prefetchBuffer */
+    private void cancelPrefetch() {
+        if (prefetch == null) {
+            return;
+        }
+        prefetch.cancel(false);
+        try {
+            prefetch.get();
+        } catch (CancellationException e) {
+            // it never started
+        } catch (ExecutionException e) {
+            // nobody wants its result
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            prefetchBuffer = null; // it could still be written to
+        }
+        prefetch = null;
+    }
+
+    private static int preadFully(FileDescriptor fd, byte[] buffer, int byteCount, long offset)
+            throws IOException {
+        int total = 0;
+        try {
+            while (total < byteCount) {
+                int result = Libcore.os.pread(fd, buffer, total, byteCount - total, offset + total);
+                if (result <= 0) {
+                    break;
+                }
+                total += result;
+            }
+        } catch (ErrnoException errnoException) {
+            throw errnoException.rethrowAsIOException();
+        }
+        return total;
+    }
+
+    private static synchronized ExecutorService prefetchExecutor() {
+        if (prefetchExecutor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(PREFETCH_THREADS,
+                    PREFETCH_THREADS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "IOCipher read-ahead");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            prefetchExecutor = executor;
+        }
+        return prefetchExecutor;
     }
 
     @Override
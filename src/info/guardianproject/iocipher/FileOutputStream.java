@@ -21,12 +21,15 @@ import static info.guardianproject.libcore.io.OsConstants.O_APPEND;
 import static info.guardianproject.libcore.io.OsConstants.O_CREAT;
 import static info.guardianproject.libcore.io.OsConstants.O_TRUNC;
 import static info.guardianproject.libcore.io.OsConstants.O_WRONLY;
+import info.guardianproject.libcore.io.ErrnoException;
 import info.guardianproject.libcore.io.IoBridge;
 import info.guardianproject.libcore.io.IoUtils;
+import info.guardianproject.libcore.io.Libcore;
 
 import java.io.BufferedOutputStream;
 import java.io.Closeable;
 import java.io.FileNotFoundException;
+import java.io.Flushable;
 import java.io.IOException;
 import java.io.OutputStream;
 
@@ -50,8 +53,15 @@ import java.io.OutputStream;
  * }
  * </pre>
  * <p>
- * This stream is <strong>not buffered</strong>. Most callers should wrap this
- * stream with a {@link BufferedOutputStream}.
+ * Every write that reaches the container is a transaction, and one that ends
+ * inside of a block has to read that block first. So this stream holds small
+ * writes back until they fill up to the next block boundary of the container,
+ * and writes whole blocks straight through. What it holds back is written on
+ * {@link #flush()}, {@link #close()}, {@code getFD().sync()} and before the
+ * {@link #getChannel() channel} is used. Other streams on the same file do
+ * not see it before then, so call {@link #flush()} when they need to. Only
+ * one stream on a {@link FileDescriptor} holds writes back, a second
+ * {@code FileOutputStream} on it writes straight through.
  * <p>
  * Use {@link FileWriter} to write characters, as opposed to bytes, to a file.
  * 
@@ -69,6 +79,29 @@ public class FileOutputStream extends OutputStream implements Closeable {
     /** File access mode */
     private final int mode;
 
+    // guarded by this
+    private boolean closed;
+
+    // whether this stream holds writes back, see FileDescriptor.claimWriteBehind()
+    private final boolean writesBehind;
+    // unlike flush(), this does not throw once the stream is closed
+    private final Flushable writeBehindFlusher = new Flushable() {
+        @Override
+        public void flush() throws IOException {
+            synchronized (FileOutputStream.this) {
+                flushBuffer();
+            }
+        }
+    };
+
+    // the write-behind, all guarded by this
+    // 0 until first needed
+    private int blockSize;
+    private byte[] buffer;
+    private int count;
+    // how many bytes fit before the next block boundary
+    private int limit;
+
     /**
      * Constructs a new {@code FileOutputStream} that writes to {@code file}.
      * The file will be truncated if it exists, and created if it doesn't exist.
@@ -92,9 +125,10 @@ public class FileOutputStream extends OutputStream implements Closeable {
             throw new NullPointerException("file == null");
         }
         this.mode = O_WRONLY | O_CREAT | (append ? O_APPEND : O_TRUNC);
-        this.fd = IoBridge.open(file.getAbsolutePath(), mode);
+        this.fd = IoBridge.open(file.getVirtualFileSystem().os, file.getAbsolutePath(), mode);
         this.channel = new IOCipherFileChannel(this, fd, mode);
         this.shouldClose = true;
+        this.writesBehind = fd.claimWriteBehind(writeBehindFlusher);
     }
 
     /**
@@ -110,6 +144,7 @@ public class FileOutputStream extends OutputStream implements Closeable {
         this.shouldClose = false;
         this.mode = O_WRONLY;
         this.channel = new IOCipherFileChannel(this, fd, mode);
+        this.writesBehind = fd.claimWriteBehind(writeBehindFlusher);
     }
 
     /**
@@ -137,20 +172,42 @@ public class FileOutputStream extends OutputStream implements Closeable {
     @Override
     public void close() throws IOException {
         synchronized (this) {
-            if (channel != null) {
-                channel.close();
+            if (closed) {
+                return;
             }
-            if (shouldClose) {
-                IoUtils.close(fd);
-            } else {
-                // An owned fd has been invalidated by IoUtils.close, but
-                // we need to explicitly stop using an unowned fd
-                // (http://b/4361076).
-                fd = new FileDescriptor();
+            closed = true;
+            try {
+                flushBuffer();
+            } finally {
+                buffer = null;
+                count = 0;
+                fd.releaseWriteBehind(writeBehindFlusher);
+                if (channel != null) {
+                    channel.close();
+                }
+                if (shouldClose) {
+                    IoUtils.close(fd);
+                } else {
+                    // An owned fd has been invalidated by IoUtils.close, but
+                    // we need to explicitly stop using an unowned fd
+                    // (http://b/4361076).
+                    fd = new FileDescriptor();
+                }
             }
         }
     }
 
+    /**
+     * Writes out the bytes that this stream holds back.
+     */
+    @Override
+    public void flush() throws IOException {
+        synchronized (this) {
+            checkOpen();
+            flushBuffer();
+        }
+    }
+
     @Override
     protected void finalize() throws IOException {
         try {
@@ -189,13 +246,87 @@ public class FileOutputStream extends OutputStream implements Closeable {
 
     @Override
     public void write(byte[] buffer, int byteOffset, int byteCount) throws IOException {
-        IoBridge.write(fd, buffer, byteOffset, byteCount, this.mode);
+        IoBridge.checkOffsetAndCount(buffer.length, byteOffset, byteCount);
+        synchronized (this) {
+            checkOpen();
+            if (!writesBehind) {
+                // after what the stream that holds writes back has
+                fd.flushWriteBehind();
+                IoBridge.write(fd, buffer, byteOffset, byteCount, this.mode);
+                return;
+            }
+            while (byteCount > 0) {
+                int limit = bufferLimit();
+                if (count == 0 && byteCount >= limit) {
+                    // whole blocks need no copy
+                    int direct = limit + (byteCount - limit) / blockSize * blockSize;
+                    IoBridge.write(fd, buffer, byteOffset, direct, this.mode);
+                    byteOffset += direct;
+                    byteCount -= direct;
+                    continue;
+                }
+                int n = Math.min(byteCount, limit - count);
+                System.arraycopy(buffer, byteOffset, this.buffer, count, n);
+                count += n;
+                byteOffset += n;
+                byteCount -= n;
+                if (count == limit) {
+                    flushBuffer();
+                }
+            }
+        }
     }
 
     @Override
     public void write(int oneByte) throws IOException {
-        write(new byte[] {
-                (byte) oneByte
-        }, 0, 1);
+        synchronized (this) {
+            checkOpen();
+            if (!writesBehind) {
+                fd.flushWriteBehind();
+                IoBridge.write(fd, new byte[] { (byte) oneByte }, 0, 1, this.mode);
+                return;
+            }
+            int limit = bufferLimit();
+            buffer[count++] = (byte) oneByte;
+            if (count == limit) {
+                flushBuffer();
+            }
+        }
+    }
+
+    /* must be called holding this, buffered writes would be lost after close() */
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream is closed");
+        }
+    }
+
+    /* how many bytes the buffer takes before it has to be written out */
+    private int bufferLimit() throws IOException {
+        if (count > 0) {
+            return limit;
+        }
+        try {
+            if (blockSize == 0) {
+                blockSize = (int) Math.max(1, Libcore.os.fstat(fd).st_blksize);
+            }
+            if (buffer == null) {
+                buffer = new byte[blockSize];
+            }
+            long start = (mode & O_APPEND) != 0 ? Libcore.os.fstat(fd).st_size : fd.position;
+            limit = blockSize - (int) (start % blockSize);
+        } catch (ErrnoException errnoException) {
+            throw errnoException.rethrowAsIOException();
+        }
+        return limit;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (count == 0) {
+            return;
+        }
+        int n = count;
+        count = 0; // dropped even if the write fails, like a direct write
+        IoBridge.write(fd, buffer, 0, n, this.mode);
     }
 }
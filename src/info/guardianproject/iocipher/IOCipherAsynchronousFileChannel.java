@@ -0,0 +1,224 @@
+package info.guardianproject.iocipher;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileLock;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * An {@link AsynchronousFileChannel} on a file in a container. Every read,
+ * write and lock runs as a task on an {@link ExecutorService}, which takes a
+ * connection from the container's pool only while the task is in sqlfs, so
+ * many operations can be outstanding on a few threads, and threads that wait
+ * for the result pin no connection. Get one from
+ * {@link java.nio.channels.AsynchronousFileChannel#open} on a path of an
+ * {@link IOCipherFileSystem}, with the executor to run on, or none to use one
+ * per container with as many threads as it has connections, see
+ * {@link VirtualFileSystem#setMaxConnections(int)}.
+ * <p>
+ * Operations are not ordered with respect to each other, as in
+ * {@code java.nio}. Cancelling one with {@code mayInterruptIfRunning} closes
+ * the channel if it was already running.
+ * <p>
+ * This needs {@code java.nio.channels.AsynchronousFileChannel}, which
+ * Android only has since API 26.
+ */
+public final class IOCipherAsynchronousFileChannel extends AsynchronousFileChannel {
+
+    private final IOCipherFileChannel channel;
+    private final ExecutorService executor;
+
+    IOCipherAsynchronousFileChannel(IOCipherFileChannel channel, ExecutorService executor) {
+        this.channel = channel;
+        this.executor = executor;
+    }
+
+    /**
+     * @return the executor that the operations of this channel run on
+     */
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * Closes the channel. Operations that are still running fail with a
+     * {@link java.nio.channels.ClosedChannelException}, or complete if they
+     * were already in sqlfs.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    @Override
+    public long size() throws IOException {
+        return channel.size();
+    }
+
+    @Override
+    public AsynchronousFileChannel truncate(long size) throws IOException {
+        channel.truncate(size);
+        return this;
+    }
+
+    @Override
+    public void force(boolean metaData) throws IOException {
+        channel.force(metaData);
+    }
+
+    @Override
+    public <A> void lock(final long position, final long size, final boolean shared,
+            A attachment, CompletionHandler<FileLock, ? super A> handler) {
+        submit(lockTask(position, size, shared), attachment, handler);
+    }
+
+    @Override
+    public Future<FileLock> lock(long position, long size, boolean shared) {
+        return submit(lockTask(position, size, shared));
+    }
+
+    /**
+     * Locks are only held against other channels in this process, see
+     * {@link IOCipherFileChannel#tryLock(long, long, boolean)}.
+     */
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+        FileLock lock = channel.tryLock(position, size, shared);
+        return lock == null ? null : new AsyncLock(this, lock);
+    }
+
+    @Override
+    public <A> void read(ByteBuffer dst, long position, A attachment,
+            CompletionHandler<Integer, ? super A> handler) {
+        submit(readTask(dst, position), attachment, handler);
+    }
+
+    @Override
+    public Future<Integer> read(ByteBuffer dst, long position) {
+        return submit(readTask(dst, position));
+    }
+
+    @Override
+    public <A> void write(ByteBuffer src, long position, A attachment,
+            CompletionHandler<Integer, ? super A> handler) {
+        submit(writeTask(src, position), attachment, handler);
+    }
+
+    @Override
+    public Future<Integer> write(ByteBuffer src, long position) {
+        return submit(writeTask(src, position));
+    }
+
+    private Callable<FileLock> lockTask(final long position, final long size,
+            final boolean shared) {
+        if (position < 0 || size < 0) {
+            throw new IllegalArgumentException("position=" + position + " size=" + size);
+        }
+        final IOCipherAsynchronousFileChannel self = this;
+        return new Callable<FileLock>() {
+            @Override
+            public FileLock call() throws IOException {
+                return new AsyncLock(self, channel.lock(position, size, shared));
+            }
+        };
+    }
+
+    private Callable<Integer> readTask(final ByteBuffer dst, final long position) {
+        if (position < 0) {
+            throw new IllegalArgumentException("negative file position not allowed: " + position);
+        }
+        if (dst.isReadOnly()) {
+            throw new IllegalArgumentException("read-only buffer");
+        }
+        return new Callable<Integer>() {
+            @Override
+            public Integer call() throws IOException {
+                return channel.read(dst, position);
+            }
+        };
+    }
+
+    private Callable<Integer> writeTask(final ByteBuffer src, final long position) {
+        if (position < 0) {
+            throw new IllegalArgumentException("negative file position not allowed: " + position);
+        }
+        return new Callable<Integer>() {
+            @Override
+            public Integer call() throws IOException {
+                return channel.write(src, position);
+            }
+        };
+    }
+
+    private <V> Future<V> submit(Callable<V> task) {
+        FutureTask<V> future = new FutureTask<V>(task);
+        try {
+            executor.execute(future);
+        } catch (final RejectedExecutionException e) {
+            future = new FutureTask<V>(new Callable<V>() {
+                @Override
+                public V call() {
+                    throw e;
+                }
+            });
+            future.run();
+        }
+        return future;
+    }
+
+    private <V, A> void submit(final Callable<V> task, final A attachment,
+            final CompletionHandler<V, ? super A> handler) {
+        if (handler == null) {
+            throw new NullPointerException("handler == null");
+        }
+        Runnable runnable = new Runnable() {
+            @Override
+            public void run() {
+                V result;
+                try {
+                    result = task.call();
+                } catch (Throwable t) {
+                    handler.failed(t, attachment);
+                    return;
+                }
+                handler.completed(result, attachment);
+            }
+        };
+        try {
+            executor.execute(runnable);
+        } catch (RejectedExecutionException e) {
+            handler.failed(e, attachment);
+        }
+    }
+
+    /* a lock of the IOCipherFileChannel, acquired by this channel */
+    private static final class AsyncLock extends FileLock {
+        private final FileLock lock;
+
+        AsyncLock(IOCipherAsynchronousFileChannel channel, FileLock lock) {
+            super(channel, lock.position(), lock.size(), lock.isShared());
+            this.lock = lock;
+        }
+
+        @Override
+        public boolean isValid() {
+            return lock.isValid();
+        }
+
+        @Override
+        public void release() throws IOException {
+            lock.release();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package info.guardianproject.iocipher;
+
+import static info.guardianproject.libcore.io.OsConstants.S_ISDIR;
+import static info.guardianproject.libcore.io.OsConstants.S_ISLNK;
+import static info.guardianproject.libcore.io.OsConstants.S_ISREG;
+import info.guardianproject.libcore.io.StructStat;
+
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link BasicFileAttributes} of a file in an {@link IOCipherFileSystem},
+ * all from the one stat() that read them.
+ */
+final class IOCipherFileAttributes implements BasicFileAttributes {
+
+    private final StructStat stat;
+
+    IOCipherFileAttributes(StructStat stat) {
+        this.stat = stat;
+    }
+
+    @Override
+    public FileTime lastModifiedTime() {
+        return FileTime.from(stat.st_mtime, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public FileTime lastAccessTime() {
+        return FileTime.from(stat.st_atime, TimeUnit.SECONDS);
+    }
+
+    /* sqlfs has no creation time, this is when the attributes last changed */
+    @Override
+    public FileTime creationTime() {
+        return FileTime.from(stat.st_ctime, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public boolean isRegularFile() {
+        return S_ISREG(stat.st_mode);
+    }
+
+    @Override
+    public boolean isDirectory() {
+        return S_ISDIR(stat.st_mode);
+    }
+
+    @Override
+    public boolean isSymbolicLink() {
+        return S_ISLNK(stat.st_mode);
+    }
+
+    @Override
+    public boolean isOther() {
+        return !isRegularFile() && !isDirectory() && !isSymbolicLink();
+    }
+
+    @Override
+    public long size() {
+        return stat.st_size;
+    }
+
+    @Override
+    public Object fileKey() {
+        return Long.valueOf(stat.st_ino);
+    }
+}
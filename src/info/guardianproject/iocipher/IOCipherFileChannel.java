@@ -18,6 +18,7 @@ package info.guardianproject.iocipher;
 
 import static info.guardianproject.libcore.io.OsConstants.EAGAIN;
 import static info.guardianproject.libcore.io.OsConstants.O_ACCMODE;
+import static info.guardianproject.libcore.io.OsConstants.O_APPEND;
 import static info.guardianproject.libcore.io.OsConstants.O_RDONLY;
 import static info.guardianproject.libcore.io.OsConstants.O_WRONLY;
 import static info.guardianproject.libcore.io.OsConstants.SEEK_CUR;
@@ -30,30 +31,64 @@ import info.guardianproject.libcore.io.StructStat;
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.AsynchronousCloseException;
-import java.nio.channels.ByteChannel;
 import java.nio.channels.ClosedByInterruptException;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.FileLockInterruptionException;
 import java.nio.channels.NonReadableChannelException;
 import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.OverlappingFileLockException;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
-import java.nio.channels.spi.AbstractInterruptibleChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 /**
- * IOCipher's implementation of the FileChannel class. It supports basic I/O
- * operations, but not everything you might be accustomed to from the Java NIO
- * classes. It is not a drop in replacement for FileChannel. Unsupported
- * operations: <li>mmap</li> <li>file locking</li> <li>scattered reads /
- * gathered writes (io vectors, readv, writev)</li>
+ * IOCipher's implementation of {@link FileChannel}, so it can be passed to
+ * anything that takes a {@code FileChannel} or, since API 24, a
+ * {@code SeekableByteChannel}. Two things work differently from a channel on
+ * a plain file:
+ * <ul>
+ * <li>{@link #map} can not map the encrypted file into memory. It reads the
+ * region into a direct buffer instead, and a {@link MapMode#READ_WRITE}
+ * buffer is only written back by {@link #force} and {@link #close}.</li>
+ * <li>A container can only be open in one process, so file locks are only
+ * between the channels of this process. Each channel locks like a process of
+ * its own: {@link #lock} waits for the other channels' conflicting locks,
+ * and their shared locks can overlap. Only a lock that overlaps one of the
+ * same channel is an error.</li>
+ * </ul>
  */
-public class IOCipherFileChannel extends AbstractInterruptibleChannel implements
-        ByteChannel {
+public class IOCipherFileChannel extends FileChannel {
+
+    /**
+     * The default number of bytes that {@link #transferTo} and
+     * {@link #transferFrom} copy at a time, a whole number of the container's
+     * blocks, see {@link VirtualFileSystem#getBlockSize()}.
+     */
+    public static final int DEFAULT_TRANSFER_CHUNK_SIZE = 64 * 1024;
 
     private final Object stream;
     private final FileDescriptor fd;
     private final int mode;
 
+    /* the locks held on each open file, by Os.openFileId(), see lockImpl() */
+    private static final Map<Long, List<Lock>> locks = new HashMap<Long, List<Lock>>();
+
+    /* the buffers from map(READ_WRITE) that are still to be written back */
+    private final List<Mapping> mappings = new ArrayList<Mapping>();
+
+    private final Object transferLock = new Object();
+    // 0 until it is set or first needed
+    private int transferChunkSize;
+    private ByteBuffer transferBuffer;
+
     /**
      * Create a new file channel implementation class that wraps the given fd
      * and operates in the specified mode.
@@ -64,10 +99,59 @@ public class IOCipherFileChannel extends AbstractInterruptibleChannel implements
         this.mode = mode;
     }
 
-    private void checkOpen() throws ClosedChannelException {
+    /**
+     * Sets how many bytes {@link #transferTo} and {@link #transferFrom} copy
+     * at a time, which is also how much memory they use. Larger chunks mean
+     * fewer database transactions.
+     *
+     * @param chunkSize the chunk size in bytes, must be positive.
+     */
+    public void setTransferChunkSize(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize: " + chunkSize);
+        }
+        synchronized (transferLock) {
+            transferChunkSize = chunkSize;
+            transferBuffer = null;
+        }
+    }
+
+    public int getTransferChunkSize() {
+        synchronized (transferLock) {
+            return transferChunkSizeLocked();
+        }
+    }
+
+    /* at least a whole block of the container, see VirtualFileSystem.getBlockSize() */
+    private int transferChunkSizeLocked() {
+        if (transferChunkSize == 0) {
+            transferChunkSize = DEFAULT_TRANSFER_CHUNK_SIZE;
+            try {
+                long blockSize = Libcore.os.fstat(fd).st_blksize;
+                if (blockSize > transferChunkSize)
+                    transferChunkSize = (int) blockSize;
+            } catch (ErrnoException e) {
+                // closed, which the transfer itself reports
+            }
+        }
+        return transferChunkSize;
+    }
+
+    /* must be called holding transferLock, the buffer is reused by every transfer */
+    private ByteBuffer getTransferBuffer() {
+        if (transferBuffer == null) {
+            transferBuffer = ByteBuffer.allocateDirect(transferChunkSizeLocked());
+        }
+        transferBuffer.clear();
+        return transferBuffer;
+    }
+
+    /* also writes out what the stream held back, as the channel shares its position */
+    private void checkOpen() throws IOException {
         if (!isOpen()) {
             throw new ClosedChannelException();
         }
+        fd.flushWriteBehind();
     }
 
     private void checkReadable() {
@@ -97,8 +181,13 @@ public class IOCipherFileChannel extends AbstractInterruptibleChannel implements
      */
     @Override
     protected void implCloseChannel() throws IOException {
-        if (stream instanceof Closeable) {
-            ((Closeable) stream).close();
+        try {
+            writeMappings();
+        } finally {
+            releaseLocks();
+            if (stream instanceof Closeable) {
+                ((Closeable) stream).close();
+            }
         }
     }
 
@@ -127,8 +216,10 @@ public class IOCipherFileChannel extends AbstractInterruptibleChannel implements
      * @throws ClosedChannelException if this channel is already closed.
      * @throws IOException if another I/O error occurs.
      */
+    @Override
     public void force(boolean metadata) throws IOException {
         checkOpen();
+        writeMappings();
         if ((mode & O_ACCMODE) != O_RDONLY) {
             try {
                 Libcore.os.fsync(fd); // FUSE only has fsync, not fdatasync
@@ -188,6 +279,7 @@ public class IOCipherFileChannel extends AbstractInterruptibleChannel implements
      *         the start of the file.
      * @throws ClosedChannelException if this channel is closed.
      */
+    @Override
     public long position() throws IOException {
         checkOpen();
         return fd.position;
@@ -208,6 +300,7 @@ public class IOCipherFileChannel extends AbstractInterruptibleChannel implements
      * @throws IllegalArgumentException if the new position is negative.
      * @throws ClosedChannelException if this channel is closed.
      */
+    @Override
     public IOCipherFileChannel position(long newPosition) throws IOException {
         if (newPosition < 0)
             throw new IllegalArgumentException(
@@ -316,6 +409,7 @@ public class IOCipherFileChannel extends AbstractInterruptibleChannel implements
      * @throws NonReadableChannelException if the channel has not been opened in
      *             a mode that permits reading.
      */
+    @Override
     public int read(ByteBuffer buffer, long position) throws IOException {
         if (position < 0)
             throw new IllegalArgumentException(
@@ -331,7 +425,9 @@ public class IOCipherFileChannel extends AbstractInterruptibleChannel implements
      * @throws IOException if an I/O error occurs while getting the size of the
      *             file.
      */
+    @Override
     public long size() throws IOException {
+        checkOpen();
         try {
             StructStat sb = Libcore.os.fstat(fd);
             return sb.st_size;
@@ -426,6 +522,7 @@ public class IOCipherFileChannel extends AbstractInterruptibleChannel implements
      *             this operation.
      * @throws IOException if any I/O error occurs.
      */
+    @Override
     public long transferFrom(ReadableByteChannel src, long position, long count)
             throws IOException {
         checkOpen();
@@ -433,17 +530,44 @@ public class IOCipherFileChannel extends AbstractInterruptibleChannel implements
             throw new ClosedChannelException();
         }
         checkWritable();
-        if (position < 0 || count < 0 || count > Integer.MAX_VALUE) {
+        if (src instanceof IOCipherFileChannel) {
+            ((IOCipherFileChannel) src).checkReadable();
+        }
+        if (position < 0 || count < 0) {
             throw new IllegalArgumentException("position=" + position + " count=" + count);
         }
-        if (position > size()) {
+        if (count == 0 || position > size()) {
             return 0;
         }
 
-        ByteBuffer buffer = ByteBuffer.allocate((int) count);
-        src.read(buffer);
-        buffer.flip();
-        return write(buffer, position);
+        if (src instanceof IOCipherFileChannel) {
+            IOCipherFileChannel srcChannel = (IOCipherFileChannel) src;
+            // sendfile reads what the source's stream held back, and from its position
+            srcChannel.fd.flushWriteBehind();
+            long transferred = sendfile(fd, position, this.mode,
+                    srcChannel.fd, srcChannel.fd.position, count);
+            srcChannel.fd.position += transferred;
+            return transferred;
+        }
+
+        synchronized (transferLock) {
+            ByteBuffer buffer = getTransferBuffer();
+            long transferred = 0;
+            while (transferred < count) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), count - transferred));
+                int bytesRead = src.read(buffer);
+                if (bytesRead <= 0) {
+                    break;
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    write(buffer, position + transferred + buffer.position());
+                }
+                transferred += bytesRead;
+            }
+            return transferred;
+        }
     }
 
     /**
@@ -472,6 +596,7 @@ public class IOCipherFileChannel extends AbstractInterruptibleChannel implements
      *             this operation.
      * @throws IOException if any I/O error occurs.
      */
+    @Override
     public long transferTo(long position, long count, WritableByteChannel target)
             throws IOException {
         checkOpen();
@@ -491,15 +616,64 @@ public class IOCipherFileChannel extends AbstractInterruptibleChannel implements
         }
         count = Math.min(count, size() - position);
 
+        if (target instanceof IOCipherFileChannel) {
+            IOCipherFileChannel targetChannel = (IOCipherFileChannel) target;
+            targetChannel.fd.flushWriteBehind();
+            long transferred = sendfile(targetChannel.fd, targetChannel.fd.position,
+                    targetChannel.mode, fd, position, count);
+            targetChannel.fd.position += transferred;
+            return transferred;
+        }
+
+        synchronized (transferLock) {
+            ByteBuffer buffer = getTransferBuffer();
+            long transferred = 0;
+            while (transferred < count) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), count - transferred));
+                int bytesRead = read(buffer, position + transferred);
+                if (bytesRead <= 0) {
+                    break;
+                }
+                buffer.flip();
+                int bytesWritten = 0;
+                while (buffer.hasRemaining()) {
+                    int n = target.write(buffer);
+                    if (n == 0) {
+                        break; // a non-blocking target is full
+                    }
+                    bytesWritten += n;
+                }
+                transferred += bytesWritten;
+                if (bytesWritten < bytesRead) {
+                    break;
+                }
+            }
+            return transferred;
+        }
+    }
+
+    /**
+     * Copies between two IOCipher files entirely in native code, so none of
+     * the data comes up into Java.
+     */
+    private long sendfile(FileDescriptor outFd, long outOffset, int outMode,
+            FileDescriptor inFd, long inOffset, long count) throws IOException {
+        long transferred = 0;
+        boolean completed = false;
         try {
-            ByteBuffer buffer = ByteBuffer.allocate((int) count);
-            read(buffer, position);
-            buffer.flip();
-            return target.write(buffer);
+            begin();
+            try {
+                transferred = Libcore.os.sendfile(outFd, outOffset, inFd, inOffset, count,
+                        getTransferChunkSize(), outMode);
+            } catch (ErrnoException errnoException) {
+                throw errnoException.rethrowAsIOException();
+            }
+            completed = true;
         } finally {
-            // TODO determine whether we have memory leaking or perf issues here
-            // #567
+            end(completed);
         }
+        return transferred;
     }
 
     /**
@@ -517,6 +691,7 @@ public class IOCipherFileChannel extends AbstractInterruptibleChannel implements
      * @throws IOException if another I/O error occurs.
      * @return this channel.
      */
+    @Override
     public IOCipherFileChannel truncate(long size) throws IOException {
         checkOpen();
         if (size < 0) {
@@ -562,6 +737,7 @@ public class IOCipherFileChannel extends AbstractInterruptibleChannel implements
      *             is closed.
      * @throws IOException if another I/O error occurs.
      */
+    @Override
     public int write(ByteBuffer buffer, long position) throws IOException {
         if (position < 0) {
             throw new IllegalArgumentException("position: " + position);
@@ -569,17 +745,409 @@ public class IOCipherFileChannel extends AbstractInterruptibleChannel implements
         return writeImpl(buffer, position);
     }
 
-    // TODO implement vectored IO? #237
+    /**
+     * Reads bytes from this file channel into {@code length} of the given
+     * buffers, starting at {@code buffers[offset]}, filling each in turn,
+     * starting at the current file position. The file position is increased
+     * by the number of bytes actually read. All of the buffers are read in a
+     * single call to sqlfs, inside one transaction.
+     *
+     * @return the number of bytes actually read, or -1 at end-of-file.
+     * @throws IndexOutOfBoundsException if {@code offset} or {@code length}
+     *             are not valid for {@code buffers}.
+     * @throws AsynchronousCloseException if this channel is closed by another
+     *             thread while this method is executing.
+     * @throws ClosedByInterruptException if another thread interrupts the
+     *             calling thread while this operation is in progress.
+     * @throws ClosedChannelException if this channel is closed.
+     * @throws IOException if another I/O error occurs.
+     * @throws NonReadableChannelException if the channel has not been opened in
+     *             a mode that permits reading.
+     */
+    @Override
+    public long read(ByteBuffer[] buffers, int offset, int length) throws IOException {
+        checkOffsetAndCount(buffers.length, offset, length);
+        checkOpen();
+        checkReadable();
+        IoVec ioVec = new IoVec(buffers, offset, length, true);
+        if (ioVec.byteCount == 0) {
+            return 0;
+        }
+        int bytesRead = 0;
+        boolean completed = false;
+        try {
+            begin();
+            try {
+                bytesRead = Libcore.os.readv(fd, ioVec.buffers, ioVec.offsets, ioVec.byteCounts);
+                if (bytesRead == 0) {
+                    bytesRead = -1;
+                }
+            } catch (ErrnoException errnoException) {
+                throw errnoException.rethrowAsIOException();
+            }
+            completed = true;
+        } finally {
+            end(completed && bytesRead >= 0);
+        }
+        if (bytesRead > 0) {
+            ioVec.didTransfer(bytesRead);
+        }
+        return bytesRead;
+    }
+
+    /**
+     * Writes bytes from {@code length} of the given buffers, starting at
+     * {@code buffers[offset]}, to this file channel, starting at the current
+     * file position. The file position is increased by the number of bytes
+     * written. All of the buffers are written in a single call to sqlfs,
+     * inside one transaction, so either all of them are written or none are.
+     *
+     * @return the number of bytes actually written.
+     * @throws IndexOutOfBoundsException if {@code offset} or {@code length}
+     *             are not valid for {@code buffers}.
+     * @throws AsynchronousCloseException if this channel is closed by another
+     *             thread while this method is executing.
+     * @throws ClosedByInterruptException if another thread interrupts the
+     *             calling thread while this operation is in progress.
+     * @throws ClosedChannelException if this channel is closed.
+     * @throws IOException if another I/O error occurs.
+     * @throws NonWritableChannelException if the channel was not opened for
+     *             writing.
+     */
+    @Override
+    public long write(ByteBuffer[] buffers, int offset, int length) throws IOException {
+        checkOffsetAndCount(buffers.length, offset, length);
+        checkOpen();
+        checkWritable();
+        IoVec ioVec = new IoVec(buffers, offset, length, false);
+        if (ioVec.byteCount == 0) {
+            return 0;
+        }
+        int bytesWritten = 0;
+        boolean completed = false;
+        try {
+            begin();
+            try {
+                bytesWritten = Libcore.os.writev(fd, ioVec.buffers, ioVec.offsets,
+                        ioVec.byteCounts, this.mode);
+            } catch (ErrnoException errnoException) {
+                throw errnoException.rethrowAsIOException();
+            }
+            completed = true;
+        } finally {
+            end(completed);
+        }
+        if (bytesWritten > 0) {
+            ioVec.didTransfer(bytesWritten);
+        }
+        return bytesWritten;
+    }
+
+    /**
+     * Emulates mapping a region of the file into memory: the encrypted file
+     * can not be mapped, so the region is read into a direct buffer of its
+     * own. Bytes beyond the end of the file read as zeros.
+     * <ul>
+     * <li>{@link MapMode#READ_ONLY} returns a read-only copy.</li>
+     * <li>{@link MapMode#PRIVATE} returns a copy that can be changed without
+     * changing the file, just like a private mapping.</li>
+     * <li>{@link MapMode#READ_WRITE} returns a copy that is written back to
+     * the file, all of it, by every {@link #force} and by {@link #close}.
+     * Changes to the file in between are not seen by the buffer.</li>
+     * </ul>
+     * The whole region is held in memory, so map only as much as is needed.
+     *
+     * @throws NonReadableChannelException if this channel was not opened for
+     *             reading.
+     * @throws NonWritableChannelException if {@code mode} is not
+     *             {@code READ_ONLY} and this channel was not opened for
+     *             writing.
+     * @throws UnsupportedOperationException if direct buffers are not
+     *             {@code MappedByteBuffer}s on this platform.
+     */
+    @Override
+    public MappedByteBuffer map(MapMode mapMode, long position, long size) throws IOException {
+        checkOpen();
+        if (mapMode == null) {
+            throw new NullPointerException("mapMode == null");
+        }
+        if (position < 0 || size < 0 || size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("position=" + position + " size=" + size);
+        }
+        checkReadable();
+        if (mapMode != MapMode.READ_ONLY) {
+            checkWritable();
+        }
+        // direct buffers are MappedByteBuffers both in OpenJDK and on Android
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) size);
+        if (!(buffer instanceof MappedByteBuffer)) {
+            throw new UnsupportedOperationException("map");
+        }
+        while (buffer.hasRemaining()) {
+            if (read(buffer, position + buffer.position()) <= 0) {
+                break;
+            }
+        }
+        buffer.clear();
+        if (mapMode == MapMode.READ_ONLY) {
+            ByteBuffer readOnly = buffer.asReadOnlyBuffer();
+            if (readOnly instanceof MappedByteBuffer) {
+                return (MappedByteBuffer) readOnly;
+            }
+        } else if (mapMode == MapMode.READ_WRITE) {
+            synchronized (mappings) {
+                mappings.add(new Mapping(position, buffer));
+            }
+        }
+        return (MappedByteBuffer) buffer;
+    }
+
+    /* writes the READ_WRITE buffers of map() back, even while closing */
+    private void writeMappings() throws IOException {
+        synchronized (mappings) {
+            for (Mapping mapping : mappings) {
+                ByteBuffer buffer = mapping.buffer.duplicate();
+                buffer.clear();
+                try {
+                    while (buffer.hasRemaining()) {
+                        int written = Libcore.os.pwrite(fd, buffer,
+                                mapping.position + buffer.position(), mode & ~O_APPEND);
+                        buffer.position(buffer.position() + written);
+                    }
+                } catch (ErrnoException errnoException) {
+                    throw errnoException.rethrowAsIOException();
+                }
+            }
+        }
+    }
 
-    /*
-     * @Override public long read(ByteBuffer[] buffers, int start, int number)
-     * throws IOException { Arrays.checkOffsetAndCount(buffers.length, offset,
-     * length); checkOpen(); checkReadable(); return transferIoVec(new
-     * IoVec(buffers, offset, length, IoVec.Direction.READV)); }
+    /**
+     * Locks a region of the file against the other channels of this process,
+     * which is all there is for a file in a container. It waits until no
+     * other channel holds an overlapping lock, or for a shared lock, an
+     * overlapping exclusive one.
+     *
+     * @throws OverlappingFileLockException if this channel already holds a
+     *             lock that overlaps the region
+     * @throws AsynchronousCloseException if the channel is closed while
+     *             waiting
+     * @throws FileLockInterruptionException if the thread is interrupted
+     *             while waiting
      */
-    /*
-     * @Override public long write(ByteBuffer[] buffers, int offset, int length)
-     * throws IOException { }
+    @Override
+    public FileLock lock(long position, long size, boolean shared) throws IOException {
+        return lockImpl(position, size, shared, true);
+    }
+
+    /**
+     * Like {@link #lock(long, long, boolean)}, but returns {@code null}
+     * rather than waiting for another channel's lock.
+     *
+     * @throws OverlappingFileLockException if this channel already holds a
+     *             lock that overlaps the region
      */
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+        return lockImpl(position, size, shared, false);
+    }
 
+    private FileLock lockImpl(long position, long size, boolean shared, boolean wait)
+            throws IOException {
+        checkOpen();
+        if (position < 0 || size < 0) {
+            throw new IllegalArgumentException("position=" + position + " size=" + size);
+        }
+        if (shared) {
+            checkReadable();
+        } else {
+            checkWritable();
+        }
+        // every channel on the file shares its entry in the open file table
+        Long key;
+        try {
+            key = Libcore.os.openFileId(fd);
+        } catch (ErrnoException errnoException) {
+            throw errnoException.rethrowAsIOException();
+        }
+        Lock lock = new Lock(this, key, position, size, shared);
+        synchronized (locks) {
+            while (true) {
+                List<Lock> held = locks.get(key);
+                if (held == null) {
+                    held = new ArrayList<Lock>();
+                    locks.put(key, held);
+                }
+                if (!conflicts(held, position, size, shared)) {
+                    held.add(lock);
+                    return lock;
+                }
+                if (!wait) {
+                    return null;
+                }
+                try {
+                    locks.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new FileLockInterruptionException();
+                }
+                if (!isOpen()) {
+                    throw new AsynchronousCloseException();
+                }
+            }
+        }
+    }
+
+    /* must be called holding locks */
+    private boolean conflicts(List<Lock> held, long position, long size, boolean shared) {
+        boolean conflict = false;
+        for (Lock other : held) {
+            if (!other.overlaps(position, size)) {
+                continue;
+            }
+            if (other.channel() == this) {
+                throw new OverlappingFileLockException();
+            }
+            if (!shared || !other.isShared()) {
+                conflict = true;
+            }
+        }
+        return conflict;
+    }
+
+    private void releaseLocks() {
+        synchronized (locks) {
+            Iterator<List<Lock>> files = locks.values().iterator();
+            while (files.hasNext()) {
+                List<Lock> held = files.next();
+                Iterator<Lock> it = held.iterator();
+                while (it.hasNext()) {
+                    if (it.next().channel() == this) {
+                        it.remove();
+                    }
+                }
+                if (held.isEmpty()) {
+                    files.remove();
+                }
+            }
+            // and the waiting lock() calls of this channel see that it is closed
+            locks.notifyAll();
+        }
+    }
+
+    private static final class Lock extends FileLock {
+        private final Long key;
+        private boolean released;
+
+        Lock(IOCipherFileChannel channel, Long key, long position, long size, boolean shared) {
+            super(channel, position, size, shared);
+            this.key = key;
+        }
+
+        @Override
+        public boolean isValid() {
+            synchronized (locks) {
+                return !released && channel().isOpen();
+            }
+        }
+
+        @Override
+        public void release() throws IOException {
+            if (!channel().isOpen()) {
+                throw new ClosedChannelException();
+            }
+            synchronized (locks) {
+                if (released) {
+                    return;
+                }
+                released = true;
+                List<Lock> held = locks.get(key);
+                if (held != null) {
+                    held.remove(this);
+                    if (held.isEmpty()) {
+                        locks.remove(key);
+                    }
+                }
+                locks.notifyAll();
+            }
+        }
+    }
+
+    private static final class Mapping {
+        final long position;
+        final ByteBuffer buffer;
+
+        Mapping(long position, ByteBuffer buffer) {
+            this.position = position;
+            this.buffer = buffer;
+        }
+    }
+
+    private static void checkOffsetAndCount(int arrayLength, int offset, int count) {
+        if ((offset | count) < 0 || offset > arrayLength || arrayLength - offset < count) {
+            throw new IndexOutOfBoundsException("length=" + arrayLength + "; offset=" + offset
+                    + "; count=" + count);
+        }
+    }
+
+    /**
+     * The buffers of a scattering read or gathering write in the form that
+     * {@link Libcore#os} wants them: direct buffers are passed as they are so
+     * sqlfs works on their memory in place, heap buffers are passed as their
+     * backing byte[].
+     */
+    private static final class IoVec {
+        private final ByteBuffer[] byteBuffers;
+        private final int offset;
+        final Object[] buffers;
+        final int[] offsets;
+        final int[] byteCounts;
+        final int byteCount;
+
+        IoVec(ByteBuffer[] byteBuffers, int offset, int length, boolean isRead) {
+            this.byteBuffers = byteBuffers;
+            this.offset = offset;
+            buffers = new Object[length];
+            offsets = new int[length];
+            byteCounts = new int[length];
+            int total = 0;
+            for (int i = 0; i < length; i++) {
+                ByteBuffer b = byteBuffers[offset + i];
+                if (b == null) {
+                    throw new NullPointerException("buffers[" + (offset + i) + "] == null");
+                }
+                if (isRead && b.isReadOnly()) {
+                    throw new IllegalArgumentException("read-only buffer");
+                }
+                if (b.isDirect()) {
+                    buffers[i] = b;
+                    offsets[i] = b.position();
+                } else if (b.hasArray()) {
+                    buffers[i] = b.array();
+                    offsets[i] = b.arrayOffset() + b.position();
+                } else {
+                    // a read-only heap buffer does not give out its array
+                    byte[] copy = new byte[b.remaining()];
+                    b.duplicate().get(copy);
+                    buffers[i] = copy;
+                    offsets[i] = 0;
+                }
+                // the native call returns an int, so stop short of overflowing it
+                byteCounts[i] = Math.min(b.remaining(), Integer.MAX_VALUE - total);
+                total += byteCounts[i];
+            }
+            byteCount = total;
+        }
+
+        /**
+         * Moves the buffers' positions past the bytes that were transferred.
+         */
+        void didTransfer(int count) {
+            for (int i = 0; i < byteCounts.length && count > 0; i++) {
+                ByteBuffer b = byteBuffers[offset + i];
+                int n = Math.min(count, byteCounts[i]);
+                b.position(b.position() + n);
+                count -= n;
+            }
+        }
+    }
 }
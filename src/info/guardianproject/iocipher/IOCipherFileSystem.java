@@ -0,0 +1,233 @@
+package info.guardianproject.iocipher;
+
+import java.nio.file.ClosedFileSystemException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.UserPrincipalLookupService;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.Collections;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A {@link FileSystem} on the container of a {@link VirtualFileSystem}, so
+ * that code written against {@link java.nio.file.Files} can work on it.
+ * Get one from {@link IOCipherFileSystemProvider}. Closing it does not
+ * unmount the {@code VirtualFileSystem}, that is still up to its owner.
+ * <p>
+ * This needs {@code java.nio.file}, which Android only has since API 26.
+ */
+public final class IOCipherFileSystem extends FileSystem {
+
+    private final IOCipherFileSystemProvider provider;
+    private final VirtualFileSystem vfs;
+    private final String name;
+    private final IOCipherPath root;
+    private volatile boolean open = true;
+
+    IOCipherFileSystem(IOCipherFileSystemProvider provider, VirtualFileSystem vfs, String name) {
+        this.provider = provider;
+        this.vfs = vfs;
+        this.name = name;
+        this.root = new IOCipherPath(this, "/");
+    }
+
+    /**
+     * @return the {@link VirtualFileSystem} this file system works on
+     */
+    public VirtualFileSystem getVirtualFileSystem() {
+        return vfs;
+    }
+
+    /**
+     * @return the authority of this file system's URIs, empty for the one on
+     *         {@link VirtualFileSystem#get()}
+     */
+    public String getName() {
+        return name;
+    }
+
+    Path getRoot() {
+        return root;
+    }
+
+    void checkOpen() {
+        if (!open) {
+            throw new ClosedFileSystemException();
+        }
+    }
+
+    @Override
+    public FileSystemProvider provider() {
+        return provider;
+    }
+
+    /**
+     * @throws UnsupportedOperationException for the file system on
+     *         {@link VirtualFileSystem#get()}, which is always open
+     */
+    @Override
+    public void close() {
+        if (name.isEmpty()) {
+            throw new UnsupportedOperationException("the default file system can not be closed");
+        }
+        if (open) {
+            open = false;
+            provider.remove(this);
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return false;
+    }
+
+    @Override
+    public String getSeparator() {
+        return "/";
+    }
+
+    @Override
+    public Iterable<Path> getRootDirectories() {
+        return Collections.<Path> singletonList(root);
+    }
+
+    @Override
+    public Iterable<FileStore> getFileStores() {
+        return Collections.<FileStore> emptyList();
+    }
+
+    @Override
+    public Set<String> supportedFileAttributeViews() {
+        return Collections.singleton("basic");
+    }
+
+    @Override
+    public Path getPath(String first, String... more) {
+        if (more.length == 0) {
+            return new IOCipherPath(this, first);
+        }
+        StringBuilder path = new StringBuilder(first);
+        for (String segment : more) {
+            if (segment.isEmpty()) {
+                continue;
+            }
+            if (path.length() > 0) {
+                path.append('/');
+            }
+            path.append(segment);
+        }
+        return new IOCipherPath(this, path.toString());
+    }
+
+    /**
+     * Supports the {@code glob} and {@code regex} syntaxes, matched against
+     * the whole path.
+     */
+    @Override
+    public PathMatcher getPathMatcher(String syntaxAndPattern) {
+        int colon = syntaxAndPattern.indexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException(syntaxAndPattern);
+        }
+        String syntax = syntaxAndPattern.substring(0, colon);
+        String pattern = syntaxAndPattern.substring(colon + 1);
+        final Pattern regex;
+        if (syntax.equalsIgnoreCase("regex")) {
+            regex = Pattern.compile(pattern);
+        } else if (syntax.equalsIgnoreCase("glob")) {
+            regex = Pattern.compile(globToRegex(pattern));
+        } else {
+            throw new UnsupportedOperationException("Syntax '" + syntax + "' not recognized");
+        }
+        return new PathMatcher() {
+            @Override
+            public boolean matches(Path path) {
+                return regex.matcher(path.toString()).matches();
+            }
+        };
+    }
+
+    private static String globToRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        boolean inGroup = false;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            switch (c) {
+                case '*':
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                        regex.append(".*");
+                        i++;
+                    } else {
+                        regex.append("[^/]*");
+                    }
+                    break;
+                case '?':
+                    regex.append("[^/]");
+                    break;
+                case '{':
+                    if (inGroup) {
+                        throw new PatternSyntaxException("Cannot nest groups", glob, i);
+                    }
+                    regex.append("(?:");
+                    inGroup = true;
+                    break;
+                case '}':
+                    regex.append(inGroup ? ")" : "\\}");
+                    inGroup = false;
+                    break;
+                case ',':
+                    regex.append(inGroup ? "|" : ",");
+                    break;
+                case '[':
+                    int end = glob.indexOf(']', i + 1);
+                    if (end < 0) {
+                        throw new PatternSyntaxException("Missing ']'", glob, i);
+                    }
+                    String set = glob.substring(i + 1, end);
+                    regex.append('[');
+                    if (set.startsWith("!")) {
+                        regex.append('^');
+                        set = set.substring(1);
+                    }
+                    regex.append(set.replace("\\", "\\\\").replace("[", "\\[")).append(']');
+                    i = end;
+                    break;
+                case '\\':
+                    if (++i == glob.length()) {
+                        throw new PatternSyntaxException("No character to escape", glob, i - 1);
+                    }
+                    regex.append(Pattern.quote(String.valueOf(glob.charAt(i))));
+                    break;
+                default:
+                    if (".^$+|()]".indexOf(c) >= 0) {
+                        regex.append('\\');
+                    }
+                    regex.append(c);
+            }
+        }
+        if (inGroup) {
+            throw new PatternSyntaxException("Missing '}'", glob, glob.length() - 1);
+        }
+        return regex.toString();
+    }
+
+    @Override
+    public UserPrincipalLookupService getUserPrincipalLookupService() {
+        throw new UnsupportedOperationException("getUserPrincipalLookupService");
+    }
+
+    @Override
+    public WatchService newWatchService() {
+        throw new UnsupportedOperationException("newWatchService");
+    }
+}
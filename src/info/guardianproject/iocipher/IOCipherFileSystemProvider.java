@@ -0,0 +1,768 @@
+package info.guardianproject.iocipher;
+
+import static info.guardianproject.libcore.io.OsConstants.EACCES;
+import static info.guardianproject.libcore.io.OsConstants.EEXIST;
+import static info.guardianproject.libcore.io.OsConstants.ENOENT;
+import static info.guardianproject.libcore.io.OsConstants.ENOTEMPTY;
+import static info.guardianproject.libcore.io.OsConstants.EPERM;
+import static info.guardianproject.libcore.io.OsConstants.O_APPEND;
+import static info.guardianproject.libcore.io.OsConstants.O_CREAT;
+import static info.guardianproject.libcore.io.OsConstants.O_EXCL;
+import static info.guardianproject.libcore.io.OsConstants.O_RDONLY;
+import static info.guardianproject.libcore.io.OsConstants.O_RDWR;
+import static info.guardianproject.libcore.io.OsConstants.O_TRUNC;
+import static info.guardianproject.libcore.io.OsConstants.O_WRONLY;
+import static info.guardianproject.libcore.io.OsConstants.R_OK;
+import static info.guardianproject.libcore.io.OsConstants.S_IRWXU;
+import static info.guardianproject.libcore.io.OsConstants.S_ISDIR;
+import static info.guardianproject.libcore.io.OsConstants.W_OK;
+import static info.guardianproject.libcore.io.OsConstants.X_OK;
+import info.guardianproject.libcore.io.ErrnoException;
+import info.guardianproject.libcore.io.IoUtils;
+import info.guardianproject.libcore.io.Os;
+import info.guardianproject.libcore.io.StructStat;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.AccessMode;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link FileSystemProvider} of the {@code iocipher} URI scheme, so that
+ * {@link java.nio.file.Files}, {@code Files.walk()},
+ * {@code Files.newByteChannel()} and the libraries built on them can work on
+ * IOCipher containers. It is built on the same {@link Os} calls as
+ * {@link File} and {@link IOCipherFileChannel}.
+ * <p>
+ * {@code iocipher:///path} is a path on {@link VirtualFileSystem#get()}. Any
+ * other {@link VirtualFileSystem} gets a name with
+ * {@link #newFileSystem(String, VirtualFileSystem)}, after which
+ * {@code iocipher://name/path} are paths on it:
+ *
+ * <pre>
+ * IOCipherFileSystemProvider provider = IOCipherFileSystemProvider.provider();
+ * FileSystem fs = provider.newFileSystem("photos", vfs);
+ * for (Path p : Files.newDirectoryStream(fs.getPath("/albums"))) {
+ *     BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class);
+ *     // ...
+ * }
+ * </pre>
+ *
+ * Android only looks for installed providers in the boot class path, so
+ * {@code Paths.get(URI)} and {@code FileSystems.getFileSystem(URI)} do not
+ * find this one there; go through {@link #provider()} instead. It needs
+ * {@code java.nio.file}, which Android only has since API 26.
+ * <p>
+ * Only the {@code basic} file attribute view is supported, and symbolic
+ * links are always followed, even with {@code NOFOLLOW_LINKS}. Directory
+ * streams read the entries a page at a time, see {@link DirectoryStream}.
+ */
+public class IOCipherFileSystemProvider extends FileSystemProvider {
+
+    /** The URI scheme of IOCipher paths. */
+    public static final String SCHEME = "iocipher";
+
+    /**
+     * The key of the {@link VirtualFileSystem} in the {@code env} of
+     * {@link #newFileSystem(URI, Map)}.
+     */
+    public static final String VFS = "vfs";
+
+    private static IOCipherFileSystemProvider provider;
+
+    // shared by every instance, since a ServiceLoader can create its own
+    private static final Map<String, IOCipherFileSystem> fileSystems =
+            new HashMap<String, IOCipherFileSystem>();
+
+    /**
+     * @return the shared instance of this provider
+     */
+    public static synchronized IOCipherFileSystemProvider provider() {
+        if (provider == null)
+            provider = new IOCipherFileSystemProvider();
+        return provider;
+    }
+
+    @Override
+    public String getScheme() {
+        return SCHEME;
+    }
+
+    private static String getName(URI uri) {
+        if (!SCHEME.equalsIgnoreCase(uri.getScheme())) {
+            throw new IllegalArgumentException("URI scheme is not \"" + SCHEME + "\": " + uri);
+        }
+        return uri.getAuthority() == null ? "" : uri.getAuthority();
+    }
+
+    /**
+     * Opens a file system named after the authority of {@code uri}, on the
+     * {@link VirtualFileSystem} that {@code env} maps {@link #VFS} to.
+     */
+    @Override
+    public FileSystem newFileSystem(URI uri, Map<String, ?> env) throws IOException {
+        String name = getName(uri);
+        Object vfs = env.get(VFS);
+        if (!(vfs instanceof VirtualFileSystem)) {
+            throw new IllegalArgumentException("env has no VirtualFileSystem for \"" + VFS + "\"");
+        }
+        return newFileSystem(name, (VirtualFileSystem) vfs);
+    }
+
+    /**
+     * Opens a file system on {@code vfs} whose URIs are
+     * {@code iocipher://name/path}, until it is closed.
+     *
+     * @throws FileSystemAlreadyExistsException if one by that name is open
+     */
+    public IOCipherFileSystem newFileSystem(String name, VirtualFileSystem vfs) {
+        if (name.isEmpty()) {
+            throw new FileSystemAlreadyExistsException("the default file system is always open");
+        }
+        synchronized (fileSystems) {
+            if (fileSystems.containsKey(name)) {
+                throw new FileSystemAlreadyExistsException(name);
+            }
+            IOCipherFileSystem fs = new IOCipherFileSystem(this, vfs, name);
+            fileSystems.put(name, fs);
+            return fs;
+        }
+    }
+
+    @Override
+    public FileSystem getFileSystem(URI uri) {
+        return getFileSystem(getName(uri));
+    }
+
+    private IOCipherFileSystem getFileSystem(String name) {
+        synchronized (fileSystems) {
+            IOCipherFileSystem fs = fileSystems.get(name);
+            if (fs == null) {
+                if (!name.isEmpty()) {
+                    throw new FileSystemNotFoundException(name);
+                }
+                fs = new IOCipherFileSystem(this, VirtualFileSystem.get(), name);
+                fileSystems.put(name, fs);
+            }
+            return fs;
+        }
+    }
+
+    void remove(IOCipherFileSystem fs) {
+        synchronized (fileSystems) {
+            fileSystems.remove(fs.getName());
+        }
+    }
+
+    @Override
+    public Path getPath(URI uri) {
+        return getFileSystem(uri).getPath(uri.getPath());
+    }
+
+    private static IOCipherPath toIOCipherPath(Path path) {
+        if (path == null) {
+            throw new NullPointerException("path == null");
+        }
+        if (!(path instanceof IOCipherPath)) {
+            throw new ProviderMismatchException();
+        }
+        ((IOCipherFileSystem) path.getFileSystem()).checkOpen();
+        return (IOCipherPath) path;
+    }
+
+    private static Os os(IOCipherPath path) {
+        return ((IOCipherFileSystem) path.getFileSystem()).getVirtualFileSystem().os;
+    }
+
+    /* the java.nio.file exception for what went wrong */
+    private static IOException translate(ErrnoException e, Path file, Path other) {
+        String a = file == null ? null : file.toString();
+        String b = other == null ? null : other.toString();
+        FileSystemException result;
+        if (e.errno == ENOENT) {
+            result = new NoSuchFileException(a, b, null);
+        } else if (e.errno == EEXIST) {
+            result = new FileAlreadyExistsException(a, b, null);
+        } else if (e.errno == ENOTEMPTY) {
+            result = new DirectoryNotEmptyException(a);
+        } else if (e.errno == EACCES || e.errno == EPERM) {
+            result = new AccessDeniedException(a, b, null);
+        } else {
+            result = new FileSystemException(a, b, e.getMessage());
+        }
+        result.initCause(e);
+        return result;
+    }
+
+    /* Posix.lstat() is not implemented, so links are always followed */
+    private static StructStat stat(IOCipherPath path, LinkOption... options)
+            throws IOException {
+        try {
+            return os(path).stat(path.toVfsPath());
+        } catch (ErrnoException e) {
+            throw translate(e, path, null);
+        }
+    }
+
+    private static boolean exists(IOCipherPath path) throws IOException {
+        try {
+            stat(path);
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    private static void checkNoAttributes(FileAttribute<?>... attrs) {
+        if (attrs.length > 0) {
+            throw new UnsupportedOperationException("file attributes: " + attrs[0].name());
+        }
+    }
+
+    private static int openFlags(Set<? extends OpenOption> options) {
+        for (OpenOption option : options) {
+            if (option == StandardOpenOption.DELETE_ON_CLOSE) {
+                throw new UnsupportedOperationException(option.toString());
+            }
+            if (!(option instanceof StandardOpenOption) && option != LinkOption.NOFOLLOW_LINKS) {
+                throw new UnsupportedOperationException(option.toString());
+            }
+        }
+        boolean append = options.contains(StandardOpenOption.APPEND);
+        boolean write = append || options.contains(StandardOpenOption.WRITE);
+        boolean read = options.contains(StandardOpenOption.READ) || !write;
+        if (append && options.contains(StandardOpenOption.READ)) {
+            throw new IllegalArgumentException("READ + APPEND not allowed");
+        }
+        if (append && options.contains(StandardOpenOption.TRUNCATE_EXISTING)) {
+            throw new IllegalArgumentException("APPEND + TRUNCATE_EXISTING not allowed");
+        }
+        int flags = read && write ? O_RDWR : (write ? O_WRONLY : O_RDONLY);
+        if (write) {
+            if (options.contains(StandardOpenOption.CREATE_NEW)) {
+                flags |= O_CREAT | O_EXCL;
+            } else if (options.contains(StandardOpenOption.CREATE)) {
+                flags |= O_CREAT;
+            }
+            if (options.contains(StandardOpenOption.TRUNCATE_EXISTING)) {
+                flags |= O_TRUNC;
+            }
+            if (append) {
+                flags |= O_APPEND;
+            }
+        }
+        return flags;
+    }
+
+    /**
+     * Returns an {@link IOCipherFileChannel}. {@code DELETE_ON_CLOSE} and file
+     * attributes are not supported, and {@code SYNC} and {@code DSYNC} change
+     * nothing since every write is committed to the container anyway.
+     */
+    @Override
+    public IOCipherFileChannel newFileChannel(Path path, Set<? extends OpenOption> options,
+            FileAttribute<?>... attrs) throws IOException {
+        IOCipherPath p = toIOCipherPath(path);
+        checkNoAttributes(attrs);
+        int flags = openFlags(options);
+        final FileDescriptor fd;
+        try {
+            fd = os(p).open(p.toVfsPath(), flags, 0600);
+        } catch (ErrnoException e) {
+            throw translate(e, p, null);
+        }
+        try {
+            // reading a directory is an error in java.nio too
+            if (S_ISDIR(os(p).fstat(fd).st_mode)) {
+                IoUtils.closeQuietly(fd);
+                throw new FileSystemException(p.toString(), null, "Is a directory");
+            }
+        } catch (ErrnoException e) {
+            IoUtils.closeQuietly(fd);
+            throw translate(e, p, null);
+        }
+        Closeable closer = new Closeable() {
+            @Override
+            public void close() throws IOException {
+                IoUtils.close(fd);
+            }
+        };
+        return new IOCipherFileChannel(closer, fd, flags);
+    }
+
+    /**
+     * Returns an {@link IOCipherAsynchronousFileChannel} with the same options
+     * as {@link #newFileChannel}. Without an {@code executor}, it runs on one
+     * shared by the container.
+     */
+    @Override
+    public AsynchronousFileChannel newAsynchronousFileChannel(Path path,
+            Set<? extends OpenOption> options, ExecutorService executor,
+            FileAttribute<?>... attrs) throws IOException {
+        IOCipherPath p = toIOCipherPath(path);
+        IOCipherFileChannel channel = newFileChannel(p, options, attrs);
+        if (executor == null) {
+            executor = ((IOCipherFileSystem) p.getFileSystem()).getVirtualFileSystem()
+                    .asyncExecutor();
+        }
+        return new IOCipherAsynchronousFileChannel(channel, executor);
+    }
+
+    /**
+     * Same as {@link #newFileChannel}.
+     */
+    @Override
+    public SeekableByteChannel newByteChannel(Path path, Set<? extends OpenOption> options,
+            FileAttribute<?>... attrs) throws IOException {
+        return newFileChannel(path, options, attrs);
+    }
+
+    /**
+     * Reads through a {@link FileInputStream}, which can only be opened for
+     * reading.
+     */
+    @Override
+    public InputStream newInputStream(Path path, OpenOption... options) throws IOException {
+        IOCipherPath p = toIOCipherPath(path);
+        for (OpenOption option : options) {
+            if (option == StandardOpenOption.APPEND || option == StandardOpenOption.WRITE) {
+                throw new UnsupportedOperationException("'" + option + "' not allowed");
+            }
+        }
+        try {
+            return new FileInputStream((File) p.toFile());
+        } catch (FileNotFoundException e) {
+            if (e.getCause() instanceof ErrnoException) {
+                throw translate((ErrnoException) e.getCause(), p, null);
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public OutputStream newOutputStream(Path path, OpenOption... options) throws IOException {
+        toIOCipherPath(path);
+        return super.newOutputStream(path, options);
+    }
+
+    /**
+     * The entries are read a page at a time as they are iterated, each page
+     * with a single query, see {@link File#newDirectoryStream()}.
+     */
+    @Override
+    public java.nio.file.DirectoryStream<Path> newDirectoryStream(final Path dir,
+            final java.nio.file.DirectoryStream.Filter<? super Path> filter) throws IOException {
+        final IOCipherPath p = toIOCipherPath(dir);
+        File file = (File) p.toFile();
+        final DirectoryStream entries;
+        try {
+            entries = file.newDirectoryStream();
+        } catch (IOException e) {
+            if (!exists(p)) {
+                throw new NoSuchFileException(p.toString());
+            }
+            if (!file.isDirectory()) {
+                throw new NotDirectoryException(p.toString());
+            }
+            throw e;
+        }
+        return new java.nio.file.DirectoryStream<Path>() {
+            @Override
+            public Iterator<Path> iterator() {
+                final Iterator<FileEntry> iterator = entries.iterator();
+                return new Iterator<Path>() {
+                    private Path next;
+
+                    @Override
+                    public boolean hasNext() {
+                        while (next == null && fetch()) {
+                            Path entry = p.resolve(iterator.next().getName());
+                            try {
+                                if (filter == null || filter.accept(entry)) {
+                                    next = entry;
+                                }
+                            } catch (IOException e) {
+                                throw new DirectoryIteratorException(e);
+                            }
+                        }
+                        return next != null;
+                    }
+
+                    /* the container's read errors as java.nio reports them */
+                    private boolean fetch() {
+                        try {
+                            return iterator.hasNext();
+                        } catch (IllegalStateException e) {
+                            if (e.getCause() instanceof IOException) {
+                                throw new DirectoryIteratorException((IOException) e.getCause());
+                            }
+                            throw e;
+                        }
+                    }
+
+                    @Override
+                    public Path next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        Path result = next;
+                        next = null;
+                        return result;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public void close() {
+                entries.close();
+            }
+        };
+    }
+
+    @Override
+    public void createDirectory(Path dir, FileAttribute<?>... attrs) throws IOException {
+        IOCipherPath p = toIOCipherPath(dir);
+        checkNoAttributes(attrs);
+        try {
+            os(p).mkdir(p.toVfsPath(), S_IRWXU);
+        } catch (ErrnoException e) {
+            throw translate(e, p, null);
+        }
+    }
+
+    @Override
+    public void createSymbolicLink(Path link, Path target, FileAttribute<?>... attrs)
+            throws IOException {
+        IOCipherPath p = toIOCipherPath(link);
+        toIOCipherPath(target);
+        checkNoAttributes(attrs);
+        try {
+            os(p).symlink(target.toString(), p.toVfsPath());
+        } catch (ErrnoException e) {
+            throw translate(e, p, target);
+        }
+    }
+
+    @Override
+    public void delete(Path path) throws IOException {
+        IOCipherPath p = toIOCipherPath(path);
+        try {
+            os(p).remove(p.toVfsPath());
+        } catch (ErrnoException e) {
+            throw translate(e, p, null);
+        }
+    }
+
+    /* clears the way for copy() and move(), unless it must not be replaced */
+    private static void prepareTarget(IOCipherPath target, boolean replace) throws IOException {
+        if (exists(target)) {
+            if (!replace) {
+                throw new FileAlreadyExistsException(target.toString());
+            }
+            try {
+                os(target).remove(target.toVfsPath());
+            } catch (ErrnoException e) {
+                throw translate(e, target, null);
+            }
+        }
+    }
+
+    /* between two containers, only the contents of a file can be copied */
+    private void copyBetween(IOCipherPath source, IOCipherPath target) throws IOException {
+        if (readAttributes(source, BasicFileAttributes.class).isDirectory()) {
+            createDirectory(target);
+            return;
+        }
+        InputStream in = newInputStream(source);
+        try {
+            OutputStream out = newOutputStream(target, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE);
+            try {
+                byte[] buffer = new byte[IOCipherFileChannel.DEFAULT_TRANSFER_CHUNK_SIZE];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, count);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Within one container, the file is copied in SQL without decrypting it
+     * in Java, see {@link File#copyTo(File)}. Like {@code Files.copy()}, a
+     * directory is copied without its entries.
+     */
+    @Override
+    public void copy(Path source, Path target, CopyOption... options) throws IOException {
+        IOCipherPath from = toIOCipherPath(source);
+        IOCipherPath to = toIOCipherPath(target);
+        List<CopyOption> opts = Arrays.asList(options);
+        if (opts.contains(StandardCopyOption.ATOMIC_MOVE)) {
+            throw new UnsupportedOperationException("ATOMIC_MOVE");
+        }
+        stat(from);
+        prepareTarget(to, opts.contains(StandardCopyOption.REPLACE_EXISTING));
+        if (from.getFileSystem() != to.getFileSystem()) {
+            copyBetween(from, to);
+            return;
+        }
+        try {
+            os(from).copy(from.toVfsPath(), to.toVfsPath(), false);
+        } catch (ErrnoException e) {
+            throw translate(e, from, to);
+        }
+    }
+
+    /**
+     * Within one container, a move is a rename, which is always atomic.
+     */
+    @Override
+    public void move(Path source, Path target, CopyOption... options) throws IOException {
+        IOCipherPath from = toIOCipherPath(source);
+        IOCipherPath to = toIOCipherPath(target);
+        List<CopyOption> opts = Arrays.asList(options);
+        boolean atomic = opts.contains(StandardCopyOption.ATOMIC_MOVE);
+        if (from.getFileSystem() != to.getFileSystem()) {
+            if (atomic) {
+                throw new java.nio.file.AtomicMoveNotSupportedException(from.toString(),
+                        to.toString(), "different containers");
+            }
+            stat(from);
+            prepareTarget(to, opts.contains(StandardCopyOption.REPLACE_EXISTING));
+            copyBetween(from, to);
+            delete(from);
+            return;
+        }
+        if (!atomic) {
+            stat(from);
+            if (!from.equals(to)) {
+                prepareTarget(to, opts.contains(StandardCopyOption.REPLACE_EXISTING));
+            }
+        }
+        try {
+            os(from).rename(from.toVfsPath(), to.toVfsPath());
+        } catch (ErrnoException e) {
+            throw translate(e, from, to);
+        }
+    }
+
+    @Override
+    public boolean isSameFile(Path path, Path path2) throws IOException {
+        IOCipherPath a = toIOCipherPath(path);
+        if (a.equals(path2)) {
+            return true;
+        }
+        if (!(path2 instanceof IOCipherPath) || a.getFileSystem() != path2.getFileSystem()) {
+            return false;
+        }
+        return stat(a).st_ino == stat((IOCipherPath) path2).st_ino;
+    }
+
+    @Override
+    public boolean isHidden(Path path) {
+        Path name = toIOCipherPath(path).getFileName();
+        return name != null && name.toString().startsWith(".");
+    }
+
+    @Override
+    public FileStore getFileStore(Path path) {
+        throw new UnsupportedOperationException("getFileStore");
+    }
+
+    @Override
+    public void checkAccess(Path path, AccessMode... modes) throws IOException {
+        IOCipherPath p = toIOCipherPath(path);
+        stat(p);
+        int mode = 0;
+        for (AccessMode m : modes) {
+            if (m == AccessMode.READ) {
+                mode |= R_OK;
+            } else if (m == AccessMode.WRITE) {
+                mode |= W_OK;
+            } else if (m == AccessMode.EXECUTE) {
+                mode |= X_OK;
+            }
+        }
+        if (mode == 0) {
+            return;
+        }
+        try {
+            if (!os(p).access(p.toVfsPath(), mode)) {
+                throw new AccessDeniedException(p.toString());
+            }
+        } catch (ErrnoException e) {
+            throw translate(e, p, null);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <V extends FileAttributeView> V getFileAttributeView(Path path, Class<V> type,
+            LinkOption... options) {
+        IOCipherPath p = toIOCipherPath(path);
+        if (type == BasicFileAttributeView.class) {
+            return (V) new AttributeView(p, options);
+        }
+        return null;
+    }
+
+    /**
+     * All the attributes come from one stat() of the file.
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public <A extends BasicFileAttributes> A readAttributes(Path path, Class<A> type,
+            LinkOption... options) throws IOException {
+        IOCipherPath p = toIOCipherPath(path);
+        if (type != BasicFileAttributes.class) {
+            throw new UnsupportedOperationException(type.getName());
+        }
+        return (A) new IOCipherFileAttributes(stat(p, options));
+    }
+
+    private static final String[] BASIC_ATTRIBUTES = {
+            "lastModifiedTime", "lastAccessTime", "creationTime", "size", "isRegularFile",
+            "isDirectory", "isSymbolicLink", "isOther", "fileKey",
+    };
+
+    private static Object getAttribute(BasicFileAttributes attrs, String name) {
+        if (name.equals("lastModifiedTime"))
+            return attrs.lastModifiedTime();
+        if (name.equals("lastAccessTime"))
+            return attrs.lastAccessTime();
+        if (name.equals("creationTime"))
+            return attrs.creationTime();
+        if (name.equals("size"))
+            return attrs.size();
+        if (name.equals("isRegularFile"))
+            return attrs.isRegularFile();
+        if (name.equals("isDirectory"))
+            return attrs.isDirectory();
+        if (name.equals("isSymbolicLink"))
+            return attrs.isSymbolicLink();
+        if (name.equals("isOther"))
+            return attrs.isOther();
+        if (name.equals("fileKey"))
+            return attrs.fileKey();
+        throw new IllegalArgumentException("'" + name + "' not recognized");
+    }
+
+    /* the names of "view:name,name" or "name,name", in the basic view */
+    private static String[] attributeNames(String attributes) {
+        int colon = attributes.indexOf(':');
+        if (colon >= 0) {
+            String view = attributes.substring(0, colon);
+            if (!view.equals("basic")) {
+                throw new UnsupportedOperationException("View '" + view + "' not available");
+            }
+            attributes = attributes.substring(colon + 1);
+        }
+        return attributes.equals("*") ? BASIC_ATTRIBUTES : attributes.split(",");
+    }
+
+    @Override
+    public Map<String, Object> readAttributes(Path path, String attributes,
+            LinkOption... options) throws IOException {
+        String[] names = attributeNames(attributes);
+        BasicFileAttributes attrs = readAttributes(path, BasicFileAttributes.class, options);
+        Map<String, Object> result = new HashMap<String, Object>();
+        for (String name : names) {
+            result.put(name, getAttribute(attrs, name));
+        }
+        return result;
+    }
+
+    /**
+     * Only {@code lastModifiedTime} can be set.
+     */
+    @Override
+    public void setAttribute(Path path, String attribute, Object value, LinkOption... options)
+            throws IOException {
+        String[] names = attributeNames(attribute);
+        if (names.length != 1 || !names[0].equals("lastModifiedTime")) {
+            throw new UnsupportedOperationException("'" + attribute + "' can not be set");
+        }
+        new AttributeView(toIOCipherPath(path), options).setTimes((FileTime) value, null, null);
+    }
+
+    private static final class AttributeView implements BasicFileAttributeView {
+        private final IOCipherPath path;
+        private final LinkOption[] options;
+
+        AttributeView(IOCipherPath path, LinkOption... options) {
+            this.path = path;
+            this.options = options;
+        }
+
+        @Override
+        public String name() {
+            return "basic";
+        }
+
+        @Override
+        public BasicFileAttributes readAttributes() throws IOException {
+            return new IOCipherFileAttributes(stat(path, options));
+        }
+
+        /* sqlfs keeps no creation time, and last access times are ignored */
+        @Override
+        public void setTimes(FileTime lastModifiedTime, FileTime lastAccessTime,
+                FileTime createTime) throws IOException {
+            if (lastModifiedTime == null) {
+                return;
+            }
+            stat(path, options);
+            File file = (File) path.toFile();
+            if (!file.setLastModified(lastModifiedTime.to(TimeUnit.MILLISECONDS))) {
+                throw new FileSystemException(path.toString(), null, "setLastModified failed");
+            }
+        }
+    }
+}
@@ -0,0 +1,380 @@
+package info.guardianproject.iocipher;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.FileSystem;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A {@link Path} in an {@link IOCipherFileSystem}. Like a {@link File}, it
+ * is just a name, nothing is looked up in the container until it is passed
+ * to {@link java.nio.file.Files}. Relative paths are relative to the root of
+ * the container.
+ */
+final class IOCipherPath implements Path {
+
+    private static final String[] NO_NAMES = new String[0];
+
+    private final IOCipherFileSystem fs;
+    private final String path;
+    // split on first use
+    private String[] names;
+
+    IOCipherPath(IOCipherFileSystem fs, String path) {
+        this.fs = fs;
+        this.path = clean(path);
+    }
+
+    /* drops duplicate and trailing separators, like java.io.File does */
+    private static String clean(String path) {
+        if (path.indexOf('\0') >= 0) {
+            throw new InvalidPathException(path, "Nul character not allowed");
+        }
+        StringBuilder result = new StringBuilder(path.length());
+        char previous = 0;
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c == '/' && previous == '/') {
+                continue;
+            }
+            result.append(c);
+            previous = c;
+        }
+        if (result.length() > 1 && previous == '/') {
+            result.setLength(result.length() - 1);
+        }
+        return result.toString();
+    }
+
+    /* the names, none for the root or the empty path */
+    private String[] names() {
+        if (names == null) {
+            String relative = isAbsolute() ? path.substring(1) : path;
+            names = relative.isEmpty() ? NO_NAMES : relative.split("/");
+        }
+        return names;
+    }
+
+    private static String join(String[] names, int start, int end) {
+        StringBuilder result = new StringBuilder();
+        for (int i = start; i < end; i++) {
+            if (i > start) {
+                result.append('/');
+            }
+            result.append(names[i]);
+        }
+        return result.toString();
+    }
+
+    private IOCipherPath toIOCipherPath(Path other) {
+        if (other == null) {
+            throw new NullPointerException("other == null");
+        }
+        if (!(other instanceof IOCipherPath)) {
+            throw new ProviderMismatchException();
+        }
+        return (IOCipherPath) other;
+    }
+
+    /**
+     * @return the path as the {@link VirtualFileSystem} uses it, always
+     *         absolute
+     */
+    String toVfsPath() {
+        return isAbsolute() ? path : "/" + path;
+    }
+
+    @Override
+    public FileSystem getFileSystem() {
+        return fs;
+    }
+
+    @Override
+    public boolean isAbsolute() {
+        return path.startsWith("/");
+    }
+
+    @Override
+    public Path getRoot() {
+        return isAbsolute() ? fs.getRoot() : null;
+    }
+
+    @Override
+    public Path getFileName() {
+        if (path.isEmpty()) {
+            return this;
+        }
+        String[] names = names();
+        return names.length == 0 ? null : new IOCipherPath(fs, names[names.length - 1]);
+    }
+
+    @Override
+    public Path getParent() {
+        String[] names = names();
+        if (names.length == 0) {
+            return null;
+        }
+        if (names.length == 1) {
+            return getRoot();
+        }
+        int slash = path.lastIndexOf('/');
+        return new IOCipherPath(fs, slash == 0 ? "/" : path.substring(0, slash));
+    }
+
+    @Override
+    public int getNameCount() {
+        // the empty path has one name, itself
+        return path.isEmpty() ? 1 : names().length;
+    }
+
+    @Override
+    public Path getName(int index) {
+        if (index < 0 || index >= getNameCount()) {
+            throw new IllegalArgumentException("index: " + index);
+        }
+        return path.isEmpty() ? this : new IOCipherPath(fs, names()[index]);
+    }
+
+    @Override
+    public Path subpath(int beginIndex, int endIndex) {
+        if (beginIndex < 0 || endIndex > getNameCount() || beginIndex >= endIndex) {
+            throw new IllegalArgumentException("beginIndex: " + beginIndex + ", endIndex: " + endIndex);
+        }
+        return path.isEmpty() ? this : new IOCipherPath(fs, join(names(), beginIndex, endIndex));
+    }
+
+    @Override
+    public boolean startsWith(Path other) {
+        if (!(other instanceof IOCipherPath) || ((IOCipherPath) other).fs != fs) {
+            return false;
+        }
+        IOCipherPath that = (IOCipherPath) other;
+        if (isAbsolute() != that.isAbsolute()) {
+            return false;
+        }
+        if (that.path.isEmpty()) {
+            return path.isEmpty();
+        }
+        String[] names = names();
+        String[] prefix = that.names();
+        if (prefix.length > names.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (!names[i].equals(prefix[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean startsWith(String other) {
+        return startsWith(fs.getPath(other));
+    }
+
+    @Override
+    public boolean endsWith(Path other) {
+        if (!(other instanceof IOCipherPath) || ((IOCipherPath) other).fs != fs) {
+            return false;
+        }
+        IOCipherPath that = (IOCipherPath) other;
+        if (that.isAbsolute()) {
+            return equals(that);
+        }
+        if (that.path.isEmpty()) {
+            return path.isEmpty();
+        }
+        String[] names = names();
+        String[] suffix = that.names();
+        if (suffix.length > names.length) {
+            return false;
+        }
+        for (int i = 1; i <= suffix.length; i++) {
+            if (!names[names.length - i].equals(suffix[suffix.length - i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean endsWith(String other) {
+        return endsWith(fs.getPath(other));
+    }
+
+    @Override
+    public Path normalize() {
+        String[] names = names();
+        List<String> result = new ArrayList<String>(names.length);
+        for (String name : names) {
+            if (name.equals(".")) {
+                continue;
+            }
+            if (name.equals("..")) {
+                int last = result.size() - 1;
+                if (last >= 0 && !result.get(last).equals("..")) {
+                    result.remove(last);
+                    continue;
+                }
+                if (isAbsolute()) {
+                    continue; // there is nothing above the root
+                }
+            }
+            result.add(name);
+        }
+        String[] normalized = result.toArray(new String[result.size()]);
+        if (Arrays.equals(names, normalized)) {
+            return this;
+        }
+        return new IOCipherPath(fs, (isAbsolute() ? "/" : "") + join(normalized, 0, normalized.length));
+    }
+
+    @Override
+    public Path resolve(Path other) {
+        IOCipherPath that = toIOCipherPath(other);
+        if (that.isAbsolute()) {
+            return that;
+        }
+        if (that.path.isEmpty()) {
+            return this;
+        }
+        if (path.isEmpty()) {
+            return that;
+        }
+        return new IOCipherPath(fs, path + "/" + that.path);
+    }
+
+    @Override
+    public Path resolve(String other) {
+        return resolve(fs.getPath(other));
+    }
+
+    @Override
+    public Path resolveSibling(Path other) {
+        toIOCipherPath(other);
+        Path parent = getParent();
+        return parent == null ? other : parent.resolve(other);
+    }
+
+    @Override
+    public Path resolveSibling(String other) {
+        return resolveSibling(fs.getPath(other));
+    }
+
+    @Override
+    public Path relativize(Path other) {
+        IOCipherPath that = toIOCipherPath(other);
+        if (isAbsolute() != that.isAbsolute()) {
+            throw new IllegalArgumentException("'other' is different type of Path");
+        }
+        String[] names = names();
+        String[] otherNames = that.names();
+        int common = 0;
+        while (common < names.length && common < otherNames.length
+                && names[common].equals(otherNames[common])) {
+            common++;
+        }
+        StringBuilder result = new StringBuilder();
+        for (int i = common; i < names.length; i++) {
+            result.append(result.length() == 0 ? ".." : "/..");
+        }
+        for (int i = common; i < otherNames.length; i++) {
+            if (result.length() > 0) {
+                result.append('/');
+            }
+            result.append(otherNames[i]);
+        }
+        return new IOCipherPath(fs, result.toString());
+    }
+
+    @Override
+    public URI toUri() {
+        try {
+            return new URI(IOCipherFileSystemProvider.SCHEME, fs.getName(), toVfsPath(), null, null);
+        } catch (URISyntaxException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Override
+    public Path toAbsolutePath() {
+        return isAbsolute() ? this : new IOCipherPath(fs, toVfsPath());
+    }
+
+    /**
+     * Symbolic links are not resolved, the path is only made absolute and
+     * normalized, and checked that it exists.
+     */
+    @Override
+    public Path toRealPath(LinkOption... options) throws IOException {
+        Path real = toAbsolutePath().normalize();
+        fs.provider().checkAccess(real);
+        return real;
+    }
+
+    /**
+     * @return an {@link info.guardianproject.iocipher.File} in the same
+     *         {@link VirtualFileSystem}
+     */
+    @Override
+    public java.io.File toFile() {
+        return new File(fs.getVirtualFileSystem(), toVfsPath());
+    }
+
+    @Override
+    public WatchKey register(WatchService watcher, WatchEvent.Kind<?>[] events,
+            WatchEvent.Modifier... modifiers) {
+        throw new UnsupportedOperationException("register");
+    }
+
+    @Override
+    public WatchKey register(WatchService watcher, WatchEvent.Kind<?>... events) {
+        throw new UnsupportedOperationException("register");
+    }
+
+    @Override
+    public Iterator<Path> iterator() {
+        int count = getNameCount();
+        List<Path> result = new ArrayList<Path>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(getName(i));
+        }
+        return result.iterator();
+    }
+
+    @Override
+    public int compareTo(Path other) {
+        return path.compareTo(((IOCipherPath) other).path);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof IOCipherPath)) {
+            return false;
+        }
+        IOCipherPath that = (IOCipherPath) obj;
+        return fs == that.fs && path.equals(that.path);
+    }
+
+    @Override
+    public int hashCode() {
+        return path.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+}
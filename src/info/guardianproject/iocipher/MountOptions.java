@@ -0,0 +1,194 @@
+package info.guardianproject.iocipher;
+
+/**
+ * The SQLCipher and SQLite settings a {@link VirtualFileSystem} opens its
+ * container with, see {@link VirtualFileSystem#mount(String, MountOptions)}.
+ * Everything that is not set keeps the default of SQLCipher and libsqlfs.
+ * <p>
+ * {@link Builder#cipherPageSize(int)} and {@link Builder#kdfIter(int)} are
+ * part of how the container is encrypted, so a container has to be mounted
+ * with the same values it was created with. The others only tune how it is
+ * used, and can be different on every mount:
+ *
+ * <pre>
+ * MountOptions options = new MountOptions.Builder()
+ *         .cacheSize(-8192) // 8 MiB per connection
+ *         .journalMode(MountOptions.JournalMode.WAL)
+ *         .synchronous(MountOptions.Synchronous.NORMAL)
+ *         .build();
+ * vfs.mount(key, options);
+ * </pre>
+ */
+public final class MountOptions {
+
+    /** Values of SQLite's {@code PRAGMA journal_mode}. */
+    public enum JournalMode {
+        DELETE, TRUNCATE, PERSIST, MEMORY, WAL, OFF
+    }
+
+    /** Values of SQLite's {@code PRAGMA synchronous}. */
+    public enum Synchronous {
+        OFF, NORMAL, FULL, EXTRA
+    }
+
+    /** Values of SQLite's {@code PRAGMA temp_store}. */
+    public enum TempStore {
+        DEFAULT, FILE, MEMORY
+    }
+
+    /** No settings at all, to go back to the defaults. */
+    public static final MountOptions DEFAULT = new Builder().build();
+
+    private final int cipherPageSize;
+    private final int kdfIter;
+    private final Integer cacheSize;
+    private final JournalMode journalMode;
+    private final Synchronous synchronous;
+    private final TempStore tempStore;
+    private final long mmapSize;
+
+    private MountOptions(Builder builder) {
+        cipherPageSize = builder.cipherPageSize;
+        kdfIter = builder.kdfIter;
+        cacheSize = builder.cacheSize;
+        journalMode = builder.journalMode;
+        synchronous = builder.synchronous;
+        tempStore = builder.tempStore;
+        mmapSize = builder.mmapSize;
+    }
+
+    /** @return SQLCipher's page size in bytes, or 0 for its default */
+    public int getCipherPageSize() {
+        return cipherPageSize;
+    }
+
+    /** @return the PBKDF2 iterations for a password, or 0 for the default */
+    public int getKdfIter() {
+        return kdfIter;
+    }
+
+    /** @return SQLite's cache size, or {@code null} for its default */
+    public Integer getCacheSize() {
+        return cacheSize;
+    }
+
+    /** @return the journal mode, or {@code null} for the default */
+    public JournalMode getJournalMode() {
+        return journalMode;
+    }
+
+    /** @return the synchronous setting, or {@code null} for the default */
+    public Synchronous getSynchronous() {
+        return synchronous;
+    }
+
+    /** @return where temporary tables go, or {@code null} for the default */
+    public TempStore getTempStore() {
+        return tempStore;
+    }
+
+    /** @return the mmap size in bytes, or -1 for the default */
+    public long getMmapSize() {
+        return mmapSize;
+    }
+
+    /* the statements that are run on every connection once it is unlocked */
+    String toPragmas() {
+        StringBuilder sql = new StringBuilder();
+        if (cacheSize != null)
+            sql.append("PRAGMA cache_size = ").append(cacheSize).append(';');
+        if (journalMode != null)
+            sql.append("PRAGMA journal_mode = ").append(journalMode).append(';');
+        if (synchronous != null)
+            sql.append("PRAGMA synchronous = ").append(synchronous).append(';');
+        if (tempStore != null)
+            sql.append("PRAGMA temp_store = ").append(tempStore).append(';');
+        if (mmapSize >= 0)
+            sql.append("PRAGMA mmap_size = ").append(mmapSize).append(';');
+        return sql.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "MountOptions{cipherPageSize=" + cipherPageSize + ", kdfIter=" + kdfIter
+                + ", " + toPragmas() + "}";
+    }
+
+    /**
+     * Builds {@link MountOptions}, each setter returns the builder.
+     */
+    public static final class Builder {
+        private int cipherPageSize;
+        private int kdfIter;
+        private Integer cacheSize;
+        private JournalMode journalMode;
+        private Synchronous synchronous;
+        private TempStore tempStore;
+        private long mmapSize = -1;
+
+        /**
+         * @param bytes SQLCipher's page size, a power of two from 512 to 65536
+         * @throws IllegalArgumentException if it is not
+         */
+        public Builder cipherPageSize(int bytes) {
+            if (bytes < 512 || bytes > 65536 || (bytes & (bytes - 1)) != 0)
+                throw new IllegalArgumentException(
+                        "cipherPageSize is not a power of two from 512 to 65536: " + bytes);
+            cipherPageSize = bytes;
+            return this;
+        }
+
+        /**
+         * @param iterations how many PBKDF2 iterations derive the key from a
+         *            password, only used with a password
+         * @throws IllegalArgumentException if {@code iterations < 1}
+         */
+        public Builder kdfIter(int iterations) {
+            if (iterations < 1)
+                throw new IllegalArgumentException("kdfIter < 1");
+            kdfIter = iterations;
+            return this;
+        }
+
+        /**
+         * @param size the page cache of each connection, in pages if it is
+         *            positive, in KiB if it is negative, like SQLite
+         */
+        public Builder cacheSize(int size) {
+            cacheSize = size;
+            return this;
+        }
+
+        public Builder journalMode(JournalMode mode) {
+            journalMode = mode;
+            return this;
+        }
+
+        public Builder synchronous(Synchronous level) {
+            synchronous = level;
+            return this;
+        }
+
+        public Builder tempStore(TempStore store) {
+            tempStore = store;
+            return this;
+        }
+
+        /**
+         * @param bytes how much of the container file SQLite may memory map,
+         *            0 to switch it off. SQLCipher may ignore this, since
+         *            encrypted pages can not be used straight from the file.
+         * @throws IllegalArgumentException if {@code bytes < 0}
+         */
+        public Builder mmapSize(long bytes) {
+            if (bytes < 0)
+                throw new IllegalArgumentException("mmapSize < 0");
+            mmapSize = bytes;
+            return this;
+        }
+
+        public MountOptions build() {
+            return new MountOptions(this);
+        }
+    }
+}
@@ -17,6 +17,8 @@
 
 package info.guardianproject.iocipher;
 
+import static info.guardianproject.libcore.io.OsConstants.EBADF;
+import static info.guardianproject.libcore.io.OsConstants.O_ACCMODE;
 import static info.guardianproject.libcore.io.OsConstants.O_CREAT;
 import static info.guardianproject.libcore.io.OsConstants.O_RDONLY;
 import static info.guardianproject.libcore.io.OsConstants.O_RDWR;
@@ -34,9 +36,15 @@ import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.EOFException;
 import java.io.FileNotFoundException;
+import java.io.Flushable;
 import java.io.IOException;
 import java.io.UTFDataFormatException;
 import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 
 /**
  * Allows reading from and writing to a file in a random-access manner. This is
@@ -45,6 +53,13 @@ import java.nio.ByteOrder;
  * opened in read/write mode, write operations are available as well. The
  * position of the next read or write operation can be moved forwards and
  * backwards after every operation.
+ * <p>
+ * Each read and write goes to the container, which makes parsing a file a
+ * few bytes at a time slow. {@link #setPageCacheSize(int)} turns on a cache of
+ * whole blocks of the file, which reads and small writes then work on, and
+ * which is written back on {@link #close()}, {@code getFD().sync()},
+ * {@link #setLength(long)}, when a page is evicted, and before the
+ * {@link #getChannel() channel} is used.
  */
 public class RandomAccessFile implements DataInput, DataOutput, Closeable {
     /**
@@ -61,6 +76,57 @@ public class RandomAccessFile implements DataInput, DataOutput, Closeable {
 
     private final byte[] scratch = new byte[8];
 
+    private final VirtualFileSystem vfs;
+
+    // the page cache, off while pages is null, all guarded by this
+    private LinkedHashMap<Long, Page> pages;
+    private int pageCacheSize;
+    private int pageSize;
+    // including what was not written back yet, -1 if it has to be looked up
+    private long length = -1;
+
+    /* anything else that uses the file through fd makes the cache write back and start over */
+    private final Flushable pageCacheFlusher = new Flushable() {
+        @Override
+        public void flush() throws IOException {
+            synchronized (RandomAccessFile.this) {
+                dropPages();
+            }
+        }
+    };
+
+    /* a block of the file, and which part of it was not written back yet */
+    private static final class Page implements Comparable<Page> {
+        final long start;
+        final byte[] data;
+        int dirtyStart;
+        int dirtyEnd;
+
+        Page(long start, int size) {
+            this.start = start;
+            this.data = new byte[size];
+        }
+
+        boolean isDirty() {
+            return dirtyEnd > dirtyStart;
+        }
+
+        void markDirty(int from, int to) {
+            if (isDirty()) {
+                dirtyStart = Math.min(dirtyStart, from);
+                dirtyEnd = Math.max(dirtyEnd, to);
+            } else {
+                dirtyStart = from;
+                dirtyEnd = to;
+            }
+        }
+
+        @Override
+        public int compareTo(Page another) {
+            return start < another.start ? -1 : (start == another.start ? 0 : 1);
+        }
+    }
+
     /**
      * Constructs a new {@code RandomAccessFile} based on {@code file} and opens
      * it according to the access string in {@code mode}.
@@ -115,7 +181,8 @@ public class RandomAccessFile implements DataInput, DataOutput, Closeable {
             throw new IllegalArgumentException("Invalid mode: " + mode);
         }
         this.mode = flags;
-        this.fd = IoBridge.open(file.getAbsolutePath(), flags);
+        this.vfs = file.getVirtualFileSystem();
+        this.fd = IoBridge.open(vfs.os, file.getAbsolutePath(), flags);
         channel = new IOCipherFileChannel(this, this.fd, this.mode);
 
         // if we are in "rws" mode, attempt to sync file+metadata
@@ -153,11 +220,17 @@ public class RandomAccessFile implements DataInput, DataOutput, Closeable {
      */
     public void close() throws IOException {
         synchronized (this) {
-            if (channel != null && channel.isOpen()) {
-                channel.close();
-                channel = null;
+            try {
+                writeBack();
+            } finally {
+                pages = null;
+                fd.releaseWriteBehind(pageCacheFlusher);
+                if (channel != null && channel.isOpen()) {
+                    channel.close();
+                    channel = null;
+                }
+                IoUtils.close(fd);
             }
-            IoUtils.close(fd);
         }
     }
 
@@ -219,8 +292,181 @@ public class RandomAccessFile implements DataInput, DataOutput, Closeable {
      *             occurs.
      */
     public long length() throws IOException {
+        synchronized (this) {
+            if (pages != null && length >= 0) {
+                return length;
+            }
+            try {
+                long size = Libcore.os.fstat(fd).st_size;
+                if (pages != null) {
+                    length = size;
+                }
+                return size;
+            } catch (ErrnoException errnoException) {
+                throw errnoException.rethrowAsIOException();
+            }
+        }
+    }
+
+    /**
+     * Sets how many blocks of the container this file caches, see the class
+     * comment. The cache is off by default. Reads and writes of at least a
+     * block go straight to the file either way. Using the
+     * {@link #getChannel() channel} writes the cache back and empties it, so
+     * it is best not to mix the two. In {@code "rws"} and {@code "rwd"} modes
+     * every write is written back at once, and only reads are cached.
+     *
+     * @param pages how many blocks to keep, 0 writes them back and turns the
+     *            cache off
+     * @throws IOException if writing back what the cache held fails, or a
+     *             {@link FileOutputStream} on {@link #getFD()} holds writes
+     *             back
+     */
+    public void setPageCacheSize(int pages) throws IOException {
+        if (pages < 0) {
+            throw new IllegalArgumentException("pages < 0: " + pages);
+        }
+        synchronized (this) {
+            if (pages == 0) {
+                if (this.pages != null) {
+                    dropPages();
+                    this.pages = null;
+                    fd.releaseWriteBehind(pageCacheFlusher);
+                }
+                pageCacheSize = 0;
+                return;
+            }
+            if (this.pages == null) {
+                try {
+                    pageSize = (int) Math.max(1, Libcore.os.fstat(fd).st_blksize);
+                } catch (ErrnoException errnoException) {
+                    throw errnoException.rethrowAsIOException();
+                }
+                if (!fd.claimWriteBehind(pageCacheFlusher)) {
+                    throw new IOException("A stream on " + fd + " holds writes back");
+                }
+                this.pages = new LinkedHashMap<Long, Page>(16, 0.75f, true);
+                length = -1;
+            }
+            pageCacheSize = pages;
+            evict();
+        }
+    }
+
+    /**
+     * @return how many blocks of the container this file caches, 0 if the
+     *         cache is off
+     */
+    public int getPageCacheSize() {
+        synchronized (this) {
+            return pageCacheSize;
+        }
+    }
+
+    /* the cached page with index, read from the file if it is not cached */
+    private Page page(long index) throws IOException {
+        Long key = Long.valueOf(index);
+        Page page = pages.get(key);
+        if (page != null) {
+            return page;
+        }
+        page = new Page(index * pageSize, pageSize);
+        // past the end of the file there is nothing to read
+        if (page.start < length()) {
+            int total = 0;
+            try {
+                while (total < pageSize) {
+                    int result = Libcore.os.pread(fd, page.data, total, pageSize - total,
+                            page.start + total);
+                    if (result <= 0) {
+                        break;
+                    }
+                    total += result;
+                }
+            } catch (ErrnoException errnoException) {
+                throw errnoException.rethrowAsIOException();
+            }
+        }
+        pages.put(key, page);
+        evict();
+        return page;
+    }
+
+    private void evict() throws IOException {
+        Iterator<Page> iterator = pages.values().iterator();
+        while (pages.size() > pageCacheSize) {
+            Page eldest = iterator.next();
+            if (eldest.isDirty()) {
+                writePage(eldest);
+                eldest.dirtyStart = eldest.dirtyEnd = 0;
+            }
+            iterator.remove();
+        }
+    }
+
+    /* writes back every dirty page, in one transaction if there are several */
+    private void writeBack() throws IOException {
+        if (pages == null) {
+            return;
+        }
+        List<Page> dirty = new ArrayList<Page>();
+        for (Page page : pages.values()) {
+            if (page.isDirty()) {
+                dirty.add(page);
+            }
+        }
+        if (dirty.isEmpty()) {
+            return;
+        }
+        Collections.sort(dirty);
+        VfsTransaction transaction = dirty.size() > 1 ? vfs.newTransaction() : null;
+        try {
+            for (Page page : dirty) {
+                writePage(page);
+            }
+            if (transaction != null) {
+                transaction.commit();
+            }
+        } finally {
+            if (transaction != null) {
+                transaction.close();
+            }
+        }
+        for (Page page : dirty) {
+            page.dirtyStart = page.dirtyEnd = 0;
+        }
+    }
+
+    private void writePage(Page page) throws IOException {
+        int offset = page.dirtyStart;
+        int byteCount = page.dirtyEnd - page.dirtyStart;
         try {
-            return Libcore.os.fstat(fd).st_size;
+            while (byteCount > 0) {
+                int bytesWritten = Libcore.os.pwrite(fd, page.data, offset, byteCount,
+                        page.start + offset, this.mode);
+                offset += bytesWritten;
+                byteCount -= bytesWritten;
+            }
+        } catch (ErrnoException errnoException) {
+            throw errnoException.rethrowAsIOException();
+        }
+    }
+
+    /* writes back and forgets everything, for when the file changes some other way */
+    private void dropPages() throws IOException {
+        if (pages == null) {
+            return;
+        }
+        writeBack();
+        pages.clear();
+        length = -1;
+    }
+
+    /* like fd.sync(), but keeps the cache */
+    private void sync() throws IOException {
+        writeBack();
+        try {
+            Libcore.os.fsync(fd);
         } catch (ErrnoException errnoException) {
             throw errnoException.rethrowAsIOException();
         }
@@ -268,7 +514,30 @@ public class RandomAccessFile implements DataInput, DataOutput, Closeable {
      * @throws IOException if this file is closed or another I/O error occurs.
      */
     public int read(byte[] buffer, int byteOffset, int byteCount) throws IOException {
-        return IoBridge.read(fd, buffer, byteOffset, byteCount);
+        synchronized (this) {
+            if (pages == null) {
+                return IoBridge.read(fd, buffer, byteOffset, byteCount);
+            }
+            IoBridge.checkOffsetAndCount(buffer.length, byteOffset, byteCount);
+            if (byteCount == 0) {
+                return 0;
+            }
+            if (byteCount >= pageSize) {
+                writeBack();
+                return IoBridge.read(fd, buffer, byteOffset, byteCount);
+            }
+            long position = fd.position;
+            long length = length();
+            if (position >= length) {
+                return -1;
+            }
+            Page page = page(position / pageSize);
+            int offset = (int) (position - page.start);
+            int count = (int) Math.min(Math.min(byteCount, pageSize - offset), length - position);
+            System.arraycopy(page.data, offset, buffer, byteOffset, count);
+            fd.position = position + count;
+            return count;
+        }
     }
 
     /**
@@ -549,6 +818,13 @@ public class RandomAccessFile implements DataInput, DataOutput, Closeable {
         if (offset < 0) {
             throw new IOException("offset < 0: " + offset);
         }
+        synchronized (this) {
+            if (pages != null) {
+                // the channel would write back the cache
+                fd.position = offset;
+                return;
+            }
+        }
         channel.lseek(offset, SEEK_SET);
     }
 
@@ -567,6 +843,9 @@ public class RandomAccessFile implements DataInput, DataOutput, Closeable {
         if (newLength < 0) {
             throw new IllegalArgumentException("newLength < 0");
         }
+        synchronized (this) {
+            dropPages();
+        }
         try {
             Libcore.os.ftruncate(fd, newLength);
         } catch (ErrnoException errnoException) {
@@ -580,7 +859,7 @@ public class RandomAccessFile implements DataInput, DataOutput, Closeable {
 
         // if we are in "rws" mode, attempt to sync file+metadata
         if (syncMetadata) {
-            fd.sync();
+            sync();
         }
     }
 
@@ -626,10 +905,43 @@ public class RandomAccessFile implements DataInput, DataOutput, Closeable {
      * @throws IOException if an I/O error occurs while writing to this file.
      */
     public void write(byte[] buffer, int byteOffset, int byteCount) throws IOException {
-        IoBridge.write(fd, buffer, byteOffset, byteCount, this.mode);
-        // if we are in "rws" mode, attempt to sync file+metadata
-        if (syncMetadata) {
-            fd.sync();
+        synchronized (this) {
+            if (pages == null || byteCount >= pageSize) {
+                // nothing older may be written back over this
+                writeBack();
+                IoBridge.write(fd, buffer, byteOffset, byteCount, this.mode);
+                if (pages != null) {
+                    dropPages(); // the pages it wrote over
+                }
+            } else {
+                writeCached(buffer, byteOffset, byteCount);
+                if ((mode & O_SYNC) != 0) {
+                    writeBack();
+                }
+            }
+            // if we are in "rws" mode, attempt to sync file+metadata
+            if (syncMetadata) {
+                sync();
+            }
+        }
+    }
+
+    private void writeCached(byte[] buffer, int byteOffset, int byteCount) throws IOException {
+        IoBridge.checkOffsetAndCount(buffer.length, byteOffset, byteCount);
+        if ((mode & O_ACCMODE) == O_RDONLY) {
+            throw new ErrnoException("write", EBADF).rethrowAsIOException();
+        }
+        while (byteCount > 0) {
+            long position = fd.position;
+            Page page = page(position / pageSize);
+            int offset = (int) (position - page.start);
+            int count = Math.min(byteCount, pageSize - offset);
+            System.arraycopy(buffer, byteOffset, page.data, offset, count);
+            page.markDirty(offset, offset + count);
+            fd.position = position + count;
+            length = Math.max(length(), fd.position);
+            byteOffset += count;
+            byteCount -= count;
         }
     }
 
@@ -0,0 +1,179 @@
+package info.guardianproject.iocipher;
+
+import static info.guardianproject.libcore.io.OsConstants.EISDIR;
+import static info.guardianproject.libcore.io.OsConstants.O_RDONLY;
+import static info.guardianproject.libcore.io.OsConstants.S_ISDIR;
+import info.guardianproject.libcore.io.ErrnoException;
+import info.guardianproject.libcore.io.IoUtils;
+import info.guardianproject.libcore.io.Os;
+import info.guardianproject.libcore.io.StructStat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Reads whole files on an executor, a few at a time, and hands them out in
+ * the order they were read, see
+ * {@link VirtualFileSystem#readAll(Collection, long)}. Reads are only started
+ * while fewer than {@code parallelism} are running and less than
+ * {@code maxQueuedBytes} were read but not taken, so a caller that stops
+ * early leaves nothing waiting.
+ */
+final class ReadAllIterator implements Iterator<FileContents> {
+
+    private final ExecutorService executor;
+    private final int parallelism;
+    private final long maxQueuedBytes;
+
+    // all guarded by this
+    private final Iterator<File> files;
+    private final LinkedList<FileContents> done = new LinkedList<FileContents>();
+    private int remaining;
+    private int reading;
+    private long queuedBytes;
+
+    ReadAllIterator(Collection<? extends File> files, ExecutorService executor,
+            int parallelism, long maxQueuedBytes) {
+        this.executor = executor;
+        this.parallelism = parallelism;
+        this.maxQueuedBytes = maxQueuedBytes;
+        List<File> copy = new ArrayList<File>(files);
+        this.files = copy.iterator();
+        this.remaining = copy.size();
+        synchronized (this) {
+            startReads();
+        }
+    }
+
+    /* holds this */
+    private void startReads() {
+        while (reading < parallelism && queuedBytes < maxQueuedBytes && files.hasNext()) {
+            final File file = files.next();
+            reading++;
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        finished(read(file));
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                reading--;
+                done.add(failed(file, e));
+                notifyAll();
+            }
+        }
+    }
+
+    private synchronized void finished(FileContents contents) {
+        reading--;
+        done.add(contents);
+        queuedBytes += length(contents);
+        startReads();
+        notifyAll();
+    }
+
+    @Override
+    public synchronized boolean hasNext() {
+        return remaining > 0;
+    }
+
+    /**
+     * Waits until the next file is read.
+     */
+    @Override
+    public synchronized FileContents next() {
+        if (remaining == 0) {
+            throw new NoSuchElementException();
+        }
+        boolean interrupted = false;
+        while (done.isEmpty()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true; // the read finishes anyway, so wait for it
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        FileContents contents = done.removeFirst();
+        remaining--;
+        queuedBytes -= length(contents);
+        startReads();
+        return contents;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("remove");
+    }
+
+    private static long length(FileContents contents) {
+        try {
+            return contents.isRead() ? contents.getData().length : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static FileContents read(File file) {
+        try {
+            return new FileContents(file, readFully(file), null);
+        } catch (IOException e) {
+            return new FileContents(file, null, e);
+        } catch (RuntimeException e) {
+            return failed(file, e);
+        } catch (OutOfMemoryError e) {
+            return failed(file, e); // the others may still fit
+        }
+    }
+
+    /* next() must get something for every file, or it would wait forever */
+    private static FileContents failed(File file, Throwable cause) {
+        IOException exception = new IOException("not read: " + cause);
+        exception.initCause(cause);
+        return new FileContents(file, null, exception);
+    }
+
+    /* open is one lookup and fstat none, so a small file costs little more than its data */
+    private static byte[] readFully(File file) throws IOException {
+        Os os = file.getVirtualFileSystem().os;
+        FileDescriptor fd = null;
+        try {
+            fd = os.open(file.getAbsolutePath(), O_RDONLY, 0);
+            StructStat sb = os.fstat(fd);
+            if (S_ISDIR(sb.st_mode)) {
+                throw new ErrnoException("read", EISDIR);
+            }
+            if (sb.st_size > Integer.MAX_VALUE - 8) {
+                throw new IOException(file + " is too large to read at once");
+            }
+            byte[] data = new byte[(int) sb.st_size];
+            int total = 0;
+            while (total < data.length) {
+                int result = os.pread(fd, data, total, data.length - total, total);
+                if (result <= 0) {
+                    break;
+                }
+                total += result;
+            }
+            // it got shorter since the fstat
+            return total < data.length ? Arrays.copyOf(data, total) : data;
+        } catch (ErrnoException errnoException) {
+            throw errnoException.rethrowAsIOException();
+        } finally {
+            if (fd != null) {
+                IoUtils.closeQuietly(fd);
+            }
+        }
+    }
+}
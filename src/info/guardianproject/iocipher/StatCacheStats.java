@@ -0,0 +1,46 @@
+package info.guardianproject.iocipher;
+
+/**
+ * A snapshot of the stat cache of a {@link VirtualFileSystem}, see
+ * {@link VirtualFileSystem#getStatCacheStats()}.
+ */
+public final class StatCacheStats {
+
+    /** The most paths that can be cached, 0 if the cache is off. */
+    public final int maxEntries;
+
+    /** The number of paths that are cached right now. */
+    public final int size;
+
+    /** How many lookups of existing paths were answered from the cache. */
+    public final long hits;
+
+    /** How many lookups of paths that do not exist were answered from the cache. */
+    public final long negativeHits;
+
+    /** How many lookups had to go to the container. */
+    public final long misses;
+
+    /** How many paths were dropped to make room for others. */
+    public final long evictions;
+
+    /** How many paths were dropped because they changed. */
+    public final long invalidations;
+
+    StatCacheStats(long[] values) {
+        maxEntries = (int) values[0];
+        size = (int) values[1];
+        hits = values[2];
+        negativeHits = values[3];
+        misses = values[4];
+        evictions = values[5];
+        invalidations = values[6];
+    }
+
+    @Override
+    public String toString() {
+        return "StatCacheStats[maxEntries=" + maxEntries + ",size=" + size + ",hits=" + hits
+                + ",negativeHits=" + negativeHits + ",misses=" + misses + ",evictions="
+                + evictions + ",invalidations=" + invalidations + "]";
+    }
+}
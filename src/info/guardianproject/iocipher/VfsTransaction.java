@@ -0,0 +1,158 @@
+package info.guardianproject.iocipher;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A transaction on a {@link VirtualFileSystem}, from
+ * {@link VirtualFileSystem#newTransaction()}. Everything the thread that
+ * began it does on that container, until it is committed or rolled back,
+ * becomes visible all at once with {@link #commit()}, or not at all with
+ * {@link #rollback()}. Closing a transaction that was not committed rolls it
+ * back, so that an exception can not leave it open:
+ *
+ * <pre>
+ * VfsTransaction transaction = vfs.newTransaction();
+ * try {
+ *     // many writes
+ *     transaction.commit();
+ * } finally {
+ *     transaction.close();
+ * }
+ * </pre>
+ *
+ * A transaction belongs to the thread that began it. Beginning another one in
+ * the same thread nests it inside the first, and nested transactions have to
+ * be ended before the ones they are in. A nested transaction is an SQLite
+ * savepoint: committing it leaves its changes to the enclosing transaction,
+ * and rolling it back undoes only what was done since it began. If the
+ * savepoint could not be set or rolled back to, e.g. because an error in
+ * sqlfs already rolled back everything, rolling back the nested transaction
+ * marks the enclosing one as rollback-only instead, so that it is rolled back
+ * as a whole.
+ */
+public final class VfsTransaction implements Closeable {
+
+    private final VirtualFileSystem vfs;
+    private final VfsTransaction parent;
+    // 0 for the outermost transaction, which is not a savepoint
+    final int level;
+    // whether the SQLite savepoint of a nested transaction was set
+    final boolean savepoint;
+    private final Thread thread;
+    private boolean done;
+    private boolean rollbackOnly;
+
+    VfsTransaction(VirtualFileSystem vfs, VfsTransaction parent, boolean savepoint) {
+        this.vfs = vfs;
+        this.parent = parent;
+        this.level = parent == null ? 0 : parent.level + 1;
+        this.savepoint = savepoint;
+        this.thread = Thread.currentThread();
+    }
+
+    /**
+     * @return the transaction this one is nested in, or {@code null}
+     */
+    public VfsTransaction getParent() {
+        return parent;
+    }
+
+    /**
+     * @return whether this transaction is neither committed nor rolled back
+     */
+    public boolean isActive() {
+        return !done;
+    }
+
+    /**
+     * @return whether a transaction that was nested in this one could not be
+     *         rolled back on its own, so that this one can only be rolled
+     *         back as a whole
+     */
+    public boolean isRollbackOnly() {
+        return rollbackOnly;
+    }
+
+    /**
+     * Commit this transaction. For a nested transaction, its changes become
+     * part of the enclosing one. If a nested transaction was rolled back,
+     * this rolls back everything instead and throws.
+     *
+     * @throws IOException if the transaction was rolled back instead, or the
+     *         commit failed
+     * @throws IllegalStateException if it is not active, is called from
+     *         another thread, or a nested transaction is still active
+     */
+    public void commit() throws IOException {
+        checkEnd();
+        if (rollbackOnly) {
+            end(false);
+            throw new IOException("Transaction rolled back, a nested transaction was rolled back");
+        }
+        end(true);
+    }
+
+    /**
+     * Roll back this transaction. For a nested transaction, that undoes what
+     * was done since it began, or if that is not possible, rolls back the
+     * enclosing one once it ends.
+     *
+     * @throws IllegalStateException if it is not active, is called from
+     *         another thread, or a nested transaction is still active
+     */
+    public void rollback() {
+        checkEnd();
+        try {
+            end(false);
+        } catch (IOException e) {
+            // a rollback can only fail if the connection is gone, which rolls back too
+        }
+    }
+
+    /**
+     * Roll back this transaction if it is still active, and any nested ones
+     * that were left active, otherwise do nothing.
+     *
+     * @throws IllegalStateException if it is called from another thread
+     */
+    @Override
+    public void close() {
+        if (done)
+            return;
+        if (thread != Thread.currentThread())
+            throw new IllegalStateException("Transaction belongs to " + thread);
+        boolean current = false;
+        for (VfsTransaction t = vfs.currentTransaction(); t != null; t = t.parent) {
+            if (t == this)
+                current = true;
+        }
+        if (!current) {
+            // VirtualFileSystem.detachThread() already rolled it back
+            done = true;
+            return;
+        }
+        while (vfs.currentTransaction() != this)
+            vfs.currentTransaction().rollback();
+        rollback();
+    }
+
+    private void checkEnd() {
+        if (done)
+            throw new IllegalStateException("Transaction is no longer active");
+        if (thread != Thread.currentThread())
+            throw new IllegalStateException("Transaction belongs to " + thread);
+        if (vfs.currentTransaction() != this)
+            throw new IllegalStateException("A nested transaction is still active");
+    }
+
+    private void end(boolean commit) throws IOException {
+        done = true;
+        if (!vfs.endTransaction(this, commit)) {
+            // the savepoint is gone, so only the whole transaction can be undone
+            parent.rollbackOnly = true;
+            if (commit)
+                throw new IOException("Could not release the savepoint of the nested transaction");
+        }
+    }
+}
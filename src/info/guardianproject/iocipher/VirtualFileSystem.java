@@ -1,11 +1,32 @@
 
 package info.guardianproject.iocipher;
 
+import info.guardianproject.libcore.io.Libcore;
+import info.guardianproject.libcore.io.Os;
+import info.guardianproject.libcore.io.OsConstants;
+import info.guardianproject.libcore.io.Posix;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
 import javax.crypto.SecretKey;
 
 /**
  * A virtual file system container. Open and mount a virtual file system
  * container backed by a SQLCipher database for full encrypted file storage.
+ * <p>
+ * Any number of {@code VirtualFileSystem} instances can be mounted at the same
+ * time, each on its own container. {@link File}s that are not given a
+ * {@code VirtualFileSystem} use the default one from {@link #get()}.
  */
 public class VirtualFileSystem {
 
@@ -19,18 +40,68 @@ public class VirtualFileSystem {
         System.loadLibrary("iocipher");
     }
 
-    private VirtualFileSystem() {
-        // singleton!
+    /**
+     * The native container, 0 for the default one. It is owned by {@link #os},
+     * which releases it once it is no longer used.
+     */
+    final long container;
+
+    /**
+     * The {@link Os} that all file operations on this container go through.
+     */
+    final Os os;
+
+    /**
+     * The innermost active transaction of each thread.
+     */
+    private final ThreadLocal<VfsTransaction> transaction = new ThreadLocal<VfsTransaction>();
+
+    /**
+     * Runs the {@link IOCipherAsynchronousFileChannel}s that were not given an
+     * executor, created on first use.
+     */
+    private ThreadPoolExecutor asyncExecutor;
+
+    /**
+     * Create a new, unmounted virtual file system with its own container,
+     * independent of the default one from {@link #get()}.
+     */
+    public VirtualFileSystem() {
+        this(newContainer());
     }
 
     /**
-     * Get the instance of the VirtualFileSystem.
+     * Create a new, unmounted virtual file system on the container file at
+     * {@code containerPath}.
      *
-     * @return the single instance of VirtualFileSystem
+     * @param {@code containerPath} the physical disk file that serves as the
+     *        VFS container
+     * @throws {@link IllegalArgumentException} if the containing directory does
+     *         not exist or is not readable
+     * @see #setContainerPath(String)
      */
-    public static VirtualFileSystem get() {
+    public VirtualFileSystem(String containerPath) throws IllegalArgumentException {
+        this();
+        setContainerPath(containerPath);
+    }
+
+    private VirtualFileSystem(long container) {
+        this.container = container;
+        this.os = container == 0 ? Libcore.os : new Posix(container);
+    }
+
+    private static native long newContainer();
+
+    /**
+     * Get the default instance of the VirtualFileSystem, which is used by all
+     * {@link File}s that were not created with a specific
+     * {@code VirtualFileSystem}.
+     *
+     * @return the default instance of VirtualFileSystem
+     */
+    public static synchronized VirtualFileSystem get() {
         if (vfs == null)
-            vfs = new VirtualFileSystem();
+            vfs = new VirtualFileSystem(0);
         return vfs;
     }
 
@@ -91,6 +162,39 @@ public class VirtualFileSystem {
         createNewContainer(key.getEncoded());
     }
 
+    /**
+     * Create a new VFS container file at the path given from
+     * {@link #setContainerPath(String)}, encrypted with {@code password} and
+     * the cipher settings in {@code options}. It has to be mounted with the
+     * same {@link MountOptions#getCipherPageSize()} and
+     * {@link MountOptions#getKdfIter()}.
+     *
+     * @param password the password to set in the new VFS container
+     * @param options the settings to create it with
+     * @throws IllegalArgumentException
+     */
+    public void createNewContainer(String password, MountOptions options)
+            throws IllegalArgumentException {
+        setMountOptions(options);
+        createNewContainer(password);
+    }
+
+    /**
+     * Create a new VFS container file at the path given from
+     * {@link #setContainerPath(String)}, encrypted with {@code key} and the
+     * cipher settings in {@code options}. It has to be mounted with the same
+     * {@link MountOptions#getCipherPageSize()}.
+     *
+     * @param key the raw AES key to set in the new VFS container
+     * @param options the settings to create it with
+     * @throws IllegalArgumentException
+     */
+    public void createNewContainer(byte[] key, MountOptions options)
+            throws IllegalArgumentException {
+        setMountOptions(options);
+        createNewContainer(key);
+    }
+
     /**
      * Create a new VFS container file using the path and password given.
      * <p>
@@ -190,6 +294,12 @@ public class VirtualFileSystem {
      * {@link IllegalStateException}. If the file does not exist or the password
      * is wrong, it will throw an {@link IllegalArgumentException}.
      *
+     * The key is only derived once, here. The derived key is kept in locked
+     * memory instead of the password, and every further connection to the
+     * container is opened with it. {@link #getDerivedKey()} gives it out, so
+     * that later mounts can skip the key derivation with
+     * {@link #mount(byte[])}.
+     *
      * @param password the password to unlock the VFS container
      * @throws IllegalArgumentException, IllegalStateException
      */
@@ -299,6 +409,54 @@ public class VirtualFileSystem {
         mount(key);
     }
 
+    /**
+     * Like {@link #mount(String)}, but with the SQLCipher and SQLite settings
+     * in {@code options}. They are used for every connection to the
+     * container, and stay in effect for later mounts and creates of this
+     * {@code VirtualFileSystem} until other options are given.
+     *
+     * @param password the password to unlock the VFS container
+     * @param options the settings to open it with
+     * @throws IllegalArgumentException, IllegalStateException
+     */
+    public void mount(String password, MountOptions options) {
+        setMountOptions(options);
+        mount(password);
+    }
+
+    /**
+     * Like {@link #mount(byte[])}, but with the SQLCipher and SQLite settings
+     * in {@code options}, see {@link #mount(String, MountOptions)}.
+     *
+     * @param key the container's raw AES key
+     * @param options the settings to open it with
+     * @throws IllegalArgumentException, IllegalStateException
+     */
+    public void mount(byte[] key, MountOptions options) {
+        setMountOptions(options);
+        mount(key);
+    }
+
+    /**
+     * Like {@link #mount(SecretKey)}, but with the SQLCipher and SQLite
+     * settings in {@code options}, see {@link #mount(String, MountOptions)}.
+     *
+     * @param key the container's raw AES key
+     * @param options the settings to open it with
+     * @throws IllegalArgumentException, IllegalStateException
+     */
+    public void mount(SecretKey key, MountOptions options) {
+        mount(key.getEncoded(), options);
+    }
+
+    private void setMountOptions(MountOptions options) {
+        setMountOptions(options.getCipherPageSize(), options.getKdfIter(),
+                options.toPragmas());
+    }
+
+    private native void setMountOptions(int cipherPageSize, int kdfIter, String pragmas)
+            throws IllegalStateException;
+
     /**
      * Unmount the file system. It will throw an {@link IllegalStateException}
      * if the vfs is not mounted, or if it cannot be unmounted because it is
@@ -314,25 +472,364 @@ public class VirtualFileSystem {
     public native boolean isMounted();
 
     /**
-     * If accessing an IOCipher container in any thread separate from where
-     * {@link #mount(byte[])} was called, that thread will have its own IOCipher
-     * state. For threads that do not quit when complete or are reused, like
-     * Android's {@code AsyncTask} or any "thread pool" model, this method must
-     * be called when each thread is finished using the container. Otherwise,
-     * that thread will keep its connection to the container open, and it will
-     * not be possible to {@link #unmount()} successfully.
+     * Get the raw AES key the mounted container is encrypted with. After
+     * {@link #mount(String)}, that is the key SQLCipher derived from the
+     * password, which {@link #mount(byte[])} accepts as well, without the
+     * slow key derivation. It unlocks the container just like the password,
+     * so keep it just as safe, and zero it out when it is no longer needed.
+     *
+     * @return a copy of the key, or {@code null} if this SQLCipher does not
+     *         give out the key derived from a password
+     * @throws IllegalStateException if it is not mounted
+     */
+    public native byte[] getDerivedKey() throws IllegalStateException;
+
+    /**
+     * Get the size of the blocks that sqlfs stores file data in, as sqlfs
+     * records it in the container. It is fixed when libsqlfs is built, so it
+     * can not be chosen per container. This is the {@code st_blksize} of its
+     * files, which the streams buffer by.
+     *
+     * @return the block size in bytes
+     * @throws IllegalStateException if it is not mounted
      */
-    public native void detachThread();
+    public native int getBlockSize() throws IllegalStateException;
 
     /**
-     * Call this function before performance sensitive write operations to
-     * increase performance
+     * Give up the connection to the container that the calling thread still
+     * holds, rolling back any transaction that was started with
+     * {@link #newTransaction()} and not ended.
+     * <p>
+     * Connections are taken from a pool for each operation and returned
+     * right after, so threads no longer need to call this when they are done
+     * with the container, not even the threads of a thread pool.
      */
-    public native void beginTransaction();
+    public void detachThread() {
+        transaction.remove();
+        detachThreadImpl();
+    }
+
+    private native void detachThreadImpl();
 
     /**
-     * Call this function after performance sensitive write operations complete
+     * Set how many connections to the container can be open at the same
+     * time. If all of them are in use, the next operation waits for one to be
+     * returned. SQLite only allows one writer at a time, so more connections
+     * mostly help when there are many concurrent readers. The default is 4.
+     *
+     * @param maxConnections the maximum number of open connections, at least 1
+     * @throws IllegalArgumentException if {@code maxConnections < 1}
      */
-    public native void completeTransaction();
+    public native void setMaxConnections(int maxConnections) throws IllegalArgumentException;
+
+    /**
+     * Set how long a connection can be unused before it is closed, which a
+     * background thread does even if the container is not used at all. The
+     * most recently used connection is always kept open, since opening
+     * another one has to unlock the container again. The default is 30
+     * seconds.
+     *
+     * @param millis the idle timeout in milliseconds
+     * @throws IllegalArgumentException if {@code millis < 0}
+     */
+    public native void setConnectionIdleTimeout(long millis) throws IllegalArgumentException;
+
+    /**
+     * @return the current state and counters of this container's connection pool
+     */
+    public ConnectionPoolStats getConnectionPoolStats() {
+        return new ConnectionPoolStats(getConnectionPoolStatsImpl());
+    }
+
+    private native long[] getConnectionPoolStatsImpl();
+
+    /**
+     * The most bytes {@link #readAll(Collection)} holds that were read but
+     * not taken yet.
+     */
+    public static final long DEFAULT_READ_ALL_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * Read the whole contents of many small files, see
+     * {@link #readAll(Collection, long)}.
+     */
+    public Iterator<FileContents> readAll(Collection<? extends File> files) {
+        return readAll(files, DEFAULT_READ_ALL_BYTES);
+    }
+
+    /**
+     * Read the whole contents of many small files, several at a time, one on
+     * each connection of the pool, see {@link #setMaxConnections(int)}. Each
+     * file is handed out as soon as it is read, so not in the order they were
+     * given. Files that could not be read, for example since they do not
+     * exist, are handed out as {@link FileContents} whose
+     * {@link FileContents#getData()} throws.
+     * <p>
+     * No more files are started while at least {@code maxQueuedBytes} were
+     * read and not taken yet, so at most that plus the files being read are
+     * held at a time. {@link Iterator#next()} waits for the next file, and a
+     * caller that stops early leaves no read waiting. The files are read on
+     * other connections, so they do not see what the calling thread's
+     * transaction did not commit yet.
+     *
+     * @param files the files to read, which may be on other containers
+     * @param maxQueuedBytes how many bytes may wait to be taken
+     * @return the contents of each of the files, in the order they were read
+     */
+    public Iterator<FileContents> readAll(Collection<? extends File> files, long maxQueuedBytes) {
+        if (maxQueuedBytes < 1) {
+            throw new IllegalArgumentException("maxQueuedBytes < 1: " + maxQueuedBytes);
+        }
+        ExecutorService executor = asyncExecutor();
+        return new ReadAllIterator(files, executor, getConnectionPoolStats().maxConnections,
+                maxQueuedBytes);
+    }
+
+    /* one thread per connection, more would only wait for one */
+    synchronized ExecutorService asyncExecutor() {
+        int threads = getConnectionPoolStats().maxConnections;
+        if (asyncExecutor == null) {
+            asyncExecutor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "IOCipher async I/O");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            asyncExecutor.allowCoreThreadTimeOut(true);
+        } else if (threads > asyncExecutor.getMaximumPoolSize()) {
+            // setMaxConnections() was called since
+            asyncExecutor.setMaximumPoolSize(threads);
+            asyncExecutor.setCorePoolSize(threads);
+        } else if (threads < asyncExecutor.getCorePoolSize()) {
+            asyncExecutor.setCorePoolSize(threads);
+            asyncExecutor.setMaximumPoolSize(threads);
+        }
+        return asyncExecutor;
+    }
+
+    /**
+     * Set how many paths the attributes of are cached, so that calls like
+     * {@link File#exists()}, {@link File#isDirectory()} and
+     * {@link File#length()} on the same path back to back only go to the
+     * container once. Paths that do not exist are cached as well, so probing
+     * for missing files, or creating them, is just as quick. Every change
+     * through this {@code VirtualFileSystem}
+     * drops the paths it affects, and the end of a transaction drops them
+     * all. Changes to the container file made by anything else are not seen,
+     * so the cache is off by default.
+     *
+     * @param maxEntries the most paths to cache, 0 to turn the cache off
+     * @throws IllegalArgumentException if {@code maxEntries < 0}
+     */
+    public native void setStatCacheSize(int maxEntries) throws IllegalArgumentException;
+
+    /**
+     * @return the current state and counters of this container's stat cache
+     */
+    public StatCacheStats getStatCacheStats() {
+        return new StatCacheStats(getStatCacheStatsImpl());
+    }
+
+    private native long[] getStatCacheStatsImpl();
+
+    /**
+     * Switch on group commit mode. Normally, every write is committed on its
+     * own, so each one pays for a sync of the container file. In group commit
+     * mode, all changes to the container from all threads go through a
+     * single writer instead, and are committed together once the oldest of
+     * them is {@code intervalMillis} old, or as soon as {@code maxBytes} have
+     * been written. That makes many small concurrent writes much faster.
+     * <p>
+     * With {@code waitForCommit}, each write only returns once it has been
+     * committed, so nothing that returned is lost in a crash. Without it,
+     * writes return right away and {@link #commitFuture()} tells when they
+     * are committed. Either way, what is pending is only committed early
+     * when something has to see it:
+     * <ul>
+     * <li>A lookup by path, like {@link File#exists()} or opening a file,
+     * commits it, unless the stat cache answers it, which never commits.
+     * <li>A read, {@code fstat} or {@link FileDescriptor#sync()} on a file
+     * that is already open only commits it if that file was changed in the
+     * pending batch, or if its entry went stale. So a {@code sync()} of one
+     * file does not commit the writes still pending for others.
+     * <li>A thread in a transaction of its own, see {@link #newTransaction()},
+     * never commits it, and does not see what is pending.
+     * </ul>
+     * <p>
+     * Calling this again changes the limits. The container must be mounted.
+     *
+     * @param intervalMillis how long a write can wait for others to join it
+     * @param maxBytes commit once this many bytes are pending, 0 for no limit
+     * @param waitForCommit whether writes wait until they are committed
+     * @throws IllegalArgumentException if {@code intervalMillis} or
+     *         {@code maxBytes} is negative
+     * @throws IllegalStateException if the container is not mounted
+     * @see #disableGroupCommit()
+     */
+    public native void setGroupCommit(long intervalMillis, long maxBytes, boolean waitForCommit)
+            throws IllegalArgumentException, IllegalStateException;
+
+    /**
+     * Commit whatever is pending and go back to committing every write on
+     * its own. Unmounting does this too.
+     */
+    public native void disableGroupCommit();
+
+    /**
+     * Get a {@link Future} that is done once everything written to this
+     * container so far is committed. Without group commit mode, or if every
+     * write waits for its commit, it is done right away. Its
+     * {@link Future#get()} throws an {@link ExecutionException} caused by an
+     * {@link IOException} if the commit failed.
+     *
+     * @return a {@code Future} for the commit of all writes until now
+     * @see #setGroupCommit(long, long, boolean)
+     */
+    public Future<Void> commitFuture() {
+        return new CommitFuture(currentCommitBatch());
+    }
+
+    private native long currentCommitBatch();
+
+    /* returns 0 once batch is committed, or a negative errno */
+    private native int awaitCommit(long batch, long timeoutMillis);
+
+    private class CommitFuture implements Future<Void> {
+        private final long batch;
+
+        CommitFuture(long batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false; // a commit can not be cancelled
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return awaitCommit(batch, 0) != -OsConstants.ETIMEDOUT;
+        }
+
+        @Override
+        public Void get() throws ExecutionException {
+            return result(awaitCommit(batch, -1));
+        }
+
+        @Override
+        public Void get(long timeout, TimeUnit unit) throws ExecutionException,
+                TimeoutException {
+            int rc = awaitCommit(batch, Math.max(0, unit.toMillis(timeout)));
+            if (rc == -OsConstants.ETIMEDOUT)
+                throw new TimeoutException();
+            return result(rc);
+        }
+
+        private Void result(int rc) throws ExecutionException {
+            if (rc < 0)
+                throw new ExecutionException(new IOException("commit failed: "
+                        + OsConstants.errnoName(-rc)));
+            return null;
+        }
+    }
+
+    /**
+     * Begin a transaction on this container in the calling thread, or a
+     * nested one if the thread already has one.
+     *
+     * @throws IllegalStateException if the container is not mounted
+     * @deprecated use {@link #newTransaction()}, which returns the
+     *             transaction, so that it can be committed or rolled back
+     */
+    @Deprecated
+    public void beginTransaction() throws IllegalStateException {
+        newTransaction();
+    }
+
+    /**
+     * Begin a transaction on this container in the calling thread, or a
+     * nested one if the thread already has one. Many writes are much faster
+     * in one transaction than each on its own, and can be rolled back
+     * together. The transaction must be ended in the same thread, see
+     * {@link VfsTransaction}.
+     *
+     * @return the new transaction
+     * @throws IllegalStateException if the container is not mounted
+     */
+    public VfsTransaction newTransaction() throws IllegalStateException {
+        VfsTransaction parent = transaction.get();
+        boolean savepoint = false;
+        if (parent == null)
+            beginTransactionImpl();
+        else
+            savepoint = savepointImpl(parent.level + 1);
+        VfsTransaction t = new VfsTransaction(this, parent, savepoint);
+        transaction.set(t);
+        return t;
+    }
+
+    /**
+     * Commit the innermost transaction of the calling thread, if it has one.
+     *
+     * @deprecated use {@link VfsTransaction#commit()} on the transaction
+     *             returned by {@link #newTransaction()}, which also tells
+     *             whether the commit worked
+     */
+    @Deprecated
+    public void completeTransaction() {
+        VfsTransaction t = transaction.get();
+        if (t == null)
+            return;
+        try {
+            t.commit();
+        } catch (IOException e) {
+            // there is no way to report that here
+        }
+    }
+
+    /**
+     * @return the innermost active transaction of the calling thread, or
+     *         {@code null}
+     */
+    public VfsTransaction currentTransaction() {
+        return transaction.get();
+    }
+
+    /*
+     * Called by VfsTransaction, which has checked that it is the current
+     * one. Returns false if a nested transaction had no savepoint, or it
+     * could not be released or rolled back to.
+     */
+    boolean endTransaction(VfsTransaction t, boolean commit) throws IOException {
+        VfsTransaction parent = t.getParent();
+        if (parent != null) {
+            transaction.set(parent);
+            if (!t.savepoint)
+                return commit; // its changes simply stay in the parent
+            return releaseSavepointImpl(t.level, commit);
+        }
+        transaction.remove();
+        if (!completeTransactionImpl(commit) && commit)
+            throw new IOException("Could not commit the transaction");
+        return true;
+    }
+
+    private native void beginTransactionImpl();
+
+    /* returns false if the savepoint could not be set */
+    private native boolean savepointImpl(int level);
+
+    /* returns false if the savepoint could not be released or rolled back to */
+    private native boolean releaseSavepointImpl(int level, boolean commit);
+
+    private native boolean completeTransactionImpl(boolean commit);
 
 }
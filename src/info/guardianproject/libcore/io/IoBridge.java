@@ -52,15 +52,22 @@ public final class IoBridge {
      * have an Android-specific hack to alter the default permissions.
      */
     public static FileDescriptor open(String path, int flags) throws FileNotFoundException {
+        return open(Libcore.os, path, flags);
+    }
+
+    /**
+     * Like {@link #open(String, int)}, but in the container that {@code os} works on.
+     */
+    public static FileDescriptor open(Os os, String path, int flags) throws FileNotFoundException {
         FileDescriptor fd = null;
         try {
             // On Android, we don't want default permissions to allow global access.
             int mode = ((flags & O_ACCMODE) == O_RDONLY) ? 0 : 0600;
-            fd = Libcore.os.open(path, flags, mode);
+            fd = os.open(path, flags, mode);
             if (fd.valid()) {
                 // Posix open(2) fails with EISDIR only if you ask for write permission.
                 // Java disallows reading directories too.
-                if (S_ISDIR(Libcore.os.fstat(fd).st_mode)) {
+                if (S_ISDIR(os.fstat(fd).st_mode)) {
                     throw new ErrnoException("open", EISDIR);
                 }
             }
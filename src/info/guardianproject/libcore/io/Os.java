@@ -24,6 +24,8 @@ public interface Os {
     public boolean access(String path, int mode) throws ErrnoException;
     public void chmod(String path, int mode) throws ErrnoException;
     public void close(FileDescriptor fd) throws ErrnoException;
+    /* not POSIX: copies within the container in SQL, with recursive a whole directory tree */
+    public void copy(String from, String to, boolean recursive) throws ErrnoException;
     public FileDescriptor dup(FileDescriptor oldFd) throws ErrnoException;
     public FileDescriptor dup2(FileDescriptor oldFd, int newFd) throws ErrnoException;
     public String[] environ();
@@ -58,6 +60,8 @@ public interface Os {
     public void munlock(long address, long byteCount) throws ErrnoException;
     public void munmap(long address, long byteCount) throws ErrnoException;
     public FileDescriptor open(String path, int flags, int mode) throws ErrnoException;
+    /* not POSIX: the same for every fd open on the same file in the same container */
+    public long openFileId(FileDescriptor fd) throws ErrnoException;
     public FileDescriptor[] pipe() throws ErrnoException;
     public int poll(StructPollfd[] fds, int timeoutMs) throws ErrnoException;
     public int pread(FileDescriptor fd, ByteBuffer buffer, long offset) throws ErrnoException;
@@ -69,6 +73,8 @@ public interface Os {
     public int readv(FileDescriptor fd, Object[] buffers, int[] offsets, int[] byteCounts) throws ErrnoException;
     public void remove(String path) throws ErrnoException;
     public void rename(String oldPath, String newPath) throws ErrnoException;
+    /* unlike Linux's sendfile, both offsets are explicit and neither fd's position changes */
+    public long sendfile(FileDescriptor outFd, long outOffset, FileDescriptor inFd, long inOffset, long byteCount, int chunkSize, int flags) throws ErrnoException;
     public void setegid(int egid) throws ErrnoException;
     public void seteuid(int euid) throws ErrnoException;
     public void setgid(int gid) throws ErrnoException;
@@ -85,5 +91,5 @@ public interface Os {
     public int waitpid(int pid, int status, int options) throws ErrnoException;
     public int write(FileDescriptor fd, ByteBuffer buffer, int flags) throws ErrnoException;
     public int write(FileDescriptor fd, byte[] bytes, int byteOffset, int byteCount, int flags) throws ErrnoException;
-    public int writev(FileDescriptor fd, Object[] buffers, int[] offsets, int[] byteCounts) throws ErrnoException;
+    public int writev(FileDescriptor fd, Object[] buffers, int[] offsets, int[] byteCounts, int flags) throws ErrnoException;
 }
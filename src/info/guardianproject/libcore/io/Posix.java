@@ -22,9 +22,29 @@ import java.nio.ByteBuffer;
 
 public final class Posix implements Os {
 
+	/* the native Container this works on, 0 is the default one */
+	private final long container;
+
 	Posix() {
+		this(0);
+	}
+
+	/* takes over the reference to container, see VirtualFileSystem */
+	public Posix(long container) {
+		this.container = container;
+	}
+
+	@Override
+	protected void finalize() throws Throwable {
+		try {
+			releaseContainer(container);
+		} finally {
+			super.finalize();
+		}
 	}
 
+	private static native void releaseContainer(long container);
+
 	// Implemented by libsqlfs
 	public native boolean access(String path, int mode) throws ErrnoException;
 
@@ -32,6 +52,9 @@ public final class Posix implements Os {
 
 	public native void close(FileDescriptor fd) throws ErrnoException;
 
+	public native void copy(String from, String to, boolean recursive)
+			throws ErrnoException;
+
 	public native void fsync(FileDescriptor fd) throws ErrnoException;
 
 	public native void ftruncate(FileDescriptor fd, long length)
@@ -44,12 +67,17 @@ public final class Posix implements Os {
 	public native FileDescriptor open(String path, int flags, int mode)
 			throws ErrnoException;
 
-	private native int preadBytes(FileDescriptor fd, Object buffer, int bufferOffset, int byteCount, long offset) throws ErrnoException;
+	public native long openFileId(FileDescriptor fd) throws ErrnoException;
+
+	private native int preadBytes(FileDescriptor fd, byte[] bytes, int byteOffset, int byteCount, long offset) throws ErrnoException;
+
+	/* direct buffers are read into in place, without any copying in JNI */
+	private native int preadDirect(FileDescriptor fd, ByteBuffer buffer, int bufferOffset, int byteCount, long offset) throws ErrnoException;
 
 	public int pread(FileDescriptor fd, ByteBuffer buffer, long offset)
 	throws ErrnoException {
 		if (buffer.isDirect()) {
-			return preadBytes(fd, buffer, buffer.position(), buffer.remaining(), offset);
+			return preadDirect(fd, buffer, buffer.position(), buffer.remaining(), offset);
 		} else {
 			return preadBytes(fd, buffer.array(),
 					buffer.arrayOffset() + buffer.position(),
@@ -64,22 +92,29 @@ public final class Posix implements Os {
 	}
 
 	public int read(FileDescriptor fd, ByteBuffer buffer) throws ErrnoException {
-		int ret;
-		if (buffer.isDirect()) {
-			ret = preadBytes(fd, buffer, buffer.position(), buffer.remaining(), 0);
-		} else {
-			ret = preadBytes(fd, buffer.array(),
-					buffer.arrayOffset() + buffer.position(),
-					buffer.remaining(), 0);
-		}
-		fd.position += ret;
+		int ret = pread(fd, buffer, fd.position);
+		if (ret > 0)
+			fd.position += ret;
 		return ret;
 	}
 
 	public int read(FileDescriptor fd, byte[] bytes, int byteOffset,
 			int byteCount) throws ErrnoException {
 		int ret = preadBytes(fd, bytes, byteOffset, byteCount, fd.position);
-		fd.position += byteCount;
+		if (ret > 0)
+			fd.position += ret;
+		return ret;
+	}
+
+	/* buffers can be byte[]s or direct ByteBuffers, all are read in one transaction */
+	private native int preadv(FileDescriptor fd, Object[] buffers, int[] offsets,
+			int[] byteCounts, long offset) throws ErrnoException;
+
+	public int readv(FileDescriptor fd, Object[] buffers, int[] offsets,
+			int[] byteCounts) throws ErrnoException {
+		int ret = preadv(fd, buffers, offsets, byteCounts, fd.position);
+		if (ret > 0)
+			fd.position += ret;
 		return ret;
 	}
 
@@ -90,6 +125,10 @@ public final class Posix implements Os {
 
 	public native void rmdir(String path) throws ErrnoException;
 
+	public native long sendfile(FileDescriptor outFd, long outOffset,
+			FileDescriptor inFd, long inOffset, long byteCount, int chunkSize,
+			int flags) throws ErrnoException;
+
 	public native StructStatFs statfs(String path) throws ErrnoException;
 
 	public StructStatFs fstatfs(FileDescriptor fd) throws ErrnoException {
@@ -106,14 +145,7 @@ public final class Posix implements Os {
 
 	public int write(FileDescriptor fd, ByteBuffer buffer, int flags)
 			throws ErrnoException {
-		int ret;
-		if (buffer.isDirect()) {
-			ret = pwriteBytes(fd, buffer, buffer.position(), buffer.remaining(), 0, flags);
-		} else {
-			ret = pwriteBytes(fd, buffer.array(),
-					buffer.arrayOffset() + buffer.position(),
-					buffer.remaining(), 0, flags);
-		}
+		int ret = pwrite(fd, buffer, fd.position, flags);
 		fd.position += ret;
 		return ret;
 	}
@@ -121,14 +153,14 @@ public final class Posix implements Os {
 	public int write(FileDescriptor fd, byte[] bytes, int byteOffset,
 			int byteCount, int flags) throws ErrnoException {
 		int ret = pwriteBytes(fd, bytes, byteOffset, byteCount, fd.position, flags);
-		fd.position += byteCount;
+		fd.position += ret;
 		return ret;
 	}
 
 	public int pwrite(FileDescriptor fd, ByteBuffer buffer, long offset, int flags)
 	throws ErrnoException {
 		if (buffer.isDirect()) {
-			return pwriteBytes(fd, buffer, buffer.position(), buffer.remaining(), offset, flags);
+			return pwriteDirect(fd, buffer, buffer.position(), buffer.remaining(), offset, flags);
 		} else {
 			return pwriteBytes(fd, buffer.array(),
 					buffer.arrayOffset() + buffer.position(),
@@ -143,9 +175,24 @@ public final class Posix implements Os {
 		return pwriteBytes(fd, bytes, byteOffset, byteCount, offset, flags);
 	}
 
-	private native int pwriteBytes(FileDescriptor fd, Object buffer, int bufferOffset,
+	private native int pwriteBytes(FileDescriptor fd, byte[] bytes, int byteOffset,
 			int byteCount, long offset, int flags) throws ErrnoException;
 
+	/* direct buffers are written from in place, without any copying in JNI */
+	private native int pwriteDirect(FileDescriptor fd, ByteBuffer buffer, int bufferOffset,
+			int byteCount, long offset, int flags) throws ErrnoException;
+
+	/* buffers can be byte[]s or direct ByteBuffers, all are written in one transaction */
+	private native int pwritev(FileDescriptor fd, Object[] buffers, int[] offsets,
+			int[] byteCounts, long offset, int flags) throws ErrnoException;
+
+	public int writev(FileDescriptor fd, Object[] buffers, int[] offsets,
+			int[] byteCounts, int flags) throws ErrnoException {
+		int ret = pwritev(fd, buffers, offsets, byteCounts, fd.position, flags);
+		fd.position += ret;
+		return ret;
+	}
+
 	public native StructStat stat(String path) throws ErrnoException;
 
 	public native StructStat fstat(FileDescriptor fd) throws ErrnoException;
@@ -291,11 +338,6 @@ public final class Posix implements Os {
 		throw new UnsupportedOperationException("Not implemented");
 	}
 
-	public int readv(FileDescriptor fd, Object[] buffers, int[] offsets,
-			int[] byteCounts) throws UnsupportedOperationException {
-		throw new UnsupportedOperationException("Not implemented");
-	}
-
 	public void setegid(int egid) throws UnsupportedOperationException {
 		throw new UnsupportedOperationException("Not implemented");
 	}
@@ -335,8 +377,4 @@ public final class Posix implements Os {
 		throw new UnsupportedOperationException("Not implemented");
 	}
 
-	public int writev(FileDescriptor fd, Object[] buffers, int[] offsets,
-			int[] byteCounts) throws UnsupportedOperationException {
-		throw new UnsupportedOperationException("Not implemented");
-	}
 }